@@ -1,9 +1,15 @@
 package com.stjepano.filestore.client;
 
+import com.stjepano.filestore.common.BatchResult;
 import com.stjepano.filestore.common.FileInfo;
+import com.stjepano.filestore.common.FilePage;
 
+import java.io.InputStream;
 import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 /**
@@ -27,6 +33,27 @@ public interface Bucket {
      */
     List<FileInfo> getFiles();
 
+    /**
+     * Get one page of files in the bucket sorted by name.
+     * @param prefix only files with names starting with prefix are returned, null for all files
+     * @param startAfter only files with names after this one are returned, null to start from the first file
+     * @param limit maximal number of files in the page (server may return less)
+     * @return a {@link FilePage} object, next page cursor is null on the last page
+     * @throws FileStoreServerException if server response was not success
+     * @throws FileStoreException if communication with server failed in any way
+     */
+    FilePage getFiles(String prefix, String startAfter, int limit);
+
+    /**
+     * Iterate over files in the bucket sorted by name, pages of files are fetched from the server as needed.
+     * @param prefix only files with names starting with prefix are returned, null for all files
+     * @param pageSize number of files fetched with one request
+     * @return an iterator of {@link FileInfo} objects
+     * @throws FileStoreServerException (from iterator methods) if server response was not success
+     * @throws FileStoreException (from iterator methods) if communication with server failed in any way
+     */
+    Iterator<FileInfo> iterateFiles(String prefix, int pageSize);
+
     /**
      * Check if file exists
      * @param filename the name of the file
@@ -45,15 +72,26 @@ public interface Bucket {
      */
     Optional<FileInfo> getFileInfo(String filename);
 
+    /**
+     * Get {@link FileInfo} objects of many files with batch requests, the server looks them up in parallel.
+     * @param filenames names of the files
+     * @return {@link FileInfo} objects of existing files by file name, files which do not exist are missing
+     * @throws FileStoreServerException if server response was not success or it could not look up a file
+     * @throws FileStoreException if communication with server failed in any way
+     */
+    Map<String, FileInfo> getFileInfos(Collection<String> filenames);
+
     /**
      * Upload a file to file store bucket from given path.
      *
-     * File in the store will have same name as local file.
+     * File in the store will have same name as local file. Data is streamed from the file and its SHA-256 digest is
+     * compared with the digest of stored content when server reports it.
      *
      * @param sourceFilePath path of the file
      * @throws FileStoreServerException if server response was not success
      * @throws FileStoreException if communication with server failed in any way
      *                            if file specified by sourceFilePath does not exist or can not read it
+     *                            if server reports stored content which differs from uploaded data
      */
     void uploadFile(Path sourceFilePath);
 
@@ -67,9 +105,39 @@ public interface Bucket {
      * @throws FileStoreServerException if server response was not success
      * @throws FileStoreException if communication with server failed in any way
      *                            if file specified by sourceFilePath does not exist or can not read it
+     *                            if server reports stored content which differs from uploaded data
      */
     void uploadFile(Path sourceFilePath, String newFilename);
 
+    /**
+     * Upload a file to file store bucket from given path and report progress of the upload.
+     *
+     * @param sourceFilePath path of the file
+     * @param newFilename desired filename in the store, null to use the name of local file
+     * @param progressListener listener called while data is sent, may be null
+     * @throws FileStoreServerException if server response was not success
+     * @throws FileStoreException if communication with server failed in any way
+     *                            if file specified by sourceFilePath does not exist or can not read it
+     *                            if server reports stored content which differs from uploaded data
+     */
+    void uploadFile(Path sourceFilePath, String newFilename, UploadProgressListener progressListener);
+
+    /**
+     * Upload data of unknown length read from an input stream to a new file.
+     *
+     * Data is streamed as it is read, so it is never held in memory as a whole. The stream is read once and is not
+     * closed, so a request which fails can not be retried.
+     *
+     * @param source stream of file data
+     * @param filename name of the file in the store
+     * @param progressListener listener called while data is sent, may be null
+     * @throws FileStoreServerException if server response was not success
+     * @throws FileStoreException if communication with server failed in any way
+     *                            if reading from source failed
+     *                            if server reports stored content which differs from uploaded data
+     */
+    void uploadFile(InputStream source, String filename, UploadProgressListener progressListener);
+
     /**
      * Overwrite store file with local file
      * @param sourceFilePath the path to local file
@@ -77,9 +145,50 @@ public interface Bucket {
      * @throws FileStoreServerException if server response was not success
      * @throws FileStoreException if communication with server failed in any way
      *                            if file specified by sourceFilePath does not exist or can not read it
+     *                            if server reports stored content which differs from uploaded data
      */
     void overwriteFile(Path sourceFilePath, String filename);
 
+    /**
+     * Upload a large file to file store bucket in parts which are sent in parallel.
+     *
+     * The server chooses the size of parts. Each part is verified by the server with its MD5 digest and a part which
+     * fails is sent again, the file appears in the store once all parts were sent.
+     *
+     * @param sourceFilePath path of the file
+     * @param filename desired filename in the store
+     * @param parallelism number of parts sent at the same time
+     * @throws MultipartUploadException if some parts could not be sent, the upload can be resumed with its id
+     * @throws FileStoreServerException if server response was not success
+     * @throws FileStoreException if communication with server failed in any way
+     *                            if file specified by sourceFilePath does not exist or can not read it
+     */
+    void uploadFileInParts(Path sourceFilePath, String filename, int parallelism);
+
+    /**
+     * Resume an upload which failed with {@link MultipartUploadException}, only parts which the server does not have
+     * are sent.
+     *
+     * @param sourceFilePath path of the file, it must not have changed since the upload was started
+     * @param filename name of the file in the store
+     * @param uploadId id of the upload
+     * @param parallelism number of parts sent at the same time
+     * @throws MultipartUploadException if some parts could not be sent, the upload can be resumed again
+     * @throws FileStoreServerException if server response was not success, code 404 if upload expired
+     * @throws FileStoreException if communication with server failed in any way
+     *                            if file specified by sourceFilePath does not exist or can not read it
+     */
+    void resumeUploadInParts(Path sourceFilePath, String filename, String uploadId, int parallelism);
+
+    /**
+     * Abort an upload which failed with {@link MultipartUploadException}, the server deletes its parts.
+     * @param filename name of the file in the store
+     * @param uploadId id of the upload
+     * @throws FileStoreServerException if server response was not success
+     * @throws FileStoreException if communication with server failed in any way
+     */
+    void abortUploadInParts(String filename, String uploadId);
+
     /**
      * Download file to local path.
      * @param filename name of the file in the store
@@ -90,6 +199,30 @@ public interface Bucket {
      */
     void downloadFile(String filename, Path targetFile);
 
+    /**
+     * Download files whose names start with a prefix into a directory with one request, the server sends them as a
+     * zip archive which is extracted while it is received. Files of already compressed types are not compressed again.
+     * @param prefix prefix of file names, null for all files
+     * @param targetDirectory existing directory where files will be downloaded, files must not exist in it
+     * @return names of downloaded files sorted by name
+     * @throws FileStoreServerException if server response was not success
+     * @throws FileStoreException if communication with server failed in any way (files downloaded until then are kept)
+     *                            if could not write a file to targetDirectory
+     */
+    List<String> downloadFilesWithPrefix(String prefix, Path targetDirectory);
+
+    /**
+     * Download many files into a directory with as few requests as possible, the server sends them as zip archives
+     * which are extracted while they are received. Files of already compressed types are not compressed again.
+     * @param filenames names of the files in the store
+     * @param targetDirectory existing directory where files will be downloaded, files must not exist in it
+     * @return names of downloaded files, files which do not exist are missing
+     * @throws FileStoreServerException if server response was not success
+     * @throws FileStoreException if communication with server failed in any way (files downloaded until then are kept)
+     *                            if could not write a file to targetDirectory
+     */
+    List<String> downloadFiles(Collection<String> filenames, Path targetDirectory);
+
     /**
      * Delete file in the store.
      * @param filename name of the file in the store
@@ -98,6 +231,18 @@ public interface Bucket {
      */
     void deleteFile(String filename);
 
+    /**
+     * Delete many files in the store with batch requests, the server deletes them in parallel.
+     *
+     * A file which could not be deleted does not fail the others, its result has an error status and message.
+     *
+     * @param filenames names of the files in the store
+     * @return a {@link BatchResult} for each file, in the order in which the server completed them
+     * @throws FileStoreServerException if server response was not success
+     * @throws FileStoreException if communication with server failed in any way
+     */
+    List<BatchResult> deleteFiles(Collection<String> filenames);
+
     /**
      * Delete this bucket and all files in it, use with care.
      *
@@ -0,0 +1,24 @@
+package com.stjepano.filestore.client;
+
+import java.nio.file.Path;
+
+/**
+ * Thrown when parts of a multipart upload could not be sent, uploaded parts are kept by the server (for a day by
+ * default) and the upload can be resumed with {@link Bucket#resumeUploadInParts(Path, String, String, int)}.
+ */
+public class MultipartUploadException extends FileStoreException {
+
+    private final String uploadId;
+
+    public MultipartUploadException(String uploadId, String message, Throwable cause) {
+        super(message, cause);
+        this.uploadId = uploadId;
+    }
+
+    /**
+     * Get id of the upload to resume
+     */
+    public String getUploadId() {
+        return uploadId;
+    }
+}
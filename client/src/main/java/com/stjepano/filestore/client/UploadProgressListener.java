@@ -0,0 +1,15 @@
+package com.stjepano.filestore.client;
+
+/**
+ * Receives progress of an upload, it is called on the uploading thread each time a buffer of data was sent.
+ */
+@FunctionalInterface
+public interface UploadProgressListener {
+
+    /**
+     * Called after data was sent.
+     * @param bytesSent number of bytes sent so far
+     * @param totalBytes size of uploaded data or -1 if it is not known (uploads from an input stream)
+     */
+    void progress(long bytesSent, long totalBytes);
+}
@@ -0,0 +1,101 @@
+package com.stjepano.filestore.client.impl.okhttp;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.ZipInputStream;
+
+/**
+ * A {@link ZipInputStream} of a zip archive sent by the server which tells whether the archive is complete.
+ *
+ * Entries are read from their local headers while the archive is received, so an archive which ends after some of its
+ * entries looks complete to {@link ZipInputStream}. The server leaves an archive it could not complete without the
+ * central directory, so the archive is complete only if it ends with the end of central directory record.
+ */
+class ArchiveInputStream extends ZipInputStream {
+
+    private final Tail tail;
+
+    ArchiveInputStream(InputStream in) {
+        this(new Tail(in));
+    }
+
+    private ArchiveInputStream(Tail tail) {
+        super(tail);
+        this.tail = tail;
+    }
+
+    /**
+     * Read the rest of the archive after its last entry and check that it was complete.
+     */
+    boolean isComplete() throws IOException {
+        tail.skipToEnd();
+        return tail.endsWithEndOfCentralDirectory();
+    }
+
+    /**
+     * Remembers the last bytes read from a stream.
+     */
+    private static class Tail extends FilterInputStream {
+
+        /** Size of the end of central directory record of an archive without comment */
+        private static final int END_SIZE = 22;
+
+        private final byte[] last = new byte[END_SIZE];
+        private int count;
+
+        Tail(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = in.read();
+            if (b >= 0) {
+                remember(new byte[] {(byte) b}, 0, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int n = in.read(b, off, len);
+            if (n > 0) {
+                remember(b, off, n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // skipped bytes must be seen
+            final byte[] buffer = new byte[(int) Math.min(n, 8192)];
+            final int read = read(buffer, 0, buffer.length);
+            return Math.max(read, 0);
+        }
+
+        void skipToEnd() throws IOException {
+            final byte[] buffer = new byte[8192];
+            while (read(buffer, 0, buffer.length) >= 0) {
+                // only the tail is needed
+            }
+        }
+
+        boolean endsWithEndOfCentralDirectory() {
+            return count == END_SIZE && last[0] == 'P' && last[1] == 'K' && last[2] == 5 && last[3] == 6
+                    && last[END_SIZE - 2] == 0 && last[END_SIZE - 1] == 0;
+        }
+
+        private void remember(byte[] b, int off, int n) {
+            if (n >= END_SIZE) {
+                System.arraycopy(b, off + n - END_SIZE, last, 0, END_SIZE);
+                count = END_SIZE;
+                return;
+            }
+            final int keep = Math.min(count, END_SIZE - n);
+            System.arraycopy(last, count - keep, last, 0, keep);
+            System.arraycopy(b, off, last, keep, n);
+            count = keep + n;
+        }
+    }
+}
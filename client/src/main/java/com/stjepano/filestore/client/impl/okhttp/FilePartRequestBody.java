@@ -0,0 +1,84 @@
+package com.stjepano.filestore.client.impl.okhttp;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import okio.ByteString;
+import okio.Okio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Request body which streams one region (a part of a multipart upload) of a local file, parts of the same file are
+ * sent concurrently through their own file channels.
+ */
+class FilePartRequestBody extends RequestBody {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final MediaType contentType;
+    private final Path path;
+    private final long offset;
+    private final long length;
+
+    FilePartRequestBody(MediaType contentType, Path path, long offset, long length) {
+        this.contentType = contentType;
+        this.path = path;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return contentType;
+    }
+
+    @Override
+    public long contentLength() {
+        return length;
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+             InputStream in = Channels.newInputStream(channel.position(offset))) {
+            sink.write(Okio.source(in), length);
+        }
+    }
+
+    /**
+     * Read the region to compute its MD5 digest, which is sent before the data so that the server verifies the part.
+     */
+    ByteString md5() throws IOException {
+        final MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long position = offset;
+            while (position < offset + length) {
+                buffer.clear();
+                buffer.limit((int) Math.min(BUFFER_SIZE, offset + length - position));
+                final int n = channel.read(buffer, position);
+                if (n < 0) {
+                    throw new IOException(String.format("File '%s' is shorter than %d bytes!", path, offset + length));
+                }
+                buffer.flip();
+                md5.update(buffer);
+                position += n;
+            }
+        }
+        return ByteString.of(md5.digest());
+    }
+}
@@ -0,0 +1,33 @@
+package com.stjepano.filestore.client.impl.okhttp;
+
+import com.stjepano.filestore.client.UploadProgressListener;
+import okhttp3.MediaType;
+import okio.Okio;
+import okio.Source;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Request body which streams a local file, the file is never loaded into memory.
+ */
+class FileRequestBody extends SourceRequestBody {
+
+    private final Path path;
+
+    FileRequestBody(MediaType contentType, Path path, int bufferSize, UploadProgressListener progressListener) {
+        super(contentType, bufferSize, progressListener);
+        this.path = path;
+    }
+
+    @Override
+    public long contentLength() throws IOException {
+        return Files.size(path);
+    }
+
+    @Override
+    protected Source openSource() throws IOException {
+        return Okio.source(path);
+    }
+}
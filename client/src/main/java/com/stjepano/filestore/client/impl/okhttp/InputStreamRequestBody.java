@@ -0,0 +1,46 @@
+package com.stjepano.filestore.client.impl.okhttp;
+
+import com.stjepano.filestore.client.UploadProgressListener;
+import okhttp3.MediaType;
+import okio.ForwardingSource;
+import okio.Okio;
+import okio.Source;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Request body which streams an input stream of unknown length (sent with chunked transfer encoding). The stream can
+ * be read only once, so the body can not be written again when a request is retried or redirected. The stream is not
+ * closed, it belongs to the caller.
+ */
+class InputStreamRequestBody extends SourceRequestBody {
+
+    private final InputStream inputStream;
+
+    private boolean opened;
+
+    InputStreamRequestBody(MediaType contentType, InputStream inputStream, int bufferSize,
+                           UploadProgressListener progressListener) {
+        super(contentType, bufferSize, progressListener);
+        this.inputStream = inputStream;
+    }
+
+    @Override
+    public long contentLength() {
+        return -1;
+    }
+
+    @Override
+    protected synchronized Source openSource() throws IOException {
+        if (opened) {
+            throw new IOException("Input stream was already sent, it can not be sent again!");
+        }
+        opened = true;
+        return new ForwardingSource(Okio.source(inputStream)) {
+            @Override
+            public void close() {
+            }
+        };
+    }
+}
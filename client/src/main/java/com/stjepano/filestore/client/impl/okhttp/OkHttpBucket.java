@@ -4,8 +4,14 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.stjepano.filestore.client.Bucket;
 import com.stjepano.filestore.client.FileStoreException;
 import com.stjepano.filestore.client.FileStoreServerException;
+import com.stjepano.filestore.client.MultipartUploadException;
+import com.stjepano.filestore.client.UploadProgressListener;
+import com.stjepano.filestore.common.BatchOperation;
+import com.stjepano.filestore.common.BatchResult;
 import com.stjepano.filestore.common.ErrorResponse;
 import com.stjepano.filestore.common.FileInfo;
+import com.stjepano.filestore.common.FilePage;
+import com.stjepano.filestore.common.MultipartUpload;
 import okhttp3.HttpUrl;
 import okhttp3.MediaType;
 import okhttp3.MultipartBody;
@@ -16,19 +22,51 @@ import okhttp3.Response;
 import okio.ByteString;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
 
 /**
  * Implementation of {@link Bucket} that uses apache HttpClient.
  */
 public class OkHttpBucket implements Bucket {
 
+    private static final String WANT_DIGEST = "Want-Digest";
+    private static final String DIGEST = "Digest";
+    private static final String SHA_256 = "sha-256";
+    private static final String CONTENT_MD5 = "Content-MD5";
+    private static final MediaType OCTET_STREAM = MediaType.parse("application/octet-stream");
+
+    /**
+     * Maximal number of operations sent with one batch request
+     */
+    static final int BATCH_SIZE = 1000;
+
+    /**
+     * Number of times a part of a multipart upload is sent before the upload fails
+     */
+    static final int PART_ATTEMPTS = 3;
+
     private final OkHttpFileStore okHttpFileStore;
     private final String name;
 
@@ -65,6 +103,10 @@ public class OkHttpBucket implements Bucket {
         return this.okHttpFileStore.getObjectMapper();
     }
 
+    private int uploadBufferSize() {
+        return this.okHttpFileStore.getUploadBufferSize();
+    }
+
     @Override
     public List<FileInfo> getFiles() {
         try {
@@ -85,6 +127,58 @@ public class OkHttpBucket implements Bucket {
         }
     }
 
+    @Override
+    public FilePage getFiles(String prefix, String startAfter, int limit) {
+        try {
+            HttpUrl.Builder urlBuilder = HttpUrl.get(bucketUri()).newBuilder()
+                    .addQueryParameter("limit", Integer.toString(limit));
+            if (startAfter != null) {
+                urlBuilder.addQueryParameter("startAfter", startAfter);
+            }
+            if (prefix != null) {
+                urlBuilder.addQueryParameter("prefix", prefix);
+            }
+            final Request request = new Request.Builder()
+                    .url(urlBuilder.build())
+                    .build();
+
+            try (Response response = okHttpClient().newCall(request).execute()) {
+                throwIfResponseInError(response);
+                return objectMapper().readValue(response.body().byteStream(), FilePage.class);
+            }
+        } catch (IOException e) {
+            throw new FileStoreException(e);
+        }
+    }
+
+    @Override
+    public Iterator<FileInfo> iterateFiles(String prefix, int pageSize) {
+        return new Iterator<FileInfo>() {
+            private Iterator<FileInfo> current = Collections.emptyIterator();
+            private String nextStartAfter = null;
+            private boolean lastPage = false;
+
+            @Override
+            public boolean hasNext() {
+                while (!current.hasNext() && !lastPage) {
+                    FilePage page = getFiles(prefix, nextStartAfter, pageSize);
+                    current = page.getFiles().iterator();
+                    nextStartAfter = page.getNextStartAfter();
+                    lastPage = nextStartAfter == null;
+                }
+                return current.hasNext();
+            }
+
+            @Override
+            public FileInfo next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return current.next();
+            }
+        };
+    }
+
     @Override
     public boolean fileExists(String filename) {
         return getFileInfo(filename).isPresent();
@@ -96,6 +190,19 @@ public class OkHttpBucket implements Bucket {
         return fileInfos.stream().filter(fileInfo -> fileInfo.getName().equals(filename)).findFirst();
     }
 
+    @Override
+    public Map<String, FileInfo> getFileInfos(Collection<String> filenames) {
+        final Map<String, FileInfo> fileInfos = new HashMap<>();
+        for (BatchResult result : batch(BatchOperation.STAT, filenames)) {
+            if (result.getStatus() == 200) {
+                fileInfos.put(result.getName(), result.getFileInfo());
+            } else if (result.getStatus() != 404) {
+                throw new FileStoreServerException(result.getStatus(), result.getMessage());
+            }
+        }
+        return fileInfos;
+    }
+
     @Override
     public void uploadFile(Path sourceFilePath) {
         uploadFile(sourceFilePath, null);
@@ -103,6 +210,11 @@ public class OkHttpBucket implements Bucket {
 
     @Override
     public void uploadFile(Path sourceFilePath, String newFilename) {
+        uploadFile(sourceFilePath, newFilename, null);
+    }
+
+    @Override
+    public void uploadFile(Path sourceFilePath, String newFilename, UploadProgressListener progressListener) {
         try {
             if (!Files.exists(sourceFilePath)
                     || !Files.isRegularFile(sourceFilePath)
@@ -112,7 +224,8 @@ public class OkHttpBucket implements Bucket {
                         sourceFilePath.normalize().toString()
                 ));
             }
-            RequestBody requestBody = createUploadRequest(sourceFilePath);
+            FileRequestBody fileBody = new FileRequestBody(OCTET_STREAM, sourceFilePath, uploadBufferSize(), progressListener);
+            RequestBody requestBody = createUploadRequest(sourceFilePath, fileBody);
             URI bucketUri = bucketUri();
             URL targetUrl = bucketUri.toURL();
             if (newFilename != null) {
@@ -125,11 +238,14 @@ public class OkHttpBucket implements Bucket {
 
             final Request request = new Request.Builder()
                     .url(targetUrl)
+                    .header(WANT_DIGEST, SHA_256)
                     .post(requestBody)
                     .build();
 
-            final Response response = okHttpClient().newCall(request).execute();
-            throwIfResponseInError(response);
+            try (Response response = okHttpClient().newCall(request).execute()) {
+                throwIfResponseInError(response);
+                verifyDigest(response, fileBody, newFilename != null ? newFilename : sourceFilePath.getFileName().toString());
+            }
         } catch (IOException e) {
             throw new FileStoreException(e);
         }
@@ -146,30 +262,240 @@ public class OkHttpBucket implements Bucket {
                         sourceFilePath.normalize().toString()
                 ));
             }
-            RequestBody requestBody = createUploadRequest(sourceFilePath);
+            FileRequestBody fileBody = new FileRequestBody(OCTET_STREAM, sourceFilePath, uploadBufferSize(), null);
+            RequestBody requestBody = createUploadRequest(sourceFilePath, fileBody);
             final Request request = new Request.Builder()
                     .url(fileUri(filename).toURL())
+                    .header(WANT_DIGEST, SHA_256)
                     .put(requestBody)
                     .build();
 
-            final Response response = okHttpClient().newCall(request).execute();
-            throwIfResponseInError(response);
+            try (Response response = okHttpClient().newCall(request).execute()) {
+                throwIfResponseInError(response);
+                verifyDigest(response, fileBody, filename);
+            }
+        } catch (IOException e) {
+            throw new FileStoreException(e);
+        }
+    }
+
+    @Override
+    public void uploadFile(InputStream source, String filename, UploadProgressListener progressListener) {
+        try {
+            // raw request body, the server streams it into the bucket without multipart parsing
+            final InputStreamRequestBody streamBody = new InputStreamRequestBody(OCTET_STREAM, source, uploadBufferSize(), progressListener);
+            final Request request = new Request.Builder()
+                    .url(fileUri(filename).toURL())
+                    .header(WANT_DIGEST, SHA_256)
+                    .post(streamBody)
+                    .build();
+
+            try (Response response = okHttpClient().newCall(request).execute()) {
+                throwIfResponseInError(response);
+                verifyDigest(response, streamBody, filename);
+            }
+        } catch (IOException e) {
+            throw new FileStoreException(e);
+        }
+    }
+
+    @Override
+    public void uploadFileInParts(Path sourceFilePath, String filename, int parallelism) {
+        try {
+            checkReadable(sourceFilePath);
+            final HttpUrl url = HttpUrl.get(fileUri(filename)).newBuilder()
+                    .addQueryParameter("uploads", null)
+                    .addQueryParameter("size", Long.toString(Files.size(sourceFilePath)))
+                    .build();
+            final Request request = new Request.Builder()
+                    .url(url)
+                    .post(RequestBody.create(OCTET_STREAM, new byte[0]))
+                    .build();
+
+            final MultipartUpload upload;
+            try (Response response = okHttpClient().newCall(request).execute()) {
+                throwIfResponseInError(response);
+                upload = objectMapper().readValue(response.body().byteStream(), MultipartUpload.class);
+            }
+            uploadParts(sourceFilePath, filename, upload, parallelism);
+        } catch (IOException e) {
+            throw new FileStoreException(e);
+        }
+    }
+
+    @Override
+    public void resumeUploadInParts(Path sourceFilePath, String filename, String uploadId, int parallelism) {
+        try {
+            checkReadable(sourceFilePath);
+            final Request request = new Request.Builder()
+                    .url(uploadUrl(filename, uploadId))
+                    .build();
+
+            final MultipartUpload upload;
+            try (Response response = okHttpClient().newCall(request).execute()) {
+                throwIfResponseInError(response);
+                upload = objectMapper().readValue(response.body().byteStream(), MultipartUpload.class);
+            }
+            if (upload.getSize() != Files.size(sourceFilePath)) {
+                throw new FileStoreException(String.format("File '%s' has %d bytes, upload '%s' was started with %d bytes!",
+                        sourceFilePath.normalize().toString(), Files.size(sourceFilePath), uploadId, upload.getSize()));
+            }
+            uploadParts(sourceFilePath, filename, upload, parallelism);
+        } catch (IOException e) {
+            throw new FileStoreException(e);
+        }
+    }
+
+    @Override
+    public void abortUploadInParts(String filename, String uploadId) {
+        try {
+            final Request request = new Request.Builder()
+                    .url(uploadUrl(filename, uploadId))
+                    .delete()
+                    .build();
+
+            try (Response response = okHttpClient().newCall(request).execute()) {
+                throwIfResponseInError(response);
+            }
         } catch (IOException e) {
             throw new FileStoreException(e);
         }
     }
 
-    private RequestBody createUploadRequest(Path sourceFilePath) throws IOException {
+    /**
+     * Send parts which the server does not have yet on a pool of parallelism threads and complete the upload.
+     */
+    private void uploadParts(Path sourceFilePath, String filename, MultipartUpload upload, int parallelism) throws IOException {
+        final Set<Integer> uploadedParts = new HashSet<>(upload.getUploadedParts());
+        final List<Integer> parts = new ArrayList<>();
+        for (int part = 1; part <= upload.getPartCount(); part++) {
+            if (!uploadedParts.contains(part)) {
+                parts.add(part);
+            }
+        }
+        if (!parts.isEmpty()) {
+            final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, parts.size())), runnable -> {
+                final Thread thread = new Thread(runnable, "filestore-upload-" + upload.getUploadId());
+                thread.setDaemon(true);
+                return thread;
+            });
+            try {
+                final List<Future<?>> futures = new ArrayList<>(parts.size());
+                for (int part : parts) {
+                    futures.add(executor.submit(() -> {
+                        uploadPart(sourceFilePath, filename, upload, part);
+                        return null;
+                    }));
+                }
+                Throwable failure = null;
+                for (Future<?> future : futures) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException e) {
+                        failure = failure == null ? e.getCause() : failure;
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        failure = e;
+                        break;
+                    }
+                }
+                if (failure != null) {
+                    throw new MultipartUploadException(upload.getUploadId(), String.format(
+                            "Upload '%s' of file '%s' failed, it can be resumed!", upload.getUploadId(), filename), failure);
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        final Request request = new Request.Builder()
+                .url(uploadUrl(filename, upload.getUploadId()))
+                .post(RequestBody.create(OCTET_STREAM, new byte[0]))
+                .build();
+        try (Response response = okHttpClient().newCall(request).execute()) {
+            throwIfResponseInError(response);
+        }
+    }
+
+    /**
+     * Send one part, it is sent again if the connection fails or the server has a temporary failure.
+     */
+    private void uploadPart(Path sourceFilePath, String filename, MultipartUpload upload, int part) throws IOException {
+        final long offset = (part - 1) * upload.getPartSize();
+        final long length = Math.min(upload.getPartSize(), upload.getSize() - offset);
+        final FilePartRequestBody partBody = new FilePartRequestBody(OCTET_STREAM, sourceFilePath, offset, length);
+        final HttpUrl url = uploadUrl(filename, upload.getUploadId()).newBuilder()
+                .addQueryParameter("partNumber", Integer.toString(part))
+                .build();
+        final Request request = new Request.Builder()
+                .url(url)
+                .header(CONTENT_MD5, partBody.md5().base64())
+                .put(partBody)
+                .build();
+
+        for (int attempt = 1; ; attempt++) {
+            try (Response response = okHttpClient().newCall(request).execute()) {
+                if (response.code() < 500 || attempt == PART_ATTEMPTS) {
+                    throwIfResponseInError(response);
+                    return;
+                }
+            } catch (IOException e) {
+                if (attempt == PART_ATTEMPTS) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private HttpUrl uploadUrl(String filename, String uploadId) {
+        return HttpUrl.get(fileUri(filename)).newBuilder()
+                .addQueryParameter("uploadId", uploadId)
+                .build();
+    }
+
+    private static void checkReadable(Path sourceFilePath) {
+        if (!Files.exists(sourceFilePath)
+                || !Files.isRegularFile(sourceFilePath)
+                || !Files.isReadable(sourceFilePath)) {
+            throw new FileStoreException(String.format(
+                    "File '%s' does not exist, is not a regular file or can not be read!",
+                    sourceFilePath.normalize().toString()
+            ));
+        }
+    }
+
+    private RequestBody createUploadRequest(Path sourceFilePath, FileRequestBody fileBody) {
         return new MultipartBody.Builder()
                         .setType(MultipartBody.FORM)
                         .addFormDataPart(
                                 "file",
                                 sourceFilePath.getFileName().toString(),
-                                RequestBody.create(MediaType.parse("application/octet-stream"), Files.readAllBytes(sourceFilePath))
+                                fileBody
                         )
                         .build();
     }
 
+    /**
+     * Compare SHA-256 digest of sent data with the digest of stored data reported by the server (servers which do not
+     * store digests do not report them and uploads to them are not verified).
+     */
+    private static void verifyDigest(Response response, SourceRequestBody fileBody, String filename) {
+        final String digest = response.header(DIGEST);
+        if (digest == null || fileBody.sha256() == null) {
+            return;
+        }
+        for (String element : digest.split(",")) {
+            final int equals = element.indexOf('=');
+            if (equals > 0 && element.substring(0, equals).trim().equalsIgnoreCase(SHA_256)) {
+                final ByteString stored = ByteString.decodeBase64(element.substring(equals + 1).trim());
+                if (!fileBody.sha256().equals(stored)) {
+                    throw new FileStoreException(String.format(
+                            "Stored content of file '%s' does not match uploaded data, it was corrupted in transit!", filename));
+                }
+            }
+        }
+    }
+
     @Override
     public void downloadFile(String filename, Path targetFile) {
         try {
@@ -193,6 +519,70 @@ public class OkHttpBucket implements Bucket {
         }
     }
 
+    @Override
+    public List<String> downloadFilesWithPrefix(String prefix, Path targetDirectory) {
+        final HttpUrl.Builder urlBuilder = archiveUrl();
+        if (prefix != null) {
+            urlBuilder.addQueryParameter("prefix", prefix);
+        }
+        return downloadArchive(new Request.Builder().url(urlBuilder.build()).build(), targetDirectory);
+    }
+
+    @Override
+    public List<String> downloadFiles(Collection<String> filenames, Path targetDirectory) {
+        final List<String> names = new ArrayList<>(filenames);
+        final List<String> downloaded = new ArrayList<>(names.size());
+        try {
+            for (int from = 0; from < names.size(); from += BATCH_SIZE) {
+                final byte[] body = objectMapper().writeValueAsBytes(names.subList(from, Math.min(from + BATCH_SIZE, names.size())));
+                final Request request = new Request.Builder()
+                        .url(archiveUrl().build())
+                        .post(RequestBody.create(MediaType.parse("application/json"), body))
+                        .build();
+                downloaded.addAll(downloadArchive(request, targetDirectory));
+            }
+        } catch (IOException e) {
+            throw new FileStoreException(e);
+        }
+        return downloaded;
+    }
+
+    private HttpUrl.Builder archiveUrl() {
+        return HttpUrl.get(bucketUri()).newBuilder()
+                .addQueryParameter("archive", "zip")
+                .addQueryParameter("compress", "auto");
+    }
+
+    /**
+     * Extract files of a zip archive sent by the server into a directory while it is received.
+     */
+    private List<String> downloadArchive(Request request, Path targetDirectory) {
+        try (Response response = okHttpClient().newCall(request).execute()) {
+            throwIfResponseInError(response);
+            final List<String> filenames = new ArrayList<>();
+            try (ArchiveInputStream zip = new ArchiveInputStream(response.body().byteStream())) {
+                ZipEntry entry;
+                while ((entry = zip.getNextEntry()) != null) {
+                    final Path targetFile = targetDirectory.resolve(entry.getName());
+                    // a file of a bucket has a plain name, anything else would be written outside of the directory
+                    if (entry.isDirectory() || !targetDirectory.equals(targetFile.getParent())
+                            || !entry.getName().equals(targetFile.getFileName().toString())) {
+                        throw new FileStoreException(String.format(
+                                "Server sent an archive entry '%s' which is not a file name!", entry.getName()));
+                    }
+                    Files.copy(zip, targetFile);
+                    filenames.add(entry.getName());
+                }
+                if (!zip.isComplete()) {
+                    throw new FileStoreException("Server could not send all files, the archive it sent is incomplete!");
+                }
+            }
+            return filenames;
+        } catch (IOException e) {
+            throw new FileStoreException(e);
+        }
+    }
+
     @Override
     public void deleteFile(String filename) {
         try {
@@ -208,6 +598,47 @@ public class OkHttpBucket implements Bucket {
         }
     }
 
+    @Override
+    public List<BatchResult> deleteFiles(Collection<String> filenames) {
+        return batch(BatchOperation.DELETE, filenames);
+    }
+
+    /**
+     * Apply an operation to files with as few batch requests as possible.
+     */
+    private List<BatchResult> batch(String op, Collection<String> filenames) {
+        final List<BatchOperation> operations = filenames.stream()
+                .map(filename -> new BatchOperation(op, filename))
+                .collect(Collectors.toList());
+        final List<BatchResult> results = new ArrayList<>(operations.size());
+        for (int from = 0; from < operations.size(); from += BATCH_SIZE) {
+            results.addAll(batch(operations.subList(from, Math.min(from + BATCH_SIZE, operations.size()))));
+        }
+        return results;
+    }
+
+    private List<BatchResult> batch(List<BatchOperation> operations) {
+        try {
+            final HttpUrl url = HttpUrl.get(bucketUri()).newBuilder()
+                    .addQueryParameter("batch", "true")
+                    .build();
+            final Request request = new Request.Builder()
+                    .url(url)
+                    .post(RequestBody.create(MediaType.parse("application/json"), objectMapper().writeValueAsBytes(operations)))
+                    .build();
+
+            try (Response response = okHttpClient().newCall(request).execute()) {
+                throwIfResponseInError(response);
+                return objectMapper().readValue(
+                        response.body().byteStream(),
+                        objectMapper().getTypeFactory().constructCollectionType(List.class, BatchResult.class)
+                );
+            }
+        } catch (IOException e) {
+            throw new FileStoreException(e);
+        }
+    }
+
     @Override
     public void deleteBucketAndAllFiles() {
         try {
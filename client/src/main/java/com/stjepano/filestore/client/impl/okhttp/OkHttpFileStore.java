@@ -25,11 +25,18 @@ import java.util.stream.Collectors;
  */
 public class OkHttpFileStore implements FileStore {
 
+    /**
+     * Default size of the buffer through which upload data is sent
+     */
+    public static final int DEFAULT_UPLOAD_BUFFER_SIZE = 64 * 1024;
+
     private final URI serverUri;
 
     private final OkHttpClient okHttpClient;
     private final ObjectMapper objectMapper;
 
+    private int uploadBufferSize = DEFAULT_UPLOAD_BUFFER_SIZE;
+
     public OkHttpFileStore(URI serverUri, OkHttpClient okHttpClient, ObjectMapper objectMapper) {
         this.serverUri = serverUri;
         this.okHttpClient = okHttpClient;
@@ -104,6 +111,22 @@ public class OkHttpFileStore implements FileStore {
         return objectMapper;
     }
 
+    public int getUploadBufferSize() {
+        return uploadBufferSize;
+    }
+
+    /**
+     * Set size of the buffer through which upload data is sent, it bounds memory used by an upload regardless of the
+     * size of the uploaded file and is also the granularity of upload progress.
+     * @param uploadBufferSize size in bytes, must be positive
+     */
+    public void setUploadBufferSize(int uploadBufferSize) {
+        if (uploadBufferSize <= 0) {
+            throw new IllegalArgumentException("Upload buffer size must be positive!");
+        }
+        this.uploadBufferSize = uploadBufferSize;
+    }
+
     public OkHttpBucket newBucket(String bucketName) {
         return new OkHttpBucket(this, bucketName);
     }
@@ -14,6 +14,11 @@ import java.net.URI;
  */
 public class OkHttpFileStoreFactory implements FileStoreFactory {
 
+    /**
+     * System property with the size of upload buffer, see {@link OkHttpFileStore#setUploadBufferSize(int)}
+     */
+    public static final String UPLOAD_BUFFER_SIZE_PROPERTY = "com.stjepano.filestore.client.uploadBufferSize";
+
     @Override
     public FileStore createFileStore(URI fileStoreServerUri) {
         OkHttpClient okHttpClient = new OkHttpClient();
@@ -22,7 +27,9 @@ public class OkHttpFileStoreFactory implements FileStoreFactory {
         objectMapper.registerModule(new JavaTimeModule());
         objectMapper.configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
 
-        return new OkHttpFileStore(fileStoreServerUri, okHttpClient, objectMapper);
+        final OkHttpFileStore fileStore = new OkHttpFileStore(fileStoreServerUri, okHttpClient, objectMapper);
+        fileStore.setUploadBufferSize(Integer.getInteger(UPLOAD_BUFFER_SIZE_PROPERTY, OkHttpFileStore.DEFAULT_UPLOAD_BUFFER_SIZE));
+        return fileStore;
     }
 
 }
@@ -0,0 +1,86 @@
+package com.stjepano.filestore.client.impl.okhttp;
+
+import com.stjepano.filestore.client.UploadProgressListener;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.ByteString;
+import okio.HashingSink;
+import okio.Okio;
+import okio.Source;
+
+import java.io.IOException;
+
+/**
+ * Request body which streams data from an okio {@link Source} through a buffer of fixed size, so memory used by an
+ * upload does not depend on the size of uploaded data. SHA-256 digest of the data is computed while it is sent, so the
+ * digest costs no additional read, and progress is reported after each buffer.
+ */
+abstract class SourceRequestBody extends RequestBody {
+
+    private final MediaType contentType;
+    private final int bufferSize;
+    private final UploadProgressListener progressListener;
+
+    private volatile ByteString sha256;
+
+    SourceRequestBody(MediaType contentType, int bufferSize, UploadProgressListener progressListener) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("Buffer size must be positive!");
+        }
+        this.contentType = contentType;
+        this.bufferSize = bufferSize;
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * Open the source of data, it is called each time the body is written.
+     */
+    protected abstract Source openSource() throws IOException;
+
+    @Override
+    public MediaType contentType() {
+        return contentType;
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        // body is written again if the request is retried, each write computes its own digest
+        final HashingSink hashingSink = HashingSink.sha256(sink);
+        final BufferedSink hashedSink = Okio.buffer(hashingSink);
+        final Buffer buffer = hashedSink.buffer();
+        final long totalBytes = contentLength();
+        long bytesSent = 0;
+        try (Source source = openSource()) {
+            boolean exhausted = false;
+            while (!exhausted) {
+                // a source may return less than asked for (one segment), fill the whole buffer before it is sent
+                while (buffer.size() < bufferSize) {
+                    if (source.read(buffer, bufferSize - buffer.size()) == -1) {
+                        exhausted = true;
+                        break;
+                    }
+                }
+                final long size = buffer.size();
+                // emit instead of close, closing would close the request sink
+                hashedSink.emit();
+                if (size > 0) {
+                    bytesSent += size;
+                    if (progressListener != null) {
+                        progressListener.progress(bytesSent, totalBytes);
+                    }
+                }
+            }
+        }
+        sha256 = hashingSink.hash();
+    }
+
+    /**
+     * Get SHA-256 digest of the data written by the last {@link #writeTo(BufferedSink)}.
+     * @return the digest or null if body was not written
+     */
+    ByteString sha256() {
+        return sha256;
+    }
+}
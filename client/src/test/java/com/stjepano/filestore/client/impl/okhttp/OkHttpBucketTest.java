@@ -5,26 +5,46 @@ import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import com.google.common.jimfs.Configuration;
 import com.google.common.jimfs.Jimfs;
+import com.stjepano.filestore.client.FileStoreException;
 import com.stjepano.filestore.client.FileStoreServerException;
+import com.stjepano.filestore.client.MultipartUploadException;
+import com.stjepano.filestore.common.BatchOperation;
+import com.stjepano.filestore.common.BatchResult;
 import com.stjepano.filestore.common.ErrorResponse;
 import com.stjepano.filestore.common.FileInfo;
+import com.stjepano.filestore.common.FilePage;
+import com.stjepano.filestore.common.MultipartUpload;
 import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.Dispatcher;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
 import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+import okio.ByteString;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.file.FileSystem;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import static org.assertj.core.api.Assertions.*;
 
@@ -43,6 +63,8 @@ public class OkHttpBucketTest {
 
     private MockWebServer mockWebServer;
 
+    private OkHttpFileStore okHttpFileStore;
+
     private OkHttpBucket okHttpBucket;
 
     private FileSystem testFileSystem;
@@ -53,7 +75,7 @@ public class OkHttpBucketTest {
         final HttpUrl mockWebServerUrl = mockWebServer.url("/");
         final OkHttpClient okHttpClient = new OkHttpClient();
 
-        final OkHttpFileStore okHttpFileStore = new OkHttpFileStore(mockWebServerUrl.uri(), okHttpClient, objectMapper);
+        okHttpFileStore = new OkHttpFileStore(mockWebServerUrl.uri(), okHttpClient, objectMapper);
         okHttpBucket = okHttpFileStore.newBucket(BUCKET_NAME);
 
         mockTestFileSystem();
@@ -106,6 +128,71 @@ public class OkHttpBucketTest {
                 .isEqualTo("/store/"+BUCKET_NAME+"/");
     }
 
+    @Test
+    public void getFilesPage() throws Exception {
+        LocalDateTime now = LocalDateTime.now();
+        FilePage data = new FilePage(Arrays.asList(
+                new FileInfo("testb.txt", 500, "text/plain", now),
+                new FileInfo("testc.txt", 500, "text/plain", now)
+        ), "testc.txt");
+
+        mockWebServer.enqueue(new MockResponse()
+                .setResponseCode(200)
+                .setBody(objectMapper.writeValueAsString(data)));
+
+        FilePage page = okHttpBucket.getFiles("test", "testa.txt", 2);
+
+        assertThat(page.getFiles()).extracting(FileInfo::getName).containsExactly("testb.txt", "testc.txt");
+        assertThat(page.getNextStartAfter()).isEqualTo("testc.txt");
+
+        RecordedRequest recordedRequest = mockWebServer.takeRequest();
+        assertThat(recordedRequest.getMethod())
+                .isEqualTo("GET");
+        assertThat(recordedRequest.getPath())
+                .isEqualTo("/store/"+BUCKET_NAME+"/?limit=2&startAfter=testa.txt&prefix=test");
+    }
+
+    @Test
+    public void iterateFilesFetchesPagesLazily() throws Exception {
+        LocalDateTime now = LocalDateTime.now();
+        mockWebServer.enqueue(new MockResponse()
+                .setResponseCode(200)
+                .setBody(objectMapper.writeValueAsString(new FilePage(Arrays.asList(
+                        new FileInfo("testa.txt", 500, "text/plain", now),
+                        new FileInfo("testb.txt", 500, "text/plain", now)
+                ), "testb.txt"))));
+        mockWebServer.enqueue(new MockResponse()
+                .setResponseCode(200)
+                .setBody(objectMapper.writeValueAsString(new FilePage(Arrays.asList(
+                        new FileInfo("testc.txt", 500, "text/plain", now)
+                ), null))));
+
+        Iterator<FileInfo> iterator = okHttpBucket.iterateFiles(null, 2);
+        assertThat(mockWebServer.getRequestCount()).isEqualTo(0);
+
+        assertThat(iterator.next().getName()).isEqualTo("testa.txt");
+        assertThat(iterator.next().getName()).isEqualTo("testb.txt");
+        assertThat(mockWebServer.getRequestCount()).isEqualTo(1);
+
+        assertThat(iterator.next().getName()).isEqualTo("testc.txt");
+        assertThat(iterator.hasNext()).isFalse();
+        assertThat(mockWebServer.getRequestCount()).isEqualTo(2);
+
+        assertThat(mockWebServer.takeRequest().getPath())
+                .isEqualTo("/store/"+BUCKET_NAME+"/?limit=2");
+        assertThat(mockWebServer.takeRequest().getPath())
+                .isEqualTo("/store/"+BUCKET_NAME+"/?limit=2&startAfter=testb.txt");
+    }
+
+    @Test(expected = FileStoreServerException.class)
+    public void iterateFilesServerError() throws Exception {
+        mockWebServer.enqueue(new MockResponse()
+                .setResponseCode(404)
+                .setBody(objectMapper.writeValueAsString(new ErrorResponse("Bucket does not exist"))));
+
+        okHttpBucket.iterateFiles(null, 10).hasNext();
+    }
+
     @Test(expected = FileStoreServerException.class)
     public void getFilesServerError() throws Exception {
         ErrorResponse errorResponse = new ErrorResponse("Bucket does not exist");
@@ -316,6 +403,103 @@ public class OkHttpBucketTest {
         okHttpBucket.overwriteFile(testFileSystem.getPath("/testdata/fileA.dat"), "newFile.dat");
     }
 
+    @Test
+    public void uploadFileAsksForDigest() throws Exception {
+        mockWebServer.enqueue(new MockResponse()
+                .setResponseCode(200)
+                .addHeader("Digest: crc32c=1o6JQA==, sha-256=vvV+x/U6bUC+tkCngKY5yDvCmsipgW8fxsXG3Nk8RyE="));
+
+        okHttpBucket.uploadFile(testFileSystem.getPath("/testdata/fileA.dat"));
+
+        RecordedRequest recordedRequest = mockWebServer.takeRequest();
+        assertThat(recordedRequest.getHeader("Want-Digest"))
+                .isEqualTo("sha-256");
+        assertThat(recordedRequest.getBody().readString(Charset.forName("utf-8")))
+                .contains("abcdef");
+    }
+
+    @Test(expected = FileStoreException.class)
+    public void uploadFileDigestMismatch() throws Exception {
+        mockWebServer.enqueue(new MockResponse()
+                .setResponseCode(200)
+                .addHeader("Digest: sha-256=47DEQpj8HBSa+/TImW+5JCeuQeRkm5NMpJWZG3hSuFU="));
+
+        okHttpBucket.uploadFile(testFileSystem.getPath("/testdata/fileA.dat"));
+    }
+
+    @Test(expected = FileStoreException.class)
+    public void overwriteFileDigestMismatch() throws Exception {
+        mockWebServer.enqueue(new MockResponse()
+                .setResponseCode(200)
+                .addHeader("Digest: sha-256=47DEQpj8HBSa+/TImW+5JCeuQeRkm5NMpJWZG3hSuFU="));
+
+        okHttpBucket.overwriteFile(testFileSystem.getPath("/testdata/fileA.dat"), "fileA.dat");
+    }
+
+    @Test
+    public void uploadFileReportsProgress() throws Exception {
+        mockWebServer.enqueue(new MockResponse().setResponseCode(200));
+        okHttpFileStore.setUploadBufferSize(4);
+        List<long[]> progress = new ArrayList<>();
+
+        okHttpBucket.uploadFile(testFileSystem.getPath("/testdata/fileA.dat"), null,
+                (bytesSent, totalBytes) -> progress.add(new long[] {bytesSent, totalBytes}));
+
+        assertThat(progress).containsExactly(new long[] {4, 6}, new long[] {6, 6});
+        assertThat(mockWebServer.takeRequest().getBody().readString(Charset.forName("utf-8")))
+                .contains("abcdef");
+    }
+
+    @Test
+    public void uploadFileFromInputStream() throws Exception {
+        mockWebServer.enqueue(new MockResponse()
+                .setResponseCode(200)
+                .addHeader("Digest: sha-256=vvV+x/U6bUC+tkCngKY5yDvCmsipgW8fxsXG3Nk8RyE="));
+        okHttpFileStore.setUploadBufferSize(4);
+        List<long[]> progress = new ArrayList<>();
+        boolean[] closed = {false};
+        ByteArrayInputStream source = new ByteArrayInputStream("abcdef".getBytes()) {
+            @Override
+            public void close() {
+                closed[0] = true;
+            }
+        };
+
+        okHttpBucket.uploadFile(source, "stream.dat", (bytesSent, totalBytes) -> progress.add(new long[] {bytesSent, totalBytes}));
+
+        RecordedRequest recordedRequest = mockWebServer.takeRequest();
+        assertThat(recordedRequest.getMethod())
+                .isEqualTo("POST");
+        assertThat(recordedRequest.getPath())
+                .isEqualTo("/store/" + BUCKET_NAME + "/stream.dat");
+        assertThat(recordedRequest.getHeader("Content-Type"))
+                .isEqualTo("application/octet-stream");
+        assertThat(recordedRequest.getHeader("Transfer-Encoding"))
+                .isEqualTo("chunked");
+        assertThat(recordedRequest.getBody().readString(Charset.forName("utf-8")))
+                .isEqualTo("abcdef");
+        assertThat(progress).containsExactly(new long[] {4, -1}, new long[] {6, -1});
+        assertThat(closed[0]).isFalse();
+    }
+
+    @Test(expected = FileStoreException.class)
+    public void uploadFileFromInputStreamDigestMismatch() throws Exception {
+        mockWebServer.enqueue(new MockResponse()
+                .setResponseCode(200)
+                .addHeader("Digest: sha-256=47DEQpj8HBSa+/TImW+5JCeuQeRkm5NMpJWZG3hSuFU="));
+
+        okHttpBucket.uploadFile(new ByteArrayInputStream("abcdef".getBytes()), "stream.dat", null);
+    }
+
+    @Test(expected = FileStoreServerException.class)
+    public void uploadFileFromInputStreamServerError() throws Exception {
+        mockWebServer.enqueue(new MockResponse()
+                .setResponseCode(409)
+                .setBody(objectMapper.writeValueAsString(new ErrorResponse("File already exists"))));
+
+        okHttpBucket.uploadFile(new ByteArrayInputStream("abcdef".getBytes()), "stream.dat", null);
+    }
+
     @Test
     public void downloadFile() throws Exception {
         String data = "uvwxyz";
@@ -357,6 +541,108 @@ public class OkHttpBucketTest {
         okHttpBucket.downloadFile("testA.dat", downloadPath);
     }
 
+    @Test
+    public void downloadFilesWithPrefix() throws Exception {
+        mockWebServer.enqueue(new MockResponse()
+                .setResponseCode(200)
+                .addHeader("Content-Type: application/zip")
+                .setBody(new Buffer().write(zip("testA.dat", "abc", "testB.dat", "defgh"))));
+        final Path downloadDir = Files.createDirectory(testFileSystem.getPath("/download"));
+
+        List<String> downloaded = okHttpBucket.downloadFilesWithPrefix("test", downloadDir);
+
+        RecordedRequest recordedRequest = mockWebServer.takeRequest();
+        assertThat(recordedRequest.getMethod()).isEqualTo("GET");
+        assertThat(recordedRequest.getPath())
+                .isEqualTo("/store/" + BUCKET_NAME + "/?archive=zip&compress=auto&prefix=test");
+        assertThat(downloaded).containsExactly("testA.dat", "testB.dat");
+        assertThat(new String(Files.readAllBytes(downloadDir.resolve("testA.dat")))).isEqualTo("abc");
+        assertThat(new String(Files.readAllBytes(downloadDir.resolve("testB.dat")))).isEqualTo("defgh");
+    }
+
+    @Test
+    public void downloadFiles() throws Exception {
+        mockWebServer.enqueue(new MockResponse()
+                .setResponseCode(200)
+                .addHeader("Content-Type: application/zip")
+                .setBody(new Buffer().write(zip("testB.dat", "defgh"))));
+        final Path downloadDir = Files.createDirectory(testFileSystem.getPath("/download"));
+
+        List<String> downloaded = okHttpBucket.downloadFiles(Arrays.asList("testB.dat", "missing.dat"), downloadDir);
+
+        RecordedRequest recordedRequest = mockWebServer.takeRequest();
+        assertThat(recordedRequest.getMethod()).isEqualTo("POST");
+        assertThat(recordedRequest.getPath()).isEqualTo("/store/" + BUCKET_NAME + "/?archive=zip&compress=auto");
+        assertThat(recordedRequest.getBody().readUtf8()).isEqualTo("[\"testB.dat\",\"missing.dat\"]");
+        assertThat(downloaded).containsExactly("testB.dat");
+        assertThat(new String(Files.readAllBytes(downloadDir.resolve("testB.dat")))).isEqualTo("defgh");
+    }
+
+    @Test(expected = FileStoreException.class)
+    public void downloadFilesEntryOutsideOfDirectory() throws Exception {
+        mockWebServer.enqueue(new MockResponse()
+                .setResponseCode(200)
+                .addHeader("Content-Type: application/zip")
+                .setBody(new Buffer().write(zip("../testA.dat", "abc"))));
+        final Path downloadDir = Files.createDirectory(testFileSystem.getPath("/download"));
+
+        okHttpBucket.downloadFilesWithPrefix(null, downloadDir);
+    }
+
+    @Test
+    public void downloadFilesIncompleteArchive() throws Exception {
+        byte[] zip = zip("testA.dat", "abc", "testB.dat", "defgh");
+        // an archive the server could not complete has no central directory
+        int centralDirectory = 0;
+        while (!(zip[centralDirectory] == 'P' && zip[centralDirectory + 1] == 'K'
+                && zip[centralDirectory + 2] == 1 && zip[centralDirectory + 3] == 2)) {
+            centralDirectory++;
+        }
+        mockWebServer.enqueue(new MockResponse()
+                .setResponseCode(200)
+                .addHeader("Content-Type: application/zip")
+                .setBody(new Buffer().write(Arrays.copyOf(zip, centralDirectory))));
+        final Path downloadDir = Files.createDirectory(testFileSystem.getPath("/download"));
+
+        assertThatThrownBy(() -> okHttpBucket.downloadFilesWithPrefix(null, downloadDir))
+                .isInstanceOf(FileStoreException.class)
+                .hasMessageContaining("incomplete");
+        assertThat(new String(Files.readAllBytes(downloadDir.resolve("testB.dat")))).isEqualTo("defgh");
+    }
+
+    @Test
+    public void downloadFilesEmptyArchive() throws Exception {
+        mockWebServer.enqueue(new MockResponse()
+                .setResponseCode(200)
+                .addHeader("Content-Type: application/zip")
+                .setBody(new Buffer().write(zip())));
+        final Path downloadDir = Files.createDirectory(testFileSystem.getPath("/download"));
+
+        assertThat(okHttpBucket.downloadFilesWithPrefix("none", downloadDir)).isEmpty();
+    }
+
+    @Test(expected = FileStoreServerException.class)
+    public void downloadFilesServerError() throws Exception {
+        ErrorResponse errorResponse = new ErrorResponse("Bucket does not exist");
+        mockWebServer.enqueue(new MockResponse()
+                .setResponseCode(404)
+                .setBody(objectMapper.writeValueAsString(errorResponse)));
+        final Path downloadDir = Files.createDirectory(testFileSystem.getPath("/download"));
+
+        okHttpBucket.downloadFilesWithPrefix(null, downloadDir);
+    }
+
+    private static byte[] zip(String... namesAndContents) throws IOException {
+        ByteArrayOutputStream zip = new ByteArrayOutputStream();
+        try (ZipOutputStream out = new ZipOutputStream(zip)) {
+            for (int i = 0; i < namesAndContents.length; i += 2) {
+                out.putNextEntry(new ZipEntry(namesAndContents[i]));
+                out.write(namesAndContents[i + 1].getBytes(Charset.forName("utf-8")));
+            }
+        }
+        return zip.toByteArray();
+    }
+
 
     @Test
     public void deleteFile() throws Exception {
@@ -385,6 +671,87 @@ public class OkHttpBucketTest {
         okHttpBucket.deleteFile("testA.dat");
     }
 
+    @Test
+    public void deleteFiles() throws Exception {
+        BatchResult deleted = new BatchResult(BatchOperation.DELETE, "testA.dat");
+        deleted.setStatus(200);
+        BatchResult missing = new BatchResult(BatchOperation.DELETE, "testB.dat");
+        missing.setStatus(404);
+        missing.setMessage("File does not exist");
+        mockWebServer.enqueue(new MockResponse()
+                .setResponseCode(200)
+                .setBody(objectMapper.writeValueAsString(Arrays.asList(missing, deleted))));
+
+        List<BatchResult> results = okHttpBucket.deleteFiles(Arrays.asList("testA.dat", "testB.dat"));
+
+        assertThat(results).extracting(BatchResult::getName).containsExactly("testB.dat", "testA.dat");
+        assertThat(results).extracting(BatchResult::getStatus).containsExactly(404, 200);
+        RecordedRequest recordedRequest = mockWebServer.takeRequest();
+        assertThat(recordedRequest.getMethod())
+                .isEqualTo("POST");
+        assertThat(recordedRequest.getPath())
+                .isEqualTo("/store/" + BUCKET_NAME + "/?batch=true");
+        List<BatchOperation> operations = objectMapper.readValue(recordedRequest.getBody().readByteArray(),
+                objectMapper.getTypeFactory().constructCollectionType(List.class, BatchOperation.class));
+        assertThat(operations).extracting(BatchOperation::getOp).containsOnly(BatchOperation.DELETE);
+        assertThat(operations).extracting(BatchOperation::getName).containsExactly("testA.dat", "testB.dat");
+    }
+
+    @Test
+    public void deleteFilesSplitsBatches() throws Exception {
+        mockWebServer.enqueue(new MockResponse().setResponseCode(200).setBody("[]"));
+        mockWebServer.enqueue(new MockResponse().setResponseCode(200).setBody("[]"));
+
+        List<String> filenames = new ArrayList<>();
+        for (int i = 0; i < OkHttpBucket.BATCH_SIZE + 1; i++) {
+            filenames.add("file" + i);
+        }
+        okHttpBucket.deleteFiles(filenames);
+
+        assertThat(mockWebServer.getRequestCount()).isEqualTo(2);
+    }
+
+    @Test(expected = FileStoreServerException.class)
+    public void deleteFilesServerError() throws Exception {
+        mockWebServer.enqueue(new MockResponse()
+                .setResponseCode(400)
+                .setBody(objectMapper.writeValueAsString(new ErrorResponse("Too many operations"))));
+
+        okHttpBucket.deleteFiles(Collections.singletonList("testA.dat"));
+    }
+
+    @Test
+    public void getFileInfos() throws Exception {
+        BatchResult found = new BatchResult(BatchOperation.STAT, "fileA.txt");
+        found.setStatus(200);
+        found.setFileInfo(new FileInfo("fileA.txt", 12, "text/plain", LocalDateTime.now()));
+        BatchResult missing = new BatchResult(BatchOperation.STAT, "fileB.txt");
+        missing.setStatus(404);
+        mockWebServer.enqueue(new MockResponse()
+                .setResponseCode(200)
+                .setBody(objectMapper.writeValueAsString(Arrays.asList(found, missing))));
+
+        Map<String, FileInfo> fileInfos = okHttpBucket.getFileInfos(Arrays.asList("fileA.txt", "fileB.txt"));
+
+        assertThat(fileInfos).containsOnlyKeys("fileA.txt");
+        assertThat(fileInfos.get("fileA.txt").getSize()).isEqualTo(12);
+        List<BatchOperation> operations = objectMapper.readValue(mockWebServer.takeRequest().getBody().readByteArray(),
+                objectMapper.getTypeFactory().constructCollectionType(List.class, BatchOperation.class));
+        assertThat(operations).extracting(BatchOperation::getOp).containsOnly(BatchOperation.STAT);
+    }
+
+    @Test(expected = FileStoreServerException.class)
+    public void getFileInfosLookupFailed() throws Exception {
+        BatchResult failed = new BatchResult(BatchOperation.STAT, "fileA.txt");
+        failed.setStatus(500);
+        failed.setMessage("I/O error");
+        mockWebServer.enqueue(new MockResponse()
+                .setResponseCode(200)
+                .setBody(objectMapper.writeValueAsString(Collections.singletonList(failed))));
+
+        okHttpBucket.getFileInfos(Collections.singletonList("fileA.txt"));
+    }
+
     @Test
     public void deleteBucketAndAllFiles() throws Exception {
         MockResponse mockResponse = new MockResponse()
@@ -413,4 +780,133 @@ public class OkHttpBucketTest {
         okHttpBucket.deleteBucketAndAllFiles();
     }
 
-}
\ No newline at end of file
+    @Test
+    public void uploadFileInParts() throws Exception {
+        Path file = largeFile(25);
+        UploadDispatcher dispatcher = new UploadDispatcher(new MultipartUpload("0123", "large.bin", 25, 10, 3, Collections.emptyList()));
+        mockWebServer.setDispatcher(dispatcher);
+
+        okHttpBucket.uploadFileInParts(file, "large.bin", 3);
+
+        List<RecordedRequest> requests = takeRequests(5);
+        assertThat(requests.get(0).getMethod()).isEqualTo("POST");
+        assertThat(requests.get(0).getPath()).isEqualTo("/store/" + BUCKET_NAME + "/large.bin?uploads&size=25");
+        assertThat(dispatcher.parts).containsOnlyKeys(1, 2, 3);
+        byte[] data = Files.readAllBytes(file);
+        assertThat(dispatcher.parts.get(1)).isEqualTo(Arrays.copyOfRange(data, 0, 10));
+        assertThat(dispatcher.parts.get(3)).isEqualTo(Arrays.copyOfRange(data, 20, 25));
+        for (RecordedRequest part : requests.subList(1, 4)) {
+            assertThat(part.getMethod()).isEqualTo("PUT");
+            assertThat(part.getHeader("Content-MD5")).isEqualTo(ByteString.of(part.getBody().readByteArray()).md5().base64());
+        }
+        assertThat(requests.get(4).getMethod()).isEqualTo("POST");
+        assertThat(requests.get(4).getPath()).isEqualTo("/store/" + BUCKET_NAME + "/large.bin?uploadId=0123");
+    }
+
+    @Test
+    public void uploadFileInPartsRetriesFailedPart() throws Exception {
+        UploadDispatcher dispatcher = new UploadDispatcher(new MultipartUpload("0123", "large.bin", 25, 10, 3, Collections.emptyList()));
+        dispatcher.failures.put(2, OkHttpBucket.PART_ATTEMPTS - 1);
+        mockWebServer.setDispatcher(dispatcher);
+
+        okHttpBucket.uploadFileInParts(largeFile(25), "large.bin", 2);
+
+        assertThat(dispatcher.parts).containsOnlyKeys(1, 2, 3);
+        assertThat(dispatcher.completed).isTrue();
+    }
+
+    @Test
+    public void uploadFileInPartsCanBeResumed() throws Exception {
+        Path file = largeFile(25);
+        UploadDispatcher dispatcher = new UploadDispatcher(new MultipartUpload("0123", "large.bin", 25, 10, 3, Collections.emptyList()));
+        dispatcher.failures.put(2, OkHttpBucket.PART_ATTEMPTS);
+        mockWebServer.setDispatcher(dispatcher);
+
+        try {
+            okHttpBucket.uploadFileInParts(file, "large.bin", 3);
+            fail("Failed part was not reported");
+        } catch (MultipartUploadException e) {
+            assertThat(e.getUploadId()).isEqualTo("0123");
+        }
+        assertThat(dispatcher.completed).isFalse();
+
+        dispatcher.parts.clear();
+        dispatcher.upload.setUploadedParts(Arrays.asList(1, 3));
+        okHttpBucket.resumeUploadInParts(file, "large.bin", "0123", 3);
+
+        assertThat(dispatcher.parts).containsOnlyKeys(2);
+        assertThat(dispatcher.completed).isTrue();
+    }
+
+    @Test
+    public void resumeUploadInPartsOfChangedFile() throws Exception {
+        mockWebServer.setDispatcher(new UploadDispatcher(new MultipartUpload("0123", "large.bin", 30, 10, 3, Collections.emptyList())));
+
+        assertThatThrownBy(() -> okHttpBucket.resumeUploadInParts(largeFile(25), "large.bin", "0123", 3))
+                .isInstanceOf(FileStoreException.class)
+                .hasMessageContaining("upload '0123' was started with 30 bytes");
+    }
+
+    @Test
+    public void abortUploadInParts() throws Exception {
+        mockWebServer.enqueue(new MockResponse().setResponseCode(200));
+
+        okHttpBucket.abortUploadInParts("large.bin", "0123");
+
+        RecordedRequest recordedRequest = mockWebServer.takeRequest();
+        assertThat(recordedRequest.getMethod()).isEqualTo("DELETE");
+        assertThat(recordedRequest.getPath()).isEqualTo("/store/" + BUCKET_NAME + "/large.bin?uploadId=0123");
+    }
+
+    private Path largeFile(int size) throws IOException {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return Files.write(testFileSystem.getPath("/testdata/large.bin"), data);
+    }
+
+    private List<RecordedRequest> takeRequests(int count) throws InterruptedException {
+        List<RecordedRequest> requests = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            requests.add(mockWebServer.takeRequest());
+        }
+        return requests;
+    }
+
+    /**
+     * Answers requests of one multipart upload, parts are sent concurrently so their order is not known
+     */
+    private static class UploadDispatcher extends Dispatcher {
+        final MultipartUpload upload;
+        final Map<Integer, byte[]> parts = new ConcurrentHashMap<>();
+        /** Number of times a part fails with a server error */
+        final Map<Integer, Integer> failures = new ConcurrentHashMap<>();
+        volatile boolean completed;
+
+        UploadDispatcher(MultipartUpload upload) {
+            this.upload = upload;
+        }
+
+        @Override
+        public MockResponse dispatch(RecordedRequest request) {
+            try {
+                final HttpUrl url = request.getRequestUrl();
+                if (request.getMethod().equals("PUT")) {
+                    final int part = Integer.parseInt(url.queryParameter("partNumber"));
+                    if (failures.getOrDefault(part, 0) > 0) {
+                        failures.compute(part, (key, count) -> count - 1);
+                        return new MockResponse().setResponseCode(503).setBody(objectMapper.writeValueAsString(new ErrorResponse("Busy")));
+                    }
+                    parts.put(part, request.getBody().clone().readByteArray());
+                    return new MockResponse().setResponseCode(200);
+                }
+                if (request.getMethod().equals("POST") && url.queryParameter("uploadId") != null) {
+                    completed = true;
+                    return new MockResponse().setResponseCode(200);
+                }
+                return new MockResponse().setResponseCode(200).setBody(objectMapper.writeValueAsString(upload));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.stjepano.filestore.common;
+
+/**
+ * One operation of a batch request, applied to one file of the bucket.
+ */
+public class BatchOperation {
+
+    /**
+     * Delete the file
+     */
+    public static final String DELETE = "delete";
+
+    /**
+     * Get {@link FileInfo} of the file
+     */
+    public static final String STAT = "stat";
+
+    private String op;
+    private String name;
+
+    public BatchOperation() { }
+
+    public BatchOperation(String op, String name) {
+        this.op = op;
+        this.name = name;
+    }
+
+    /**
+     * Get the operation, {@link #DELETE} or {@link #STAT}
+     */
+    public String getOp() {
+        return op;
+    }
+
+    public void setOp(String op) {
+        this.op = op;
+    }
+
+    /**
+     * Get the name of the file
+     */
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+}
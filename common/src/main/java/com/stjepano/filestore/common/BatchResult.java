@@ -0,0 +1,70 @@
+package com.stjepano.filestore.common;
+
+/**
+ * Result of one operation of a batch request.
+ *
+ * Status is the status code the operation would have as a single request, a failed operation has an error message.
+ */
+public class BatchResult {
+
+    private String op;
+    private String name;
+    private int status;
+    private String message;
+    private FileInfo fileInfo;
+
+    public BatchResult() { }
+
+    public BatchResult(String op, String name) {
+        this.op = op;
+        this.name = name;
+    }
+
+    public String getOp() {
+        return op;
+    }
+
+    public void setOp(String op) {
+        this.op = op;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public void setStatus(int status) {
+        this.status = status;
+    }
+
+    /**
+     * Get the error message
+     * @return the message or null if operation succeeded
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    public void setMessage(String message) {
+        this.message = message;
+    }
+
+    /**
+     * Get file info returned by {@link BatchOperation#STAT} operation
+     * @return file info or null for other operations and failed operations
+     */
+    public FileInfo getFileInfo() {
+        return fileInfo;
+    }
+
+    public void setFileInfo(FileInfo fileInfo) {
+        this.fileInfo = fileInfo;
+    }
+}
@@ -17,6 +17,9 @@ public class FileInfo {
     private long size;
     private String mimeType;
     private LocalDateTime dateCreated;
+    private LocalDateTime lastModified;
+    private String sha256;
+    private String crc32c;
 
     public FileInfo() { }
 
@@ -59,16 +62,49 @@ public class FileInfo {
         this.dateCreated = dateCreated;
     }
 
+    public LocalDateTime getLastModified() {
+        return lastModified;
+    }
+
+    public void setLastModified(LocalDateTime lastModified) {
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Hex encoded SHA-256 digest of the content, null if it is not known (for example for files stored by other means
+     * than upload)
+     */
+    public String getSha256() {
+        return sha256;
+    }
+
+    public void setSha256(String sha256) {
+        this.sha256 = sha256;
+    }
+
+    /**
+     * Hex encoded CRC32C checksum of the content, null if it is not known
+     */
+    public String getCrc32c() {
+        return crc32c;
+    }
+
+    public void setCrc32c(String crc32c) {
+        this.crc32c = crc32c;
+    }
+
     public static FileInfo from(Path path) throws IOException {
         final String filename = path.getFileName().toString();
+        BasicFileAttributes basicFileAttributes = Files.readAttributes(path, BasicFileAttributes.class);
         long size = 0;
-        if (Files.isRegularFile(path)) {
-            size = Files.size(path);
+        if (basicFileAttributes.isRegularFile()) {
+            size = basicFileAttributes.size();
         }
-        BasicFileAttributes basicFileAttributes = Files.readAttributes(path, BasicFileAttributes.class);
         FileTime creationTime = basicFileAttributes.creationTime();
         LocalDateTime dateCreated = LocalDateTime.ofInstant(creationTime.toInstant(), ZoneOffset.systemDefault());
         String mimeType = Files.probeContentType(path);
-        return new FileInfo(filename, size, mimeType, dateCreated);
+        FileInfo fileInfo = new FileInfo(filename, size, mimeType, dateCreated);
+        fileInfo.setLastModified(LocalDateTime.ofInstant(basicFileAttributes.lastModifiedTime().toInstant(), ZoneOffset.systemDefault()));
+        return fileInfo;
     }
 }
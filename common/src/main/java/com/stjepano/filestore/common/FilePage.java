@@ -0,0 +1,40 @@
+package com.stjepano.filestore.common;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One page of a file listing.
+ */
+public class FilePage {
+
+    private List<FileInfo> files = new ArrayList<>();
+    private String nextStartAfter;
+
+    public FilePage() { }
+
+    public FilePage(List<FileInfo> files, String nextStartAfter) {
+        this.files = files;
+        this.nextStartAfter = nextStartAfter;
+    }
+
+    public List<FileInfo> getFiles() {
+        return files;
+    }
+
+    public void setFiles(List<FileInfo> files) {
+        this.files = files;
+    }
+
+    /**
+     * Get the cursor for the next page (name of the last file in this page)
+     * @return a file name or null if this is the last page
+     */
+    public String getNextStartAfter() {
+        return nextStartAfter;
+    }
+
+    public void setNextStartAfter(String nextStartAfter) {
+        this.nextStartAfter = nextStartAfter;
+    }
+}
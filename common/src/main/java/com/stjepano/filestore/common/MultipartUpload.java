@@ -0,0 +1,84 @@
+package com.stjepano.filestore.common;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * State of a multipart upload.
+ *
+ * The file is split into parts of part size bytes (the last part can be shorter), parts are numbered from 1.
+ */
+public class MultipartUpload {
+
+    private String uploadId;
+    private String name;
+    private long size;
+    private long partSize;
+    private int partCount;
+    private List<Integer> uploadedParts = new ArrayList<>();
+
+    public MultipartUpload() { }
+
+    public MultipartUpload(String uploadId, String name, long size, long partSize, int partCount, List<Integer> uploadedParts) {
+        this.uploadId = uploadId;
+        this.name = name;
+        this.size = size;
+        this.partSize = partSize;
+        this.partCount = partCount;
+        this.uploadedParts = uploadedParts;
+    }
+
+    public String getUploadId() {
+        return uploadId;
+    }
+
+    public void setUploadId(String uploadId) {
+        this.uploadId = uploadId;
+    }
+
+    /**
+     * Get name of the file which is uploaded
+     */
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public void setSize(long size) {
+        this.size = size;
+    }
+
+    public long getPartSize() {
+        return partSize;
+    }
+
+    public void setPartSize(long partSize) {
+        this.partSize = partSize;
+    }
+
+    public int getPartCount() {
+        return partCount;
+    }
+
+    public void setPartCount(int partCount) {
+        this.partCount = partCount;
+    }
+
+    /**
+     * Get numbers of parts which were uploaded, sorted
+     */
+    public List<Integer> getUploadedParts() {
+        return uploadedParts;
+    }
+
+    public void setUploadedParts(List<Integer> uploadedParts) {
+        this.uploadedParts = uploadedParts;
+    }
+}
@@ -0,0 +1,70 @@
+package com.stjepano.filestore.common.tar;
+
+/**
+ * An entry of a tar archive.
+ */
+public class TarEntry {
+
+    /**
+     * Type flag of a regular file
+     */
+    public static final char FILE = '0';
+
+    /**
+     * Type flag of a directory
+     */
+    public static final char DIRECTORY = '5';
+
+    private final String name;
+    private final long size;
+    private final char type;
+    private final long lastModified;
+
+    public TarEntry(String name, long size, char type, long lastModified) {
+        this.name = name;
+        this.size = size;
+        this.type = type;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Get path of the entry in the archive, directories end with a slash
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get size of entry data in bytes
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Get type flag of the entry, {@link #FILE}, {@link #DIRECTORY} or another type (links, devices, ...)
+     */
+    public char getType() {
+        return type;
+    }
+
+    /**
+     * Get modification time in milliseconds since epoch
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public boolean isFile() {
+        return type == FILE;
+    }
+
+    public boolean isDirectory() {
+        return type == DIRECTORY;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,284 @@
+package com.stjepano.filestore.common.tar;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads entries of a tar archive from a stream, in the manner of {@link java.util.zip.ZipInputStream}: each call of
+ * {@link #getNextEntry()} positions the stream at the data of the next entry and read methods return data of the
+ * current entry only.
+ *
+ * Reads ustar archives with GNU long names and pax extended headers (path and size), other extensions are ignored.
+ */
+public class TarInputStream extends FilterInputStream {
+
+    static final int BLOCK_SIZE = 512;
+
+    private final byte[] header = new byte[BLOCK_SIZE];
+    private final byte[] skipBuffer = new byte[8192];
+
+    /** Unread bytes of data of the current entry */
+    private long remaining;
+    /** Padding after data of the current entry */
+    private long padding;
+    private boolean finished;
+
+    public TarInputStream(InputStream in) {
+        super(in);
+    }
+
+    /**
+     * Read header of the next entry, unread data of the current entry is skipped.
+     * @return the entry or null at the end of archive
+     * @throws IOException if archive can not be read or it is malformed
+     */
+    public TarEntry getNextEntry() throws IOException {
+        if (finished) {
+            return null;
+        }
+        skipFully(remaining + padding);
+        remaining = 0;
+        padding = 0;
+
+        String longName = null;
+        String paxPath = null;
+        long paxSize = -1;
+        while (true) {
+            if (!readHeader()) {
+                finished = true;
+                return null;
+            }
+            final char type = header[156] == 0 ? TarEntry.FILE : (char) header[156];
+            final long size = number(124, 12);
+            switch (type) {
+                case 'L':
+                    longName = cString(readData(size), 0, (int) size);
+                    continue;
+                case 'x': {
+                    final byte[] records = readData(size);
+                    for (String[] record : paxRecords(records)) {
+                        if (record[0].equals("path")) {
+                            paxPath = record[1];
+                        } else if (record[0].equals("size")) {
+                            paxSize = parseDecimal(record[1]);
+                        }
+                    }
+                    continue;
+                }
+                case 'g':
+                case 'K':
+                    readData(size);
+                    continue;
+                default:
+            }
+
+            final String name = paxPath != null ? paxPath : longName != null ? longName : name();
+            final long entrySize = paxSize >= 0 ? paxSize : size;
+            final TarEntry entry = new TarEntry(name, entrySize, type == '7' ? TarEntry.FILE : type, number(136, 12) * 1000);
+            remaining = hasData(type) ? entrySize : 0;
+            padding = paddingOf(remaining);
+            return entry;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (remaining <= 0) {
+            return -1;
+        }
+        final int b = in.read();
+        if (b < 0) {
+            throw new EOFException("Unexpected end of tar archive");
+        }
+        remaining--;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (remaining <= 0) {
+            return -1;
+        }
+        final int n = in.read(b, off, (int) Math.min(len, remaining));
+        if (n < 0) {
+            throw new EOFException("Unexpected end of tar archive");
+        }
+        remaining -= n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        final long skipped = Math.min(n, remaining);
+        skipFully(skipped);
+        remaining -= skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(in.available(), remaining);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+        // not supported
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    /**
+     * Read next header block.
+     * @return false at the end of archive (a zero block or end of stream)
+     */
+    private boolean readHeader() throws IOException {
+        int read = 0;
+        while (read < BLOCK_SIZE) {
+            final int n = in.read(header, read, BLOCK_SIZE - read);
+            if (n < 0) {
+                if (read == 0) {
+                    return false;
+                }
+                throw new EOFException("Unexpected end of tar archive");
+            }
+            read += n;
+        }
+        long sum = 0;
+        boolean zero = true;
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            zero &= header[i] == 0;
+            sum += (i >= 148 && i < 156) ? ' ' : (header[i] & 0xff);
+        }
+        if (zero) {
+            return false;
+        }
+        if (sum != number(148, 8)) {
+            throw new IOException("Not a tar archive or archive is corrupted, header checksum does not match");
+        }
+        return true;
+    }
+
+    private String name() {
+        final String name = cString(header, 0, 100);
+        // posix ustar stores long paths split in prefix and name, gnu tar uses the prefix field for other data
+        final boolean ustar = header[257] == 'u' && header[258] == 's' && header[259] == 't' && header[260] == 'a'
+                && header[261] == 'r' && header[262] == 0;
+        final String prefix = ustar ? cString(header, 345, 155) : "";
+        return prefix.isEmpty() ? name : prefix + "/" + name;
+    }
+
+    private byte[] readData(long size) throws IOException {
+        if (size < 0 || size > Integer.MAX_VALUE - BLOCK_SIZE) {
+            throw new IOException("Extended header of tar archive is too large");
+        }
+        final byte[] data = new byte[(int) size];
+        int read = 0;
+        while (read < data.length) {
+            final int n = in.read(data, read, data.length - read);
+            if (n < 0) {
+                throw new EOFException("Unexpected end of tar archive");
+            }
+            read += n;
+        }
+        skipFully(paddingOf(size));
+        return data;
+    }
+
+    private void skipFully(long n) throws IOException {
+        while (n > 0) {
+            final int read = in.read(skipBuffer, 0, (int) Math.min(n, skipBuffer.length));
+            if (read < 0) {
+                throw new EOFException("Unexpected end of tar archive");
+            }
+            n -= read;
+        }
+    }
+
+    /**
+     * Parse a numeric field, octal or (for large values) base-256 with the high bit of the first byte set.
+     */
+    private long number(int offset, int length) throws IOException {
+        if ((header[offset] & 0x80) != 0) {
+            long value = header[offset] & 0x7f;
+            for (int i = 1; i < length; i++) {
+                value = (value << 8) | (header[offset + i] & 0xff);
+            }
+            return value;
+        }
+        long value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            final byte b = header[i];
+            if (b == 0 || (b == ' ' && value > 0)) {
+                break;
+            }
+            if (b == ' ') {
+                continue;
+            }
+            if (b < '0' || b > '7') {
+                throw new IOException("Not a tar archive or archive is corrupted, malformed number in header");
+            }
+            value = (value << 3) + (b - '0');
+        }
+        return value;
+    }
+
+    private static List<String[]> paxRecords(byte[] records) throws IOException {
+        final List<String[]> result = new ArrayList<>();
+        int position = 0;
+        while (position < records.length) {
+            int space = position;
+            while (space < records.length && records[space] != ' ') {
+                space++;
+            }
+            final long length = parseDecimal(new String(records, position, space - position, StandardCharsets.UTF_8));
+            if (length <= 0 || position + length > records.length) {
+                throw new IOException("Malformed pax extended header in tar archive");
+            }
+            final String record = new String(records, space + 1, (int) (position + length - space - 2), StandardCharsets.UTF_8);
+            final int equals = record.indexOf('=');
+            if (equals > 0) {
+                result.add(new String[] {record.substring(0, equals), record.substring(equals + 1)});
+            }
+            position += length;
+        }
+        return result;
+    }
+
+    private static long parseDecimal(String value) throws IOException {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed pax extended header in tar archive");
+        }
+    }
+
+    private static String cString(byte[] bytes, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && bytes[end] != 0) {
+            end++;
+        }
+        return new String(bytes, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    private static boolean hasData(char type) {
+        // links, devices, directories and fifos have no data, their size field may be set anyway
+        return type != '1' && type != '2' && type != '3' && type != '4' && type != TarEntry.DIRECTORY && type != '6';
+    }
+
+    private static long paddingOf(long size) {
+        return (BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE;
+    }
+}
@@ -0,0 +1,187 @@
+package com.stjepano.filestore.common.tar;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writes a tar archive to a stream, in the manner of {@link java.util.zip.ZipOutputStream}: each entry is started with
+ * {@link #putNextEntry(TarEntry)} and exactly {@link TarEntry#getSize()} bytes of its data are written after it.
+ *
+ * Writes ustar archives, names which do not fit in the header are written with a pax extended header and sizes which
+ * do not fit in the octal size field are written base-256 encoded (a GNU extension).
+ */
+public class TarOutputStream extends FilterOutputStream {
+
+    private static final int BLOCK_SIZE = TarInputStream.BLOCK_SIZE;
+    private static final int NAME_LENGTH = 100;
+    private static final long MAX_OCTAL_SIZE = 077777777777L;
+
+    private static final byte[] ZERO_BLOCK = new byte[BLOCK_SIZE];
+
+    private final byte[] header = new byte[BLOCK_SIZE];
+
+    private TarEntry current;
+    /** Bytes of data of the current entry which are still to be written */
+    private long remaining;
+    private boolean finished;
+
+    public TarOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    /**
+     * Write header of the next entry, the current entry is closed first.
+     * @param entry the entry, its size must be exact
+     * @throws IOException if data of the current entry is incomplete or stream can not be written
+     */
+    public void putNextEntry(TarEntry entry) throws IOException {
+        if (finished) {
+            throw new IOException("Tar archive is already finished");
+        }
+        closeEntry();
+        final byte[] name = entry.getName().getBytes(StandardCharsets.UTF_8);
+        if (name.length > NAME_LENGTH) {
+            writePaxPath(entry.getName());
+        }
+        writeHeader(name, entry.getSize(), entry.getType(), entry.getLastModified());
+        current = entry;
+        remaining = entry.getType() == TarEntry.DIRECTORY ? 0 : entry.getSize();
+    }
+
+    /**
+     * Close the current entry, data is padded to the block size.
+     * @throws IOException if less data than the size of the entry was written
+     */
+    public void closeEntry() throws IOException {
+        if (current == null) {
+            return;
+        }
+        if (remaining > 0) {
+            throw new IOException(String.format("Data of tar entry '%s' is %d bytes shorter than its size",
+                    current.getName(), remaining));
+        }
+        pad(current.getSize());
+        current = null;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        checkRemaining(1);
+        out.write(b);
+        remaining--;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkRemaining(len);
+        out.write(b, off, len);
+        remaining -= len;
+    }
+
+    /**
+     * Close the current entry and write the end of archive marker without closing the underlying stream.
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        closeEntry();
+        // end of archive is marked with two zero blocks
+        out.write(ZERO_BLOCK);
+        out.write(ZERO_BLOCK);
+        finished = true;
+    }
+
+    /**
+     * Mark an archive which can not be completed as failed, a block which is not a valid header is written so that
+     * readers report the archive as corrupted instead of taking it for a complete one. Nothing can be written
+     * afterwards and the underlying stream is not closed.
+     */
+    public void fail() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        current = null;
+        final byte[] invalid = new byte[BLOCK_SIZE];
+        Arrays.fill(invalid, (byte) 0xff);
+        out.write(invalid);
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+        out.close();
+    }
+
+    private void checkRemaining(int len) throws IOException {
+        if (current == null) {
+            throw new IOException("No current tar entry");
+        }
+        if (len > remaining) {
+            throw new IOException(String.format("Data of tar entry '%s' is longer than its size", current.getName()));
+        }
+    }
+
+    private void writePaxPath(String path) throws IOException {
+        final String record = " path=" + path + "\n";
+        final int recordLength = record.getBytes(StandardCharsets.UTF_8).length;
+        // length of a record includes digits of the length itself
+        int length = recordLength + 1;
+        while (Integer.toString(length).length() + recordLength != length) {
+            length = Integer.toString(length).length() + recordLength;
+        }
+        final byte[] records = (length + record).getBytes(StandardCharsets.UTF_8);
+        final byte[] name = ("PaxHeaders/" + path.hashCode()).getBytes(StandardCharsets.UTF_8);
+        writeHeader(name, records.length, 'x', 0);
+        out.write(records);
+        pad(records.length);
+    }
+
+    private void writeHeader(byte[] name, long size, char type, long lastModified) throws IOException {
+        Arrays.fill(header, (byte) 0);
+        System.arraycopy(name, 0, header, 0, Math.min(name.length, NAME_LENGTH));
+        octal(type == TarEntry.DIRECTORY ? 0755 : 0644, 100, 8);
+        octal(0, 108, 8);
+        octal(0, 116, 8);
+        if (size <= MAX_OCTAL_SIZE) {
+            octal(size, 124, 12);
+        } else {
+            header[124] = (byte) 0x80;
+            for (int i = 135; i > 124; i--, size >>>= 8) {
+                header[i] = (byte) size;
+            }
+        }
+        octal(Math.max(0, lastModified / 1000), 136, 12);
+        header[156] = (byte) type;
+        System.arraycopy(new byte[] {'u', 's', 't', 'a', 'r', 0, '0', '0'}, 0, header, 257, 8);
+
+        long sum = 0;
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            sum += (i >= 148 && i < 156) ? ' ' : (header[i] & 0xff);
+        }
+        octal(sum, 148, 7);
+        header[155] = ' ';
+        out.write(header);
+    }
+
+    /**
+     * Write a zero terminated octal number filling a field
+     */
+    private void octal(long value, int offset, int length) {
+        header[offset + length - 1] = 0;
+        for (int i = offset + length - 2; i >= offset; i--, value >>>= 3) {
+            header[i] = (byte) ('0' + (value & 7));
+        }
+    }
+
+    private void pad(long size) throws IOException {
+        final int padding = (int) ((BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE);
+        if (padding > 0) {
+            out.write(ZERO_BLOCK, 0, padding);
+        }
+    }
+}
@@ -36,7 +36,7 @@ public final class BucketId {
         return id;
     }
 
-    private static boolean isValid(String value) {
+    public static boolean isValid(String value) {
         if (value == null) return false;
         return value.matches(REGEX);
     }
@@ -0,0 +1,11 @@
+package com.stjepano.filestore.service;
+
+/**
+ * Thrown when uploaded content does not match the digest supplied with it, the upload is discarded
+ */
+public class ContentDigestMismatchException extends ObjectStoreException {
+
+    public ContentDigestMismatchException(FileId fileId, String algorithm) {
+        super(String.format("Content of file '%s' does not match its %s digest!", fileId, algorithm));
+    }
+}
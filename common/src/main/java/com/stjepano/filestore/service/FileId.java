@@ -39,7 +39,7 @@ public final class FileId {
         return fileName;
     }
 
-    private static boolean isValid(String value) {
+    public static boolean isValid(String value) {
         if (value == null) return false;
         return value.matches(REGEX);
     }
@@ -0,0 +1,12 @@
+package com.stjepano.filestore.service;
+
+/**
+ * Thrown if a batch request can not be executed, for example if it has too many operations
+ */
+public class InvalidBatchException extends IllegalArgumentException {
+
+    public InvalidBatchException(String message) {
+        super(message);
+    }
+
+}
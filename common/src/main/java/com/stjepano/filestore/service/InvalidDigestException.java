@@ -0,0 +1,12 @@
+package com.stjepano.filestore.service;
+
+/**
+ * Thrown if a digest supplied with uploaded data is malformed
+ */
+public class InvalidDigestException extends IllegalArgumentException {
+
+    public InvalidDigestException(String header, String value) {
+        super(String.format("Digest '%s' of header %s is not valid!", value, header));
+    }
+
+}
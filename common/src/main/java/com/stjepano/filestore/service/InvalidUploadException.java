@@ -0,0 +1,12 @@
+package com.stjepano.filestore.service;
+
+/**
+ * Thrown if a multipart upload can not be initiated, a part does not fit the upload or an incomplete upload is completed
+ */
+public class InvalidUploadException extends IllegalArgumentException {
+
+    public InvalidUploadException(String message) {
+        super(message);
+    }
+
+}
@@ -0,0 +1,11 @@
+package com.stjepano.filestore.service;
+
+/**
+ * Thrown when a multipart upload does not exist, it was completed, aborted or expired
+ */
+public class UploadDoesNotExistException extends ObjectStoreException {
+
+    public UploadDoesNotExistException(FileId fileId, String uploadId) {
+        super(String.format("Upload '%s' of file '%s' does not exist!", uploadId, fileId));
+    }
+}
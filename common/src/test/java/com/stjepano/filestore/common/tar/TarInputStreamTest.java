@@ -0,0 +1,157 @@
+package com.stjepano.filestore.common.tar;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Test for {@link TarInputStream}
+ */
+public class TarInputStreamTest {
+
+    @Test
+    public void readEntries() throws Exception {
+        ByteArrayOutputStream tar = new ByteArrayOutputStream();
+        entry(tar, "dir/", TarEntry.DIRECTORY, "");
+        entry(tar, "dir/a.txt", TarEntry.FILE, "first");
+        entry(tar, "dir/b.txt", TarEntry.FILE, repeat('x', 700));
+        end(tar);
+
+        TarInputStream in = new TarInputStream(new ByteArrayInputStream(tar.toByteArray()));
+        TarEntry directory = in.getNextEntry();
+        assertThat(directory.getName()).isEqualTo("dir/");
+        assertThat(directory.isDirectory()).isTrue();
+        TarEntry first = in.getNextEntry();
+        assertThat(first.getName()).isEqualTo("dir/a.txt");
+        assertThat(first.isFile()).isTrue();
+        assertThat(first.getSize()).isEqualTo(5);
+        assertThat(first.getLastModified()).isEqualTo(1500000000000L);
+        assertThat(readString(in)).isEqualTo("first");
+        TarEntry second = in.getNextEntry();
+        assertThat(second.getName()).isEqualTo("dir/b.txt");
+        assertThat(readString(in)).isEqualTo(repeat('x', 700));
+        assertThat(in.getNextEntry()).isNull();
+        assertThat(in.getNextEntry()).isNull();
+    }
+
+    @Test
+    public void unreadDataIsSkipped() throws Exception {
+        ByteArrayOutputStream tar = new ByteArrayOutputStream();
+        entry(tar, "a.txt", TarEntry.FILE, repeat('a', 1000));
+        entry(tar, "b.txt", TarEntry.FILE, "second");
+        end(tar);
+
+        TarInputStream in = new TarInputStream(new ByteArrayInputStream(tar.toByteArray()));
+        in.getNextEntry();
+        assertThat(in.read()).isEqualTo('a');
+        assertThat(in.getNextEntry().getName()).isEqualTo("b.txt");
+        assertThat(readString(in)).isEqualTo("second");
+    }
+
+    @Test
+    public void longNames() throws Exception {
+        String gnuName = repeat('g', 150) + ".txt";
+        String paxName = repeat('p', 200) + ".txt";
+        ByteArrayOutputStream tar = new ByteArrayOutputStream();
+        entry(tar, "././@LongLink", 'L', gnuName + "\0");
+        entry(tar, repeat('g', 99), TarEntry.FILE, "gnu");
+        String record = "path=" + paxName + "\n";
+        String length = Integer.toString(record.length() + 4);
+        entry(tar, "PaxHeaders/x", 'x', length + " " + record);
+        entry(tar, repeat('p', 99), TarEntry.FILE, "pax");
+        end(tar);
+
+        TarInputStream in = new TarInputStream(new ByteArrayInputStream(tar.toByteArray()));
+        assertThat(in.getNextEntry().getName()).isEqualTo(gnuName);
+        assertThat(readString(in)).isEqualTo("gnu");
+        assertThat(in.getNextEntry().getName()).isEqualTo(paxName);
+        assertThat(readString(in)).isEqualTo("pax");
+        assertThat(in.getNextEntry()).isNull();
+    }
+
+    @Test
+    public void linksHaveNoData() throws Exception {
+        ByteArrayOutputStream tar = new ByteArrayOutputStream();
+        entry(tar, "link", '2', "");
+        entry(tar, "a.txt", TarEntry.FILE, "data");
+        end(tar);
+
+        TarInputStream in = new TarInputStream(new ByteArrayInputStream(tar.toByteArray()));
+        TarEntry link = in.getNextEntry();
+        assertThat(link.isFile()).isFalse();
+        assertThat(in.read()).isEqualTo(-1);
+        assertThat(in.getNextEntry().getName()).isEqualTo("a.txt");
+    }
+
+    @Test(expected = IOException.class)
+    public void notATarArchive() throws Exception {
+        byte[] data = repeat('z', 1024).getBytes(StandardCharsets.UTF_8);
+        new TarInputStream(new ByteArrayInputStream(data)).getNextEntry();
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedArchive() throws Exception {
+        ByteArrayOutputStream tar = new ByteArrayOutputStream();
+        entry(tar, "a.txt", TarEntry.FILE, repeat('a', 1000));
+        byte[] truncated = new byte[TarInputStream.BLOCK_SIZE + 100];
+        System.arraycopy(tar.toByteArray(), 0, truncated, 0, truncated.length);
+
+        TarInputStream in = new TarInputStream(new ByteArrayInputStream(truncated));
+        in.getNextEntry();
+        readString(in);
+    }
+
+    private static void entry(ByteArrayOutputStream tar, String name, char type, String data) throws IOException {
+        byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+        byte[] header = new byte[TarInputStream.BLOCK_SIZE];
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(nameBytes, 0, header, 0, Math.min(nameBytes.length, 100));
+        octal(header, 100, 8, 0644);
+        octal(header, 124, 12, bytes.length);
+        octal(header, 136, 12, 1500000000L);
+        header[156] = (byte) type;
+        System.arraycopy("ustar\0".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 6);
+        long sum = 0;
+        for (int i = 0; i < header.length; i++) {
+            sum += (i >= 148 && i < 156) ? ' ' : (header[i] & 0xff);
+        }
+        octal(header, 148, 8, sum);
+        tar.write(header);
+        tar.write(bytes);
+        tar.write(new byte[(TarInputStream.BLOCK_SIZE - bytes.length % TarInputStream.BLOCK_SIZE) % TarInputStream.BLOCK_SIZE]);
+    }
+
+    private static void end(ByteArrayOutputStream tar) throws IOException {
+        tar.write(new byte[2 * TarInputStream.BLOCK_SIZE]);
+    }
+
+    private static void octal(byte[] header, int offset, int length, long value) {
+        String octal = Long.toOctalString(value);
+        while (octal.length() < length - 1) {
+            octal = "0" + octal;
+        }
+        System.arraycopy(octal.getBytes(StandardCharsets.US_ASCII), 0, header, offset, length - 1);
+    }
+
+    private static String readString(TarInputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[100];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}
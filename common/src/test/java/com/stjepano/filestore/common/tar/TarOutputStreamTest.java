@@ -0,0 +1,130 @@
+package com.stjepano.filestore.common.tar;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Test for {@link TarOutputStream}, archives are read back with {@link TarInputStream}
+ */
+public class TarOutputStreamTest {
+
+    @Test
+    public void writeEntries() throws Exception {
+        ByteArrayOutputStream tar = new ByteArrayOutputStream();
+        try (TarOutputStream out = new TarOutputStream(tar)) {
+            out.putNextEntry(new TarEntry("dir/", 0, TarEntry.DIRECTORY, 1500000000000L));
+            write(out, "dir/a.txt", "first");
+            write(out, "dir/b.txt", repeat('x', 700));
+            write(out, "empty.txt", "");
+        }
+        assertThat(tar.size() % TarInputStream.BLOCK_SIZE).isEqualTo(0);
+
+        TarInputStream in = new TarInputStream(new ByteArrayInputStream(tar.toByteArray()));
+        TarEntry directory = in.getNextEntry();
+        assertThat(directory.getName()).isEqualTo("dir/");
+        assertThat(directory.isDirectory()).isTrue();
+        TarEntry first = in.getNextEntry();
+        assertThat(first.getName()).isEqualTo("dir/a.txt");
+        assertThat(first.isFile()).isTrue();
+        assertThat(first.getLastModified()).isEqualTo(1500000000000L);
+        assertThat(readString(in)).isEqualTo("first");
+        assertThat(in.getNextEntry().getName()).isEqualTo("dir/b.txt");
+        assertThat(readString(in)).isEqualTo(repeat('x', 700));
+        TarEntry empty = in.getNextEntry();
+        assertThat(empty.getName()).isEqualTo("empty.txt");
+        assertThat(empty.getSize()).isEqualTo(0);
+        assertThat(in.getNextEntry()).isNull();
+    }
+
+    @Test
+    public void longNamesUsePaxHeader() throws Exception {
+        String name = repeat('n', 150) + "-čć.txt";
+        ByteArrayOutputStream tar = new ByteArrayOutputStream();
+        try (TarOutputStream out = new TarOutputStream(tar)) {
+            write(out, name, "long");
+            write(out, "short.txt", "short");
+        }
+
+        TarInputStream in = new TarInputStream(new ByteArrayInputStream(tar.toByteArray()));
+        assertThat(in.getNextEntry().getName()).isEqualTo(name);
+        assertThat(readString(in)).isEqualTo("long");
+        assertThat(in.getNextEntry().getName()).isEqualTo("short.txt");
+        assertThat(readString(in)).isEqualTo("short");
+        assertThat(in.getNextEntry()).isNull();
+    }
+
+    @Test
+    public void largeSizeIsBase256Encoded() throws Exception {
+        long size = 10L * 1024 * 1024 * 1024;
+        ByteArrayOutputStream tar = new ByteArrayOutputStream();
+        TarOutputStream out = new TarOutputStream(tar);
+        out.putNextEntry(new TarEntry("large.bin", size, TarEntry.FILE, 0));
+        out.flush();
+
+        TarInputStream in = new TarInputStream(new ByteArrayInputStream(tar.toByteArray()));
+        assertThat(in.getNextEntry().getSize()).isEqualTo(size);
+    }
+
+    @Test(expected = IOException.class)
+    public void dataShorterThanSize() throws Exception {
+        TarOutputStream out = new TarOutputStream(new ByteArrayOutputStream());
+        out.putNextEntry(new TarEntry("a.txt", 10, TarEntry.FILE, 0));
+        out.write("short".getBytes(StandardCharsets.UTF_8));
+        out.closeEntry();
+    }
+
+    @Test(expected = IOException.class)
+    public void dataLongerThanSize() throws Exception {
+        TarOutputStream out = new TarOutputStream(new ByteArrayOutputStream());
+        out.putNextEntry(new TarEntry("a.txt", 2, TarEntry.FILE, 0));
+        out.write("long".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void failedArchiveIsCorrupted() throws Exception {
+        ByteArrayOutputStream tar = new ByteArrayOutputStream();
+        TarOutputStream out = new TarOutputStream(tar);
+        write(out, "a.txt", "first");
+        out.closeEntry();
+        out.fail();
+        out.close();
+
+        TarInputStream in = new TarInputStream(new ByteArrayInputStream(tar.toByteArray()));
+        assertThat(in.getNextEntry().getName()).isEqualTo("a.txt");
+        try {
+            in.getNextEntry();
+        } catch (IOException e) {
+            return;
+        }
+        throw new AssertionError("Failed archive was read as complete");
+    }
+
+    private static void write(TarOutputStream out, String name, String content) throws IOException {
+        final byte[] data = content.getBytes(StandardCharsets.UTF_8);
+        out.putNextEntry(new TarEntry(name, data.length, TarEntry.FILE, 1500000000000L));
+        out.write(data);
+    }
+
+    private static String readString(TarInputStream in) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        byte[] buffer = new byte[100];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            data.write(buffer, 0, n);
+        }
+        return new String(data.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}
@@ -0,0 +1,15 @@
+package com.stjepano.filestore.reactive;
+
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.SpringBootApplication;
+
+/**
+ * Spring Boot application serving the file store with Spring WebFlux
+ */
+@SpringBootApplication
+public class ReactiveApplication {
+
+    public static void main(String[] args) {
+        SpringApplication.run(ReactiveApplication.class, args);
+    }
+}
@@ -0,0 +1,52 @@
+package com.stjepano.filestore.reactive;
+
+import com.stjepano.filestore.reactive.service.AsyncFileChannelFileService;
+import com.stjepano.filestore.reactive.service.ReactiveFileService;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Configuration of the reactive application
+ */
+@Configuration
+public class ReactiveApplicationConfiguration {
+
+    @Value("${filestore.contentDir}")
+    private String contentDirStr;
+
+    @Value("${filestore.reactive.bufferSize:65536}")
+    private int bufferSize;
+
+    @Bean
+    public ReactiveFileService fileService() {
+        FileSystem fileSystem = FileSystems.getDefault();
+        validateContentDir(fileSystem);
+
+        AsyncFileChannelFileService fileService = new AsyncFileChannelFileService(contentDirStr,
+                fileSystem,
+                new DefaultDataBufferFactory(),
+                bufferSize
+        );
+        fileService.sweepTempFiles();
+        return fileService;
+    }
+
+    private void validateContentDir(FileSystem fileSystem) {
+        Path contentDir = fileSystem.getPath(contentDirStr);
+
+        if (!Files.exists(contentDir) || !Files.isDirectory(contentDir)) {
+            throw new RuntimeException("Configured content directory '" + contentDir.toString() + "' does not exist!");
+        }
+
+        if (!Files.isReadable(contentDir) || !Files.isWritable(contentDir)) {
+            throw new RuntimeException("Configured content directory '" + contentDir.toString() + "' is not readable and/or writable by application!");
+        }
+    }
+}
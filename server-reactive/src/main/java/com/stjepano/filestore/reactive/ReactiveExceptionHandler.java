@@ -0,0 +1,53 @@
+package com.stjepano.filestore.reactive;
+
+import com.stjepano.filestore.common.ErrorResponse;
+import com.stjepano.filestore.service.BucketAlreadyExistsException;
+import com.stjepano.filestore.service.BucketDoesNotExistException;
+import com.stjepano.filestore.service.FileAlreadyExistException;
+import com.stjepano.filestore.service.FileDoesNotExistException;
+import com.stjepano.filestore.service.InvalidBucketIdException;
+import com.stjepano.filestore.service.InvalidFileIdException;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.server.ResponseStatusException;
+
+/**
+ * Exception handler for the reactive application, maps errors to the same statuses and bodies as the servlet one
+ */
+@ControllerAdvice
+public class ReactiveExceptionHandler {
+
+    @ExceptionHandler(value = {BucketDoesNotExistException.class, FileDoesNotExistException.class})
+    protected ResponseEntity<ErrorResponse> handleDoesNotExistException(Exception ex) {
+        return errorResponse(HttpStatus.NOT_FOUND, ex.getMessage());
+    }
+
+    @ExceptionHandler(value = {BucketAlreadyExistsException.class, FileAlreadyExistException.class})
+    protected ResponseEntity<ErrorResponse> handleAlreadyExistException(Exception ex) {
+        return errorResponse(HttpStatus.CONFLICT, ex.getMessage());
+    }
+
+    @ExceptionHandler(value = {InvalidBucketIdException.class, InvalidFileIdException.class})
+    protected ResponseEntity<ErrorResponse> handleInvalidNames(Exception ex) {
+        return errorResponse(HttpStatus.BAD_REQUEST, ex.getMessage());
+    }
+
+    @ExceptionHandler(value = {ResponseStatusException.class})
+    protected ResponseEntity<ErrorResponse> handleResponseStatusException(ResponseStatusException ex) {
+        return errorResponse(ex.getStatus(), ex.getReason() != null ? ex.getReason() : ex.getStatus().getReasonPhrase());
+    }
+
+    @ExceptionHandler(value = {Exception.class})
+    protected ResponseEntity<ErrorResponse> handleGenericException(Exception ex) {
+        return errorResponse(HttpStatus.INTERNAL_SERVER_ERROR, ex.getMessage());
+    }
+
+    private static ResponseEntity<ErrorResponse> errorResponse(HttpStatus status, String message) {
+        return ResponseEntity.status(status)
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(new ErrorResponse(message));
+    }
+}
@@ -0,0 +1,41 @@
+package com.stjepano.filestore.reactive.controller;
+
+import com.stjepano.filestore.reactive.service.ReactiveFileService;
+import com.stjepano.filestore.service.BucketId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+
+/**
+ * Bucket controller
+ */
+@RestController
+@RequestMapping("/store")
+public class BucketController {
+
+    @Autowired
+    private ReactiveFileService fileService;
+
+    @GetMapping("/")
+    public Mono<List<String>> listBuckets() {
+        return fileService.getBuckets().collectList();
+    }
+
+    @PostMapping("/")
+    public Mono<Void> createBucket(@RequestBody String bucketName) {
+        return fileService.createBucket(BucketId.from(bucketName));
+    }
+
+    @DeleteMapping("/{bucket}")
+    public Mono<Void> deleteBucket(@PathVariable("bucket") String bucket) {
+        return fileService.deleteBucket(BucketId.from(bucket));
+    }
+}
@@ -0,0 +1,138 @@
+package com.stjepano.filestore.reactive.controller;
+
+import com.stjepano.filestore.common.FileInfo;
+import com.stjepano.filestore.reactive.service.ReactiveFileService;
+import com.stjepano.filestore.service.BucketId;
+import com.stjepano.filestore.service.FileId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.multipart.FilePart;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RequestPart;
+import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+
+/**
+ * A file controller, request bodies are written to files and files are written to responses as the data buffers
+ * arrive, without blocking a thread.
+ */
+@RestController
+@RequestMapping("/store/{bucket}")
+public class FileController {
+
+    @Autowired
+    private ReactiveFileService fileService;
+
+    @GetMapping("/")
+    public Mono<List<FileInfo>> listFiles(@PathVariable("bucket") String bucket) {
+        return fileService.getFiles(BucketId.from(bucket)).collectList();
+    }
+
+    @DeleteMapping("/{filename:.+}")
+    public Mono<Void> deleteFile(@PathVariable("bucket") String bucket,
+                                 @PathVariable("filename") String filename) {
+        return fileService.deleteFile(FileId.from(bucket, filename));
+    }
+
+    @PostMapping("/")
+    public Mono<Void> uploadFile(@PathVariable("bucket") String bucket,
+                                 @RequestPart("file") FilePart file,
+                                 @RequestParam(value = "filename", required = false) String filename) {
+        final String desiredFilename = (filename == null) ? file.filename() : filename;
+        return fileService.upload(FileId.from(bucket, desiredFilename), file.content());
+    }
+
+    @PutMapping("/{filename:.+}")
+    public Mono<Void> overwriteFile(@PathVariable("bucket") String bucket,
+                                    @PathVariable("filename") String filename,
+                                    @RequestPart("file") FilePart file) {
+        return fileService.overwrite(FileId.from(bucket, filename), file.content());
+    }
+
+    @PostMapping(value = "/{filename:.+}", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public Mono<Void> uploadRawFile(@PathVariable("bucket") String bucket,
+                                    @PathVariable("filename") String filename,
+                                    @RequestBody Flux<DataBuffer> body) {
+        return fileService.upload(FileId.from(bucket, filename), body);
+    }
+
+    @PutMapping(value = "/{filename:.+}", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public Mono<Void> overwriteRawFile(@PathVariable("bucket") String bucket,
+                                       @PathVariable("filename") String filename,
+                                       @RequestBody Flux<DataBuffer> body) {
+        return fileService.overwrite(FileId.from(bucket, filename), body);
+    }
+
+    @GetMapping("/{filename:.+}")
+    public Mono<ResponseEntity<Flux<DataBuffer>>> downloadFile(@PathVariable("bucket") String bucket,
+                                                               @PathVariable("filename") String filename,
+                                                               @RequestParam(value = "att", required = false, defaultValue = "true") boolean asAttachment,
+                                                               @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding) {
+        final FileId fileId = FileId.from(bucket, filename);
+        return fileService.getDownload(fileId)
+                .map(download -> {
+                    final FileInfo fileInfo = download.getFileInfo();
+                    final String contentEncoding = download.getContentEncoding();
+                    final boolean sendEncoded = contentEncoding != null && acceptsEncoding(acceptEncoding, contentEncoding);
+                    final ResponseEntity.BodyBuilder bodyBuilder = ResponseEntity.ok()
+                            .contentLength(sendEncoded ? download.getEncodedSize() : fileInfo.getSize())
+                            .contentType(fileInfo.getMimeType() != null ? MediaType.parseMediaType(fileInfo.getMimeType()) : MediaType.APPLICATION_OCTET_STREAM);
+                    if (contentEncoding != null) {
+                        bodyBuilder.header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+                    }
+                    if (sendEncoded) {
+                        bodyBuilder.header(HttpHeaders.CONTENT_ENCODING, contentEncoding);
+                    }
+                    if (asAttachment) {
+                        bodyBuilder.header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + fileInfo.getName() + "\"");
+                    }
+                    return bodyBuilder.body(sendEncoded ? download.getEncodedData() : download.getData());
+                });
+    }
+
+    /**
+     * True if Accept-Encoding header accepts given content encoding, a missing header accepts only identity.
+     */
+    static boolean acceptsEncoding(String acceptEncoding, String contentEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        boolean acceptedByWildcard = false;
+        for (String element : acceptEncoding.split(",")) {
+            final String[] parts = element.split(";");
+            final String coding = parts[0].trim();
+            boolean acceptable = true;
+            for (int i = 1; i < parts.length; i++) {
+                final String parameter = parts[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        acceptable = Double.parseDouble(parameter.substring(2).trim()) > 0;
+                    } catch (NumberFormatException e) {
+                        acceptable = false;
+                    }
+                }
+            }
+            if (coding.equalsIgnoreCase(contentEncoding) || coding.equalsIgnoreCase("x-" + contentEncoding)) {
+                return acceptable;
+            }
+            if (coding.equals("*")) {
+                acceptedByWildcard = acceptable;
+            }
+        }
+        return acceptedByWildcard;
+    }
+}
@@ -0,0 +1,443 @@
+package com.stjepano.filestore.reactive.service;
+
+import com.stjepano.filestore.common.FileInfo;
+import com.stjepano.filestore.service.BucketAlreadyExistsException;
+import com.stjepano.filestore.service.BucketDoesNotExistException;
+import com.stjepano.filestore.service.BucketId;
+import com.stjepano.filestore.service.FileAlreadyExistException;
+import com.stjepano.filestore.service.FileDoesNotExistException;
+import com.stjepano.filestore.service.FileId;
+import org.reactivestreams.Publisher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Implementation of {@link ReactiveFileService} which keeps buckets and files in the flat directory layout of the
+ * blocking file service, so both servers can be run on the same content directory. Sharded and packed files of the
+ * blocking service are not supported: they are not found and an upload would store a second, flat copy of a sharded
+ * file, so content directories with sharding or packing enabled must not be served by this service.
+ *
+ * File data is read and written with {@link AsynchronousFileChannel} so no thread waits for a transfer: data buffers
+ * of an upload are written as they arrive and downloads are read in buffers of given size as the client consumes them.
+ * Directory operations and existence checks have no asynchronous API, they run on a {@link Scheduler} meant for
+ * blocking work (elastic by default) to keep them off the event loop.
+ *
+ * Uploads are written to a temporary dot file in the bucket and published in one atomic step, same as in the blocking
+ * file service. Concurrent uploads of the same file are resolved by the file system: the first published upload wins.
+ * Overwrites and deletes of a file are serialized by a lock of the file (on the blocking scheduler), an overwrite does
+ * not recreate a file deleted while its data was written. The locks are local to this server.
+ *
+ * Files compressed by the blocking server are marked with a user defined attribute ({@value #ENCODING_ATTRIBUTE}) which
+ * holds their encoding and original size. Their info reports the original size and their downloads can send stored
+ * data with its content encoding or original data, decompressed on the blocking scheduler.
+ */
+public class AsyncFileChannelFileService implements ReactiveFileService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncFileChannelFileService.class);
+
+    private static final String TEMP_FILE_PREFIX = ".filestore-upload-";
+
+    private static final int LOCK_STRIPES = 256;
+
+    /** Attribute with encoding and original size of files compressed by the blocking server */
+    static final String ENCODING_ATTRIBUTE = "filestore.encoding";
+
+    static final String GZIP_ENCODING = "gzip";
+
+    private final Path contentDirPath;
+    private final DataBufferFactory dataBufferFactory;
+    private final int bufferSize;
+
+    /** Deletes and overwrites of a file are done under its lock, striped by file id */
+    private final Lock[] fileLocks = new Lock[LOCK_STRIPES];
+
+    private Scheduler scheduler = Schedulers.elastic();
+
+    /**
+     * Initialize {@link AsyncFileChannelFileService}.
+     * @param contentDir directory in which buckets are stored
+     * @param fileSystem file system of the content directory
+     * @param dataBufferFactory factory of buffers in which files are read
+     * @param bufferSize size of buffers in which files are read
+     */
+    public AsyncFileChannelFileService(String contentDir,
+                                       FileSystem fileSystem,
+                                       DataBufferFactory dataBufferFactory,
+                                       int bufferSize) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("Buffer size must be positive!");
+        }
+        this.contentDirPath = fileSystem.getPath(contentDir);
+        this.dataBufferFactory = dataBufferFactory;
+        this.bufferSize = bufferSize;
+        for (int i = 0; i < fileLocks.length; i++) {
+            fileLocks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Use given scheduler for blocking directory operations instead of the elastic one.
+     * @param scheduler the scheduler
+     */
+    public void setScheduler(Scheduler scheduler) {
+        this.scheduler = Objects.requireNonNull(scheduler);
+    }
+
+    @Override
+    public Flux<String> getBuckets() {
+        return blocking(() -> {
+            final List<String> buckets = new ArrayList<>();
+            try (DirectoryStream<Path> directories = Files.newDirectoryStream(contentDirPath, Files::isDirectory)) {
+                for (Path directory : directories) {
+                    final String name = directory.getFileName().toString();
+                    if (BucketId.isValid(name)) {
+                        buckets.add(name);
+                    }
+                }
+            }
+            buckets.sort(Comparator.naturalOrder());
+            return buckets;
+        }).flatMapIterable(buckets -> buckets);
+    }
+
+    @Override
+    public Mono<Void> createBucket(BucketId bucketId) {
+        return blocking(() -> {
+            try {
+                Files.createDirectory(bucketPath(bucketId));
+            } catch (FileAlreadyExistsException e) {
+                throw new BucketAlreadyExistsException(bucketId);
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public Mono<Void> deleteBucket(BucketId bucketId) {
+        return existingBucket(bucketId)
+                .flatMap(bucketPath -> blocking(() -> {
+                    Files.walkFileTree(bucketPath, new SimpleFileVisitor<Path>() {
+                        @Override
+                        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                            Files.delete(file);
+                            return FileVisitResult.CONTINUE;
+                        }
+
+                        @Override
+                        public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                            Files.delete(dir);
+                            return FileVisitResult.CONTINUE;
+                        }
+                    });
+                    return null;
+                }));
+    }
+
+    @Override
+    public Flux<FileInfo> getFiles(BucketId bucketId) {
+        return existingBucket(bucketId)
+                .flatMap(bucketPath -> blocking(() -> {
+                    final List<FileInfo> files = new ArrayList<>();
+                    try (DirectoryStream<Path> paths = Files.newDirectoryStream(bucketPath, Files::isRegularFile)) {
+                        for (Path path : paths) {
+                            if (FileId.isValid(path.getFileName().toString())) {
+                                files.add(fileInfo(path));
+                            }
+                        }
+                    }
+                    files.sort(Comparator.comparing(FileInfo::getName));
+                    return files;
+                }))
+                .flatMapIterable(files -> files);
+    }
+
+    @Override
+    public Mono<FileInfo> getFile(FileId fileId) {
+        return existingFile(fileId)
+                .flatMap(filePath -> blocking(() -> fileInfo(filePath)));
+    }
+
+    @Override
+    public Mono<Void> deleteFile(FileId fileId) {
+        return existingBucket(fileId.getBucketId())
+                .flatMap(bucketPath -> blocking(() -> {
+                    final Lock fileLock = fileLock(fileId);
+                    fileLock.lock();
+                    try {
+                        if (!Files.deleteIfExists(bucketPath.resolve(fileId.getFileName()))) {
+                            throw new FileDoesNotExistException(fileId);
+                        }
+                    } finally {
+                        fileLock.unlock();
+                    }
+                    return null;
+                }));
+    }
+
+    @Override
+    public Mono<Void> upload(FileId fileId, Publisher<DataBuffer> data) {
+        return existingBucket(fileId.getBucketId())
+                .flatMap(bucketPath -> blocking(() -> {
+                    if (Files.exists(bucketPath.resolve(fileId.getFileName()))) {
+                        throw new FileAlreadyExistException(fileId);
+                    }
+                    return bucketPath;
+                }))
+                .flatMap(bucketPath -> writeAndPublish(data, bucketPath, tempPath -> {
+                    try {
+                        publish(tempPath, bucketPath.resolve(fileId.getFileName()));
+                    } catch (FileAlreadyExistsException e) {
+                        throw new FileAlreadyExistException(fileId);
+                    }
+                }));
+    }
+
+    @Override
+    public Mono<Void> overwrite(FileId fileId, Publisher<DataBuffer> data) {
+        return existingFile(fileId)
+                .flatMap(filePath -> writeAndPublish(data, filePath.getParent(), tempPath -> {
+                    final Lock fileLock = fileLock(fileId);
+                    fileLock.lock();
+                    try {
+                        // file could be deleted while data was written, overwrite must not recreate it
+                        if (!Files.isRegularFile(filePath)) {
+                            throw new FileDoesNotExistException(fileId);
+                        }
+                        replace(tempPath, filePath);
+                    } finally {
+                        fileLock.unlock();
+                    }
+                }));
+    }
+
+    @Override
+    public Flux<DataBuffer> download(FileId fileId) {
+        return getDownload(fileId).flatMapMany(FileDownload::getData);
+    }
+
+    @Override
+    public Mono<FileDownload> getDownload(FileId fileId) {
+        return existingFile(fileId)
+                .flatMap(filePath -> blocking(() -> {
+                    final FileInfo fileInfo = FileInfo.from(filePath);
+                    final long decodedSize = decodedSize(filePath);
+                    if (decodedSize < 0) {
+                        return new FileDownload(fileInfo, read(filePath));
+                    }
+                    final long encodedSize = fileInfo.getSize();
+                    fileInfo.setSize(decodedSize);
+                    return new FileDownload(fileInfo, decode(filePath), GZIP_ENCODING, encodedSize, read(filePath));
+                }));
+    }
+
+    /**
+     * Read original data of a compressed file, the input stream blocks so it is read on the blocking scheduler.
+     */
+    private Flux<DataBuffer> decode(Path filePath) {
+        return DataBufferUtils.readInputStream(
+                        () -> new GZIPInputStream(Files.newInputStream(filePath), bufferSize),
+                        dataBufferFactory,
+                        bufferSize)
+                .subscribeOn(scheduler);
+    }
+
+    private Flux<DataBuffer> read(Path filePath) {
+        return DataBufferUtils.readAsynchronousFileChannel(
+                () -> AsynchronousFileChannel.open(filePath, StandardOpenOption.READ),
+                dataBufferFactory,
+                bufferSize);
+    }
+
+    /**
+     * Delete temporary files left in buckets by uploads which did not finish (for example because of a crash). Must not
+     * be called while uploads are in progress, it is meant to be called on startup.
+     * @return number of deleted files
+     */
+    public int sweepTempFiles() {
+        int deleted = 0;
+        try (DirectoryStream<Path> buckets = Files.newDirectoryStream(contentDirPath, Files::isDirectory)) {
+            for (Path bucketPath : buckets) {
+                try (DirectoryStream<Path> tempFiles = Files.newDirectoryStream(bucketPath, TEMP_FILE_PREFIX + "*")) {
+                    for (Path tempPath : tempFiles) {
+                        Files.deleteIfExists(tempPath);
+                        deleted++;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        if (deleted > 0) {
+            LOGGER.info("Deleted {} orphaned temporary upload files", deleted);
+        }
+        return deleted;
+    }
+
+    private static FileInfo fileInfo(Path filePath) throws IOException {
+        final FileInfo fileInfo = FileInfo.from(filePath);
+        final long decodedSize = decodedSize(filePath);
+        if (decodedSize >= 0) {
+            fileInfo.setSize(decodedSize);
+        }
+        return fileInfo;
+    }
+
+    /**
+     * Get size of original data of a compressed file.
+     * @return the original size or -1 if the file is not compressed (or attributes are not supported)
+     */
+    private static long decodedSize(Path filePath) throws IOException {
+        final UserDefinedFileAttributeView view = Files.getFileAttributeView(filePath, UserDefinedFileAttributeView.class);
+        if (view == null) {
+            return -1;
+        }
+        try {
+            if (!view.list().contains(ENCODING_ATTRIBUTE)) {
+                return -1;
+            }
+        } catch (IOException | UnsupportedOperationException e) {
+            // listing attributes of an existing file fails only when the file store does not support them
+            return -1;
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(view.size(ENCODING_ATTRIBUTE));
+        view.read(ENCODING_ATTRIBUTE, buffer);
+        buffer.flip();
+        final String[] value = StandardCharsets.US_ASCII.decode(buffer).toString().split(" ");
+        if (value.length != 2 || !GZIP_ENCODING.equals(value[0])) {
+            throw new IOException(String.format("Unsupported encoding of file '%s'", filePath));
+        }
+        return Long.parseLong(value[1]);
+    }
+
+    private Lock fileLock(FileId fileId) {
+        final int hash = fileId.hashCode();
+        return fileLocks[(hash ^ (hash >>> 16)) & (LOCK_STRIPES - 1)];
+    }
+
+    private Path bucketPath(BucketId bucketId) {
+        return contentDirPath.resolve(bucketId.getId());
+    }
+
+    private Mono<Path> existingBucket(BucketId bucketId) {
+        return blocking(() -> {
+            final Path bucketPath = bucketPath(bucketId);
+            if (!Files.isDirectory(bucketPath)) {
+                throw new BucketDoesNotExistException(bucketId);
+            }
+            return bucketPath;
+        });
+    }
+
+    private Mono<Path> existingFile(FileId fileId) {
+        return existingBucket(fileId.getBucketId())
+                .flatMap(bucketPath -> blocking(() -> {
+                    final Path filePath = bucketPath.resolve(fileId.getFileName());
+                    if (!Files.isRegularFile(filePath)) {
+                        throw new FileDoesNotExistException(fileId);
+                    }
+                    return filePath;
+                }));
+    }
+
+    /**
+     * Write data to a new temporary file in the bucket, then make it visible with given action. The temporary file is
+     * removed when the upload fails or is cancelled.
+     */
+    private Mono<Void> writeAndPublish(Publisher<DataBuffer> data, Path bucketPath, PublishAction publishAction) {
+        return Mono.using(
+                () -> bucketPath.resolve(TEMP_FILE_PREFIX + UUID.randomUUID()),
+                tempPath -> Flux.using(
+                                () -> AsynchronousFileChannel.open(tempPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE),
+                                channel -> DataBufferUtils.write(data, channel, 0),
+                                AsyncFileChannelFileService::closeChannel)
+                        .doOnNext(DataBufferUtils.releaseConsumer())
+                        .then(blocking(() -> {
+                            publishAction.publish(tempPath);
+                            return null;
+                        })),
+                AsyncFileChannelFileService::deleteTempFile);
+    }
+
+    /**
+     * Atomically make temporary file visible as target file, fails if target file already exists.
+     */
+    private static void publish(Path tempPath, Path filePath) throws IOException {
+        try {
+            Files.createLink(filePath, tempPath);
+        } catch (UnsupportedOperationException e) {
+            Files.move(tempPath, filePath);
+        }
+    }
+
+    /**
+     * Atomically replace target file with temporary file, readers which already opened the target keep reading old data.
+     */
+    private static void replace(Path tempPath, Path filePath) throws IOException {
+        try {
+            Files.move(tempPath, filePath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempPath, filePath, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void deleteTempFile(Path tempPath) {
+        try {
+            Files.deleteIfExists(tempPath);
+        } catch (IOException e) {
+            LOGGER.warn("Could not delete temporary file '{}'", tempPath, e);
+        }
+    }
+
+    private static void closeChannel(AsynchronousFileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.warn("Could not close file channel", e);
+        }
+    }
+
+    /**
+     * Run blocking file system call on the scheduler, a null result completes empty.
+     */
+    private <T> Mono<T> blocking(Callable<T> call) {
+        return Mono.fromCallable(call).subscribeOn(scheduler);
+    }
+
+    @FunctionalInterface
+    private interface PublishAction {
+        void publish(Path tempPath) throws Exception;
+    }
+}
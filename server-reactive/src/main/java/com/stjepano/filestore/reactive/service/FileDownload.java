@@ -0,0 +1,73 @@
+package com.stjepano.filestore.reactive.service;
+
+import com.stjepano.filestore.common.FileInfo;
+import org.springframework.core.io.buffer.DataBuffer;
+import reactor.core.publisher.Flux;
+
+/**
+ * Info of a file together with its data, both from one lookup of the file.
+ *
+ * A file stored compressed (by the blocking server) can be sent as stored, with its content encoding, or as original
+ * data decoded while it is read.
+ */
+public class FileDownload {
+
+    private final FileInfo fileInfo;
+    private final Flux<DataBuffer> data;
+    private final String contentEncoding;
+    private final long encodedSize;
+    private final Flux<DataBuffer> encodedData;
+
+    /**
+     * Download of a file stored as it is.
+     */
+    public FileDownload(FileInfo fileInfo, Flux<DataBuffer> data) {
+        this(fileInfo, data, null, fileInfo.getSize(), data);
+    }
+
+    /**
+     * Download of a file stored with given content encoding.
+     * @param fileInfo info of the file, with size of original data
+     * @param data original data
+     * @param contentEncoding content encoding of stored data, null if file is stored as it is
+     * @param encodedSize size of stored data
+     * @param encodedData stored data
+     */
+    public FileDownload(FileInfo fileInfo, Flux<DataBuffer> data,
+                        String contentEncoding, long encodedSize, Flux<DataBuffer> encodedData) {
+        this.fileInfo = fileInfo;
+        this.data = data;
+        this.contentEncoding = contentEncoding;
+        this.encodedSize = encodedSize;
+        this.encodedData = encodedData;
+    }
+
+    public FileInfo getFileInfo() {
+        return fileInfo;
+    }
+
+    /**
+     * Original data of the file, read when subscribed. Consumer must release emitted buffers.
+     */
+    public Flux<DataBuffer> getData() {
+        return data;
+    }
+
+    /**
+     * Content encoding of stored data, null if the file is stored as it is.
+     */
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+
+    public long getEncodedSize() {
+        return encodedSize;
+    }
+
+    /**
+     * Stored data of the file, read when subscribed. Consumer must release emitted buffers.
+     */
+    public Flux<DataBuffer> getEncodedData() {
+        return encodedData;
+    }
+}
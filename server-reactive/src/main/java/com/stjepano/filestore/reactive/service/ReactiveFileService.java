@@ -0,0 +1,75 @@
+package com.stjepano.filestore.reactive.service;
+
+import com.stjepano.filestore.common.FileInfo;
+import com.stjepano.filestore.service.BucketAlreadyExistsException;
+import com.stjepano.filestore.service.BucketDoesNotExistException;
+import com.stjepano.filestore.service.BucketId;
+import com.stjepano.filestore.service.FileAlreadyExistException;
+import com.stjepano.filestore.service.FileDoesNotExistException;
+import com.stjepano.filestore.service.FileId;
+import org.reactivestreams.Publisher;
+import org.springframework.core.io.buffer.DataBuffer;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Non blocking variant of the file service.
+ *
+ * Nothing happens until returned publishers are subscribed, failures are signalled with the same exceptions as in the
+ * blocking file service ({@link BucketDoesNotExistException}, {@link FileAlreadyExistException}, ...).
+ */
+public interface ReactiveFileService {
+
+    /**
+     * Get names of all buckets.
+     */
+    Flux<String> getBuckets();
+
+    /**
+     * Create a bucket, signals {@link BucketAlreadyExistsException} if the bucket exists.
+     */
+    Mono<Void> createBucket(BucketId bucketId);
+
+    /**
+     * Delete a bucket with all its files, signals {@link BucketDoesNotExistException} if there is no such bucket.
+     */
+    Mono<Void> deleteBucket(BucketId bucketId);
+
+    /**
+     * Get files of a bucket sorted by name, signals {@link BucketDoesNotExistException} if there is no such bucket.
+     */
+    Flux<FileInfo> getFiles(BucketId bucketId);
+
+    /**
+     * Get info of a file, signals {@link FileDoesNotExistException} if there is no such file.
+     */
+    Mono<FileInfo> getFile(FileId fileId);
+
+    /**
+     * Delete a file, signals {@link FileDoesNotExistException} if there is no such file.
+     */
+    Mono<Void> deleteFile(FileId fileId);
+
+    /**
+     * Store data as a new file, signals {@link FileAlreadyExistException} if the file exists. The data is consumed only
+     * if the bucket exists and the file does not.
+     */
+    Mono<Void> upload(FileId fileId, Publisher<DataBuffer> data);
+
+    /**
+     * Replace data of an existing file, signals {@link FileDoesNotExistException} if there is no such file.
+     */
+    Mono<Void> overwrite(FileId fileId, Publisher<DataBuffer> data);
+
+    /**
+     * Read data of a file, signals {@link FileDoesNotExistException} if there is no such file. Consumer must release
+     * emitted buffers.
+     */
+    Flux<DataBuffer> download(FileId fileId);
+
+    /**
+     * Get info of a file with its data, signals {@link FileDoesNotExistException} if there is no such file. The file is
+     * looked up and its content type is probed once, data is read when it is subscribed.
+     */
+    Mono<FileDownload> getDownload(FileId fileId);
+}
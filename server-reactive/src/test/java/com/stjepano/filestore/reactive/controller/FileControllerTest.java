@@ -0,0 +1,178 @@
+package com.stjepano.filestore.reactive.controller;
+
+import com.stjepano.filestore.common.FileInfo;
+import com.stjepano.filestore.reactive.service.FileDownload;
+import com.stjepano.filestore.reactive.service.ReactiveFileService;
+import com.stjepano.filestore.service.BucketDoesNotExistException;
+import com.stjepano.filestore.service.BucketId;
+import com.stjepano.filestore.service.FileAlreadyExistException;
+import com.stjepano.filestore.service.FileDoesNotExistException;
+import com.stjepano.filestore.service.FileId;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.reactivestreams.Publisher;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.reactive.WebFluxTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
+
+/**
+ * Test for {@link FileController}
+ */
+@RunWith(SpringRunner.class)
+@WebFluxTest(FileController.class)
+public class FileControllerTest {
+
+    @Autowired
+    private WebTestClient webTestClient;
+
+    @MockBean
+    private ReactiveFileService fileService;
+
+    @Test
+    public void testListFiles() {
+        doReturn(Flux.just(new FileInfo("fileA.txt", 4, "text/plain", LocalDateTime.of(2017, 10, 1, 12, 0))))
+                .when(fileService).getFiles(eq(BucketId.from("bucket")));
+
+        webTestClient.get().uri("/store/bucket/")
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$[0].name").isEqualTo("fileA.txt")
+                .jsonPath("$[0].size").isEqualTo(4);
+    }
+
+    @Test
+    public void testListFiles_BucketDoesNotExist() {
+        doReturn(Flux.error(new BucketDoesNotExistException(BucketId.from("bucket"))))
+                .when(fileService).getFiles(eq(BucketId.from("bucket")));
+
+        webTestClient.get().uri("/store/bucket/")
+                .exchange()
+                .expectStatus().isNotFound();
+    }
+
+    @Test
+    public void testDownloadFile() {
+        final FileId fileId = FileId.from("bucket", "fileA.txt");
+        doReturn(Mono.just(new FileDownload(new FileInfo("fileA.txt", 4, "text/plain", LocalDateTime.now()),
+                Flux.just(new DefaultDataBufferFactory().wrap("abcd".getBytes(StandardCharsets.US_ASCII))))))
+                .when(fileService).getDownload(eq(fileId));
+
+        webTestClient.get().uri("/store/bucket/fileA.txt")
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().contentLength(4)
+                .expectHeader().contentType(MediaType.TEXT_PLAIN)
+                .expectHeader().valueEquals(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"fileA.txt\"")
+                .expectBody(String.class).isEqualTo("abcd");
+    }
+
+    @Test
+    public void testDownloadCompressedFile() {
+        final FileId fileId = FileId.from("bucket", "fileA.txt");
+        final FileDownload download = compressedDownload();
+        doReturn(Mono.just(download)).when(fileService).getDownload(eq(fileId));
+
+        webTestClient.get().uri("/store/bucket/fileA.txt")
+                .header(HttpHeaders.ACCEPT_ENCODING, "deflate, gzip;q=0.5")
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().contentLength(2)
+                .expectHeader().valueEquals(HttpHeaders.CONTENT_ENCODING, "gzip")
+                .expectHeader().valueEquals(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING)
+                .expectBody(String.class).isEqualTo("xy");
+    }
+
+    @Test
+    public void testDownloadCompressedFile_EncodingNotAccepted() {
+        final FileId fileId = FileId.from("bucket", "fileA.txt");
+        doReturn(Mono.just(compressedDownload())).when(fileService).getDownload(eq(fileId));
+
+        webTestClient.get().uri("/store/bucket/fileA.txt")
+                .header(HttpHeaders.ACCEPT_ENCODING, "gzip;q=0")
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().contentLength(4)
+                .expectHeader().valueEquals(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING)
+                .expectBody(String.class).isEqualTo("abcd")
+                .consumeWith(result -> assertThat(result.getResponseHeaders().getFirst(HttpHeaders.CONTENT_ENCODING)).isNull());
+    }
+
+    /**
+     * Download of a compressed file with 'xy' as stored data, stands in for gzip data.
+     */
+    private static FileDownload compressedDownload() {
+        final DefaultDataBufferFactory dataBufferFactory = new DefaultDataBufferFactory();
+        return new FileDownload(new FileInfo("fileA.txt", 4, "text/plain", LocalDateTime.now()),
+                Flux.defer(() -> Flux.just(dataBufferFactory.wrap("abcd".getBytes(StandardCharsets.US_ASCII)))),
+                "gzip", 2,
+                Flux.defer(() -> Flux.just(dataBufferFactory.wrap("xy".getBytes(StandardCharsets.US_ASCII)))));
+    }
+
+    @Test
+    public void testDownloadFile_FileDoesNotExist() {
+        final FileId fileId = FileId.from("bucket", "fileA.txt");
+        doReturn(Mono.error(new FileDoesNotExistException(fileId)))
+                .when(fileService).getDownload(eq(fileId));
+
+        webTestClient.get().uri("/store/bucket/fileA.txt")
+                .exchange()
+                .expectStatus().isNotFound();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testUploadRawFile() {
+        final ArgumentCaptor<Publisher<DataBuffer>> data = ArgumentCaptor.forClass(Publisher.class);
+        doReturn(Mono.empty())
+                .when(fileService).upload(eq(FileId.from("bucket", "fileA.txt")), data.capture());
+
+        webTestClient.post().uri("/store/bucket/fileA.txt")
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .syncBody("abcd".getBytes(StandardCharsets.US_ASCII))
+                .exchange()
+                .expectStatus().isOk();
+
+        assertThat(Flux.from(data.getValue()).map(DataBuffer::readableByteCount).reduce(0, Integer::sum).block())
+                .isEqualTo(4);
+    }
+
+    @Test
+    public void testUploadRawFile_FileAlreadyExist() {
+        final FileId fileId = FileId.from("bucket", "fileA.txt");
+        doReturn(Mono.error(new FileAlreadyExistException(fileId)))
+                .when(fileService).upload(eq(fileId), any());
+
+        webTestClient.post().uri("/store/bucket/fileA.txt")
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .syncBody("abcd".getBytes(StandardCharsets.US_ASCII))
+                .exchange()
+                .expectStatus().isEqualTo(409);
+    }
+
+    @Test
+    public void testUploadRawFile_InvalidFileName() {
+        webTestClient.post().uri("/store/bucket/.hidden")
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .syncBody("abcd".getBytes(StandardCharsets.US_ASCII))
+                .exchange()
+                .expectStatus().isBadRequest();
+    }
+}
@@ -0,0 +1,249 @@
+package com.stjepano.filestore.reactive.service;
+
+import com.stjepano.filestore.common.FileInfo;
+import com.stjepano.filestore.service.BucketAlreadyExistsException;
+import com.stjepano.filestore.service.BucketDoesNotExistException;
+import com.stjepano.filestore.service.BucketId;
+import com.stjepano.filestore.service.FileAlreadyExistException;
+import com.stjepano.filestore.service.FileDoesNotExistException;
+import com.stjepano.filestore.service.FileId;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Test for {@link AsyncFileChannelFileService}, uses default file system because in memory file systems do not support
+ * asynchronous file channels.
+ */
+public class AsyncFileChannelFileServiceTest {
+
+    private static final DefaultDataBufferFactory DATA_BUFFER_FACTORY = new DefaultDataBufferFactory();
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path contentDir;
+    private AsyncFileChannelFileService fileService;
+
+    @Before
+    public void setUp() throws Exception {
+        contentDir = temporaryFolder.newFolder("content").toPath();
+        Files.createDirectory(contentDir.resolve("bucket1"));
+        Files.createDirectory(contentDir.resolve("bucket2"));
+        Files.write(contentDir.resolve("bucket1").resolve("fileA.txt"), "abcd".getBytes(StandardCharsets.US_ASCII));
+        Files.write(contentDir.resolve("bucket1").resolve("fileB.txt"), "ef".getBytes(StandardCharsets.US_ASCII));
+        fileService = new AsyncFileChannelFileService(contentDir.toString(), FileSystems.getDefault(), DATA_BUFFER_FACTORY, 3);
+    }
+
+    private static Flux<DataBuffer> data(String... chunks) {
+        return Flux.fromArray(chunks)
+                .map(chunk -> DATA_BUFFER_FACTORY.wrap(chunk.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    private static String read(Flux<DataBuffer> buffers) {
+        return buffers
+                .map(buffer -> {
+                    final String chunk = StandardCharsets.US_ASCII.decode(buffer.asByteBuffer()).toString();
+                    DataBufferUtils.release(buffer);
+                    return chunk;
+                })
+                .reduce("", String::concat)
+                .block();
+    }
+
+    private String content(String bucket, String file) throws IOException {
+        return new String(Files.readAllBytes(contentDir.resolve(bucket).resolve(file)), StandardCharsets.US_ASCII);
+    }
+
+    private long tempFiles(String bucket) throws IOException {
+        try (Stream<Path> files = Files.list(contentDir.resolve(bucket))) {
+            return files.filter(p -> p.getFileName().toString().startsWith(".")).count();
+        }
+    }
+
+    @Test
+    public void getBuckets() {
+        StepVerifier.create(fileService.getBuckets())
+                .expectNext("bucket1", "bucket2")
+                .verifyComplete();
+    }
+
+    @Test
+    public void createAndDeleteBucket() {
+        StepVerifier.create(fileService.createBucket(BucketId.from("bucket3"))).verifyComplete();
+        assertThat(contentDir.resolve("bucket3")).isDirectory();
+
+        StepVerifier.create(fileService.createBucket(BucketId.from("bucket3")))
+                .verifyError(BucketAlreadyExistsException.class);
+
+        StepVerifier.create(fileService.deleteBucket(BucketId.from("bucket1"))).verifyComplete();
+        assertThat(contentDir.resolve("bucket1")).doesNotExist();
+
+        StepVerifier.create(fileService.deleteBucket(BucketId.from("bucket1")))
+                .verifyError(BucketDoesNotExistException.class);
+    }
+
+    @Test
+    public void getFiles() {
+        StepVerifier.create(fileService.getFiles(BucketId.from("bucket1")).map(FileInfo::getName))
+                .expectNext("fileA.txt", "fileB.txt")
+                .verifyComplete();
+
+        StepVerifier.create(fileService.getFiles(BucketId.from("missing")))
+                .verifyError(BucketDoesNotExistException.class);
+    }
+
+    @Test
+    public void download() {
+        assertThat(read(fileService.download(FileId.from("bucket1", "fileA.txt")))).isEqualTo("abcd");
+
+        StepVerifier.create(fileService.download(FileId.from("bucket1", "missing.txt")))
+                .verifyError(FileDoesNotExistException.class);
+    }
+
+    @Test
+    public void getDownload() {
+        final FileDownload download = fileService.getDownload(FileId.from("bucket1", "fileA.txt")).block();
+        assertThat(download.getFileInfo().getName()).isEqualTo("fileA.txt");
+        assertThat(download.getFileInfo().getSize()).isEqualTo(4);
+        assertThat(read(download.getData())).isEqualTo("abcd");
+
+        StepVerifier.create(fileService.getDownload(FileId.from("bucket1", "missing.txt")))
+                .verifyError(FileDoesNotExistException.class);
+    }
+
+    @Test
+    public void getDownloadOfCompressedFile() throws Exception {
+        final Path filePath = contentDir.resolve("bucket2").resolve("packed.txt");
+        try (GZIPOutputStream out = new GZIPOutputStream(Files.newOutputStream(filePath))) {
+            out.write("abcdefgh".getBytes(StandardCharsets.US_ASCII));
+        }
+        final UserDefinedFileAttributeView view = Files.getFileAttributeView(filePath, UserDefinedFileAttributeView.class);
+        try {
+            view.write(AsyncFileChannelFileService.ENCODING_ATTRIBUTE, StandardCharsets.US_ASCII.encode("gzip 8"));
+        } catch (IOException | UnsupportedOperationException e) {
+            Assume.assumeNoException("User defined attributes are not supported", e);
+        }
+
+        final FileDownload download = fileService.getDownload(FileId.from("bucket2", "packed.txt")).block();
+        assertThat(download.getFileInfo().getSize()).isEqualTo(8);
+        assertThat(download.getContentEncoding()).isEqualTo("gzip");
+        assertThat(download.getEncodedSize()).isEqualTo(Files.size(filePath));
+        assertThat(read(download.getData())).isEqualTo("abcdefgh");
+        assertThat(read(fileService.download(FileId.from("bucket2", "packed.txt")))).isEqualTo("abcdefgh");
+
+        final byte[] encoded = download.getEncodedData()
+                .reduce(new ByteArrayOutputStream(), (out, buffer) -> {
+                    final byte[] bytes = new byte[buffer.readableByteCount()];
+                    buffer.read(bytes);
+                    DataBufferUtils.release(buffer);
+                    out.write(bytes, 0, bytes.length);
+                    return out;
+                })
+                .map(ByteArrayOutputStream::toByteArray)
+                .block();
+        assertThat(encoded).isEqualTo(Files.readAllBytes(filePath));
+
+        StepVerifier.create(fileService.getFile(FileId.from("bucket2", "packed.txt")).map(FileInfo::getSize))
+                .expectNext(8L)
+                .verifyComplete();
+    }
+
+    @Test
+    public void upload() throws Exception {
+        StepVerifier.create(fileService.upload(FileId.from("bucket2", "new.txt"), data("ab", "cd", "e")))
+                .verifyComplete();
+
+        assertThat(content("bucket2", "new.txt")).isEqualTo("abcde");
+        assertThat(tempFiles("bucket2")).isEqualTo(0);
+
+        StepVerifier.create(fileService.upload(FileId.from("bucket1", "fileA.txt"), data("x")))
+                .verifyError(FileAlreadyExistException.class);
+        assertThat(content("bucket1", "fileA.txt")).isEqualTo("abcd");
+
+        StepVerifier.create(fileService.upload(FileId.from("missing", "new.txt"), data("x")))
+                .verifyError(BucketDoesNotExistException.class);
+    }
+
+    @Test
+    public void overwrite() throws Exception {
+        StepVerifier.create(fileService.overwrite(FileId.from("bucket1", "fileA.txt"), data("xy", "z")))
+                .verifyComplete();
+
+        assertThat(content("bucket1", "fileA.txt")).isEqualTo("xyz");
+        assertThat(tempFiles("bucket1")).isEqualTo(0);
+
+        StepVerifier.create(fileService.overwrite(FileId.from("bucket1", "missing.txt"), data("x")))
+                .verifyError(FileDoesNotExistException.class);
+    }
+
+    @Test
+    public void overwriteDoesNotRecreateDeletedFile() throws Exception {
+        final Path filePath = contentDir.resolve("bucket1").resolve("fileA.txt");
+        final Flux<DataBuffer> deletingData = data("xy").concatWith(Mono.fromRunnable(() -> {
+            try {
+                Files.delete(filePath);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }));
+
+        StepVerifier.create(fileService.overwrite(FileId.from("bucket1", "fileA.txt"), deletingData))
+                .verifyError(FileDoesNotExistException.class);
+        assertThat(filePath).doesNotExist();
+        assertThat(tempFiles("bucket1")).isEqualTo(0);
+    }
+
+    @Test
+    public void failedUploadLeavesNothingBehind() throws Exception {
+        final Flux<DataBuffer> failing = data("ab").concatWith(Flux.error(new IOException("connection reset")));
+
+        StepVerifier.create(fileService.upload(FileId.from("bucket2", "new.txt"), failing))
+                .verifyError(IOException.class);
+        StepVerifier.create(fileService.overwrite(FileId.from("bucket1", "fileA.txt"), failing))
+                .verifyError(IOException.class);
+
+        assertThat(contentDir.resolve("bucket2").resolve("new.txt")).doesNotExist();
+        assertThat(content("bucket1", "fileA.txt")).isEqualTo("abcd");
+        assertThat(tempFiles("bucket1")).isEqualTo(0);
+        assertThat(tempFiles("bucket2")).isEqualTo(0);
+    }
+
+    @Test
+    public void deleteFile() {
+        StepVerifier.create(fileService.deleteFile(FileId.from("bucket1", "fileA.txt"))).verifyComplete();
+        assertThat(contentDir.resolve("bucket1").resolve("fileA.txt")).doesNotExist();
+
+        StepVerifier.create(fileService.deleteFile(FileId.from("bucket1", "fileA.txt")))
+                .verifyError(FileDoesNotExistException.class);
+    }
+
+    @Test
+    public void sweepTempFiles() throws Exception {
+        Files.write(contentDir.resolve("bucket1").resolve(".filestore-upload-1"), new byte[1]);
+
+        assertThat(fileService.sweepTempFiles()).isEqualTo(1);
+        assertThat(tempFiles("bucket1")).isEqualTo(0);
+    }
+}
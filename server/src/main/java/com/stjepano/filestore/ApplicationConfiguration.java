@@ -1,17 +1,41 @@
 package com.stjepano.filestore;
 
+import com.stjepano.filestore.service.ArchiveExport;
+import com.stjepano.filestore.service.ArchiveIngest;
+import com.stjepano.filestore.service.BucketId;
 import com.stjepano.filestore.service.FileService;
+import com.stjepano.filestore.service.filesystem.BucketReaper;
+import com.stjepano.filestore.service.filesystem.ContentAddressedBlobStore;
+import com.stjepano.filestore.service.filesystem.FileInfoCache;
 import com.stjepano.filestore.service.filesystem.FileSystemFileService;
+import com.stjepano.filestore.service.filesystem.FileSystemMetadataIndex;
+import com.stjepano.filestore.service.filesystem.GzipCompression;
+import com.stjepano.filestore.service.filesystem.LayoutMigration;
+import com.stjepano.filestore.service.filesystem.MappedFilePool;
+import com.stjepano.filestore.service.filesystem.MultipartUploads;
+import com.stjepano.filestore.service.filesystem.PackedFileService;
+import com.stjepano.filestore.service.filesystem.ReadCache;
+import com.stjepano.filestore.service.filesystem.SegmentLog;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.core.io.FileSystemResourceLoader;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
 import org.springframework.validation.beanvalidation.MethodValidationPostProcessor;
 
+import java.io.IOException;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
 
 /**
  * Application configuration
@@ -22,9 +46,365 @@ public class ApplicationConfiguration {
     @Value("${filestore.contentDir}")
     private String contentDirStr;
 
+    @Value("${filestore.metadataIndex.watch:true}")
+    private boolean metadataIndexWatch;
+
+    @Value("${filestore.compression.buckets:}")
+    private String[] compressedBuckets;
+
+    @Value("${filestore.compression.mimeTypes:text/*,application/json,application/xml,application/javascript,image/svg+xml}")
+    private String[] compressedMimeTypes;
+
+    /**
+     * Compression is always available so that files compressed while their bucket was compressed are decoded
+     */
     @Bean
-    public FileService fileService() {
+    public GzipCompression compression() {
         FileSystem fileSystem = FileSystems.getDefault();
+        validateContentDir(fileSystem);
+        return new GzipCompression(fileSystem.getPath(contentDirStr), bucketIds(compressedBuckets), Arrays.asList(compressedMimeTypes));
+    }
+
+    @Bean
+    @ConditionalOnProperty(value = "filestore.compression.buckets")
+    public PublicMetrics compressionMetrics(GzipCompression compression) {
+        return () -> Arrays.asList(
+                new Metric<>("filestore.compression.files", compression.getCompressedFiles()),
+                new Metric<>("filestore.compression.decodedBytes", compression.getDecodedBytes()),
+                new Metric<>("filestore.compression.encodedBytes", compression.getEncodedBytes())
+        );
+    }
+
+    @Value("${filestore.fileInfoCache.maxEntries:100000}")
+    private int fileInfoCacheMaxEntries;
+
+    @Bean
+    @ConditionalOnProperty(value = "filestore.fileInfoCache.enabled", matchIfMissing = true)
+    public FileInfoCache fileInfoCache(GzipCompression compression) {
+        FileInfoCache fileInfoCache = new FileInfoCache(fileInfoCacheMaxEntries);
+        fileInfoCache.setCompression(compression);
+        return fileInfoCache;
+    }
+
+    @Bean
+    @ConditionalOnProperty(value = "filestore.fileInfoCache.enabled", matchIfMissing = true)
+    public PublicMetrics fileInfoCacheMetrics(FileInfoCache fileInfoCache) {
+        return () -> Arrays.asList(
+                new Metric<>("filestore.fileInfoCache.mimeType.hits", fileInfoCache.getMimeTypeHits()),
+                new Metric<>("filestore.fileInfoCache.mimeType.misses", fileInfoCache.getMimeTypeMisses()),
+                new Metric<>("filestore.fileInfoCache.attributes.hits", fileInfoCache.getAttributeHits()),
+                new Metric<>("filestore.fileInfoCache.attributes.misses", fileInfoCache.getAttributeMisses()),
+                new Metric<>("filestore.fileInfoCache.attributes.size", fileInfoCache.getAttributeCacheSize())
+        );
+    }
+
+    @Value("${filestore.readCache.capacity:64MB}")
+    private String readCacheCapacity;
+
+    @Value("${filestore.readCache.maxFileSize:256KB}")
+    private String readCacheMaxFileSize;
+
+    @Bean
+    @ConditionalOnProperty(value = "filestore.readCache.enabled")
+    public ReadCache readCache() {
+        return new ReadCache(parseSize(readCacheCapacity), parseSize(readCacheMaxFileSize));
+    }
+
+    @Bean
+    @ConditionalOnProperty(value = "filestore.readCache.enabled")
+    public PublicMetrics readCacheMetrics(ReadCache readCache) {
+        return () -> Arrays.asList(
+                new Metric<>("filestore.readCache.hits", readCache.getHits()),
+                new Metric<>("filestore.readCache.misses", readCache.getMisses()),
+                new Metric<>("filestore.readCache.hitRatio", readCache.getHitRatio()),
+                new Metric<>("filestore.readCache.evictions", readCache.getEvictions()),
+                new Metric<>("filestore.readCache.rejections", readCache.getRejections()),
+                new Metric<>("filestore.readCache.size", readCache.getSize()),
+                new Metric<>("filestore.readCache.entries", readCache.getEntries())
+        );
+    }
+
+    @Value("${filestore.mmap.buckets:}")
+    private String[] mappedBuckets;
+
+    @Value("${filestore.mmap.maxMappings:1024}")
+    private int maxMappings;
+
+    @Value("${filestore.mmap.maxMappedBytes:1GB}")
+    private String maxMappedBytes;
+
+    @Bean
+    @ConditionalOnProperty(value = "filestore.mmap.buckets")
+    public MappedFilePool mappedFilePool() {
+        return new MappedFilePool(maxMappings, parseSize(maxMappedBytes));
+    }
+
+    @Bean
+    @ConditionalOnProperty(value = "filestore.mmap.buckets")
+    public PublicMetrics mappedFilePoolMetrics(MappedFilePool mappedFilePool) {
+        return () -> Arrays.asList(
+                new Metric<>("filestore.mmap.hits", mappedFilePool.getHits()),
+                new Metric<>("filestore.mmap.misses", mappedFilePool.getMisses()),
+                new Metric<>("filestore.mmap.unmaps", mappedFilePool.getUnmaps()),
+                new Metric<>("filestore.mmap.mappings", mappedFilePool.getMappings()),
+                new Metric<>("filestore.mmap.mappedBytes", mappedFilePool.getMappedBytes())
+        );
+    }
+
+    @Value("${filestore.dedup.blobsDir:${filestore.contentDir}/.blobs}")
+    private String blobsDir;
+
+    @Bean
+    @ConditionalOnProperty(value = "filestore.dedup.enabled")
+    public ContentAddressedBlobStore blobStore() {
+        FileSystem fileSystem = FileSystems.getDefault();
+        validateContentDir(fileSystem);
+        ContentAddressedBlobStore blobStore = new ContentAddressedBlobStore(blobsDir, fileSystem);
+        blobStore.load();
+        return blobStore;
+    }
+
+    @Bean
+    @ConditionalOnProperty(value = "filestore.dedup.enabled")
+    public PublicMetrics blobStoreMetrics(ContentAddressedBlobStore blobStore) {
+        return () -> Arrays.asList(
+                new Metric<>("filestore.dedup.blobs", blobStore.getBlobs()),
+                new Metric<>("filestore.dedup.deduplicated", blobStore.getDeduplicated()),
+                new Metric<>("filestore.dedup.deduplicatedBytes", blobStore.getDeduplicatedBytes()),
+                new Metric<>("filestore.dedup.reclaimed", blobStore.getReclaimed())
+        );
+    }
+
+    @Value("${filestore.trash.dir:${filestore.contentDir}/.trash}")
+    private String trashDir;
+
+    @Value("${filestore.trash.parallelism:4}")
+    private int trashParallelism;
+
+    @Value("${filestore.trash.maxDeletesPerSecond:5000}")
+    private int trashMaxDeletesPerSecond;
+
+    @Bean(initMethod = "start", destroyMethod = "stop")
+    @ConditionalOnProperty(value = "filestore.trash.enabled", matchIfMissing = true)
+    public BucketReaper bucketReaper(ObjectProvider<ContentAddressedBlobStore> blobStore) {
+        FileSystem fileSystem = FileSystems.getDefault();
+        validateContentDir(fileSystem);
+        BucketReaper bucketReaper = new BucketReaper(trashDir, fileSystem, trashParallelism, trashMaxDeletesPerSecond);
+        bucketReaper.setBlobStore(blobStore.getIfAvailable());
+        return bucketReaper;
+    }
+
+    @Bean
+    @ConditionalOnProperty(value = "filestore.trash.enabled", matchIfMissing = true)
+    public PublicMetrics bucketReaperMetrics(BucketReaper bucketReaper) {
+        return () -> Arrays.asList(
+                new Metric<>("filestore.trash.pending", bucketReaper.getPending()),
+                new Metric<>("filestore.trash.reaped", bucketReaper.getReaped()),
+                new Metric<>("filestore.trash.deletedFiles", bucketReaper.getDeletedFiles()),
+                new Metric<>("filestore.trash.deletedBytes", bucketReaper.getDeletedBytes()),
+                new Metric<>("filestore.trash.failures", bucketReaper.getFailures())
+        );
+    }
+
+    @Value("${filestore.packed.segmentsDir:${filestore.contentDir}/.segments}")
+    private String segmentsDir;
+
+    @Value("${filestore.packed.maxFileSize:64KB}")
+    private String packedMaxFileSize;
+
+    @Value("${filestore.packed.segmentSize:64MB}")
+    private String segmentSize;
+
+    @Value("${filestore.packed.compactionInterval:60000}")
+    private long compactionInterval;
+
+    @Value("${filestore.packed.compactionThreshold:0.5}")
+    private double compactionThreshold;
+
+    @Bean(destroyMethod = "close")
+    @ConditionalOnProperty(value = "filestore.packed.enabled")
+    public SegmentLog segmentLog() throws IOException {
+        FileSystem fileSystem = FileSystems.getDefault();
+        validateContentDir(fileSystem);
+        SegmentLog segmentLog = new SegmentLog(segmentsDir, fileSystem, parseSize(segmentSize));
+        segmentLog.open();
+        segmentLog.startCompaction(compactionInterval, compactionThreshold);
+        return segmentLog;
+    }
+
+    @Bean
+    @ConditionalOnProperty(value = "filestore.packed.enabled")
+    public PublicMetrics segmentLogMetrics(SegmentLog segmentLog) {
+        return () -> Arrays.asList(
+                new Metric<>("filestore.packed.segments", segmentLog.getSegments()),
+                new Metric<>("filestore.packed.files", segmentLog.getFiles()),
+                new Metric<>("filestore.packed.liveBytes", segmentLog.getLiveBytes()),
+                new Metric<>("filestore.packed.totalBytes", segmentLog.getTotalBytes()),
+                new Metric<>("filestore.packed.compactions", segmentLog.getCompactions()),
+                new Metric<>("filestore.packed.reclaimedBytes", segmentLog.getReclaimedBytes())
+        );
+    }
+
+    @Bean
+    @ConditionalOnProperty(value = "filestore.async.enabled", havingValue = "true")
+    public PublicMetrics ioTaskExecutorMetrics(IoTaskExecutor ioTaskExecutor) {
+        return () -> Arrays.asList(
+                new Metric<>("filestore.async.threads", ioTaskExecutor.getPoolSize()),
+                new Metric<>("filestore.async.active", ioTaskExecutor.getActiveCount()),
+                new Metric<>("filestore.async.queued", ioTaskExecutor.getQueueSize()),
+                new Metric<>("filestore.async.saturation", (double) ioTaskExecutor.getActiveCount() / ioTaskExecutor.getMaxPoolSize()),
+                new Metric<>("filestore.async.rejected", ioTaskExecutor.getRejected())
+        );
+    }
+
+    @Bean
+    public PublicMetrics batchExecutorMetrics(BatchExecutor batchExecutor) {
+        return () -> Arrays.asList(
+                new Metric<>("filestore.batch.active", batchExecutor.getActiveCount()),
+                new Metric<>("filestore.batch.queued", batchExecutor.getQueueSize())
+        );
+    }
+
+    @Bean(initMethod = "start", destroyMethod = "stop")
+    @ConditionalOnProperty(value = "filestore.metadataIndex.enabled", matchIfMissing = true)
+    public FileSystemMetadataIndex metadataIndex(ObjectProvider<FileInfoCache> fileInfoCache,
+                                                 ObjectProvider<ReadCache> readCache,
+                                                 ObjectProvider<MappedFilePool> mappedFilePool,
+                                                 GzipCompression compression) {
+        FileSystem fileSystem = FileSystems.getDefault();
+        validateContentDir(fileSystem);
+        FileSystemMetadataIndex metadataIndex = new FileSystemMetadataIndex(contentDirStr, fileSystem, metadataIndexWatch);
+        metadataIndex.setFileInfoCache(fileInfoCache.getIfAvailable());
+        metadataIndex.setCompression(compression);
+        final ReadCache cache = readCache.getIfAvailable();
+        if (cache != null) {
+            metadataIndex.addFileChangeListener(cache::invalidate);
+        }
+        final MappedFilePool pool = mappedFilePool.getIfAvailable();
+        if (pool != null) {
+            metadataIndex.addFileChangeListener(pool::invalidate);
+        }
+        return metadataIndex;
+    }
+
+    @Value("${filestore.contentHash.enabled:false}")
+    private boolean contentHashing;
+
+    @Value("${filestore.sharding.enabled:false}")
+    private boolean sharded;
+
+    @Value("${filestore.sharding.migrate:false}")
+    private boolean migrateLayout;
+
+    @Bean
+    public FileService fileService(ObjectProvider<FileSystemMetadataIndex> metadataIndex,
+                                   ObjectProvider<FileInfoCache> fileInfoCache,
+                                   ObjectProvider<ReadCache> readCache,
+                                   ObjectProvider<MappedFilePool> mappedFilePool,
+                                   ObjectProvider<ContentAddressedBlobStore> blobStore,
+                                   ObjectProvider<SegmentLog> segmentLog,
+                                   ObjectProvider<BucketReaper> bucketReaper,
+                                   GzipCompression compression) {
+        FileSystem fileSystem = FileSystems.getDefault();
+        validateContentDir(fileSystem);
+
+        FileSystemFileService fileService = new FileSystemFileService(contentDirStr,
+                fileSystem,
+                new AbsolutePathResourceLoader()
+        );
+        fileService.setMetadataIndex(metadataIndex.getIfAvailable());
+        fileService.setFileInfoCache(fileInfoCache.getIfAvailable());
+        fileService.setReadCache(readCache.getIfAvailable());
+        fileService.setMappedFilePool(mappedFilePool.getIfAvailable(), bucketIds(mappedBuckets));
+        fileService.setBlobStore(blobStore.getIfAvailable());
+        fileService.setBucketReaper(bucketReaper.getIfAvailable());
+        fileService.setCompression(compression);
+        fileService.setContentHashing(contentHashing);
+        fileService.setSharded(sharded);
+        fileService.sweepTempFiles();
+        if (migrateLayout) {
+            new LayoutMigration(fileService).start();
+        }
+
+        final SegmentLog log = segmentLog.getIfAvailable();
+        if (log != null) {
+            return new PackedFileService(fileService, log, (int) parseSize(packedMaxFileSize));
+        }
+        return fileService;
+    }
+
+    @Value("${filestore.batch.parallelism:16}")
+    private int batchParallelism;
+
+    @Value("${filestore.extract.bufferedEntrySize:1MB}")
+    private String extractBufferedEntrySize;
+
+    @Bean
+    public ArchiveIngest archiveIngest(FileService fileService, BatchExecutor batchExecutor) {
+        return new ArchiveIngest(fileService, batchExecutor, batchParallelism, (int) parseSize(extractBufferedEntrySize));
+    }
+
+    @Value("${filestore.archive.storedMimeTypes:image/jpeg,image/png,image/gif,image/webp,audio/*,video/*,application/zip,application/gzip,application/x-gzip,application/x-bzip2,application/x-xz,application/x-7z-compressed}")
+    private String[] archiveStoredMimeTypes;
+
+    @Bean
+    public ArchiveExport archiveExport(FileService fileService) {
+        return new ArchiveExport(fileService, Arrays.asList(archiveStoredMimeTypes));
+    }
+
+    @Value("${filestore.multipart.minPartSize:5MB}")
+    private String multipartMinPartSize;
+
+    @Value("${filestore.multipart.maxParts:10000}")
+    private int multipartMaxParts;
+
+    @Value("${filestore.multipart.expiration:86400000}")
+    private long multipartExpiration;
+
+    @Value("${filestore.multipart.cleanupInterval:3600000}")
+    private long multipartCleanupInterval;
+
+    @Bean(destroyMethod = "stop")
+    public MultipartUploads multipartUploads(FileService fileService) {
+        MultipartUploads multipartUploads = new MultipartUploads(fileService, parseSize(multipartMinPartSize), multipartMaxParts);
+        multipartUploads.startCleanup(multipartCleanupInterval, multipartExpiration);
+        return multipartUploads;
+    }
+
+    @Bean
+    public PublicMetrics multipartUploadMetrics(MultipartUploads multipartUploads) {
+        return () -> Arrays.asList(
+                new Metric<>("filestore.multipart.initiated", multipartUploads.getInitiated()),
+                new Metric<>("filestore.multipart.uploadedParts", multipartUploads.getUploadedParts()),
+                new Metric<>("filestore.multipart.uploadedBytes", multipartUploads.getUploadedBytes()),
+                new Metric<>("filestore.multipart.completed", multipartUploads.getCompleted()),
+                new Metric<>("filestore.multipart.aborted", multipartUploads.getAborted()),
+                new Metric<>("filestore.multipart.expired", multipartUploads.getExpired())
+        );
+    }
+
+    private static List<BucketId> bucketIds(String[] buckets) {
+        return Arrays.stream(buckets).map(String::trim).filter(s -> !s.isEmpty()).map(BucketId::from).collect(Collectors.toList());
+    }
+
+    /**
+     * Parse size such as 64MB, 512KB or 1024 (bytes)
+     */
+    private static long parseSize(String size) {
+        final String value = size.trim().toUpperCase();
+        if (value.endsWith("GB")) {
+            return Long.parseLong(value.substring(0, value.length() - 2).trim()) * 1024 * 1024 * 1024;
+        }
+        if (value.endsWith("MB")) {
+            return Long.parseLong(value.substring(0, value.length() - 2).trim()) * 1024 * 1024;
+        }
+        if (value.endsWith("KB")) {
+            return Long.parseLong(value.substring(0, value.length() - 2).trim()) * 1024;
+        }
+        return Long.parseLong(value);
+    }
+
+    private void validateContentDir(FileSystem fileSystem) {
         Path contentDir = fileSystem.getPath(contentDirStr);
 
         if (!Files.exists(contentDir) || !Files.isDirectory(contentDir)) {
@@ -34,15 +414,23 @@ public class ApplicationConfiguration {
         if (!Files.isReadable(contentDir) || !Files.isWritable(contentDir)) {
             throw new RuntimeException("Configured content directory '" + contentDir.toString() + "' is not readable and/or writable by application!");
         }
-
-        return new FileSystemFileService(contentDirStr,
-                fileSystem,
-                new FileSystemResourceLoader()
-        );
     }
 
     @Bean
     public MethodValidationPostProcessor methodValidationPostProcessor() {
         return new MethodValidationPostProcessor();
     }
+
+    /**
+     * Resource loader which resolves plain paths as file system paths.
+     *
+     * {@link org.springframework.core.io.FileSystemResourceLoader} resolves all plain paths relative to the working
+     * directory (even absolute ones) which does not work with absolute file paths used by file service.
+     */
+    private static class AbsolutePathResourceLoader extends DefaultResourceLoader {
+        @Override
+        protected Resource getResourceByPath(String path) {
+            return new FileSystemResource(path);
+        }
+    }
 }
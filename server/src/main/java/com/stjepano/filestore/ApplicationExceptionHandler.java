@@ -5,15 +5,21 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.stjepano.filestore.common.ErrorResponse;
 import com.stjepano.filestore.service.BucketAlreadyExistsException;
 import com.stjepano.filestore.service.BucketDoesNotExistException;
+import com.stjepano.filestore.service.ContentDigestMismatchException;
 import com.stjepano.filestore.service.FileAlreadyExistException;
 import com.stjepano.filestore.service.FileDoesNotExistException;
+import com.stjepano.filestore.service.InvalidBatchException;
 import com.stjepano.filestore.service.InvalidBucketIdException;
+import com.stjepano.filestore.service.InvalidDigestException;
 import com.stjepano.filestore.service.InvalidFileIdException;
+import com.stjepano.filestore.service.InvalidUploadException;
+import com.stjepano.filestore.service.UploadDoesNotExistException;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.core.task.TaskRejectedException;
 import org.springframework.web.bind.annotation.ControllerAdvice;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.context.request.WebRequest;
@@ -28,7 +34,8 @@ public class ApplicationExceptionHandler extends ResponseEntityExceptionHandler
     @Autowired
     private ObjectMapper objectMapper;
 
-    @ExceptionHandler(value = {BucketDoesNotExistException.class, FileDoesNotExistException.class})
+    @ExceptionHandler(value = {BucketDoesNotExistException.class, FileDoesNotExistException.class,
+            UploadDoesNotExistException.class})
     protected ResponseEntity<Object> handleDoesNotExistException(Exception ex, WebRequest request) {
         ErrorResponse errorResponse = new ErrorResponse(ex.getMessage());
         String bodyOfResponse = null;
@@ -66,7 +73,9 @@ public class ApplicationExceptionHandler extends ResponseEntityExceptionHandler
         );
     }
 
-    @ExceptionHandler(value = {InvalidBucketIdException.class, InvalidFileIdException.class})
+    @ExceptionHandler(value = {InvalidBucketIdException.class, InvalidFileIdException.class,
+            InvalidDigestException.class, ContentDigestMismatchException.class, InvalidBatchException.class,
+            InvalidUploadException.class})
     protected ResponseEntity<Object> handleInvalidNames(Exception ex, WebRequest request) {
         ErrorResponse errorResponse = new ErrorResponse(ex.getMessage());
         String bodyOfResponse = null;
@@ -85,6 +94,25 @@ public class ApplicationExceptionHandler extends ResponseEntityExceptionHandler
         );
     }
 
+    @ExceptionHandler(value = {TaskRejectedException.class})
+    protected ResponseEntity<Object> handleTaskRejected(Exception ex, WebRequest request) {
+        ErrorResponse errorResponse = new ErrorResponse("Server is busy, try again later");
+        String bodyOfResponse = null;
+        try {
+            bodyOfResponse = objectMapper.writeValueAsString(errorResponse);
+        } catch (JsonProcessingException e) {
+            bodyOfResponse = "";
+        }
+        HttpHeaders httpHeaders = new HttpHeaders();
+        httpHeaders.setContentType(MediaType.APPLICATION_JSON);
+        return handleExceptionInternal(ex,
+                bodyOfResponse,
+                httpHeaders,
+                HttpStatus.SERVICE_UNAVAILABLE,
+                request
+        );
+    }
+
     @ExceptionHandler(value = {Exception.class})
     protected ResponseEntity<Object> handleGenericException(Exception ex, WebRequest request) {
         ErrorResponse errorResponse = new ErrorResponse(ex.getMessage());
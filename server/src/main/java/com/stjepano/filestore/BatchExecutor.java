@@ -0,0 +1,29 @@
+package com.stjepano.filestore;
+
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+/**
+ * Executor of operations of batch requests, shared by all batch requests.
+ *
+ * The queue is not bounded, each batch request keeps only a limited number of its operations in it at a time.
+ */
+public class BatchExecutor extends ThreadPoolTaskExecutor {
+
+    /**
+     * Initialize {@link BatchExecutor}.
+     * @param threads number of threads
+     */
+    public BatchExecutor(int threads) {
+        setCorePoolSize(threads);
+        setMaxPoolSize(threads);
+        setThreadNamePrefix("filestore-batch-");
+        setDaemon(true);
+    }
+
+    /**
+     * Number of operations waiting for a thread
+     */
+    public int getQueueSize() {
+        return getThreadPoolExecutor().getQueue().size();
+    }
+}
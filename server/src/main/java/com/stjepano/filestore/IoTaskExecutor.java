@@ -0,0 +1,50 @@
+package com.stjepano.filestore;
+
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded executor for asynchronous requests, file data of downloads and uploads is transferred on its threads.
+ *
+ * Tasks which do not fit into the queue are rejected (and counted) so that a burst of slow transfers can not pile up
+ * without a limit.
+ */
+public class IoTaskExecutor extends ThreadPoolTaskExecutor {
+
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * Initialize {@link IoTaskExecutor}.
+     * @param threads number of threads
+     * @param queueCapacity maximal number of tasks waiting for a thread
+     */
+    public IoTaskExecutor(int threads, int queueCapacity) {
+        setCorePoolSize(threads);
+        setMaxPoolSize(threads);
+        setQueueCapacity(queueCapacity);
+        setThreadNamePrefix("filestore-io-");
+        setDaemon(true);
+        final RejectedExecutionHandler abortPolicy = new ThreadPoolExecutor.AbortPolicy();
+        setRejectedExecutionHandler((task, executor) -> {
+            rejected.increment();
+            abortPolicy.rejectedExecution(task, executor);
+        });
+    }
+
+    /**
+     * Number of tasks waiting for a thread
+     */
+    public int getQueueSize() {
+        return getThreadPoolExecutor().getQueue().size();
+    }
+
+    /**
+     * Number of tasks rejected because executor was saturated
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+}
@@ -0,0 +1,89 @@
+package com.stjepano.filestore;
+
+import com.stjepano.filestore.controller.CacheControlPolicy;
+import com.stjepano.filestore.controller.ZeroCopyResourceHttpMessageConverter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.converter.ResourceHttpMessageConverter;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
+
+import java.util.List;
+
+/**
+ * Spring MVC configuration
+ */
+@Configuration
+public class WebConfiguration extends WebMvcConfigurerAdapter {
+
+    @Value("${filestore.download.zeroCopy:true}")
+    private boolean zeroCopyDownloads;
+
+    @Value("${filestore.download.sendfile:false}")
+    private boolean sendfileDownloads;
+
+    @Value("${filestore.cacheControl.default:}")
+    private String defaultCacheControl;
+
+    @Value("${filestore.async.enabled:false}")
+    private boolean asyncEnabled;
+
+    @Value("${filestore.async.threads:200}")
+    private int asyncThreads;
+
+    @Value("${filestore.async.queueCapacity:1000}")
+    private int asyncQueueCapacity;
+
+    @Value("${filestore.async.timeoutMillis:3600000}")
+    private long asyncTimeoutMillis;
+
+    @Value("${filestore.batch.threads:32}")
+    private int batchThreads;
+
+    @Bean
+    public CacheControlPolicy cacheControlPolicy(Environment environment) {
+        return new CacheControlPolicy(environment, defaultCacheControl);
+    }
+
+    @Bean
+    @ConditionalOnProperty(value = "filestore.async.enabled", havingValue = "true")
+    public IoTaskExecutor ioTaskExecutor() {
+        return new IoTaskExecutor(asyncThreads, asyncQueueCapacity);
+    }
+
+    @Bean
+    public BatchExecutor batchExecutor() {
+        return new BatchExecutor(batchThreads);
+    }
+
+    @Override
+    public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+        if (asyncEnabled) {
+            configurer.setTaskExecutor(ioTaskExecutor());
+            configurer.setDefaultTimeout(asyncTimeoutMillis);
+        }
+    }
+
+    @Override
+    public void extendMessageConverters(List<HttpMessageConverter<?>> converters) {
+        if (zeroCopyDownloads) {
+            replaceConverter(converters, ResourceHttpMessageConverter.class, new ZeroCopyResourceHttpMessageConverter(sendfileDownloads));
+        }
+    }
+
+    private static void replaceConverter(List<HttpMessageConverter<?>> converters,
+                                         Class<?> converterClass,
+                                         HttpMessageConverter<?> replacement) {
+        for (int i = 0; i < converters.size(); i++) {
+            if (converters.get(i).getClass() == converterClass) {
+                converters.set(i, replacement);
+                return;
+            }
+        }
+        converters.add(0, replacement);
+    }
+}
@@ -0,0 +1,359 @@
+package com.stjepano.filestore.controller;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.stjepano.filestore.service.BucketId;
+import com.stjepano.filestore.service.CompressedResource;
+import com.stjepano.filestore.service.ExpectedDigests;
+import com.stjepano.filestore.service.FileDoesNotExistException;
+import com.stjepano.filestore.service.FileId;
+import com.stjepano.filestore.common.FileInfo;
+import com.stjepano.filestore.common.FilePage;
+import com.stjepano.filestore.service.ObjectStoreException;
+import com.stjepano.filestore.service.FileService;
+import com.stjepano.filestore.service.filesystem.FileChannelResource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.multipart.MultipartHttpServletRequest;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.NoSuchFileException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Listing and deleting of files, shared by {@link FileController} and {@link AsyncFileController} which differ only in
+ * the way file data is transferred.
+ */
+public abstract class AbstractFileController {
+
+    /**
+     * Maximal number of files returned in one page of a paginated listing
+     */
+    static final int MAX_PAGE_SIZE = 1000;
+
+    private static final String GZIP = "gzip";
+
+    @Autowired
+    protected FileService fileService;
+
+    @Autowired
+    private CacheControlPolicy cacheControlPolicy;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    /**
+     * List files, a listing has a weak entity tag computed from file info so that unchanged listings are answered
+     * with 304 (the streamed listing has none as it is written while the bucket is read).
+     */
+    @GetMapping("/")
+    public ResponseEntity<List<FileInfo>> listFiles(@PathVariable("bucket") String bucket) throws ObjectStoreException {
+        final List<FileInfo> files = fileService.getFiles(BucketId.from(bucket));
+        return ResponseEntity.ok().eTag(EntityTags.of(files)).body(files);
+    }
+
+    @GetMapping(value = "/", params = "stream=true")
+    public void listFilesStream(@PathVariable("bucket") String bucket,
+                                HttpServletResponse response)
+            throws ObjectStoreException, IOException {
+        try (Stream<FileInfo> files = fileService.streamFiles(BucketId.from(bucket))) {
+            response.setContentType(MediaType.APPLICATION_JSON_UTF8_VALUE);
+            try (JsonGenerator generator = objectMapper.getFactory().createGenerator(response.getOutputStream())) {
+                generator.writeStartArray();
+                final Iterator<FileInfo> iterator = files.iterator();
+                while (iterator.hasNext()) {
+                    generator.writeObject(iterator.next());
+                }
+                generator.writeEndArray();
+            }
+        }
+    }
+
+    @GetMapping(value = "/", params = "limit")
+    public ResponseEntity<FilePage> listFilesPage(@PathVariable("bucket") String bucket,
+                                  @RequestParam("limit") int limit,
+                                  @RequestParam(value = "startAfter", required = false) String startAfter,
+                                  @RequestParam(value = "prefix", required = false) String prefix)
+            throws ObjectStoreException {
+        final int pageSize = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+        final FilePage page = fileService.getFiles(BucketId.from(bucket), prefix, startAfter, pageSize);
+        return ResponseEntity.ok().eTag(EntityTags.of(page)).body(page);
+    }
+
+    @DeleteMapping("/{filename:.+}")
+    public void deleteFile(@PathVariable("bucket") String bucket,
+                           @PathVariable("filename") String filename)
+            throws ObjectStoreException {
+        fileService.deleteFile(FileId.from(bucket, filename));
+    }
+
+    /**
+     * Upload a file, its data is verified if the client supplied digests of it ({@link ContentDigests}).
+     */
+    protected void upload(FileId fileId, InputStream dataStream, ExpectedDigests expectedDigests) throws ObjectStoreException {
+        if (expectedDigests.isEmpty()) {
+            fileService.upload(fileId, dataStream);
+        } else {
+            fileService.upload(fileId, dataStream, expectedDigests);
+        }
+    }
+
+    /**
+     * Overwrite a file, its data is verified if the client supplied digests of it ({@link ContentDigests}).
+     */
+    protected void overwrite(FileId fileId, InputStream dataStream, ExpectedDigests expectedDigests) throws ObjectStoreException {
+        if (expectedDigests.isEmpty()) {
+            fileService.overwrite(fileId, dataStream);
+        } else {
+            fileService.overwrite(fileId, dataStream, expectedDigests);
+        }
+    }
+
+    /**
+     * Send stored digests of an uploaded file if the client asked for them with Want-Digest header.
+     */
+    protected void sendWantedDigests(FileId fileId, HttpServletRequest request, HttpServletResponse response) throws ObjectStoreException {
+        final String wantDigest = request.getHeader(ContentDigests.WANT_DIGEST);
+        if (wantDigest != null) {
+            final String digest = ContentDigests.wanted(wantDigest, fileService.getFileInfo(fileId));
+            if (digest != null) {
+                response.setHeader(ContentDigests.DIGEST, digest);
+            }
+        }
+    }
+
+    /**
+     * Get headers of a part of a multipart request, digests of an uploaded file are sent with its part.
+     */
+    protected static HttpHeaders partHeaders(MultipartHttpServletRequest request, String name) {
+        final HttpHeaders headers = request.getMultipartHeaders(name);
+        return headers != null ? headers : new HttpHeaders();
+    }
+
+    /**
+     * Get a file to download together with status and headers of the response, the body is either the file or a
+     * {@link ByteRangeResource} of the file (or none if requested ranges are not satisfiable or file was not modified).
+     *
+     * Stored bytes of a {@link CompressedResource} are sent with Content-Encoding header if the client accepts the
+     * encoding, otherwise the file is decoded while it is sent. Ranges apply to the representation which is sent.
+     *
+     * Conditional requests (If-None-Match, If-Modified-Since) are answered from file info, so a 304 response does not
+     * read the file.
+     */
+    protected ResponseEntity<Resource> download(String bucket,
+                                                String filename,
+                                                boolean asAttachment,
+                                                HttpHeaders requestHeaders)
+            throws ObjectStoreException, IOException {
+        final FileId fileId = FileId.from(bucket, filename);
+        final FileInfo fileInfo = fileService.getFileInfo(fileId);
+        final String cacheControl = cacheControlPolicy.forBucket(fileId.getBucketId());
+        final boolean acceptsGzip = acceptsEncoding(requestHeaders.getFirst(HttpHeaders.ACCEPT_ENCODING), GZIP);
+        String entityTag = EntityTags.of(fileInfo);
+        final long lastModified = EntityTags.lastModified(fileInfo);
+
+        final String ifNoneMatch = requestHeaders.getFirst(HttpHeaders.IF_NONE_MATCH);
+        final String matchingTag = (ifNoneMatch != null) ? matchingTag(ifNoneMatch, entityTag, acceptsGzip) : null;
+        if (matchingTag != null || (ifNoneMatch == null && notModifiedSince(requestHeaders, lastModified))) {
+            final ResponseEntity.BodyBuilder notModified = ResponseEntity.status(HttpStatus.NOT_MODIFIED);
+            validators(notModified, matchingTag != null ? matchingTag : entityTag, lastModified, cacheControl);
+            if (matchingTag != null && !matchingTag.equals(entityTag)) {
+                notModified.header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+            }
+            return notModified.build();
+        }
+
+        Resource file = fileService.download(fileId);
+
+        String contentEncoding = null;
+        final boolean compressed = file instanceof CompressedResource;
+        if (compressed && acceptsEncoding(requestHeaders.getFirst(HttpHeaders.ACCEPT_ENCODING),
+                ((CompressedResource) file).getContentEncoding())) {
+            contentEncoding = ((CompressedResource) file).getContentEncoding();
+            file = ((CompressedResource) file).getEncodedResource();
+            if (entityTag != null) {
+                entityTag = EntityTags.encoded(entityTag, contentEncoding);
+            }
+        }
+        file = open(fileId, file);
+
+        final List<HttpRange> ranges = requestedRanges(requestHeaders, file, entityTag);
+        Resource body = file;
+        ResponseEntity.BodyBuilder bodyBuilder = ResponseEntity.ok();
+        if (!ranges.isEmpty()) {
+            ByteRangeResource byteRanges = ByteRangeResource.create(file, ranges);
+            if (byteRanges == null) {
+                if (file instanceof Closeable) {
+                    ((Closeable) file).close();
+                }
+                ResponseEntity.BodyBuilder notSatisfiable = ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+                        .header(HttpHeaders.CONTENT_RANGE, "bytes */" + file.contentLength());
+                if (compressed) {
+                    notSatisfiable.header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+                }
+                return notSatisfiable.build();
+            }
+            body = byteRanges;
+            bodyBuilder = ResponseEntity.status(HttpStatus.PARTIAL_CONTENT)
+                    .contentType(byteRanges.getMediaType());
+            if (!byteRanges.isMultipart()) {
+                bodyBuilder.header(HttpHeaders.CONTENT_RANGE, byteRanges.getContentRange());
+            }
+        }
+
+        bodyBuilder.header(HttpHeaders.ACCEPT_RANGES, "bytes");
+        validators(bodyBuilder, entityTag, lastModified, cacheControl);
+        if (compressed) {
+            bodyBuilder.header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        }
+        if (contentEncoding != null) {
+            bodyBuilder.header(HttpHeaders.CONTENT_ENCODING, contentEncoding);
+        }
+        if (asAttachment) {
+            bodyBuilder.header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + file.getFilename() + "\"");
+        }
+        return bodyBuilder.body(body);
+    }
+
+    /**
+     * Open a resource backed by a file, so that ranges, Content-Length and sent data all come from the file as it was
+     * opened even if it is overwritten or deleted before the response is written.
+     */
+    private static Resource open(FileId fileId, Resource resource) throws FileDoesNotExistException, IOException {
+        final File file = ZeroCopyResourceHttpMessageConverter.fileOf(resource);
+        if (file == null) {
+            return resource;
+        }
+        try {
+            return FileChannelResource.open(file);
+        } catch (NoSuchFileException e) {
+            throw new FileDoesNotExistException(fileId);
+        }
+    }
+
+    private static void validators(ResponseEntity.BodyBuilder builder, String entityTag, long lastModified, String cacheControl) {
+        if (entityTag != null) {
+            builder.eTag(entityTag);
+        }
+        if (lastModified >= 0) {
+            builder.lastModified(lastModified);
+        }
+        if (cacheControl != null) {
+            builder.header(HttpHeaders.CACHE_CONTROL, cacheControl);
+        }
+    }
+
+    /**
+     * Get the tag matched by If-None-Match header, which is either the tag of the file or, if client accepts gzip, the
+     * tag of its gzip encoded representation (a client which cached either representation can keep using it).
+     * @return the matching tag or null if none matches
+     */
+    private static String matchingTag(String ifNoneMatch, String entityTag, boolean acceptsGzip) {
+        if (entityTag == null) {
+            return null;
+        }
+        if (EntityTags.matchesAny(ifNoneMatch, entityTag)) {
+            return entityTag;
+        }
+        final String encodedTag = EntityTags.encoded(entityTag, GZIP);
+        return (acceptsGzip && EntityTags.matchesAny(ifNoneMatch, encodedTag)) ? encodedTag : null;
+    }
+
+    private static boolean notModifiedSince(HttpHeaders requestHeaders, long lastModified) {
+        if (lastModified < 0 || requestHeaders.getFirst(HttpHeaders.IF_MODIFIED_SINCE) == null) {
+            return false;
+        }
+        try {
+            final long ifModifiedSince = requestHeaders.getIfModifiedSince();
+            // http dates have a precision of a second
+            return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * True if Accept-Encoding header accepts given content encoding, a missing header accepts only identity.
+     */
+    static boolean acceptsEncoding(String acceptEncoding, String contentEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        boolean acceptedByWildcard = false;
+        for (String element : acceptEncoding.split(",")) {
+            final String[] parts = element.split(";");
+            final String coding = parts[0].trim();
+            boolean acceptable = true;
+            for (int i = 1; i < parts.length; i++) {
+                final String parameter = parts[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        acceptable = Double.parseDouble(parameter.substring(2).trim()) > 0;
+                    } catch (NumberFormatException e) {
+                        acceptable = false;
+                    }
+                }
+            }
+            if (coding.equalsIgnoreCase(contentEncoding) || coding.equalsIgnoreCase("x-" + contentEncoding)) {
+                return acceptable;
+            }
+            if (coding.equals("*")) {
+                acceptedByWildcard = acceptable;
+            }
+        }
+        return acceptedByWildcard;
+    }
+
+    /**
+     * Get ranges requested with Range header, empty list if whole file should be sent.
+     *
+     * Ranges are ignored if header is malformed or if If-Range condition does not match.
+     */
+    private static List<HttpRange> requestedRanges(HttpHeaders requestHeaders, Resource file, String entityTag) throws IOException {
+        final String rangeHeader = requestHeaders.getFirst(HttpHeaders.RANGE);
+        if (rangeHeader == null || !ifRangeMatches(requestHeaders.getFirst(HttpHeaders.IF_RANGE), file, entityTag)) {
+            return Collections.emptyList();
+        }
+        try {
+            return HttpRange.parseRanges(rangeHeader);
+        } catch (IllegalArgumentException e) {
+            return Collections.emptyList();
+        }
+    }
+
+    private static boolean ifRangeMatches(String ifRange, Resource file, String entityTag) throws IOException {
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            // If-Range requires strong comparison, weak tags never match
+            return entityTag != null && !entityTag.startsWith("W/") && ifRange.equals(entityTag);
+        }
+        HttpHeaders ifRangeHeaders = new HttpHeaders();
+        ifRangeHeaders.set(HttpHeaders.IF_RANGE, ifRange);
+        try {
+            final long date = ifRangeHeaders.getFirstDate(HttpHeaders.IF_RANGE);
+            // http dates have a precision of a second
+            return file.lastModified() / 1000 <= date / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package com.stjepano.filestore.controller;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.stjepano.filestore.common.BatchResult;
+import com.stjepano.filestore.service.ArchiveExport;
+import com.stjepano.filestore.service.ArchiveIngest;
+import com.stjepano.filestore.service.BucketId;
+import com.stjepano.filestore.service.InvalidBatchException;
+import com.stjepano.filestore.service.ObjectStoreException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Extraction of uploaded tar and zip archives into a bucket and download of files of a bucket as an archive.
+ *
+ * Files are extracted by {@link ArchiveIngest} while the request body is read and their results are streamed back as a
+ * JSON array, like results of a batch request. Gzip compressed tar archives are sent as application/gzip or as
+ * application/x-tar with Content-Encoding gzip.
+ *
+ * Downloaded archives are written by {@link ArchiveExport} while files are read. An error after the archive was partly
+ * sent can not change the response status anymore, the archive is left incomplete then so that the client does not
+ * take it for a complete one.
+ */
+@RestController
+@RequestMapping("/store/{bucket}")
+public class ArchiveController {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ArchiveController.class);
+
+    static final String TAR = "application/x-tar";
+    static final String GZIP = "application/gzip";
+    static final String X_GZIP = "application/x-gzip";
+    static final String ZIP = "application/zip";
+
+    /**
+     * Operation of the result reported when archive can not be read to the end
+     */
+    static final String EXTRACT = "extract";
+
+    private static final int GZIP_BUFFER_SIZE = 65536;
+    private static final int ARCHIVE_BUFFER_SIZE = 65536;
+
+    @Autowired
+    private ArchiveIngest archiveIngest;
+
+    @Autowired
+    private ArchiveExport archiveExport;
+
+    @Value("${filestore.batch.maxOperations:10000}")
+    private int maxFiles;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @PostMapping(value = "/", params = "extract=true", consumes = {TAR, GZIP, X_GZIP, ZIP})
+    public void extract(@PathVariable("bucket") String bucket,
+                        @RequestParam(value = "conflict", defaultValue = "fail") String conflict,
+                        @RequestParam(value = "strip", defaultValue = "0") int stripComponents,
+                        @RequestHeader HttpHeaders requestHeaders,
+                        HttpServletRequest request,
+                        HttpServletResponse response)
+            throws ObjectStoreException, IOException {
+        final BucketId bucketId = BucketId.from(bucket);
+        final ArchiveIngest.ConflictPolicy policy = ArchiveIngest.ConflictPolicy.from(conflict);
+        final MediaType contentType = requestHeaders.getContentType();
+        final ArchiveIngest.Format format = MediaType.valueOf(ZIP).includes(contentType)
+                ? ArchiveIngest.Format.ZIP
+                : ArchiveIngest.Format.TAR;
+        final boolean gzip = MediaType.valueOf(GZIP).includes(contentType) || MediaType.valueOf(X_GZIP).includes(contentType)
+                || "gzip".equalsIgnoreCase(requestHeaders.getFirst(HttpHeaders.CONTENT_ENCODING));
+
+        final ResultWriter results = new ResultWriter(response);
+        try {
+            InputStream archive = request.getInputStream();
+            if (gzip) {
+                archive = new GZIPInputStream(archive, GZIP_BUFFER_SIZE);
+            }
+            archiveIngest.extract(bucketId, format, archive, policy, stripComponents, results::write);
+        } catch (IOException e) {
+            if (!results.isStarted()) {
+                throw new InvalidBatchException("Archive can not be read: " + e.getMessage());
+            }
+            // results of extracted files were sent already, failure is reported as the last result
+            final BatchResult failed = new BatchResult(EXTRACT, null);
+            failed.setStatus(400);
+            failed.setMessage("Archive can not be read: " + e.getMessage());
+            results.write(failed);
+        }
+        results.finish();
+    }
+
+    /**
+     * Download files of a bucket whose names start with a prefix (all files without prefix) as a zip or tar archive.
+     */
+    @GetMapping(value = "/", params = "archive")
+    public void downloadArchive(@PathVariable("bucket") String bucket,
+                                @RequestParam("archive") String archive,
+                                @RequestParam(value = "prefix", required = false) String prefix,
+                                @RequestParam(value = "compress", defaultValue = "all") String compress,
+                                HttpServletResponse response)
+            throws ObjectStoreException, IOException {
+        final BucketId bucketId = BucketId.from(bucket);
+        final ArchiveIngest.Format format = ArchiveIngest.Format.from(archive);
+        final ArchiveExport.Compression compression = ArchiveExport.Compression.from(compress);
+        writeArchive(bucketId, format, response,
+                out -> archiveExport.write(bucketId, prefix, format, compression, out));
+    }
+
+    /**
+     * Download files of a bucket listed in the request body as a zip or tar archive, files which do not exist are
+     * left out.
+     */
+    @PostMapping(value = "/", params = "archive", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public void downloadArchive(@PathVariable("bucket") String bucket,
+                                @RequestParam("archive") String archive,
+                                @RequestParam(value = "compress", defaultValue = "all") String compress,
+                                @RequestBody List<String> filenames,
+                                HttpServletResponse response)
+            throws ObjectStoreException, IOException {
+        final BucketId bucketId = BucketId.from(bucket);
+        final ArchiveIngest.Format format = ArchiveIngest.Format.from(archive);
+        final ArchiveExport.Compression compression = ArchiveExport.Compression.from(compress);
+        if (filenames.size() > maxFiles) {
+            throw new InvalidBatchException(String.format("Archive can have at most %d files!", maxFiles));
+        }
+        writeArchive(bucketId, format, response,
+                out -> archiveExport.write(bucketId, filenames, format, compression, out));
+    }
+
+    private void writeArchive(BucketId bucketId, ArchiveIngest.Format format, HttpServletResponse response,
+                              ArchiveWriter writer)
+            throws ObjectStoreException, IOException {
+        final ArchiveOutputStream out = new ArchiveOutputStream(response, format == ArchiveIngest.Format.ZIP
+                ? ZIP
+                : TAR, bucketId.getId() + (format == ArchiveIngest.Format.ZIP ? ".zip" : ".tar"));
+        try {
+            writer.write(out);
+            out.flush();
+        } catch (ObjectStoreException | IOException | RuntimeException e) {
+            if (!response.isCommitted()) {
+                // nothing was sent yet, the error response replaces the partial archive
+                response.reset();
+                throw e;
+            }
+            // the status was sent already, the incomplete archive is sent to its end instead of an error response
+            // which the container would append to it
+            LOGGER.error("Archive of bucket '{}' could not be completed", bucketId.getId(), e);
+            try {
+                out.flush();
+            } catch (IOException suppressed) {
+                LOGGER.debug("Incomplete archive could not be sent", suppressed);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface ArchiveWriter {
+        void write(OutputStream out) throws ObjectStoreException, IOException;
+    }
+
+    /**
+     * Buffered body of an archive, headers are set with the first byte so that a request which fails before it gets a
+     * regular error response.
+     */
+    private static class ArchiveOutputStream extends OutputStream {
+
+        private final HttpServletResponse response;
+        private final String contentType;
+        private final String filename;
+        private OutputStream out;
+
+        ArchiveOutputStream(HttpServletResponse response, String contentType, String filename) {
+            this.response = response;
+            this.contentType = contentType;
+            this.filename = filename;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out().write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (out != null) {
+                out.flush();
+            }
+        }
+
+        private OutputStream out() throws IOException {
+            if (out == null) {
+                response.setContentType(contentType);
+                response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + filename + "\"");
+                out = new BufferedOutputStream(response.getOutputStream(), ARCHIVE_BUFFER_SIZE);
+            }
+            return out;
+        }
+    }
+
+    /**
+     * Writes results to the response, the response is started with the first result so that a request whose archive
+     * can not be read at all still gets an error status.
+     */
+    private class ResultWriter {
+
+        private final HttpServletResponse response;
+        private JsonGenerator generator;
+
+        ResultWriter(HttpServletResponse response) {
+            this.response = response;
+        }
+
+        boolean isStarted() {
+            return generator != null;
+        }
+
+        void write(BatchResult result) throws IOException {
+            start();
+            generator.writeObject(result);
+        }
+
+        void finish() throws IOException {
+            start();
+            generator.writeEndArray();
+            generator.close();
+        }
+
+        private void start() throws IOException {
+            if (generator == null) {
+                response.setContentType(MediaType.APPLICATION_JSON_UTF8_VALUE);
+                generator = objectMapper.getFactory().createGenerator(response.getOutputStream());
+                generator.writeStartArray();
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.stjepano.filestore.controller;
+
+import com.stjepano.filestore.service.ExpectedDigests;
+import com.stjepano.filestore.service.FileId;
+import com.stjepano.filestore.service.ObjectStoreException;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.async.CallableProcessingInterceptorAdapter;
+import org.springframework.web.context.request.async.WebAsyncUtils;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.multipart.MultipartHttpServletRequest;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A file controller which transfers file data on the asynchronous request executor instead of container threads.
+ *
+ * Downloads are checked and resolved on the container thread, file data is then written by a
+ * {@link StreamingResponseBody}. Uploads and overwrites are done by a {@link Callable}. Used instead of
+ * {@link FileController} if <i>filestore.async.enabled</i> is true.
+ */
+@RestController
+@RequestMapping("/store/{bucket}")
+@ConditionalOnProperty(value = "filestore.async.enabled", havingValue = "true")
+public class AsyncFileController extends AbstractFileController {
+
+    private static final String DOWNLOAD_INTERCEPTOR_KEY = AsyncFileController.class.getName() + ".download";
+
+    // sendfile can not be used, response is written after container thread is released
+    private final ZeroCopyResourceHttpMessageConverter converter = new ZeroCopyResourceHttpMessageConverter(false);
+
+    @PostMapping("/")
+    public Callable<Void> uploadFile(@PathVariable("bucket") String bucket,
+                                     @RequestParam("file") MultipartFile file,
+                                     @RequestParam(value = "filename", required = false) String filename,
+                                     MultipartHttpServletRequest request,
+                                     HttpServletResponse response)
+            throws ObjectStoreException {
+        final String desiredFilename = (filename == null) ? file.getOriginalFilename() : filename;
+        final FileId fileId = FileId.from(bucket, desiredFilename);
+        final ExpectedDigests expectedDigests = ContentDigests.expected(partHeaders(request, "file"));
+        return () -> {
+            upload(fileId, file.getInputStream(), expectedDigests);
+            sendWantedDigests(fileId, request, response);
+            return null;
+        };
+    }
+
+    @PutMapping("/{filename:.+}")
+    public Callable<Void> overwriteFile(@PathVariable("bucket") String bucket,
+                                        @PathVariable("filename") String filename,
+                                        @RequestParam("file") MultipartFile file,
+                                        MultipartHttpServletRequest request,
+                                        HttpServletResponse response)
+            throws ObjectStoreException {
+        final FileId fileId = FileId.from(bucket, filename);
+        final ExpectedDigests expectedDigests = ContentDigests.expected(partHeaders(request, "file"));
+        return () -> {
+            overwrite(fileId, file.getInputStream(), expectedDigests);
+            sendWantedDigests(fileId, request, response);
+            return null;
+        };
+    }
+
+    @PostMapping(value = "/{filename:.+}", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public Callable<Void> uploadRawFile(@PathVariable("bucket") String bucket,
+                                        @PathVariable("filename") String filename,
+                                        @RequestHeader HttpHeaders requestHeaders,
+                                        HttpServletRequest request,
+                                        HttpServletResponse response)
+            throws ObjectStoreException {
+        final FileId fileId = FileId.from(bucket, filename);
+        final ExpectedDigests expectedDigests = ContentDigests.expected(requestHeaders);
+        return () -> {
+            upload(fileId, request.getInputStream(), expectedDigests);
+            sendWantedDigests(fileId, request, response);
+            return null;
+        };
+    }
+
+    @PutMapping(value = "/{filename:.+}", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public Callable<Void> overwriteRawFile(@PathVariable("bucket") String bucket,
+                                           @PathVariable("filename") String filename,
+                                           @RequestHeader HttpHeaders requestHeaders,
+                                           HttpServletRequest request,
+                                           HttpServletResponse response)
+            throws ObjectStoreException {
+        final FileId fileId = FileId.from(bucket, filename);
+        final ExpectedDigests expectedDigests = ContentDigests.expected(requestHeaders);
+        return () -> {
+            overwrite(fileId, request.getInputStream(), expectedDigests);
+            sendWantedDigests(fileId, request, response);
+            return null;
+        };
+    }
+
+    @GetMapping("/{filename:.+}")
+    public ResponseEntity<StreamingResponseBody> downloadFile(@PathVariable("bucket") String bucket,
+                                                              @PathVariable("filename") String filename,
+                                                              @RequestParam(value = "att", required = false, defaultValue = "true") boolean asAttachment,
+                                                              @RequestHeader HttpHeaders requestHeaders,
+                                                              HttpServletRequest request)
+            throws ObjectStoreException, IOException {
+        final ResponseEntity<Resource> download = download(bucket, filename, asAttachment, requestHeaders);
+        final Resource body = download.getBody();
+        if (body == null) {
+            return ResponseEntity.status(download.getStatusCode())
+                    .headers(download.getHeaders())
+                    .build();
+        }
+
+        final HttpHeaders headers = new HttpHeaders();
+        headers.putAll(download.getHeaders());
+        headers.putAll(converter.contentHeaders(body, download.getHeaders().getContentType()));
+
+        // whoever claims the body first releases it: the streaming task by writing it or, if the request times out or
+        // fails before the task starts, the completion callback (a mapping must not be released while it is written)
+        final AtomicBoolean claimed = new AtomicBoolean();
+        WebAsyncUtils.getAsyncManager(request).registerCallableInterceptor(DOWNLOAD_INTERCEPTOR_KEY,
+                new CallableProcessingInterceptorAdapter() {
+                    @Override
+                    public <T> void afterCompletion(NativeWebRequest webRequest, Callable<T> task) throws Exception {
+                        if (claimed.compareAndSet(false, true)) {
+                            converter.discard(body);
+                        }
+                    }
+                });
+        return ResponseEntity.status(download.getStatusCode())
+                .headers(headers)
+                .body(outputStream -> {
+                    if (claimed.compareAndSet(false, true)) {
+                        converter.writeTo(body, outputStream);
+                    }
+                });
+    }
+}
@@ -0,0 +1,132 @@
+package com.stjepano.filestore.controller;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.stjepano.filestore.BatchExecutor;
+import com.stjepano.filestore.common.BatchOperation;
+import com.stjepano.filestore.common.BatchResult;
+import com.stjepano.filestore.service.BucketDoesNotExistException;
+import com.stjepano.filestore.service.BucketId;
+import com.stjepano.filestore.service.FileDoesNotExistException;
+import com.stjepano.filestore.service.FileId;
+import com.stjepano.filestore.service.FileService;
+import com.stjepano.filestore.service.InvalidBatchException;
+import com.stjepano.filestore.service.InvalidFileIdException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+
+/**
+ * Batch operations on files of a bucket.
+ *
+ * Operations of a batch are executed in parallel on the {@link BatchExecutor} (at most <i>filestore.batch.parallelism</i>
+ * of one request at a time) and their results are streamed back as a JSON array in the order in which they complete,
+ * so a client deleting thousands of files does not wait for a round trip per file.
+ */
+@RestController
+@RequestMapping("/store/{bucket}")
+public class BatchController {
+
+    @Autowired
+    private FileService fileService;
+
+    @Autowired
+    private BatchExecutor batchExecutor;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Value("${filestore.batch.maxOperations:10000}")
+    private int maxOperations;
+
+    @Value("${filestore.batch.parallelism:16}")
+    private int parallelism;
+
+    @PostMapping(value = "/", params = "batch=true", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public void batch(@PathVariable("bucket") String bucket,
+                      @RequestBody List<BatchOperation> operations,
+                      HttpServletResponse response)
+            throws IOException {
+        // an invalid bucket name fails the whole batch
+        BucketId.from(bucket);
+        if (operations.size() > maxOperations) {
+            throw new InvalidBatchException(String.format(
+                    "Batch has %d operations, at most %d are allowed!", operations.size(), maxOperations));
+        }
+
+        final CompletionService<BatchResult> results = new ExecutorCompletionService<>(batchExecutor);
+        int submitted = 0;
+        while (submitted < operations.size() && submitted < parallelism) {
+            final BatchOperation operation = operations.get(submitted++);
+            results.submit(() -> execute(bucket, operation));
+        }
+
+        response.setContentType(MediaType.APPLICATION_JSON_UTF8_VALUE);
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(response.getOutputStream())) {
+            generator.writeStartArray();
+            for (int written = 0; written < operations.size(); written++) {
+                Future<BatchResult> result = results.poll();
+                if (result == null) {
+                    // send completed results before waiting for the next one
+                    generator.flush();
+                    result = results.take();
+                }
+                generator.writeObject(result.get());
+                if (submitted < operations.size()) {
+                    final BatchOperation operation = operations.get(submitted++);
+                    results.submit(() -> execute(bucket, operation));
+                }
+            }
+            generator.writeEndArray();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for batch operations");
+        } catch (ExecutionException e) {
+            // execute reports all failures in results
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private BatchResult execute(String bucket, BatchOperation operation) {
+        final BatchResult result = new BatchResult(operation.getOp(), operation.getName());
+        try {
+            final FileId fileId = FileId.from(bucket, operation.getName());
+            if (BatchOperation.DELETE.equals(operation.getOp())) {
+                fileService.deleteFile(fileId);
+            } else if (BatchOperation.STAT.equals(operation.getOp())) {
+                result.setFileInfo(fileService.getFileInfo(fileId));
+            } else {
+                return failed(result, HttpStatus.BAD_REQUEST, "Unknown operation '" + operation.getOp() + "'!");
+            }
+            result.setStatus(HttpStatus.OK.value());
+            return result;
+        } catch (BucketDoesNotExistException | FileDoesNotExistException e) {
+            return failed(result, HttpStatus.NOT_FOUND, e.getMessage());
+        } catch (InvalidFileIdException e) {
+            return failed(result, HttpStatus.BAD_REQUEST, e.getMessage());
+        } catch (Exception e) {
+            return failed(result, HttpStatus.INTERNAL_SERVER_ERROR, e.getMessage());
+        }
+    }
+
+    private static BatchResult failed(BatchResult result, HttpStatus status, String message) {
+        result.setStatus(status.value());
+        result.setMessage(message);
+        return result;
+    }
+}
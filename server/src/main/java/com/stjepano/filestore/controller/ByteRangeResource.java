@@ -0,0 +1,272 @@
+package com.stjepano.filestore.controller;
+
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.ResourceRegion;
+import org.springframework.http.HttpRange;
+import org.springframework.http.MediaType;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Body of a partial content (206) response.
+ *
+ * A single range is represented by the bytes of that range, multiple ranges are represented as multipart/byteranges
+ * body as described in RFC 7233.
+ */
+public class ByteRangeResource extends AbstractResource {
+
+    /**
+     * Maximal number of ranges accepted in one request, more ranges are not satisfiable
+     */
+    static final int MAX_RANGES = 100;
+
+    private final Resource resource;
+    private final long resourceLength;
+    private final List<ResourceRegion> regions;
+    private final MediaType resourceMediaType;
+    private final String boundary;
+
+    private ByteRangeResource(Resource resource, long resourceLength, List<ResourceRegion> regions) {
+        this.resource = resource;
+        this.resourceLength = resourceLength;
+        this.regions = regions;
+        this.resourceMediaType = mediaTypeOf(resource);
+        this.boundary = regions.size() > 1 ? UUID.randomUUID().toString() : null;
+    }
+
+    /**
+     * Create {@link ByteRangeResource} for satisfiable ranges of given resource.
+     *
+     * @param resource the resource
+     * @param ranges requested ranges
+     * @return a {@link ByteRangeResource} or null if none of the ranges is satisfiable
+     * @throws IOException if resource length could not be determined
+     */
+    public static ByteRangeResource create(Resource resource, List<HttpRange> ranges) throws IOException {
+        final long resourceLength = resource.contentLength();
+        if (ranges.size() > MAX_RANGES) {
+            return null;
+        }
+        List<ResourceRegion> regions = new ArrayList<>(ranges.size());
+        for (HttpRange range : ranges) {
+            final long start = range.getRangeStart(resourceLength);
+            final long end = range.getRangeEnd(resourceLength);
+            if (start >= resourceLength || end < start) {
+                continue;
+            }
+            regions.add(new ResourceRegion(resource, start, end - start + 1));
+        }
+        if (regions.isEmpty()) {
+            return null;
+        }
+        return new ByteRangeResource(resource, resourceLength, Collections.unmodifiableList(regions));
+    }
+
+    /**
+     * Get the resource this ranges are part of
+     */
+    public Resource getResource() {
+        return resource;
+    }
+
+    public List<ResourceRegion> getRegions() {
+        return regions;
+    }
+
+    public boolean isMultipart() {
+        return boundary != null;
+    }
+
+    /**
+     * Media type of the response, multipart/byteranges for multiple ranges.
+     */
+    public MediaType getMediaType() {
+        if (isMultipart()) {
+            return MediaType.parseMediaType("multipart/byteranges; boundary=" + boundary);
+        }
+        return resourceMediaType;
+    }
+
+    /**
+     * Value of Content-Range header for single range response
+     */
+    public String getContentRange() {
+        return contentRange(regions.get(0));
+    }
+
+    /**
+     * Headers preceding the data of given region in multipart response
+     */
+    byte[] partHeader(ResourceRegion region) {
+        String header = "\r\n--" + boundary + "\r\n" +
+                "Content-Type: " + resourceMediaType + "\r\n" +
+                "Content-Range: " + contentRange(region) + "\r\n" +
+                "\r\n";
+        return header.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Closing delimiter of multipart response
+     */
+    byte[] closingDelimiter() {
+        return ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private String contentRange(ResourceRegion region) {
+        final long end = region.getPosition() + region.getCount() - 1;
+        return "bytes " + region.getPosition() + "-" + end + "/" + resourceLength;
+    }
+
+    @Override
+    public long contentLength() throws IOException {
+        long length = 0;
+        for (ResourceRegion region : regions) {
+            length += region.getCount();
+            if (isMultipart()) {
+                length += partHeader(region).length;
+            }
+        }
+        if (isMultipart()) {
+            length += closingDelimiter().length;
+        }
+        return length;
+    }
+
+    @Override
+    public long lastModified() throws IOException {
+        return resource.lastModified();
+    }
+
+    @Override
+    public String getFilename() {
+        return resource.getFilename();
+    }
+
+    @Override
+    public String getDescription() {
+        return "Byte ranges of " + resource.getDescription();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        if (!isMultipart()) {
+            return regionInputStream(regions.get(0));
+        }
+
+        final Iterator<ResourceRegion> regionIterator = regions.iterator();
+        return new SequenceInputStream(new Enumeration<InputStream>() {
+            private ResourceRegion pendingRegion = null;
+            private boolean closed = false;
+
+            @Override
+            public boolean hasMoreElements() {
+                return pendingRegion != null || regionIterator.hasNext() || !closed;
+            }
+
+            @Override
+            public InputStream nextElement() {
+                try {
+                    if (pendingRegion != null) {
+                        InputStream inputStream = regionInputStream(pendingRegion);
+                        pendingRegion = null;
+                        return inputStream;
+                    }
+                    if (regionIterator.hasNext()) {
+                        pendingRegion = regionIterator.next();
+                        return new ByteArrayInputStream(partHeader(pendingRegion));
+                    }
+                    closed = true;
+                    return new ByteArrayInputStream(closingDelimiter());
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+    }
+
+    private InputStream regionInputStream(ResourceRegion region) throws IOException {
+        InputStream inputStream = region.getResource().getInputStream();
+        long toSkip = region.getPosition();
+        while (toSkip > 0) {
+            long skipped = inputStream.skip(toSkip);
+            if (skipped <= 0) {
+                if (inputStream.read() < 0) {
+                    break;
+                }
+                skipped = 1;
+            }
+            toSkip -= skipped;
+        }
+        return new LimitedInputStream(inputStream, region.getCount());
+    }
+
+    private static MediaType mediaTypeOf(Resource resource) {
+        final String filename = resource.getFilename();
+        final String contentType = filename == null ? null : URLConnection.getFileNameMap().getContentTypeFor(filename);
+        return contentType == null ? MediaType.APPLICATION_OCTET_STREAM : MediaType.parseMediaType(contentType);
+    }
+
+    private static class LimitedInputStream extends FilterInputStream {
+
+        private long remaining;
+
+        LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = super.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = super.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.stjepano.filestore.controller;
+
+import com.stjepano.filestore.service.BucketId;
+import org.springframework.core.env.PropertyResolver;
+
+/**
+ * Cache-Control header value of downloaded files, declared for each bucket with a
+ * {@code filestore.cacheControl.buckets.<bucket>} property, files of other buckets get the default value.
+ */
+public class CacheControlPolicy {
+
+    static final String BUCKET_PROPERTY_PREFIX = "filestore.cacheControl.buckets.";
+
+    private final PropertyResolver properties;
+    private final String defaultValue;
+
+    /**
+     * Initialize {@link CacheControlPolicy}.
+     * @param properties properties with policies of buckets
+     * @param defaultValue header value for buckets without a policy, null or empty for no header
+     */
+    public CacheControlPolicy(PropertyResolver properties, String defaultValue) {
+        this.properties = properties;
+        this.defaultValue = defaultValue;
+    }
+
+    /**
+     * Get Cache-Control header value for files of a bucket.
+     * @return the value or null if no header should be sent
+     */
+    public String forBucket(BucketId bucketId) {
+        final String value = properties.getProperty(BUCKET_PROPERTY_PREFIX + bucketId.getId(), defaultValue);
+        return (value == null || value.trim().isEmpty()) ? null : value.trim();
+    }
+}
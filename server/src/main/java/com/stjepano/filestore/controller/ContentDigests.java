@@ -0,0 +1,133 @@
+package com.stjepano.filestore.controller;
+
+import com.stjepano.filestore.common.FileInfo;
+import com.stjepano.filestore.service.ExpectedDigests;
+import com.stjepano.filestore.service.InvalidDigestException;
+import org.springframework.http.HttpHeaders;
+
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.Locale;
+
+/**
+ * Digest headers of uploads.
+ *
+ * Uploaded data is verified against Content-MD5 (base64 encoded MD5 digest) and Digest headers, the latter may carry
+ * md5, sha-256 and crc32c digests (base64 encoded, crc32c in big endian byte order) and other algorithms are ignored.
+ * A client asking for digests with Want-Digest header gets stored sha-256 and crc32c digests of the uploaded file in
+ * Digest header of the response, so it can verify data it computed the digest of while sending it.
+ */
+final class ContentDigests {
+
+    static final String CONTENT_MD5 = "Content-MD5";
+    static final String DIGEST = "Digest";
+    static final String WANT_DIGEST = "Want-Digest";
+
+    private static final String MD5 = "md5";
+    private static final String SHA_256 = "sha-256";
+    private static final String CRC32C = "crc32c";
+
+    private ContentDigests() { }
+
+    /**
+     * Get digests expected by the client.
+     * @param headers headers of the request or of the multipart file part
+     * @throws InvalidDigestException if a digest is malformed
+     */
+    static ExpectedDigests expected(HttpHeaders headers) {
+        byte[] md5 = null;
+        byte[] sha256 = null;
+        Integer crc32c = null;
+
+        final String contentMd5 = headers.getFirst(CONTENT_MD5);
+        if (contentMd5 != null) {
+            md5 = decode(CONTENT_MD5, contentMd5.trim(), 16);
+        }
+        final String digest = headers.getFirst(DIGEST);
+        if (digest != null) {
+            for (String element : digest.split(",")) {
+                final int equals = element.indexOf('=');
+                if (equals < 0) {
+                    throw new InvalidDigestException(DIGEST, element.trim());
+                }
+                final String algorithm = element.substring(0, equals).trim().toLowerCase(Locale.ROOT);
+                final String value = element.substring(equals + 1).trim();
+                switch (algorithm) {
+                    case MD5:
+                        md5 = decode(DIGEST, value, 16);
+                        break;
+                    case SHA_256:
+                        sha256 = decode(DIGEST, value, 32);
+                        break;
+                    case CRC32C:
+                        crc32c = ByteBuffer.wrap(decode(DIGEST, value, 4)).getInt();
+                        break;
+                    default:
+                        // digests of unknown algorithms are ignored
+                }
+            }
+        }
+        return (md5 == null && sha256 == null && crc32c == null)
+                ? ExpectedDigests.NONE
+                : new ExpectedDigests(md5, sha256, crc32c);
+    }
+
+    /**
+     * Get value of Digest response header with stored digests of a file which were asked for with Want-Digest header.
+     * @return the value or null if file has none of wanted digests
+     */
+    static String wanted(String wantDigest, FileInfo fileInfo) {
+        final StringBuilder digest = new StringBuilder();
+        for (String element : wantDigest.split(",")) {
+            final String[] parts = element.split(";");
+            final String algorithm = parts[0].trim().toLowerCase(Locale.ROOT);
+            if (!acceptable(parts)) {
+                continue;
+            }
+            String value = null;
+            if (algorithm.equals(SHA_256) && fileInfo.getSha256() != null) {
+                value = Base64.getEncoder().encodeToString(hex(fileInfo.getSha256()));
+            } else if (algorithm.equals(CRC32C) && fileInfo.getCrc32c() != null) {
+                value = Base64.getEncoder().encodeToString(hex(fileInfo.getCrc32c()));
+            }
+            if (value != null && digest.indexOf(algorithm + "=") < 0) {
+                digest.append(digest.length() == 0 ? "" : ", ").append(algorithm).append('=').append(value);
+            }
+        }
+        return digest.length() == 0 ? null : digest.toString();
+    }
+
+    private static boolean acceptable(String[] parts) {
+        for (int i = 1; i < parts.length; i++) {
+            final String parameter = parts[i].trim();
+            if (parameter.startsWith("q=")) {
+                try {
+                    return Double.parseDouble(parameter.substring(2).trim()) > 0;
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static byte[] decode(String header, String value, int length) {
+        try {
+            final byte[] bytes = Base64.getDecoder().decode(value);
+            if (bytes.length == length) {
+                return bytes;
+            }
+        } catch (IllegalArgumentException e) {
+            // reported below
+        }
+        throw new InvalidDigestException(header, value);
+    }
+
+    private static byte[] hex(String hex) {
+        final byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+}
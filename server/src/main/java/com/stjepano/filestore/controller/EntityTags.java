@@ -0,0 +1,125 @@
+package com.stjepano.filestore.controller;
+
+import com.stjepano.filestore.common.FileInfo;
+import com.stjepano.filestore.common.FilePage;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Entity tags of files and listings.
+ *
+ * A file with a known content digest has a strong entity tag made of the digest, other files have a weak tag made of
+ * their size and modification time. A listing has a weak tag made of file info of all listed files, so it is computed
+ * without serializing the listing.
+ */
+final class EntityTags {
+
+    private EntityTags() { }
+
+    /**
+     * Entity tag of a file as it is stored (identity encoding).
+     * @return the tag or null if file info has neither digest nor modification time
+     */
+    static String of(FileInfo fileInfo) {
+        if (fileInfo.getSha256() != null) {
+            return "\"" + fileInfo.getSha256() + "\"";
+        }
+        final long lastModified = lastModified(fileInfo);
+        if (lastModified < 0) {
+            return null;
+        }
+        return "W/\"" + Long.toHexString(fileInfo.getSize()) + "-" + Long.toHexString(lastModified) + "\"";
+    }
+
+    /**
+     * Entity tag of file content sent with given content encoding, representations with different encodings must not
+     * share a strong tag.
+     */
+    static String encoded(String entityTag, String contentEncoding) {
+        return entityTag.substring(0, entityTag.length() - 1) + "-" + contentEncoding + "\"";
+    }
+
+    /**
+     * Weak entity tag of a listing.
+     */
+    static String of(Collection<FileInfo> files) {
+        final MessageDigest digest = newDigest();
+        for (FileInfo file : files) {
+            update(digest, file.getName());
+            update(digest, Long.toString(file.getSize()));
+            update(digest, file.getMimeType());
+            update(digest, String.valueOf(file.getDateCreated()));
+            update(digest, String.valueOf(file.getLastModified()));
+            update(digest, file.getSha256());
+        }
+        final StringBuilder tag = new StringBuilder("W/\"");
+        for (byte b : digest.digest()) {
+            tag.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return tag.append('"').toString();
+    }
+
+    /**
+     * Weak entity tag of a page of a listing.
+     */
+    static String of(FilePage page) {
+        final List<FileInfo> files = new ArrayList<>(page.getFiles());
+        // a page with a different continuation is a different page even if its files are the same
+        final FileInfo continuation = new FileInfo();
+        continuation.setName(page.getNextStartAfter());
+        files.add(continuation);
+        return of(files);
+    }
+
+    /**
+     * Modification time of a file in milliseconds or -1 if it is not known.
+     */
+    static long lastModified(FileInfo fileInfo) {
+        final LocalDateTime lastModified = fileInfo.getLastModified();
+        return lastModified == null ? -1 : lastModified.atZone(ZoneOffset.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * True if If-None-Match header matches one of given tags, using weak comparison.
+     */
+    static boolean matchesAny(String ifNoneMatch, String... entityTags) {
+        for (String element : ifNoneMatch.split(",")) {
+            final String requested = element.trim();
+            if (requested.equals("*")) {
+                return true;
+            }
+            for (String entityTag : entityTags) {
+                if (entityTag != null && opaque(requested).equals(opaque(entityTag))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static String opaque(String entityTag) {
+        return entityTag.startsWith("W/") ? entityTag.substring(2) : entityTag;
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        if (value != null) {
+            digest.update(value.getBytes(StandardCharsets.UTF_8));
+        }
+        digest.update((byte) 0);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -1,76 +1,90 @@
 package com.stjepano.filestore.controller;
 
-import com.stjepano.filestore.service.BucketId;
 import com.stjepano.filestore.service.FileId;
-import com.stjepano.filestore.common.FileInfo;
 import com.stjepano.filestore.service.ObjectStoreException;
-import com.stjepano.filestore.service.FileService;
-import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.core.io.Resource;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
-import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.multipart.MultipartHttpServletRequest;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.util.List;
 
 /**
  * A file controller
  */
 @RestController
 @RequestMapping("/store/{bucket}")
-public class FileController {
-
-    @Autowired
-    private FileService fileService;
-
-    @GetMapping("/")
-    public List<FileInfo> listFiles(@PathVariable("bucket") String bucket) throws ObjectStoreException {
-        return fileService.getFiles(BucketId.from(bucket));
-    }
-
-    @DeleteMapping("/{filename:.+}")
-    public void deleteFile(@PathVariable("bucket") String bucket,
-                           @PathVariable("filename") String filename)
-            throws ObjectStoreException {
-        fileService.deleteFile(FileId.from(bucket, filename));
-    }
+@ConditionalOnProperty(value = "filestore.async.enabled", havingValue = "false", matchIfMissing = true)
+public class FileController extends AbstractFileController {
 
     @PostMapping("/")
     public void uploadFile(@PathVariable("bucket") String bucket,
                            @RequestParam("file") MultipartFile file,
-                           @RequestParam(value = "filename", required = false) String filename)
+                           @RequestParam(value = "filename", required = false) String filename,
+                           MultipartHttpServletRequest request,
+                           HttpServletResponse response)
             throws ObjectStoreException, IOException {
         final String desiredFilename = (filename == null) ? file.getOriginalFilename() : filename;
-        fileService.upload(FileId.from(bucket, desiredFilename), file.getInputStream());
+        final FileId fileId = FileId.from(bucket, desiredFilename);
+        upload(fileId, file.getInputStream(), ContentDigests.expected(partHeaders(request, "file")));
+        sendWantedDigests(fileId, request, response);
     }
 
     @PutMapping("/{filename:.+}")
     public void overwriteFile(@PathVariable("bucket") String bucket,
                               @PathVariable("filename") String filename,
-                              @RequestParam("file") MultipartFile file)
+                              @RequestParam("file") MultipartFile file,
+                              MultipartHttpServletRequest request,
+                              HttpServletResponse response)
             throws ObjectStoreException, IOException {
-        fileService.overwrite(FileId.from(bucket, filename), file.getInputStream());
+        final FileId fileId = FileId.from(bucket, filename);
+        overwrite(fileId, file.getInputStream(), ContentDigests.expected(partHeaders(request, "file")));
+        sendWantedDigests(fileId, request, response);
+    }
+
+    @PostMapping(value = "/{filename:.+}", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public void uploadRawFile(@PathVariable("bucket") String bucket,
+                              @PathVariable("filename") String filename,
+                              @RequestHeader HttpHeaders requestHeaders,
+                              HttpServletRequest request,
+                              HttpServletResponse response)
+            throws ObjectStoreException, IOException {
+        final FileId fileId = FileId.from(bucket, filename);
+        upload(fileId, request.getInputStream(), ContentDigests.expected(requestHeaders));
+        sendWantedDigests(fileId, request, response);
+    }
+
+    @PutMapping(value = "/{filename:.+}", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public void overwriteRawFile(@PathVariable("bucket") String bucket,
+                                 @PathVariable("filename") String filename,
+                                 @RequestHeader HttpHeaders requestHeaders,
+                                 HttpServletRequest request,
+                                 HttpServletResponse response)
+            throws ObjectStoreException, IOException {
+        final FileId fileId = FileId.from(bucket, filename);
+        overwrite(fileId, request.getInputStream(), ContentDigests.expected(requestHeaders));
+        sendWantedDigests(fileId, request, response);
     }
 
     @GetMapping("/{filename:.+}")
     public ResponseEntity<Resource> downloadFile(@PathVariable("bucket") String bucket,
                                                  @PathVariable("filename") String filename,
-                                                 @RequestParam(value = "att", required = false, defaultValue = "true") boolean asAttachment)
-            throws ObjectStoreException {
-        Resource file = fileService.download(FileId.from(bucket, filename));
-        ResponseEntity.BodyBuilder bodyBuilder = ResponseEntity.ok();
-        if (asAttachment) {
-            bodyBuilder.header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + file.getFilename() + "\"");
-        }
-        return bodyBuilder.body(file);
+                                                 @RequestParam(value = "att", required = false, defaultValue = "true") boolean asAttachment,
+                                                 @RequestHeader HttpHeaders requestHeaders)
+            throws ObjectStoreException, IOException {
+        return download(bucket, filename, asAttachment, requestHeaders);
     }
 }
@@ -0,0 +1,112 @@
+package com.stjepano.filestore.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.stjepano.filestore.common.MultipartUpload;
+import com.stjepano.filestore.service.FileId;
+import com.stjepano.filestore.service.FileService;
+import com.stjepano.filestore.service.ObjectStoreException;
+import com.stjepano.filestore.service.filesystem.MultipartUploads;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Multipart uploads of large files.
+ *
+ * An upload is initiated with the size of the file, its parts are then uploaded in parallel and in any order (a failed
+ * part is simply uploaded again) and the upload is completed once all parts are uploaded, see {@link MultipartUploads}.
+ * Mappings are selected by their query parameters, so they take precedence over the plain file mappings of
+ * {@link FileController} and {@link AsyncFileController}. Uploads are written as JSON regardless of the file name
+ * extension, which would otherwise select the response content type (e.g. application/octet-stream for .bin files).
+ */
+@RestController
+@RequestMapping("/store/{bucket}")
+public class MultipartUploadController {
+
+    @Autowired
+    private MultipartUploads multipartUploads;
+
+    @Autowired
+    private FileService fileService;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @PostMapping(value = "/{filename:.+}", params = "uploads")
+    public void initiateUpload(@PathVariable("bucket") String bucket,
+                               @PathVariable("filename") String filename,
+                               @RequestParam("size") long size,
+                               @RequestParam(value = "partSize", required = false) Long partSize,
+                               HttpServletResponse response)
+            throws ObjectStoreException, IOException {
+        writeUpload(multipartUploads.initiate(FileId.from(bucket, filename), size, partSize), response);
+    }
+
+    @PutMapping(value = "/{filename:.+}", params = {"uploadId", "partNumber"})
+    public void uploadPart(@PathVariable("bucket") String bucket,
+                           @PathVariable("filename") String filename,
+                           @RequestParam("uploadId") String uploadId,
+                           @RequestParam("partNumber") int partNumber,
+                           @RequestHeader HttpHeaders requestHeaders,
+                           HttpServletRequest request)
+            throws ObjectStoreException, IOException {
+        multipartUploads.uploadPart(FileId.from(bucket, filename), uploadId, partNumber, request.getInputStream(),
+                ContentDigests.expected(requestHeaders));
+    }
+
+    @GetMapping(value = "/{filename:.+}", params = "uploadId")
+    public void getUpload(@PathVariable("bucket") String bucket,
+                          @PathVariable("filename") String filename,
+                          @RequestParam("uploadId") String uploadId,
+                          HttpServletResponse response)
+            throws ObjectStoreException, IOException {
+        writeUpload(multipartUploads.getUpload(FileId.from(bucket, filename), uploadId), response);
+    }
+
+    /**
+     * Complete an upload, digests of the whole file are verified if the client supplied them ({@link ContentDigests}).
+     */
+    @PostMapping(value = "/{filename:.+}", params = "uploadId")
+    public void completeUpload(@PathVariable("bucket") String bucket,
+                               @PathVariable("filename") String filename,
+                               @RequestParam("uploadId") String uploadId,
+                               @RequestHeader HttpHeaders requestHeaders,
+                               HttpServletResponse response)
+            throws ObjectStoreException {
+        final FileId fileId = FileId.from(bucket, filename);
+        multipartUploads.complete(fileId, uploadId, ContentDigests.expected(requestHeaders));
+        final String wantDigest = requestHeaders.getFirst(ContentDigests.WANT_DIGEST);
+        if (wantDigest != null) {
+            final String digest = ContentDigests.wanted(wantDigest, fileService.getFileInfo(fileId));
+            if (digest != null) {
+                response.setHeader(ContentDigests.DIGEST, digest);
+            }
+        }
+    }
+
+    @DeleteMapping(value = "/{filename:.+}", params = "uploadId")
+    public void abortUpload(@PathVariable("bucket") String bucket,
+                            @PathVariable("filename") String filename,
+                            @RequestParam("uploadId") String uploadId)
+            throws ObjectStoreException {
+        multipartUploads.abort(FileId.from(bucket, filename), uploadId);
+    }
+
+    private void writeUpload(MultipartUpload upload, HttpServletResponse response) throws IOException {
+        response.setContentType(MediaType.APPLICATION_JSON_UTF8_VALUE);
+        objectMapper.writeValue(response.getOutputStream(), upload);
+    }
+}
@@ -0,0 +1,244 @@
+package com.stjepano.filestore.controller;
+
+import com.stjepano.filestore.service.TransferableResource;
+import com.stjepano.filestore.service.filesystem.FileChannelResource;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.ResourceRegion;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageNotWritableException;
+import org.springframework.http.converter.ResourceHttpMessageConverter;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * {@link ResourceHttpMessageConverter} that serves file backed resources without copying them through the heap.
+ *
+ * Files are transferred to the response with {@link FileChannel#transferTo(long, long, WritableByteChannel)}, byte
+ * ranges ({@link ByteRangeResource}) of a file with positional transfers straight from the file. Files which are
+ * already open ({@link FileChannelResource}) and resources held in memory ({@link TransferableResource}) are written
+ * from what they hold and closed afterwards if they are {@link Closeable}.
+ *
+ * If sendfile is enabled and the servlet container supports it (Tomcat NIO/APR connectors) files are handed over to
+ * the container instead. The container opens the file again by its name after the response headers are written, if
+ * the file is overwritten in between the response carries the new content with the length of the old one, so sendfile
+ * should be enabled only when stored files are not overwritten.
+ * Resources which are not backed by a file are written by the default implementation.
+ */
+public class ZeroCopyResourceHttpMessageConverter extends ResourceHttpMessageConverter {
+
+    static final String SENDFILE_SUPPORTED_ATTRIBUTE = "org.apache.tomcat.sendfile.support";
+    static final String SENDFILE_FILENAME_ATTRIBUTE = "org.apache.tomcat.sendfile.filename";
+    static final String SENDFILE_START_ATTRIBUTE = "org.apache.tomcat.sendfile.start";
+    static final String SENDFILE_END_ATTRIBUTE = "org.apache.tomcat.sendfile.end";
+
+    private final boolean useSendfile;
+
+    /**
+     * Initialize {@link ZeroCopyResourceHttpMessageConverter}.
+     * @param useSendfile if true files are handed over to the container when it supports sendfile
+     */
+    public ZeroCopyResourceHttpMessageConverter(boolean useSendfile) {
+        this.useSendfile = useSendfile;
+    }
+
+    @Override
+    protected void writeInternal(Resource resource, HttpOutputMessage outputMessage) throws IOException, HttpMessageNotWritableException {
+        try {
+            write(resource, outputMessage);
+        } finally {
+            discard(resource);
+        }
+    }
+
+    private void write(Resource resource, HttpOutputMessage outputMessage) throws IOException {
+        if (resource instanceof ByteRangeResource) {
+            writeByteRanges((ByteRangeResource) resource, outputMessage);
+            return;
+        }
+
+        if (useSendfile && resource instanceof FileChannelResource && sendfile(resource.getFile(), 0, resource.contentLength())) {
+            return;
+        }
+
+        if (resource instanceof TransferableResource) {
+            ((TransferableResource) resource).transferTo(0, resource.contentLength(), Channels.newChannel(outputMessage.getBody()));
+            return;
+        }
+
+        final File file = fileOf(resource);
+        if (file == null) {
+            super.writeInternal(resource, outputMessage);
+            return;
+        }
+
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final long size = fileChannel.size();
+            if (useSendfile && sendfile(file, 0, size)) {
+                return;
+            }
+            transfer(fileChannel, 0, size, Channels.newChannel(outputMessage.getBody()));
+        }
+    }
+
+    /**
+     * Get headers (content type and length) which are written together with given resource.
+     * @param contentType content type of the response or null to use content type of the resource
+     */
+    HttpHeaders contentHeaders(Resource resource, MediaType contentType) throws IOException {
+        final HttpHeaders headers = new HttpHeaders();
+        addDefaultHeaders(headers, resource, contentType);
+        return headers;
+    }
+
+    /**
+     * Write resource to given stream, used for streamed responses which are not written by message converters.
+     */
+    void writeTo(Resource resource, OutputStream outputStream) throws IOException {
+        writeInternal(resource, new HttpOutputMessage() {
+            private final HttpHeaders headers = new HttpHeaders();
+
+            @Override
+            public OutputStream getBody() {
+                return outputStream;
+            }
+
+            @Override
+            public HttpHeaders getHeaders() {
+                return headers;
+            }
+        });
+    }
+
+    /**
+     * Release given resource without writing it, used when a streamed response is abandoned before it is written.
+     */
+    void discard(Resource resource) throws IOException {
+        release(resource instanceof ByteRangeResource ? ((ByteRangeResource) resource).getResource() : resource);
+    }
+
+    /**
+     * Release resources which hold something (for example a memory mapping) until they are written.
+     */
+    private static void release(Resource resource) throws IOException {
+        if (resource instanceof Closeable) {
+            ((Closeable) resource).close();
+        }
+    }
+
+    private void writeByteRanges(ByteRangeResource byteRanges, HttpOutputMessage outputMessage) throws IOException {
+        final Resource resource = byteRanges.getResource();
+        if (useSendfile && resource instanceof FileChannelResource && !byteRanges.isMultipart()) {
+            final ResourceRegion region = byteRanges.getRegions().get(0);
+            if (sendfile(resource.getFile(), region.getPosition(), region.getPosition() + region.getCount())) {
+                return;
+            }
+        }
+
+        if (resource instanceof TransferableResource) {
+            writeRegions(byteRanges, outputMessage, ((TransferableResource) resource)::transferTo);
+            return;
+        }
+
+        final File file = fileOf(resource);
+        if (file == null) {
+            super.writeInternal(byteRanges, outputMessage);
+            return;
+        }
+
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (!byteRanges.isMultipart()) {
+                final ResourceRegion region = byteRanges.getRegions().get(0);
+                final long end = region.getPosition() + region.getCount();
+                if (useSendfile && sendfile(file, region.getPosition(), end)) {
+                    return;
+                }
+            }
+            writeRegions(byteRanges, outputMessage, (position, count, target) -> transfer(fileChannel, position, count, target));
+        }
+    }
+
+    private static void writeRegions(ByteRangeResource byteRanges, HttpOutputMessage outputMessage, RegionTransfer regionTransfer) throws IOException {
+        final OutputStream outputStream = outputMessage.getBody();
+        final WritableByteChannel target = Channels.newChannel(outputStream);
+        if (!byteRanges.isMultipart()) {
+            final ResourceRegion region = byteRanges.getRegions().get(0);
+            regionTransfer.transfer(region.getPosition(), region.getCount(), target);
+            return;
+        }
+
+        for (ResourceRegion region : byteRanges.getRegions()) {
+            outputStream.write(byteRanges.partHeader(region));
+            regionTransfer.transfer(region.getPosition(), region.getCount(), target);
+        }
+        outputStream.write(byteRanges.closingDelimiter());
+    }
+
+    /**
+     * Transfer count bytes starting at position from file channel to target channel.
+     *
+     * @return number of bytes transferred, less than count only if file was truncated during transfer
+     */
+    static long transfer(FileChannel source, long position, long count, WritableByteChannel target) throws IOException {
+        long transferred = 0;
+        while (transferred < count) {
+            long n = source.transferTo(position + transferred, count - transferred, target);
+            if (n <= 0) {
+                break;
+            }
+            transferred += n;
+        }
+        return transferred;
+    }
+
+    /**
+     * Ask the servlet container to send part of a file after the response is committed.
+     *
+     * @return true if container accepted the file, false if sendfile is not supported for current request
+     */
+    static boolean sendfile(File file, long start, long end) throws IOException {
+        final HttpServletRequest request = currentRequest();
+        if (request == null || !Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED_ATTRIBUTE))) {
+            return false;
+        }
+        request.setAttribute(SENDFILE_FILENAME_ATTRIBUTE, file.getCanonicalPath());
+        request.setAttribute(SENDFILE_START_ATTRIBUTE, start);
+        request.setAttribute(SENDFILE_END_ATTRIBUTE, end);
+        return true;
+    }
+
+    static File fileOf(Resource resource) {
+        try {
+            final File file = resource.getFile();
+            return (file != null && file.isFile()) ? file : null;
+        } catch (IOException | UnsupportedOperationException e) {
+            // not a file system resource
+            return null;
+        }
+    }
+
+    @FunctionalInterface
+    private interface RegionTransfer {
+        long transfer(long position, long count, WritableByteChannel target) throws IOException;
+    }
+
+    private static HttpServletRequest currentRequest() {
+        final RequestAttributes requestAttributes = RequestContextHolder.getRequestAttributes();
+        if (requestAttributes instanceof ServletRequestAttributes) {
+            return ((ServletRequestAttributes) requestAttributes).getRequest();
+        }
+        return null;
+    }
+}
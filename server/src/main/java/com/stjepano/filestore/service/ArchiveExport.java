@@ -0,0 +1,419 @@
+package com.stjepano.filestore.service;
+
+import com.stjepano.filestore.common.FileInfo;
+import com.stjepano.filestore.common.FilePage;
+import com.stjepano.filestore.common.tar.TarEntry;
+import com.stjepano.filestore.common.tar.TarOutputStream;
+import org.springframework.core.io.Resource;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.stream.Collectors;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes files of a bucket as a tar or zip archive to a stream while the files are read.
+ *
+ * Files are listed page by page and copied one at a time through a fixed buffer, so memory use depends neither on the
+ * number nor on the size of files and no archive is written to disk. Files which are deleted while the archive is
+ * written are left out, a file overwritten after it was opened is written as it was opened.
+ *
+ * An archive which can not be completed (a file can not be read or it changes while it is written) is left so that
+ * archive readers report it as corrupted, as it is usually partly sent already and the failure can not be reported
+ * otherwise.
+ */
+public class ArchiveExport {
+
+    /**
+     * Number of files listed with one page
+     */
+    static final int PAGE_SIZE = 1000;
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private static final String GZIP_ENCODING = "gzip";
+
+    /**
+     * Which files of a zip archive are compressed
+     */
+    public enum Compression {
+        /** compress all files */
+        ALL,
+        /** store files of already compressed mime types without compressing them again */
+        AUTO,
+        /** store all files */
+        NONE;
+
+        /**
+         * Get compression by its name, case is ignored.
+         * @throws InvalidBatchException if there is no such compression
+         */
+        public static Compression from(String name) {
+            try {
+                return valueOf(name.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new InvalidBatchException(String.format("Unknown compression '%s'!", name));
+            }
+        }
+    }
+
+    private final FileService fileService;
+    private final List<String> storedMimeTypes;
+
+    /**
+     * Initialize {@link ArchiveExport}.
+     * @param fileService service the files are read from
+     * @param storedMimeTypes already compressed mime types which are not compressed with {@link Compression#AUTO}, a
+     *                        type ending with /* matches all its subtypes (for example video/*)
+     */
+    public ArchiveExport(FileService fileService, Collection<String> storedMimeTypes) {
+        this.fileService = fileService;
+        this.storedMimeTypes = storedMimeTypes.stream()
+                .map(mimeType -> mimeType.trim().toLowerCase(Locale.ROOT))
+                .filter(mimeType -> !mimeType.isEmpty())
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Write files of a bucket whose names start with a prefix, files are written sorted by name.
+     * @param bucketId the bucket
+     * @param prefix prefix of file names, null for all files
+     * @param format format of the archive
+     * @param compression which files of a zip archive are compressed, ignored for tar archives
+     * @param out stream the archive is written to, it is not closed
+     * @throws BucketDoesNotExistException if bucket does not exist, nothing was written then
+     * @throws IOException if a file can not be read or archive can not be written, the archive is incomplete then
+     */
+    public void write(BucketId bucketId, String prefix, ArchiveIngest.Format format, Compression compression, OutputStream out)
+            throws BucketDoesNotExistException, IOException {
+        final FilePage firstPage = fileService.getFiles(bucketId, prefix, null, PAGE_SIZE);
+        write(bucketId, new PageIterator(bucketId, prefix, firstPage), format, compression, out);
+    }
+
+    /**
+     * Write given files of a bucket in the given order, files which do not exist are left out.
+     * @param bucketId the bucket
+     * @param filenames names of the files
+     * @param format format of the archive
+     * @param compression which files of a zip archive are compressed, ignored for tar archives
+     * @param out stream the archive is written to, it is not closed
+     * @throws BucketDoesNotExistException if bucket does not exist, nothing was written then
+     * @throws InvalidFileIdException if a file name is invalid, nothing was written then
+     * @throws IOException if a file can not be read or archive can not be written, the archive is incomplete then
+     */
+    public void write(BucketId bucketId, List<String> filenames, ArchiveIngest.Format format, Compression compression,
+                      OutputStream out)
+            throws BucketDoesNotExistException, IOException {
+        if (!fileService.getBuckets().contains(bucketId.getId())) {
+            throw new BucketDoesNotExistException(bucketId);
+        }
+        final List<FileId> fileIds = new ArrayList<>(filenames.size());
+        for (String filename : filenames) {
+            fileIds.add(FileId.from(bucketId.getId(), filename));
+        }
+        write(bucketId, new FileInfoIterator(fileIds.iterator()), format, compression, out);
+    }
+
+    private void write(BucketId bucketId, Iterator<FileInfo> files, ArchiveIngest.Format format, Compression compression,
+                       OutputStream out) throws BucketDoesNotExistException, IOException {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        // a failed archive must not look complete: a zip archive is left without its central directory and a tar
+        // archive ends with an invalid header
+        if (format == ArchiveIngest.Format.TAR) {
+            final TarOutputStream tar = new TarOutputStream(out);
+            try {
+                while (files.hasNext()) {
+                    final FileInfo fileInfo = files.next();
+                    final Resource file = download(bucketId, fileInfo);
+                    if (file != null) {
+                        try (OpenFile data = open(file)) {
+                            tar.putNextEntry(new TarEntry(fileInfo.getName(), data.size, TarEntry.FILE, lastModified(fileInfo)));
+                            copy(data.stream, tar, buffer);
+                            tar.closeEntry();
+                        } finally {
+                            close(file);
+                        }
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                try {
+                    tar.fail();
+                } catch (IOException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+                throw e;
+            }
+            tar.finish();
+        } else {
+            final ZipArchiveOutputStream zip = new ZipArchiveOutputStream(out);
+            try {
+                while (files.hasNext()) {
+                    final FileInfo fileInfo = files.next();
+                    final Resource file = download(bucketId, fileInfo);
+                    if (file != null) {
+                        try (InputStream data = file.getInputStream()) {
+                            // stored entries need their crc up front, so files which are not compressed are deflated
+                            // without compression instead, which costs a few bytes per 64KB and reads them only once
+                            zip.setLevel(isCompressed(fileInfo, compression) ? Deflater.DEFAULT_COMPRESSION : Deflater.NO_COMPRESSION);
+                            final ZipEntry entry = new ZipEntry(fileInfo.getName());
+                            entry.setTime(lastModified(fileInfo));
+                            zip.putNextEntry(entry);
+                            copy(data, zip, buffer);
+                            zip.closeEntry();
+                        } finally {
+                            close(file);
+                        }
+                    }
+                }
+                zip.finish();
+            } finally {
+                zip.release();
+            }
+        }
+    }
+
+    /**
+     * Get a file to write.
+     * @return the file or null if it was deleted after it was listed
+     */
+    private Resource download(BucketId bucketId, FileInfo fileInfo) throws BucketDoesNotExistException {
+        try {
+            return fileService.download(FileId.from(bucketId.getId(), fileInfo.getName()));
+        } catch (FileDoesNotExistException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Open data of a file together with its size. A file on disk is read from the channel its size is taken from, so
+     * a file overwritten after it was downloaded is written as it was opened. The size of a gzip compressed file on disk
+     * is checked against the size trailer of the opened file and counted by decoding it if they differ.
+     */
+    private static OpenFile open(Resource file) throws IOException {
+        final boolean gzip = file instanceof CompressedResource
+                && GZIP_ENCODING.equals(((CompressedResource) file).getContentEncoding());
+        final File stored = fileOf(gzip ? ((CompressedResource) file).getEncodedResource() : file);
+        if (stored == null) {
+            return new OpenFile(file.getInputStream(), file.contentLength());
+        }
+
+        final FileChannel channel = FileChannel.open(stored.toPath(), StandardOpenOption.READ);
+        try {
+            if (!gzip) {
+                return new OpenFile(Channels.newInputStream(channel), channel.size());
+            }
+            long size = file.contentLength();
+            if (gzipTrailerSize(channel) != (size & 0xffffffffL)) {
+                size = gzipDecodedSize(channel);
+            }
+            return new OpenFile(new GZIPInputStream(Channels.newInputStream(channel.position(0)), BUFFER_SIZE), size);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static File fileOf(Resource resource) {
+        try {
+            final File file = resource.getFile();
+            return (file != null && file.isFile()) ? file : null;
+        } catch (IOException | UnsupportedOperationException e) {
+            // not a file system resource
+            return null;
+        }
+    }
+
+    /**
+     * Get size of decoded data modulo 2^32 as stored in the last four bytes of a gzip file, -1 if file is too short
+     */
+    private static long gzipTrailerSize(FileChannel channel) throws IOException {
+        final ByteBuffer trailer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        final long position = channel.size() - trailer.capacity();
+        if (position < 0) {
+            return -1;
+        }
+        while (trailer.hasRemaining()) {
+            if (channel.read(trailer, position + trailer.position()) < 0) {
+                return -1;
+            }
+        }
+        return trailer.getInt(0) & 0xffffffffL;
+    }
+
+    private static long gzipDecodedSize(FileChannel channel) throws IOException {
+        // the stream is not closed, closing it would close the channel
+        final InputStream data = new GZIPInputStream(Channels.newInputStream(channel.position(0)), BUFFER_SIZE);
+        long size = 0;
+        long n;
+        while ((n = data.skip(Long.MAX_VALUE)) > 0) {
+            size += n;
+        }
+        return size;
+    }
+
+    private static long lastModified(FileInfo fileInfo) {
+        final LocalDateTime lastModified = fileInfo.getLastModified();
+        return lastModified == null ? 0 : lastModified.atZone(ZoneOffset.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private boolean isCompressed(FileInfo fileInfo, Compression compression) {
+        if (compression != Compression.AUTO) {
+            return compression == Compression.ALL;
+        }
+        final String mimeType = fileInfo.getMimeType() == null ? null : fileInfo.getMimeType().toLowerCase(Locale.ROOT);
+        if (mimeType == null) {
+            return true;
+        }
+        for (String stored : storedMimeTypes) {
+            if (stored.endsWith("/*")
+                    ? mimeType.startsWith(stored.substring(0, stored.length() - 1))
+                    : mimeType.equals(stored)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void copy(InputStream in, OutputStream out, byte[] buffer) throws IOException {
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+    }
+
+    private static void close(Resource file) throws IOException {
+        if (file instanceof Closeable) {
+            ((Closeable) file).close();
+        }
+    }
+
+    /**
+     * Data of a file and its size, both read from the file as it was opened
+     */
+    private static class OpenFile implements Closeable {
+
+        private final InputStream stream;
+        private final long size;
+
+        OpenFile(InputStream stream, long size) {
+            this.stream = stream;
+            this.size = size;
+        }
+
+        @Override
+        public void close() throws IOException {
+            stream.close();
+        }
+    }
+
+    /**
+     * A zip stream which is never closed as the underlying stream must stay open, its deflater is released instead.
+     */
+    private static class ZipArchiveOutputStream extends ZipOutputStream {
+
+        ZipArchiveOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        void release() {
+            def.end();
+        }
+    }
+
+    /**
+     * Iterates over files of pages of a listing, the next page is fetched when the current one was iterated over.
+     */
+    private class PageIterator implements Iterator<FileInfo> {
+
+        private final BucketId bucketId;
+        private final String prefix;
+        private FilePage page;
+        private Iterator<FileInfo> files;
+
+        PageIterator(BucketId bucketId, String prefix, FilePage firstPage) {
+            this.bucketId = bucketId;
+            this.prefix = prefix;
+            this.page = firstPage;
+            this.files = firstPage.getFiles().iterator();
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!files.hasNext() && page.getNextStartAfter() != null) {
+                try {
+                    page = fileService.getFiles(bucketId, prefix, page.getNextStartAfter(), PAGE_SIZE);
+                } catch (BucketDoesNotExistException e) {
+                    // bucket was deleted while the archive was written
+                    throw new IllegalStateException(e);
+                }
+                files = page.getFiles().iterator();
+            }
+            return files.hasNext();
+        }
+
+        @Override
+        public FileInfo next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return files.next();
+        }
+    }
+
+    /**
+     * Iterates over file info of given files, files which do not exist are skipped.
+     */
+    private class FileInfoIterator implements Iterator<FileInfo> {
+
+        private final Iterator<FileId> fileIds;
+        private FileInfo next;
+
+        FileInfoIterator(Iterator<FileId> fileIds) {
+            this.fileIds = fileIds;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && fileIds.hasNext()) {
+                try {
+                    next = fileService.getFileInfo(fileIds.next());
+                } catch (FileDoesNotExistException e) {
+                    // left out
+                } catch (BucketDoesNotExistException e) {
+                    // bucket was deleted while the archive was written
+                    throw new IllegalStateException(e);
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public FileInfo next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final FileInfo fileInfo = next;
+            next = null;
+            return fileInfo;
+        }
+    }
+}
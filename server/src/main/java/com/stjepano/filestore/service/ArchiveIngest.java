@@ -0,0 +1,409 @@
+package com.stjepano.filestore.service;
+
+import com.stjepano.filestore.common.BatchResult;
+import com.stjepano.filestore.common.tar.TarEntry;
+import com.stjepano.filestore.common.tar.TarInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Extracts files of a tar or zip archive into a bucket while the archive is read.
+ *
+ * Entries up to <i>bufferedEntrySize</i> are read into memory and written in parallel on the executor (at most
+ * <i>parallelism</i> of one archive at a time), larger entries are written directly from the archive by the reading
+ * thread, so an archive is never copied. Each entry gets a {@link BatchResult} whose operation tells what was done
+ * ({@link #UPLOAD}, {@link #OVERWRITE} or {@link #SKIP}), results are reported in the order in which writes complete
+ * (writes of the same file are done and reported in archive order) and a failed entry does not stop the extraction.
+ */
+public class ArchiveIngest {
+
+    /**
+     * A new file was created
+     */
+    public static final String UPLOAD = "upload";
+
+    /**
+     * An existing file was overwritten
+     */
+    public static final String OVERWRITE = "overwrite";
+
+    /**
+     * An existing file was left as it is
+     */
+    public static final String SKIP = "skip";
+
+    /**
+     * Archive format
+     */
+    public enum Format {
+        TAR,
+        ZIP;
+
+        /**
+         * Get format by its name, case is ignored.
+         * @throws InvalidBatchException if there is no such format
+         */
+        public static Format from(String name) {
+            try {
+                return valueOf(name.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new InvalidBatchException(String.format("Unknown archive format '%s'!", name));
+            }
+        }
+    }
+
+    /**
+     * What is done with an entry whose file already exists
+     */
+    public enum ConflictPolicy {
+        /** keep the existing file */
+        SKIP,
+        /** replace the existing file */
+        OVERWRITE,
+        /** report the entry as failed with status 409 */
+        FAIL;
+
+        /**
+         * Get policy by its name, case is ignored.
+         * @throws InvalidBatchException if there is no such policy
+         */
+        public static ConflictPolicy from(String name) {
+            try {
+                return valueOf(name.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new InvalidBatchException(String.format("Unknown conflict policy '%s'!", name));
+            }
+        }
+    }
+
+    /**
+     * Receives results of extracted entries, always on the thread which reads the archive
+     */
+    @FunctionalInterface
+    public interface ResultListener {
+        void onResult(BatchResult result) throws IOException;
+    }
+
+    private final FileService fileService;
+    private final Executor executor;
+    private final int parallelism;
+    private final int bufferedEntrySize;
+
+    /**
+     * Initialize {@link ArchiveIngest}.
+     * @param fileService service the files are written to
+     * @param executor executor of parallel writes, shared by all extractions
+     * @param parallelism maximal number of parallel writes of one extraction
+     * @param bufferedEntrySize maximal size of an entry which is read into memory and written in parallel
+     */
+    public ArchiveIngest(FileService fileService, Executor executor, int parallelism, int bufferedEntrySize) {
+        this.fileService = fileService;
+        this.executor = executor;
+        this.parallelism = parallelism;
+        this.bufferedEntrySize = bufferedEntrySize;
+    }
+
+    /**
+     * Extract regular files of an archive into a bucket, directory entries are skipped and other entries (links,
+     * devices) are reported as failed.
+     * @param bucketId the bucket
+     * @param format format of the archive, a compressed archive must be decompressed by the caller
+     * @param archive the archive, it is read to the end of archive but not closed
+     * @param policy what to do with files which already exist
+     * @param stripComponents number of leading path components removed from entry names, entries with fewer components
+     *                        are skipped and entries with more components fail as their names are not valid file names
+     * @param listener receives result of each extracted entry
+     * @throws BucketDoesNotExistException if bucket does not exist
+     * @throws IOException if archive is malformed or can not be read, or listener failed (results of entries written
+     *                     before are reported first)
+     */
+    public void extract(BucketId bucketId, Format format, InputStream archive, ConflictPolicy policy, int stripComponents,
+                        ResultListener listener)
+            throws BucketDoesNotExistException, IOException {
+        if (!fileService.getBuckets().contains(bucketId.getId())) {
+            throw new BucketDoesNotExistException(bucketId);
+        }
+        final Extraction extraction = new Extraction(bucketId, policy, listener);
+        final Entries entries = format == Format.TAR ? tarEntries(archive) : zipEntries(archive);
+        try {
+            Entry entry;
+            while ((entry = entries.next()) != null) {
+                final String name = strip(entry.name, stripComponents);
+                if (!entry.directory && name != null) {
+                    extraction.extract(name, entry);
+                }
+                extraction.reportCompleted();
+            }
+        } catch (IOException | RuntimeException e) {
+            try {
+                extraction.awaitAll();
+            } catch (IOException | RuntimeException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+        extraction.awaitAll();
+    }
+
+    /**
+     * State of one extraction, used only by the thread which reads the archive.
+     */
+    private class Extraction {
+
+        private final BucketId bucketId;
+        private final ConflictPolicy policy;
+        private final ResultListener listener;
+        private final CompletionService<BatchResult> completion = new ExecutorCompletionService<>(executor);
+        /** Writes which were not reported yet by file name, a later entry of the same file waits for them */
+        private final Map<String, Future<BatchResult>> pending = new HashMap<>();
+        private final byte[] chunk = new byte[8192];
+        private int inFlight;
+
+        Extraction(BucketId bucketId, ConflictPolicy policy, ResultListener listener) {
+            this.bucketId = bucketId;
+            this.policy = policy;
+            this.listener = listener;
+        }
+
+        void extract(String name, Entry entry) throws IOException {
+            if (!entry.file) {
+                listener.onResult(failed(new BatchResult(UPLOAD, name), 400, "Entry '" + entry.name + "' is not a regular file!"));
+                return;
+            }
+            final FileId fileId;
+            try {
+                fileId = FileId.from(bucketId.getId(), name);
+            } catch (InvalidFileIdException e) {
+                listener.onResult(failed(new BatchResult(UPLOAD, name), 400, e.getMessage()));
+                return;
+            }
+
+            final InputStream data = new NonClosingInputStream(entry.data);
+            final byte[] head = readHead(data);
+            awaitPending(name);
+            if (head.length <= bufferedEntrySize) {
+                while (inFlight >= parallelism) {
+                    report(take());
+                }
+                pending.put(name, completion.submit(() -> write(fileId, () -> new ByteArrayInputStream(head), true)));
+                inFlight++;
+            } else {
+                final InputStream streamed = new SequenceInputStream(new ByteArrayInputStream(head), data);
+                listener.onResult(write(fileId, () -> streamed, false));
+            }
+        }
+
+        /**
+         * Report writes which are complete without waiting for others
+         */
+        void reportCompleted() throws IOException {
+            Future<BatchResult> done;
+            while ((done = completion.poll()) != null) {
+                inFlight--;
+                report(done);
+            }
+        }
+
+        void awaitAll() throws IOException {
+            while (inFlight > 0) {
+                report(take());
+            }
+        }
+
+        /**
+         * Read up to one byte more than an entry which is written in parallel may have.
+         */
+        private byte[] readHead(InputStream data) throws IOException {
+            final ByteArrayOutputStream head = new ByteArrayOutputStream();
+            int n;
+            while (head.size() <= bufferedEntrySize
+                    && (n = data.read(chunk, 0, Math.min(chunk.length, bufferedEntrySize + 1 - head.size()))) >= 0) {
+                head.write(chunk, 0, n);
+            }
+            return head.toByteArray();
+        }
+
+        /**
+         * Report pending write of a file before the file is written again. A write is queued for completion only after
+         * it wakes threads waiting for it, so writes are awaited through the queue to report them in order.
+         */
+        private void awaitPending(String name) throws IOException {
+            while (pending.containsKey(name)) {
+                report(take());
+            }
+        }
+
+        private Future<BatchResult> take() throws IOException {
+            try {
+                final Future<BatchResult> done = completion.take();
+                inFlight--;
+                return done;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for extracted files to be written");
+            }
+        }
+
+        private void report(Future<BatchResult> done) throws IOException {
+            final BatchResult result = get(done);
+            pending.remove(result.getName(), done);
+            listener.onResult(result);
+        }
+
+        private BatchResult get(Future<BatchResult> future) throws IOException {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for extracted files to be written");
+            } catch (ExecutionException e) {
+                // write reports all failures in results
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+
+        /**
+         * Write one file according to conflict policy.
+         * @param data supplies data of the file, called again for a retry only if data is repeatable
+         */
+        private BatchResult write(FileId fileId, DataSupplier data, boolean repeatable) {
+            final BatchResult result = new BatchResult(UPLOAD, fileId.getFileName());
+            try {
+                if (policy == ConflictPolicy.OVERWRITE && !repeatable && exists(fileId)) {
+                    // data which can not be read again must not be offered to upload which may fail after reading it
+                    result.setOp(OVERWRITE);
+                    fileService.overwrite(fileId, data.get());
+                } else {
+                    try {
+                        fileService.upload(fileId, data.get());
+                    } catch (FileAlreadyExistException e) {
+                        if (policy == ConflictPolicy.SKIP) {
+                            result.setOp(SKIP);
+                        } else if (policy == ConflictPolicy.OVERWRITE && repeatable) {
+                            result.setOp(OVERWRITE);
+                            fileService.overwrite(fileId, data.get());
+                        } else {
+                            throw e;
+                        }
+                    }
+                }
+                result.setStatus(200);
+                return result;
+            } catch (FileAlreadyExistException e) {
+                return failed(result, 409, e.getMessage());
+            } catch (BucketDoesNotExistException | FileDoesNotExistException e) {
+                return failed(result, 404, e.getMessage());
+            } catch (Exception e) {
+                return failed(result, 500, e.getMessage());
+            }
+        }
+
+        private boolean exists(FileId fileId) throws BucketDoesNotExistException {
+            try {
+                fileService.getFileInfo(fileId);
+                return true;
+            } catch (FileDoesNotExistException e) {
+                return false;
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface DataSupplier {
+        InputStream get() throws IOException;
+    }
+
+    /**
+     * Remove leading path components of an entry name, empty and "." components are not counted.
+     * @return the name or null if it has no components left
+     */
+    static String strip(String name, int stripComponents) {
+        final StringBuilder stripped = new StringBuilder();
+        int skipped = 0;
+        for (String component : name.split("/")) {
+            if (component.isEmpty() || component.equals(".")) {
+                continue;
+            }
+            if (skipped < stripComponents) {
+                skipped++;
+                continue;
+            }
+            stripped.append(stripped.length() == 0 ? "" : "/").append(component);
+        }
+        return stripped.length() == 0 ? null : stripped.toString();
+    }
+
+    private static BatchResult failed(BatchResult result, int status, String message) {
+        result.setStatus(status);
+        result.setMessage(message);
+        return result;
+    }
+
+    /**
+     * An entry of an archive, its data is read from the archive until the next entry is requested
+     */
+    private static final class Entry {
+        final String name;
+        final boolean directory;
+        final boolean file;
+        final InputStream data;
+
+        Entry(String name, boolean directory, boolean file, InputStream data) {
+            this.name = name;
+            this.directory = directory;
+            this.file = file;
+            this.data = data;
+        }
+    }
+
+    @FunctionalInterface
+    private interface Entries {
+        Entry next() throws IOException;
+    }
+
+    private static Entries tarEntries(InputStream archive) {
+        final TarInputStream tar = new TarInputStream(archive);
+        return () -> {
+            final TarEntry entry = tar.getNextEntry();
+            return entry == null ? null : new Entry(entry.getName(), entry.isDirectory(), entry.isFile(), tar);
+        };
+    }
+
+    private static Entries zipEntries(InputStream archive) {
+        final ZipInputStream zip = new ZipInputStream(archive);
+        return () -> {
+            final ZipEntry entry = zip.getNextEntry();
+            return entry == null ? null : new Entry(entry.getName(), entry.isDirectory(), !entry.isDirectory(), zip);
+        };
+    }
+
+    /**
+     * Keeps the archive open when file service closes data of an entry
+     */
+    private static class NonClosingInputStream extends FilterInputStream {
+        NonClosingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public void close() {
+            // archive is closed by its owner
+        }
+    }
+}
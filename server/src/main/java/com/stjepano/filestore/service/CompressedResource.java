@@ -0,0 +1,21 @@
+package com.stjepano.filestore.service;
+
+import org.springframework.core.io.Resource;
+
+/**
+ * A {@link Resource} of a file stored compressed, reading the resource gives the original (decoded) content.
+ *
+ * Stored bytes can be sent as they are to clients which accept the content encoding.
+ */
+public interface CompressedResource extends Resource {
+
+    /**
+     * Content encoding of stored bytes as used in Content-Encoding header, for example gzip
+     */
+    String getContentEncoding();
+
+    /**
+     * Get stored (encoded) bytes of the file as a resource
+     */
+    Resource getEncodedResource();
+}
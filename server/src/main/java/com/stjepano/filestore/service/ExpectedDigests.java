@@ -0,0 +1,45 @@
+package com.stjepano.filestore.service;
+
+/**
+ * Digests of uploaded data supplied by the client (for example with Content-MD5 or Digest header), an upload whose
+ * data does not match any of them is rejected with {@link ContentDigestMismatchException}.
+ */
+public final class ExpectedDigests {
+
+    /**
+     * No expected digests, nothing is verified
+     */
+    public static final ExpectedDigests NONE = new ExpectedDigests(null, null, null);
+
+    private final byte[] md5;
+    private final byte[] sha256;
+    private final Integer crc32c;
+
+    /**
+     * Initialize {@link ExpectedDigests}, each digest is optional.
+     * @param md5 MD5 digest or null
+     * @param sha256 SHA-256 digest or null
+     * @param crc32c CRC32C checksum or null
+     */
+    public ExpectedDigests(byte[] md5, byte[] sha256, Integer crc32c) {
+        this.md5 = md5;
+        this.sha256 = sha256;
+        this.crc32c = crc32c;
+    }
+
+    public byte[] getMd5() {
+        return md5;
+    }
+
+    public byte[] getSha256() {
+        return sha256;
+    }
+
+    public Integer getCrc32c() {
+        return crc32c;
+    }
+
+    public boolean isEmpty() {
+        return md5 == null && sha256 == null && crc32c == null;
+    }
+}
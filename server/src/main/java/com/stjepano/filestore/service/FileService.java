@@ -5,8 +5,10 @@ import org.springframework.stereotype.Service;
 
 import java.io.InputStream;
 import java.util.List;
+import java.util.stream.Stream;
 
 import com.stjepano.filestore.common.FileInfo;
+import com.stjepano.filestore.common.FilePage;
 
 /**
  * File service responsible for reading and storing files.
@@ -43,6 +45,39 @@ public interface FileService {
      */
     List<FileInfo> getFiles(BucketId bucketId) throws BucketDoesNotExistException;
 
+    /**
+     * Get a page of files sorted alphabetically in ascending order
+     * @param bucketId the id of the bucket
+     * @param prefix only files with names starting with prefix are returned, null for all files
+     * @param startAfter only files with names after this one are returned, null to start from the first file
+     * @param limit maximal number of files in the page, must be positive
+     * @return a {@link FilePage} with next page cursor set if there are more files
+     * @throws BucketDoesNotExistException if bucket does not exist
+     */
+    FilePage getFiles(BucketId bucketId, String prefix, String startAfter, int limit) throws BucketDoesNotExistException;
+
+    /**
+     * Get all files as a lazily populated stream, the stream must be closed after use.
+     *
+     * Files are read as the stream is consumed so memory use does not depend on the number of files. Files are sorted
+     * alphabetically only if implementation keeps them sorted anyway.
+     *
+     * @param bucketId the id of the bucket
+     * @return a stream of {@link FileInfo} objects
+     * @throws BucketDoesNotExistException if bucket does not exist
+     */
+    Stream<FileInfo> streamFiles(BucketId bucketId) throws BucketDoesNotExistException;
+
+    /**
+     * Get info of a single file without reading its content.
+     *
+     * @param fileId the id of the file
+     * @return file info
+     * @throws BucketDoesNotExistException if bucket does not exist
+     * @throws FileDoesNotExistException if file does not exist
+     */
+    FileInfo getFileInfo(FileId fileId) throws BucketDoesNotExistException, FileDoesNotExistException;
+
     /**
      * Delete file from bucket.
      * @param fileId the id of the file
@@ -59,7 +94,28 @@ public interface FileService {
      * @throws BucketDoesNotExistException if bucket does not exist
      * @throws FileAlreadyExistException if file already exists
      */
-    void upload(FileId fileId, InputStream dataStream) throws BucketDoesNotExistException, FileAlreadyExistException;
+    default void upload(FileId fileId, InputStream dataStream) throws BucketDoesNotExistException, FileAlreadyExistException {
+        try {
+            upload(fileId, dataStream, ExpectedDigests.NONE);
+        } catch (ContentDigestMismatchException e) {
+            // nothing is verified without expected digests
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Upload file to bucket and verify its data against digests supplied by the client, digests are computed while
+     * data is written and a file which does not match is not stored.
+     *
+     * @param fileId the id of the file
+     * @param dataStream file data stream
+     * @param expectedDigests digests the data must match
+     * @throws BucketDoesNotExistException if bucket does not exist
+     * @throws FileAlreadyExistException if file already exists
+     * @throws ContentDigestMismatchException if data does not match one of expected digests
+     */
+    void upload(FileId fileId, InputStream dataStream, ExpectedDigests expectedDigests)
+            throws BucketDoesNotExistException, FileAlreadyExistException, ContentDigestMismatchException;
 
     /**
      * Upload file to bucket and overwrite file that already exist.
@@ -69,7 +125,28 @@ public interface FileService {
      * @throws BucketDoesNotExistException if bucket does not exist
      * @throws FileDoesNotExistException if file specified with filename does not exist
      */
-    void overwrite(FileId fileId, InputStream dataStream) throws BucketDoesNotExistException, FileDoesNotExistException;
+    default void overwrite(FileId fileId, InputStream dataStream) throws BucketDoesNotExistException, FileDoesNotExistException {
+        try {
+            overwrite(fileId, dataStream, ExpectedDigests.NONE);
+        } catch (ContentDigestMismatchException e) {
+            // nothing is verified without expected digests
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Upload file to bucket and overwrite file that already exist, data is verified against digests supplied by the
+     * client and the old file is kept if it does not match.
+     *
+     * @param fileId the id of the file
+     * @param dataStream HTTP file data stream
+     * @param expectedDigests digests the data must match
+     * @throws BucketDoesNotExistException if bucket does not exist
+     * @throws FileDoesNotExistException if file specified with filename does not exist
+     * @throws ContentDigestMismatchException if data does not match one of expected digests
+     */
+    void overwrite(FileId fileId, InputStream dataStream, ExpectedDigests expectedDigests)
+            throws BucketDoesNotExistException, FileDoesNotExistException, ContentDigestMismatchException;
 
     /**
      * Download file from bucket as {@link Resource}.
@@ -0,0 +1,22 @@
+package com.stjepano.filestore.service;
+
+import org.springframework.core.io.Resource;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A {@link Resource} which can write its content directly to a channel without copying it through an input stream.
+ */
+public interface TransferableResource extends Resource {
+
+    /**
+     * Write count bytes of resource content starting at given position to target channel.
+     * @param position position of the first byte
+     * @param count number of bytes to write
+     * @param target the target channel
+     * @return number of bytes written
+     * @throws IOException if writing to target fails
+     */
+    long transferTo(long position, long count, WritableByteChannel target) throws IOException;
+}
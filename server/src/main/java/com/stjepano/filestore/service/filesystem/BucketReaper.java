@@ -0,0 +1,378 @@
+package com.stjepano.filestore.service.filesystem;
+
+import com.stjepano.filestore.service.BucketId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystem;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Deletes directories of deleted buckets in the background.
+ *
+ * {@link FileSystemFileService} moves the directory of a deleted bucket into the trash directory with one atomic rename,
+ * so deleting a bucket takes the same time whatever its size and the bucket can be created again at once. Trashed
+ * directories are deleted one after another by a daemon thread which walks them and hands their files in batches to a
+ * pool of workers, deletes are limited to a maximal rate so that reaping does not take disk I/O from requests.
+ * Directories left in the trash by a restart (or a failure) are deleted when the reaper is started again.
+ *
+ * The trash directory must be on the same file system as buckets, otherwise buckets are deleted in place.
+ */
+public class BucketReaper {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BucketReaper.class);
+
+    /**
+     * Number of files deleted by one task of a worker
+     */
+    static final int BATCH_SIZE = 1000;
+
+    private final Path trashPath;
+    private final int parallelism;
+    /** Interval between two deletes, 0 if deletes are not limited */
+    private final long deleteIntervalNanos;
+    private final AtomicLong nextDeleteNanos = new AtomicLong();
+
+    private final BlockingQueue<Path> pending = new LinkedBlockingQueue<>();
+    /** Trashed directories which are not deleted yet, including the one being deleted */
+    private final AtomicInteger backlog = new AtomicInteger();
+
+    private ContentAddressedBlobStore blobStore;
+
+    private Thread reaperThread;
+    private ExecutorService workers;
+
+    private final LongAdder reaped = new LongAdder();
+    private final LongAdder deletedFiles = new LongAdder();
+    private final LongAdder deletedBytes = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    /**
+     * Initialize {@link BucketReaper}, {@link #start()} must be called before buckets are trashed.
+     * @param trashDir directory of trashed buckets, must be on the same file system as buckets
+     * @param fileSystem file system of the trash directory
+     * @param parallelism number of threads deleting files
+     * @param maxDeletesPerSecond maximal number of files deleted per second by all threads, 0 for no limit
+     */
+    public BucketReaper(String trashDir, FileSystem fileSystem, int parallelism, int maxDeletesPerSecond) {
+        this.trashPath = fileSystem.getPath(trashDir);
+        this.parallelism = Math.max(1, parallelism);
+        this.deleteIntervalNanos = maxDeletesPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / maxDeletesPerSecond : 0;
+    }
+
+    /**
+     * Release blobs of deleted files in given blob store.
+     * @param blobStore the blob store of deduplicated files or null
+     */
+    public void setBlobStore(ContentAddressedBlobStore blobStore) {
+        this.blobStore = blobStore;
+    }
+
+    /**
+     * Create trash directory if needed and start deleting trashed directories, including those left by a previous run.
+     */
+    public synchronized void start() {
+        if (reaperThread != null) {
+            return;
+        }
+        try {
+            Files.createDirectories(trashPath);
+            try (DirectoryStream<Path> trashed = Files.newDirectoryStream(trashPath)) {
+                for (Path directory : trashed) {
+                    backlog.incrementAndGet();
+                    pending.add(directory);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        if (!pending.isEmpty()) {
+            LOGGER.info("Found {} trashed buckets to delete", pending.size());
+        }
+        final AtomicInteger workerCount = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(parallelism, runnable -> {
+            final Thread thread = new Thread(runnable, "filestore-reaper-worker-" + workerCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        reaperThread = new Thread(this::reap, "filestore-reaper");
+        reaperThread.setDaemon(true);
+        reaperThread.start();
+    }
+
+    /**
+     * Stop deleting, the directory being deleted is left in the trash and deleted after the next start.
+     */
+    public synchronized void stop() {
+        if (reaperThread == null) {
+            return;
+        }
+        reaperThread.interrupt();
+        workers.shutdownNow();
+        try {
+            reaperThread.join(1000);
+            workers.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        reaperThread = null;
+        workers = null;
+    }
+
+    /**
+     * Move directory of a bucket into the trash, it is deleted in the background.
+     * @param bucketId the bucket
+     * @param bucketPath directory of the bucket
+     * @return false if directory can not be moved atomically into the trash, it must be deleted in place then
+     */
+    boolean trash(BucketId bucketId, Path bucketPath) throws IOException {
+        // a bucket can be deleted again before its previous directory was deleted
+        final Path trashed = trashPath.resolve(bucketId.getId() + "-" + UUID.randomUUID());
+        try {
+            Files.move(bucketPath, trashed, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            LOGGER.warn("Bucket '{}' can not be moved to trash directory '{}', it is deleted in place", bucketId, trashPath);
+            return false;
+        }
+        backlog.incrementAndGet();
+        pending.add(trashed);
+        return true;
+    }
+
+    private void reap() {
+        while (!Thread.currentThread().isInterrupted()) {
+            final Path directory;
+            try {
+                directory = pending.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                delete(directory);
+                reaped.increment();
+            } catch (InterruptedException e) {
+                LOGGER.info("Stopped deleting trashed bucket directory '{}'", directory);
+                return;
+            } catch (IOException | RuntimeException e) {
+                failures.increment();
+                LOGGER.error("Could not delete trashed bucket directory '{}', it is retried after restart", directory, e);
+            } finally {
+                backlog.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Delete files of a directory with workers, subdirectories are deleted once all their files are deleted.
+     */
+    private void delete(Path directory) throws IOException, InterruptedException {
+        // at most two batches per worker are queued, so a large directory is not listed into memory
+        final Semaphore batches = new Semaphore(parallelism * 2);
+        final AtomicReference<IOException> failure = new AtomicReference<>();
+        final List<Path> directories = new ArrayList<>();
+        final List<TrashedFile> batch = new ArrayList<>(BATCH_SIZE);
+        try {
+            Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    batch.add(new TrashedFile(file, attrs.size(), attrs.fileKey()));
+                    if (batch.size() == BATCH_SIZE) {
+                        submit(new ArrayList<>(batch), batches, failure);
+                        batch.clear();
+                    }
+                    return failure.get() == null ? FileVisitResult.CONTINUE : FileVisitResult.TERMINATE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    // deleted anyway, delete-only access is possible
+                    batch.add(new TrashedFile(file, 0, null));
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException exc) {
+                    directories.add(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            if (!batch.isEmpty()) {
+                submit(new ArrayList<>(batch), batches, failure);
+            }
+        } catch (Interrupted e) {
+            throw e.interrupted;
+        } finally {
+            // wait for submitted batches
+            batches.acquire(parallelism * 2);
+            batches.release(parallelism * 2);
+        }
+        if (failure.get() instanceof Interrupted) {
+            throw ((Interrupted) failure.get()).interrupted;
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        // directories were visited after their contents
+        for (Path dir : directories) {
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    private void submit(List<TrashedFile> files, Semaphore batches, AtomicReference<IOException> failure)
+            throws Interrupted {
+        try {
+            batches.acquire();
+        } catch (InterruptedException e) {
+            throw new Interrupted(e);
+        }
+        try {
+            workers.execute(() -> {
+                try {
+                    for (TrashedFile file : files) {
+                        throttle();
+                        delete(file);
+                    }
+                } catch (IOException e) {
+                    failure.compareAndSet(null, e);
+                } catch (InterruptedException e) {
+                    failure.compareAndSet(null, new Interrupted(e));
+                } finally {
+                    batches.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // reaper was stopped
+            batches.release();
+            throw new Interrupted(new InterruptedException());
+        }
+    }
+
+    private void delete(TrashedFile file) throws IOException {
+        try {
+            Files.delete(file.path);
+        } catch (NoSuchFileException e) {
+            return;
+        }
+        deletedFiles.increment();
+        deletedBytes.add(file.size);
+        if (blobStore != null && file.fileKey != null) {
+            try {
+                blobStore.release(file.fileKey);
+            } catch (IOException e) {
+                LOGGER.warn("Could not release blob of deleted file", e);
+            }
+        }
+    }
+
+    /**
+     * Wait for the next free slot of the delete rate
+     */
+    private void throttle() throws InterruptedException {
+        if (deleteIntervalNanos == 0) {
+            return;
+        }
+        final long now = System.nanoTime();
+        final long slot = nextDeleteNanos.getAndAccumulate(now, (next, time) -> Math.max(next, time) + deleteIntervalNanos);
+        final long wait = slot - now;
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    /**
+     * Number of trashed bucket directories which are not deleted yet, including the one being deleted
+     */
+    public int getPending() {
+        return backlog.get();
+    }
+
+    /**
+     * Number of trashed bucket directories deleted completely
+     */
+    public long getReaped() {
+        return reaped.sum();
+    }
+
+    /**
+     * Number of files deleted from the trash
+     */
+    public long getDeletedFiles() {
+        return deletedFiles.sum();
+    }
+
+    /**
+     * Number of bytes of files deleted from the trash
+     */
+    public long getDeletedBytes() {
+        return deletedBytes.sum();
+    }
+
+    /**
+     * Number of trashed bucket directories which could not be deleted
+     */
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    /**
+     * Wait until all trashed directories are deleted, used by tests.
+     * @return false if they were not deleted in time
+     */
+    boolean awaitEmpty(long timeoutMillis) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (getPending() > 0) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    private static class TrashedFile {
+        final Path path;
+        final long size;
+        final Object fileKey;
+
+        TrashedFile(Path path, long size, Object fileKey) {
+            this.path = path;
+            this.size = size;
+            this.fileKey = fileKey;
+        }
+    }
+
+    /**
+     * Carries an interrupt through {@link Files#walkFileTree}
+     */
+    private static class Interrupted extends IOException {
+        final InterruptedException interrupted;
+
+        Interrupted(InterruptedException interrupted) {
+            super(interrupted);
+            this.interrupted = interrupted;
+        }
+    }
+}
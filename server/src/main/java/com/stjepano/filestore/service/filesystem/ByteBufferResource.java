@@ -0,0 +1,107 @@
+package com.stjepano.filestore.service.filesystem;
+
+import com.stjepano.filestore.service.TransferableResource;
+import org.springframework.core.io.AbstractResource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A resource with content held in a (possibly direct or mapped) {@link ByteBuffer}.
+ *
+ * The buffer is never modified, every read works on its own view of the buffer.
+ */
+public class ByteBufferResource extends AbstractResource implements TransferableResource {
+
+    private final ByteBuffer buffer;
+    private final String filename;
+    private final long lastModified;
+
+    /**
+     * Initialize {@link ByteBufferResource}.
+     * @param buffer content of the resource, from position to limit
+     * @param filename the name of the file
+     * @param lastModified last modification time of the file in millis
+     */
+    public ByteBufferResource(ByteBuffer buffer, String filename, long lastModified) {
+        this.buffer = buffer.asReadOnlyBuffer();
+        this.filename = filename;
+        this.lastModified = lastModified;
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        final ByteBuffer view = buffer.duplicate();
+        final int start = view.position() + (int) Math.min(position, view.remaining());
+        view.position(start);
+        view.limit(start + (int) Math.min(count, view.remaining()));
+        long written = 0;
+        while (view.hasRemaining()) {
+            written += target.write(view);
+        }
+        return written;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        final ByteBuffer view = buffer.duplicate();
+        return new InputStream() {
+            @Override
+            public int read() {
+                return view.hasRemaining() ? view.get() & 0xff : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (len == 0) {
+                    return 0;
+                }
+                if (!view.hasRemaining()) {
+                    return -1;
+                }
+                final int n = Math.min(len, view.remaining());
+                view.get(b, off, n);
+                return n;
+            }
+
+            @Override
+            public long skip(long n) {
+                final int skipped = (int) Math.max(0, Math.min(n, view.remaining()));
+                view.position(view.position() + skipped);
+                return skipped;
+            }
+
+            @Override
+            public int available() {
+                return view.remaining();
+            }
+        };
+    }
+
+    @Override
+    public boolean exists() {
+        return true;
+    }
+
+    @Override
+    public long contentLength() {
+        return buffer.remaining();
+    }
+
+    @Override
+    public long lastModified() {
+        return lastModified;
+    }
+
+    @Override
+    public String getFilename() {
+        return filename;
+    }
+
+    @Override
+    public String getDescription() {
+        return "Cached content of file [" + filename + "]";
+    }
+}
@@ -0,0 +1,267 @@
+package com.stjepano.filestore.service.filesystem;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Store of unique file contents used by {@link FileSystemFileService} to keep identical files only once.
+ *
+ * Each content is stored once as a blob named by its SHA-256 digest ({@code blobsDir/ab/abcd...}) and files in buckets
+ * are hard links to their blob. Downloads and listings therefore read bucket files as before, while the link count of
+ * a blob is its reference count: a blob is deleted when the last file linking to it is deleted or replaced.
+ *
+ * Files linking to a blob share its attributes, so their modification time is the time of the latest upload of the
+ * content.
+ *
+ * Blobs are never changed in place, new content always gets a new blob. The content directory must be on a file system
+ * which supports hard links and link counts (unix attribute view).
+ */
+public class ContentAddressedBlobStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ContentAddressedBlobStore.class);
+
+    static final String DIGEST_ALGORITHM = "SHA-256";
+
+    private static final int LOCK_STRIPES = 256;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Path blobsPath;
+
+    private final Lock[] locks = new Lock[LOCK_STRIPES];
+
+    // file key (inode) of each blob to its digest, used to find the blob of a bucket file
+    private final ConcurrentMap<Object, String> digests = new ConcurrentHashMap<>();
+
+    private final LongAdder deduplicated = new LongAdder();
+    private final LongAdder deduplicatedBytes = new LongAdder();
+    private final LongAdder reclaimed = new LongAdder();
+
+    /**
+     * Initialize {@link ContentAddressedBlobStore}, {@link #load()} must be called before use.
+     * @param blobsDir directory of blobs, must be on the same file system as buckets
+     * @param fileSystem file system of the blobs directory
+     */
+    public ContentAddressedBlobStore(String blobsDir, FileSystem fileSystem) {
+        this.blobsPath = fileSystem.getPath(blobsDir);
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Create blobs directory if needed, index existing blobs and delete blobs which are not referenced by any file.
+     * @throws IllegalStateException if file system does not support link counts
+     */
+    public void load() {
+        try {
+            Files.createDirectories(blobsPath);
+            linkCount(blobsPath);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            throw new IllegalStateException("File system of '" + blobsPath + "' does not support hard link counts!", e);
+        }
+
+        int deleted = 0;
+        try (DirectoryStream<Path> prefixes = Files.newDirectoryStream(blobsPath, Files::isDirectory)) {
+            for (Path prefix : prefixes) {
+                try (DirectoryStream<Path> blobs = Files.newDirectoryStream(prefix)) {
+                    for (Path blob : blobs) {
+                        if (linkCount(blob) <= 1) {
+                            Files.delete(blob);
+                            deleted++;
+                        } else {
+                            digests.put(fileKey(blob), blob.getFileName().toString());
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        LOGGER.info("Loaded {} blobs, deleted {} unreferenced blobs", digests.size(), deleted);
+    }
+
+    /**
+     * Create a digest which must be updated with all data of a file before it is published.
+     */
+    public MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Create a digest of a file stored with given content encoding from a digest updated with its original data. A
+     * digest of a digest can not match a digest of other data, so stored bytes of an encoded file never share a blob
+     * with a file stored as it is.
+     * @param digest digest of all original data of the file
+     * @param contentEncoding encoding of stored bytes, for example gzip
+     */
+    public byte[] encodedDigest(byte[] digest, String contentEncoding) {
+        final MessageDigest encodedDigest = newDigest();
+        encodedDigest.update(contentEncoding.getBytes(StandardCharsets.US_ASCII));
+        encodedDigest.update((byte) 0);
+        encodedDigest.update(digest);
+        return encodedDigest.digest();
+    }
+
+    /**
+     * Store content of temporary file as a blob (or drop it if the blob exists) and link target file to the blob.
+     *
+     * @param tempPath temporary file with the content, on return it is moved to blob store or deleted
+     * @param digest digest of the content of temporary file (see {@link #newDigest()})
+     * @param filePath target file in a bucket
+     * @param replace if true existing target file is atomically replaced (temporary path is used to stage the link),
+     *                otherwise {@link java.nio.file.FileAlreadyExistsException} is thrown if target exists
+     */
+    public void publish(Path tempPath, byte[] digest, Path filePath, boolean replace) throws IOException {
+        final String hex = toHex(digest);
+        final Path blobPath = blobPath(hex);
+        final Lock lock = lock(hex);
+        lock.lock();
+        try {
+            if (Files.exists(blobPath)) {
+                deduplicated.increment();
+                deduplicatedBytes.add(Files.size(tempPath));
+                Files.delete(tempPath);
+                // links share modification time of the blob, it becomes time of the latest upload so that no file
+                // reports time older than its upload and last modified time of a file never goes back
+                ContentHash.touch(blobPath, FileTime.fromMillis(System.currentTimeMillis()));
+            } else {
+                Files.createDirectories(blobPath.getParent());
+                move(tempPath, blobPath);
+                digests.put(fileKey(blobPath), hex);
+            }
+
+            try {
+                if (replace) {
+                    Files.createLink(tempPath, blobPath);
+                    move(tempPath, filePath);
+                } else {
+                    Files.createLink(filePath, blobPath);
+                }
+            } finally {
+                deleteIfUnreferenced(blobPath);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the key by which a file is released after it is deleted or replaced.
+     * @return the key or null if file does not exist
+     */
+    public Object fileKey(Path filePath) throws IOException {
+        if (!Files.exists(filePath)) {
+            return null;
+        }
+        return Files.readAttributes(filePath, BasicFileAttributes.class).fileKey();
+    }
+
+    /**
+     * Delete the blob of a deleted or replaced file if no other file links to it.
+     * @param fileKey key of the file taken before it was deleted or replaced, files which are not blobs are ignored
+     */
+    public void release(Object fileKey) throws IOException {
+        final String hex = (fileKey == null) ? null : digests.get(fileKey);
+        if (hex == null) {
+            return;
+        }
+        final Lock lock = lock(hex);
+        lock.lock();
+        try {
+            deleteIfUnreferenced(blobPath(hex));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void deleteIfUnreferenced(Path blobPath) throws IOException {
+        if (Files.exists(blobPath) && linkCount(blobPath) <= 1) {
+            final Object fileKey = fileKey(blobPath);
+            Files.delete(blobPath);
+            digests.remove(fileKey);
+            reclaimed.increment();
+        }
+    }
+
+    /**
+     * Number of stored blobs
+     */
+    public int getBlobs() {
+        return digests.size();
+    }
+
+    /**
+     * Number of published files whose content was already stored
+     */
+    public long getDeduplicated() {
+        return deduplicated.sum();
+    }
+
+    /**
+     * Total size of published files whose content was already stored
+     */
+    public long getDeduplicatedBytes() {
+        return deduplicatedBytes.sum();
+    }
+
+    /**
+     * Number of blobs deleted because no file links to them anymore
+     */
+    public long getReclaimed() {
+        return reclaimed.sum();
+    }
+
+    private Path blobPath(String hex) {
+        return blobsPath.resolve(hex.substring(0, 2)).resolve(hex);
+    }
+
+    private Lock lock(String hex) {
+        return locks[hex.hashCode() & (locks.length - 1)];
+    }
+
+    private static int linkCount(Path path) throws IOException {
+        return ((Number) Files.getAttribute(path, "unix:nlink")).intValue();
+    }
+
+    private static void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        final char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[2 * i + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+}
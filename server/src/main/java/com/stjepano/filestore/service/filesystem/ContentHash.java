@@ -0,0 +1,116 @@
+package com.stjepano.filestore.service.filesystem;
+
+import com.stjepano.filestore.common.FileInfo;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 digest and CRC32C checksum of file content computed while a file is uploaded and kept in a user defined
+ * attribute of the file.
+ *
+ * The attribute holds the checksums together with modification time of the file at the time it was written, checksums
+ * of a file which was changed afterwards (for example by another process) are ignored.
+ */
+final class ContentHash {
+
+    static final String ATTRIBUTE = "filestore.checksums";
+
+    private final String sha256;
+    private final String crc32c;
+
+    private ContentHash(String sha256, String crc32c) {
+        this.sha256 = sha256;
+        this.crc32c = crc32c;
+    }
+
+    /**
+     * Create a digest which must be updated with all original data of a file
+     */
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ContentAddressedBlobStore.DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Store checksums of a written file.
+     * @param path the file, it must not be changed afterwards
+     * @param sha256 SHA-256 digest of original content of the file
+     * @param crc32c CRC32C checksum of original content of the file
+     */
+    static void write(Path path, byte[] sha256, long crc32c) throws IOException {
+        final long lastModified = Files.getLastModifiedTime(path).toMillis();
+        UserAttributes.write(path, ATTRIBUTE,
+                ContentAddressedBlobStore.toHex(sha256) + " " + crc32cHex(crc32c) + " " + lastModified);
+    }
+
+    /**
+     * Set modification time of a file, stored checksums of the file stay valid.
+     * @param path the file
+     * @param lastModified new modification time
+     */
+    static void touch(Path path, FileTime lastModified) throws IOException {
+        final ContentHash contentHash = read(path);
+        Files.setLastModifiedTime(path, lastModified);
+        if (contentHash != null) {
+            UserAttributes.write(path, ATTRIBUTE, contentHash.sha256 + " " + contentHash.crc32c + " "
+                    + Files.getLastModifiedTime(path).toMillis());
+        }
+    }
+
+    /**
+     * Get stored checksums of a file.
+     * @return the checksums or null if file has none or it was changed after they were stored
+     */
+    static ContentHash read(Path path) throws IOException {
+        final String attribute = UserAttributes.read(path, ATTRIBUTE);
+        if (attribute == null) {
+            return null;
+        }
+        final String[] values = attribute.split(" ");
+        if (values.length != 3) {
+            return null;
+        }
+        try {
+            final long lastModified = Long.parseLong(values[2]);
+            return lastModified == Files.getLastModifiedTime(path).toMillis() ? new ContentHash(values[0], values[1]) : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Set checksums of file info, checksums may be null
+     */
+    static FileInfo apply(ContentHash contentHash, FileInfo fileInfo) {
+        fileInfo.setSha256(contentHash != null ? contentHash.sha256 : null);
+        fileInfo.setCrc32c(contentHash != null ? contentHash.crc32c : null);
+        return fileInfo;
+    }
+
+    /**
+     * Hex encoded SHA-256 digest
+     */
+    String getSha256() {
+        return sha256;
+    }
+
+    /**
+     * Hex encoded CRC32C checksum, eight digits
+     */
+    String getCrc32c() {
+        return crc32c;
+    }
+
+    static String crc32cHex(long crc32c) {
+        final String hex = Long.toHexString(crc32c);
+        return "00000000".substring(hex.length()) + hex;
+    }
+}
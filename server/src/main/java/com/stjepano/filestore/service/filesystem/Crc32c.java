@@ -0,0 +1,87 @@
+package com.stjepano.filestore.service.filesystem;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * CRC32C (Castagnoli) checksum, the JDK has it only since Java 9.
+ *
+ * Uses slicing-by-8 tables so that eight bytes are processed with one table lookup each per iteration.
+ */
+final class Crc32c implements Checksum {
+
+    private static final int POLYNOMIAL = 0x82F63B78;
+
+    private static final int[][] TABLES = new int[8][256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+            }
+            TABLES[0][i] = crc;
+        }
+        for (int i = 0; i < 256; i++) {
+            for (int table = 1; table < 8; table++) {
+                TABLES[table][i] = (TABLES[table - 1][i] >>> 8) ^ TABLES[0][TABLES[table - 1][i] & 0xff];
+            }
+        }
+    }
+
+    private int crc = 0xffffffff;
+    private byte[] chunk;
+
+    @Override
+    public void update(int b) {
+        crc = (crc >>> 8) ^ TABLES[0][(crc ^ b) & 0xff];
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        final int[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2], t3 = TABLES[3];
+        final int[] t4 = TABLES[4], t5 = TABLES[5], t6 = TABLES[6], t7 = TABLES[7];
+        int c = crc;
+        final int end = off + len;
+        while (end - off >= 8) {
+            final int low = c ^ ((b[off] & 0xff) | (b[off + 1] & 0xff) << 8 | (b[off + 2] & 0xff) << 16 | (b[off + 3] & 0xff) << 24);
+            c = t7[low & 0xff] ^ t6[(low >>> 8) & 0xff] ^ t5[(low >>> 16) & 0xff] ^ t4[low >>> 24]
+                    ^ t3[b[off + 4] & 0xff] ^ t2[b[off + 5] & 0xff] ^ t1[b[off + 6] & 0xff] ^ t0[b[off + 7] & 0xff];
+            off += 8;
+        }
+        while (off < end) {
+            c = (c >>> 8) ^ t0[(c ^ b[off++]) & 0xff];
+        }
+        crc = c;
+    }
+
+    /**
+     * Update the checksum with remaining bytes of a buffer, on return position of the buffer is its limit.
+     */
+    public void update(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+            return;
+        }
+        // direct buffers are copied to the heap in chunks, table lookups need bytes in an array anyway
+        if (chunk == null) {
+            chunk = new byte[8192];
+        }
+        while (buffer.hasRemaining()) {
+            final int n = Math.min(buffer.remaining(), chunk.length);
+            buffer.get(chunk, 0, n);
+            update(chunk, 0, n);
+        }
+    }
+
+    @Override
+    public long getValue() {
+        return ~crc & 0xffffffffL;
+    }
+
+    @Override
+    public void reset() {
+        crc = 0xffffffff;
+    }
+}
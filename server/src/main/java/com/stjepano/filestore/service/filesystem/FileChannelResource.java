@@ -0,0 +1,136 @@
+package com.stjepano.filestore.service.filesystem;
+
+import com.stjepano.filestore.service.TransferableResource;
+import org.springframework.core.io.AbstractResource;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A resource of a file which is already open, its length and content both come from the open channel.
+ *
+ * Overwrites replace a file with a new one and deletes unlink it, a resource opened before keeps the content it was
+ * opened with, so content never disagrees with the length sent before it. Every read works on its own position, the
+ * channel is closed with the resource.
+ */
+public class FileChannelResource extends AbstractResource implements TransferableResource, Closeable {
+
+    private final File file;
+    private final FileChannel channel;
+    private final long size;
+
+    private FileChannelResource(File file, FileChannel channel, long size) {
+        this.file = file;
+        this.channel = channel;
+        this.size = size;
+    }
+
+    /**
+     * Open a file for reading.
+     * @param file the file
+     * @return resource which must be closed
+     */
+    public static FileChannelResource open(File file) throws IOException {
+        final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            return new FileChannelResource(file, channel, channel.size());
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        final long end = Math.min(size, position + count);
+        long transferred = 0;
+        while (position + transferred < end) {
+            final long n = channel.transferTo(position + transferred, end - position - transferred, target);
+            if (n <= 0) {
+                break;
+            }
+            transferred += n;
+        }
+        return transferred;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return new InputStream() {
+            private long position;
+
+            @Override
+            public int read() throws IOException {
+                final byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                if (position >= size) {
+                    return -1;
+                }
+                final ByteBuffer target = ByteBuffer.wrap(b, off, (int) Math.min(len, size - position));
+                final int n = channel.read(target, position);
+                if (n > 0) {
+                    position += n;
+                }
+                return n;
+            }
+
+            @Override
+            public long skip(long n) {
+                final long skipped = Math.max(0, Math.min(n, size - position));
+                position += skipped;
+                return skipped;
+            }
+
+            @Override
+            public int available() {
+                return (int) Math.min(Integer.MAX_VALUE, size - position);
+            }
+        };
+    }
+
+    @Override
+    public boolean exists() {
+        return true;
+    }
+
+    @Override
+    public long contentLength() {
+        return size;
+    }
+
+    /**
+     * The file the resource was opened from, it may be replaced by other content since.
+     */
+    @Override
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public String getFilename() {
+        return file.getName();
+    }
+
+    @Override
+    public String getDescription() {
+        return "Open file [" + file.getAbsolutePath() + "]";
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
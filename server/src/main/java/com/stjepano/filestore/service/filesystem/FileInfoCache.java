@@ -0,0 +1,216 @@
+package com.stjepano.filestore.service.filesystem;
+
+import com.stjepano.filestore.common.FileInfo;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache of {@link FileInfo} data used by {@link FileSystemFileService} instead of {@link FileInfo#from(Path)}.
+ *
+ * Mime types are cached by file extension, files without extension (or with an extension the system does not know)
+ * are cached by path and modification time. File attributes (size, creation time, content checksums) are cached by path
+ * and must be invalidated when file changes. Sizes of files compressed by {@link GzipCompression} are their original
+ * sizes.
+ */
+public class FileInfoCache {
+
+    private static final int MAX_EXTENSIONS = 4096;
+
+    private final LruCache<String, String> mimeTypesByExtension = new LruCache<>(MAX_EXTENSIONS);
+    private final LruCache<MimeTypeKey, String> mimeTypesByPath;
+    private final LruCache<Path, Attributes> attributes;
+
+    private GzipCompression compression;
+
+    private final LongAdder mimeTypeHits = new LongAdder();
+    private final LongAdder mimeTypeMisses = new LongAdder();
+    private final LongAdder attributeHits = new LongAdder();
+    private final LongAdder attributeMisses = new LongAdder();
+
+    /**
+     * Initialize {@link FileInfoCache}.
+     * @param maxEntries maximal number of cached files
+     */
+    public FileInfoCache(int maxEntries) {
+        this.mimeTypesByPath = new LruCache<>(maxEntries);
+        this.attributes = new LruCache<>(maxEntries);
+    }
+
+    /**
+     * Report original size of compressed files.
+     * @param compression the compression or null to report stored size
+     */
+    public void setCompression(GzipCompression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Same as {@link FileInfo#from(Path)} with content checksums ({@link ContentHash}) and original size of compressed
+     * files, used to read file info when there is no cache.
+     * @param compression the compression or null to report stored size
+     */
+    static FileInfo read(Path path, GzipCompression compression) throws IOException {
+        final FileInfo fileInfo = ContentHash.apply(ContentHash.read(path), FileInfo.from(path));
+        return compression != null ? compression.decode(path, fileInfo) : fileInfo;
+    }
+
+    /**
+     * Same as {@link #read(Path, GzipCompression)} but with cached attributes and mime type.
+     */
+    public FileInfo fileInfo(Path path) throws IOException {
+        Attributes fileAttributes = attributes.get(path);
+        if (fileAttributes == null) {
+            attributeMisses.increment();
+            BasicFileAttributes basicFileAttributes = Files.readAttributes(path, BasicFileAttributes.class);
+            long size = basicFileAttributes.isRegularFile() ? basicFileAttributes.size() : 0;
+            if (compression != null && basicFileAttributes.isRegularFile()) {
+                final long decodedSize = compression.decodedSize(path);
+                size = decodedSize >= 0 ? decodedSize : size;
+            }
+            fileAttributes = new Attributes(
+                    size,
+                    basicFileAttributes.creationTime(),
+                    basicFileAttributes.lastModifiedTime(),
+                    basicFileAttributes.isRegularFile() ? ContentHash.read(path) : null
+            );
+            attributes.put(path, fileAttributes);
+        } else {
+            attributeHits.increment();
+        }
+
+        final LocalDateTime dateCreated = LocalDateTime.ofInstant(fileAttributes.creationTime.toInstant(), ZoneOffset.systemDefault());
+        final FileInfo fileInfo = new FileInfo(path.getFileName().toString(),
+                fileAttributes.size,
+                mimeType(path, fileAttributes.lastModified),
+                dateCreated);
+        fileInfo.setLastModified(LocalDateTime.ofInstant(fileAttributes.lastModified.toInstant(), ZoneOffset.systemDefault()));
+        return ContentHash.apply(fileAttributes.contentHash, fileInfo);
+    }
+
+    /**
+     * Get mime type of a file, same as {@link Files#probeContentType(Path)} but cached.
+     * @param path the path of the file
+     * @param lastModified last modification time of the file
+     * @return the mime type or null if it could not be determined
+     */
+    public String mimeType(Path path, FileTime lastModified) throws IOException {
+        final String extension = extensionOf(path);
+        if (extension != null) {
+            String mimeType = mimeTypesByExtension.get(extension);
+            if (mimeType != null) {
+                mimeTypeHits.increment();
+                return mimeType;
+            }
+        }
+
+        final MimeTypeKey key = new MimeTypeKey(path, lastModified);
+        String mimeType = mimeTypesByPath.get(key);
+        if (mimeType != null) {
+            mimeTypeHits.increment();
+            return mimeType.isEmpty() ? null : mimeType;
+        }
+
+        mimeTypeMisses.increment();
+        mimeType = Files.probeContentType(path);
+        if (extension != null && mimeType != null) {
+            mimeTypesByExtension.put(extension, mimeType);
+        } else {
+            mimeTypesByPath.put(key, mimeType == null ? "" : mimeType);
+        }
+        return mimeType;
+    }
+
+    /**
+     * Forget cached data of a file, must be called when file is changed or deleted.
+     */
+    public void invalidate(Path path) {
+        attributes.remove(path);
+    }
+
+    /**
+     * Forget cached data of all files in given directory and its subdirectories.
+     */
+    public void invalidateAll(Path directory) {
+        attributes.removeIf(path -> path.startsWith(directory));
+        mimeTypesByPath.removeIf(key -> key.path.startsWith(directory));
+    }
+
+    public long getMimeTypeHits() {
+        return mimeTypeHits.sum();
+    }
+
+    public long getMimeTypeMisses() {
+        return mimeTypeMisses.sum();
+    }
+
+    public long getAttributeHits() {
+        return attributeHits.sum();
+    }
+
+    public long getAttributeMisses() {
+        return attributeMisses.sum();
+    }
+
+    public int getAttributeCacheSize() {
+        return attributes.size();
+    }
+
+    private static String extensionOf(Path path) {
+        final String filename = path.getFileName().toString();
+        final int dot = filename.lastIndexOf('.');
+        if (dot <= 0 || dot == filename.length() - 1) {
+            return null;
+        }
+        return filename.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+
+    private static final class Attributes {
+        private final long size;
+        private final FileTime creationTime;
+        private final FileTime lastModified;
+        private final ContentHash contentHash;
+
+        private Attributes(long size, FileTime creationTime, FileTime lastModified, ContentHash contentHash) {
+            this.size = size;
+            this.creationTime = creationTime;
+            this.lastModified = lastModified;
+            this.contentHash = contentHash;
+        }
+    }
+
+    private static final class MimeTypeKey {
+        private final Path path;
+        private final FileTime lastModified;
+
+        private MimeTypeKey(Path path, FileTime lastModified) {
+            this.path = path;
+            this.lastModified = lastModified;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            MimeTypeKey that = (MimeTypeKey) o;
+
+            if (!path.equals(that.path)) return false;
+            return lastModified.equals(that.lastModified);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = path.hashCode();
+            result = 31 * result + lastModified.hashCode();
+            return result;
+        }
+    }
+}
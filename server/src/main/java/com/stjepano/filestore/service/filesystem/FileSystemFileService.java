@@ -1,31 +1,61 @@
 package com.stjepano.filestore.service.filesystem;
 
 import com.stjepano.filestore.common.FileInfo;
+import com.stjepano.filestore.common.FilePage;
 import com.stjepano.filestore.service.BucketAlreadyExistsException;
 import com.stjepano.filestore.service.BucketDoesNotExistException;
 import com.stjepano.filestore.service.BucketId;
+import com.stjepano.filestore.service.ContentDigestMismatchException;
+import com.stjepano.filestore.service.ExpectedDigests;
 import com.stjepano.filestore.service.FileAlreadyExistException;
 import com.stjepano.filestore.service.FileDoesNotExistException;
 import com.stjepano.filestore.service.FileId;
 import com.stjepano.filestore.service.FileService;
 import com.stjepano.filestore.service.InvalidBucketIdException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.core.io.Resource;
 import org.springframework.core.io.ResourceLoader;
 
+import java.io.Closeable;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.FileSystem;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Implementation of {@link FileService} that reads buckets and files from given path.
@@ -33,13 +63,70 @@ import java.util.stream.Stream;
  * The {@link FileSystemFileService} uses directories under contentDir as buckets and files in each bucket are files of that bucket.
  *
  * It is not possible to access anything else. If attempt to access anything else would happen a BucketAccessViolationException is raised.
+ *
+ * Uploaded data is written to a temporary file in the bucket which is then moved over the target file in one atomic
+ * step, so downloads never see partially written files and failed uploads do not leave anything behind. Temporary files
+ * are dot files so they are never listed, orphans (left by a crash) are removed by {@link #sweepTempFiles()}.
+ *
+ * Existence checks and mutations which depend on them are done under locks of a {@link StripedLockManager}, downloads
+ * and listings do not lock.
+ *
+ * With a {@link ContentAddressedBlobStore} uploaded data is hashed while it is written and files with identical content
+ * become hard links to one blob.
+ *
+ * With sharding enabled new files are stored in hash-prefix subdirectories of buckets ({@link ShardedLayout}) so that
+ * directories stay small in buckets with millions of files. Listings include files of both layouts.
+ *
+ * With content hashing enabled SHA-256 digest and CRC32C checksum of each uploaded file are stored with it
+ * ({@link ContentHash}). Uploads with expected digests are verified in the same pass in which data is written, data
+ * which does not match is discarded before it is published.
+ *
+ * With a {@link GzipCompression} compressible files of configured buckets are compressed while they are uploaded,
+ * downloads of compressed files are {@link com.stjepano.filestore.service.CompressedResource}s and listings show their
+ * original size.
+ *
+ * With a {@link BucketReaper} a deleted bucket is moved into the trash with one rename and its files are deleted in the
+ * background, otherwise they are deleted before {@link #deleteBucket(BucketId)} returns.
  */
 public class FileSystemFileService implements FileService {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(FileSystemFileService.class);
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private static final String TEMP_FILE_PREFIX = ".filestore-upload-";
+
+    private static final int DEFAULT_LOCK_STRIPES = 256;
+
+    private static final ThreadLocal<ByteBuffer> COPY_BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(COPY_BUFFER_SIZE));
+
     private final FileSystem fileSystem;
     private final ResourceLoader resourceLoader;
     private final Path contentDirPath;
 
+    private StripedLockManager lockManager = new StripedLockManager(DEFAULT_LOCK_STRIPES);
+
+    private FileSystemMetadataIndex metadataIndex;
+
+    private FileInfoCache fileInfoCache;
+
+    private ReadCache readCache;
+
+    private MappedFilePool mappedFilePool;
+    private Set<BucketId> mappedBuckets = Collections.emptySet();
+
+    private ContentAddressedBlobStore blobStore;
+
+    private boolean sharded;
+
+    private GzipCompression compression;
+
+    private boolean contentHashing;
+
+    private BucketReaper bucketReaper;
+
+    private final LongAdder migratedFiles = new LongAdder();
+
     /**
      * Initialize {@link FileSystemFileService}.
      *  @param contentDir root of content directory
@@ -54,17 +141,117 @@ public class FileSystemFileService implements FileService {
         this.contentDirPath = this.fileSystem.getPath(contentDir);
     }
 
-    private Path bucketPath(BucketId bucketId) {
+    /**
+     * Use given lock manager instead of the default one (256 stripes).
+     * @param lockManager the lock manager
+     */
+    public void setLockManager(StripedLockManager lockManager) {
+        this.lockManager = Objects.requireNonNull(lockManager);
+    }
+
+    /**
+     * Use given index for existence checks and listings instead of reading the content directory on each request.
+     * @param metadataIndex a loaded metadata index of the same content directory or null to read content directory
+     */
+    public void setMetadataIndex(FileSystemMetadataIndex metadataIndex) {
+        this.metadataIndex = metadataIndex;
+    }
+
+    /**
+     * Use given cache for mime types and attributes of files in listings.
+     * @param fileInfoCache a cache or null to read file info on each listing
+     */
+    public void setFileInfoCache(FileInfoCache fileInfoCache) {
+        this.fileInfoCache = fileInfoCache;
+    }
+
+    /**
+     * Serve small hot files from given cache.
+     * @param readCache a cache or null to always serve files from the file system
+     */
+    public void setReadCache(ReadCache readCache) {
+        this.readCache = readCache;
+    }
+
+    /**
+     * Serve files of given buckets from memory mapped files.
+     * @param mappedFilePool pool of mappings or null to disable memory mapped serving
+     * @param mappedBuckets buckets which are served from memory mapped files
+     */
+    public void setMappedFilePool(MappedFilePool mappedFilePool, Collection<BucketId> mappedBuckets) {
+        this.mappedFilePool = mappedFilePool;
+        this.mappedBuckets = new HashSet<>(mappedBuckets);
+    }
+
+    /**
+     * Store identical file contents only once in given blob store.
+     * @param blobStore a loaded blob store on the same file system as content directory or null to store each file
+     */
+    public void setBlobStore(ContentAddressedBlobStore blobStore) {
+        this.blobStore = blobStore;
+    }
+
+    /**
+     * Delete files of deleted buckets in the background with given reaper.
+     * @param bucketReaper a started reaper whose trash directory is on the same file system as content directory or null
+     *                     to delete files of a bucket while it is deleted
+     */
+    public void setBucketReaper(BucketReaper bucketReaper) {
+        this.bucketReaper = bucketReaper;
+    }
+
+    /**
+     * Store new files in hash-prefix subdirectories of buckets ({@link ShardedLayout}) instead of directly in bucket
+     * directories. Existing files are found at either location, {@link #migrateLayout(BucketId)} moves them.
+     * @param sharded true for sharded layout
+     */
+    public void setSharded(boolean sharded) {
+        this.sharded = sharded;
+    }
+
+    /**
+     * Compress files of buckets configured in given compression while they are uploaded and decode compressed files.
+     * @param compression the compression or null to store files as they are (compressed files are then served encoded)
+     */
+    public void setCompression(GzipCompression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Compute SHA-256 digest and CRC32C checksum of uploaded files while they are written and keep them with the file
+     * ({@link ContentHash}), they are reported in file info and the digest is used as entity tag. Digested uploads are
+     * never copied with {@link FileChannel#transferFrom(ReadableByteChannel, long, long)}. Requires user defined
+     * attributes, it stays disabled if the file system of content directory does not support them.
+     * @param contentHashing true to compute digests
+     */
+    public void setContentHashing(boolean contentHashing) {
+        this.contentHashing = contentHashing && UserAttributes.isSupported(contentDirPath);
+        if (contentHashing && !this.contentHashing) {
+            LOGGER.warn("File system of '{}' does not support user defined file attributes, content digests are not stored", contentDirPath);
+        }
+    }
+
+    StripedLockManager getLockManager() {
+        return lockManager;
+    }
+
+    Path bucketPath(BucketId bucketId) {
         return contentDirPath.resolve(bucketId.getId());
     }
 
-    private boolean bucketExists(BucketId bucketId) {
+    boolean bucketExists(BucketId bucketId) {
+        if (metadataIndex != null) {
+            return metadataIndex.bucketExists(bucketId);
+        }
         final Path bucketPath = bucketPath(bucketId);
         return Files.exists(bucketPath) && Files.isDirectory(bucketPath);
     }
 
     @Override
     public List<String> getBuckets() {
+        if (metadataIndex != null) {
+            return metadataIndex.getBuckets();
+        }
         try (Stream<Path> files = Files.walk(contentDirPath, 1)) {
             return files
                     .filter(p -> {
@@ -78,6 +265,7 @@ public class FileSystemFileService implements FileService {
                     .filter(Files::isDirectory)
                     .map(Path::getFileName)
                     .map(Path::toString)
+                    .filter(BucketId::isValid)
                     .collect(Collectors.toList());
         } catch (IOException e) {
             throw new RuntimeException(e);
@@ -94,10 +282,11 @@ public class FileSystemFileService implements FileService {
         }
     }
 
-    private void validateFileUnderBucket(Path bucketDir, Path filePath) throws BucketAccessViolationException {
+    private void validateFileUnderBucket(Path bucketDir, FileId fileId) throws BucketAccessViolationException {
         validateBucketUnderContentDir(bucketDir);
         try {
-            if (!Files.isSameFile(bucketDir, filePath.normalize().getParent())) {
+            // file name is validated as if layout was flat, sharded path is derived from a valid name
+            if (!Files.isSameFile(bucketDir, bucketDir.resolve(fileId.getFileName()).normalize().getParent())) {
                 throw new BucketAccessViolationException();
             }
         } catch (IOException e) {
@@ -109,14 +298,26 @@ public class FileSystemFileService implements FileService {
     public void createBucket(BucketId bucketId) throws BucketAlreadyExistsException, InvalidBucketIdException {
         Path bucketPath = bucketPath(bucketId);
         validateBucketUnderContentDir(bucketPath);
-        if (bucketExists(bucketId)) {
-            throw new BucketAlreadyExistsException(bucketId);
-        }
 
+        final Lock bucketLock = lockManager.bucketExclusiveLock(bucketId);
+        bucketLock.lock();
         try {
-            Files.createDirectory(bucketPath);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            if (bucketExists(bucketId)) {
+                throw new BucketAlreadyExistsException(bucketId);
+            }
+
+            try {
+                Files.createDirectory(bucketPath);
+            } catch (FileAlreadyExistsException e) {
+                throw new BucketAlreadyExistsException(bucketId);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            if (metadataIndex != null) {
+                metadataIndex.bucketCreated(bucketId);
+            }
+        } finally {
+            bucketLock.unlock();
         }
     }
 
@@ -125,37 +326,116 @@ public class FileSystemFileService implements FileService {
         final Path directory = bucketPath(bucketId);
         validateBucketUnderContentDir(directory);
 
+        final Lock bucketLock = lockManager.bucketExclusiveLock(bucketId);
+        bucketLock.lock();
+        try {
+            if (bucketReaper == null || !trashBucketDirectory(bucketId, directory)) {
+                deleteBucketDirectory(bucketId, directory);
+            }
+        } finally {
+            bucketLock.unlock();
+        }
+    }
+
+    /**
+     * Move bucket directory into the trash of bucket reaper.
+     * @return false if directory could not be moved, it is left in place then
+     */
+    private boolean trashBucketDirectory(BucketId bucketId, Path directory) throws BucketDoesNotExistException {
         if (!bucketExists(bucketId)) {
             throw new BucketDoesNotExistException(bucketId);
         }
+        try {
+            if (!bucketReaper.trash(bucketId, directory)) {
+                return false;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        // blobs of trashed files are released by the reaper
+        bucketDirectoryDeleted(bucketId, directory);
+        return true;
+    }
 
+    private void deleteBucketDirectory(BucketId bucketId, Path directory) throws BucketDoesNotExistException {
+        if (!bucketExists(bucketId)) {
+            throw new BucketDoesNotExistException(bucketId);
+        }
 
-        try {
-            Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
-                @Override
-                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                    Files.delete(file);
-                    return FileVisitResult.CONTINUE;
+        final List<Object> deletedFileKeys = new ArrayList<>();
+        final List<Path> deletedFiles = new ArrayList<>();
+        final SimpleFileVisitor<Path> deletingVisitor = new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                // temporary file of an upload could be deleted by the upload in the meantime
+                if (Files.deleteIfExists(file)) {
+                    deletedFiles.add(file);
+                    if (blobStore != null) {
+                        deletedFileKeys.add(attrs.fileKey());
+                    }
                 }
+                return FileVisitResult.CONTINUE;
+            }
 
-                @Override
-                public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException
-                {
-                    // try to delete the file anyway, even if its attributes
-                    // could not be read, since delete-only access is
-                    // theoretically possible
-                    Files.delete(file);
-                    return FileVisitResult.CONTINUE;
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException
+            {
+                // try to delete the file anyway, even if its attributes
+                // could not be read, since delete-only access is
+                // theoretically possible
+                if (Files.deleteIfExists(file)) {
+                    deletedFiles.add(file);
                 }
+                return FileVisitResult.CONTINUE;
+            }
 
-                @Override
-                public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
-                    Files.delete(dir);
-                    return FileVisitResult.CONTINUE;
-                }
-            });
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        };
+        // uploads create their temporary files under the shared bucket lock, no file is created while the directory
+        // is walked under the exclusive lock
+        boolean deleted = false;
+        try {
+            Files.walkFileTree(directory, deletingVisitor);
+            deleted = true;
         } catch (IOException e) {
             throw new RuntimeException(e);
+        } finally {
+            if (deleted) {
+                bucketDirectoryDeleted(bucketId, directory);
+            } else {
+                // bucket is left with the files which could not be deleted
+                for (Path file : deletedFiles) {
+                    bucketFileDeleted(bucketId, file);
+                }
+            }
+            releaseBlobs(deletedFileKeys);
+        }
+    }
+
+    private void bucketFileDeleted(BucketId bucketId, Path file) {
+        invalidateCaches(file);
+        final String name = file.getFileName().toString();
+        if (metadataIndex != null && FileId.isValid(name)) {
+            metadataIndex.fileUpdated(FileId.from(bucketId.getId(), name), file);
+        }
+    }
+
+    private void bucketDirectoryDeleted(BucketId bucketId, Path directory) {
+        if (fileInfoCache != null) {
+            fileInfoCache.invalidateAll(directory);
+        }
+        if (readCache != null) {
+            readCache.invalidateAll(directory);
+        }
+        if (mappedFilePool != null) {
+            mappedFilePool.invalidateAll(directory);
+        }
+        if (metadataIndex != null) {
+            metadataIndex.loadBucket(bucketId);
         }
     }
 
@@ -168,18 +448,27 @@ public class FileSystemFileService implements FileService {
             throw new BucketDoesNotExistException(bucketId);
         }
 
+        if (metadataIndex != null) {
+            final List<FileInfo> files = metadataIndex.getFiles(bucketId);
+            if (files == null) {
+                throw new BucketDoesNotExistException(bucketId);
+            }
+            return files;
+        }
+
         if (!Files.isReadable(bucketPath)) {
             throw new RuntimeException(String.format("Bucket path '%s' is not readable!", bucketPath.toAbsolutePath().toString()));
         }
 
-        try (Stream<Path> files = Files.walk(bucketPath, 1)) {
+        try (Stream<Path> files = ShardedLayout.list(bucketPath)) {
             return files
+                    .filter(path -> FileId.isValid(path.getFileName().toString()))
                     .filter(Files::isRegularFile)
                     .filter(Files::isReadable)
                     .sorted(Comparator.comparing(a -> a.getFileName().toString()))
                     .map(path -> {
                         try {
-                            return FileInfo.from(path);
+                            return fileInfo(path);
                         } catch (IOException e) {
                             return null;
                         }
@@ -191,82 +480,698 @@ public class FileSystemFileService implements FileService {
         }
     }
 
-    private Path filePath(FileId fileId) {
-        Path bucketPath = bucketPath(fileId.getBucketId());
-        return bucketPath.resolve(fileId.getFileName());
-    }
+    @Override
+    public FilePage getFiles(BucketId bucketId, String prefix, String startAfter, int limit) throws BucketDoesNotExistException {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Limit must be positive!");
+        }
+        Path bucketPath = bucketPath(bucketId);
+        validateBucketUnderContentDir(bucketPath);
 
-    private boolean fileExists(FileId fileId) {
-        final Path filePath = filePath(fileId);
-        return Files.exists(filePath) && Files.isRegularFile(filePath) && Files.isReadable(filePath);
+        if (!bucketExists(bucketId)) {
+            throw new BucketDoesNotExistException(bucketId);
+        }
+
+        if (metadataIndex != null) {
+            final FilePage page = metadataIndex.getFiles(bucketId, prefix, startAfter, limit);
+            if (page == null) {
+                throw new BucketDoesNotExistException(bucketId);
+            }
+            return page;
+        }
+
+        // keep only limit + 1 smallest matching names so memory does not depend on the size of the bucket
+        final TreeSet<String> names = new TreeSet<>();
+        final Map<String, Path> paths = new HashMap<>();
+        try (Stream<Path> directoryStream = ShardedLayout.list(bucketPath)) {
+            for (Path path : (Iterable<Path>) directoryStream::iterator) {
+                final String name = path.getFileName().toString();
+                if ((prefix != null && !name.startsWith(prefix))
+                        || (startAfter != null && name.compareTo(startAfter) <= 0)
+                        || (names.size() > limit && name.compareTo(names.last()) >= 0)
+                        || !FileId.isValid(name)
+                        || !Files.isRegularFile(path)
+                        || !Files.isReadable(path)) {
+                    continue;
+                }
+                names.add(name);
+                paths.put(name, path);
+                if (names.size() > limit + 1) {
+                    paths.remove(names.pollLast());
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        final List<FileInfo> files = new ArrayList<>(Math.min(limit, names.size()));
+        for (String name : names) {
+            if (files.size() == limit) {
+                return new FilePage(files, files.get(files.size() - 1).getName());
+            }
+            try {
+                files.add(fileInfo(paths.get(name)));
+            } catch (IOException e) {
+                // file was removed in the meantime
+            }
+        }
+        return new FilePage(files, null);
     }
 
     @Override
-    public void deleteFile(FileId fileId) throws BucketDoesNotExistException, FileDoesNotExistException {
+    public Stream<FileInfo> streamFiles(BucketId bucketId) throws BucketDoesNotExistException {
+        Path bucketPath = bucketPath(bucketId);
+        validateBucketUnderContentDir(bucketPath);
+
+        if (!bucketExists(bucketId)) {
+            throw new BucketDoesNotExistException(bucketId);
+        }
+
+        if (metadataIndex != null) {
+            final Stream<FileInfo> files = metadataIndex.streamFiles(bucketId);
+            if (files == null) {
+                throw new BucketDoesNotExistException(bucketId);
+            }
+            return files;
+        }
 
+        try {
+            return ShardedLayout.list(bucketPath)
+                    .filter(path -> FileId.isValid(path.getFileName().toString()))
+                    .filter(Files::isRegularFile)
+                    .filter(Files::isReadable)
+                    .map(path -> {
+                        try {
+                            return fileInfo(path);
+                        } catch (IOException e) {
+                            return null;
+                        }
+                    })
+                    .filter(Objects::nonNull);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public FileInfo getFileInfo(FileId fileId) throws BucketDoesNotExistException, FileDoesNotExistException {
         if (!bucketExists(fileId.getBucketId())) {
             throw new BucketDoesNotExistException(fileId.getBucketId());
         }
+        validateFileUnderBucket(bucketPath(fileId.getBucketId()), fileId);
+
+        if (metadataIndex != null) {
+            final FileInfo fileInfo = metadataIndex.getFile(fileId);
+            if (fileInfo == null) {
+                throw new FileDoesNotExistException(fileId);
+            }
+            return fileInfo;
+        }
         if (!fileExists(fileId)) {
             throw new FileDoesNotExistException(fileId);
         }
+        try {
+            return fileInfo(filePath(fileId));
+        } catch (IOException e) {
+            // file was removed in the meantime
+            throw new FileDoesNotExistException(fileId);
+        }
+    }
+
+    private FileInfo fileInfo(Path path) throws IOException {
+        if (fileInfoCache != null) {
+            return fileInfoCache.fileInfo(path);
+        }
+        return FileInfoCache.read(path, compression);
+    }
 
+    private void fileChanged(FileId fileId, Path filePath) {
+        invalidateCaches(filePath);
+        if (metadataIndex != null) {
+            metadataIndex.fileUpdated(fileId, filePath);
+        }
+    }
+
+    private void invalidateCaches(Path filePath) {
+        if (fileInfoCache != null) {
+            fileInfoCache.invalidate(filePath);
+        }
+        if (readCache != null) {
+            readCache.invalidate(filePath);
+        }
+        if (mappedFilePool != null) {
+            mappedFilePool.invalidate(filePath);
+        }
+    }
+
+    private Path filePath(FileId fileId) {
         final Path bucketPath = bucketPath(fileId.getBucketId());
+        final Path flatPath = bucketPath.resolve(fileId.getFileName());
+        final Path shardedPath = ShardedLayout.shardedPath(bucketPath, fileId.getFileName());
+        final Path path = sharded ? shardedPath : flatPath;
+        if (Files.exists(path)) {
+            return path;
+        }
+        // file is found at its old location until layout migration moves it
+        final Path oldPath = sharded ? flatPath : shardedPath;
+        return Files.exists(oldPath) ? oldPath : path;
+    }
+
+    boolean fileExists(FileId fileId) {
+        if (metadataIndex != null) {
+            return metadataIndex.fileExists(fileId);
+        }
         final Path filePath = filePath(fileId);
+        return Files.exists(filePath) && Files.isRegularFile(filePath) && Files.isReadable(filePath);
+    }
+
+    @Override
+    public void deleteFile(FileId fileId) throws BucketDoesNotExistException, FileDoesNotExistException {
+        final Lock bucketLock = lockManager.bucketSharedLock(fileId.getBucketId());
+        final Lock fileLock = lockManager.fileLock(fileId);
+        bucketLock.lock();
+        fileLock.lock();
+        try {
+            if (!bucketExists(fileId.getBucketId())) {
+                throw new BucketDoesNotExistException(fileId.getBucketId());
+            }
+            if (!fileExists(fileId)) {
+                throw new FileDoesNotExistException(fileId);
+            }
 
-        validateFileUnderBucket(bucketPath, filePath);
+            final Path bucketPath = bucketPath(fileId.getBucketId());
+            final Path filePath = filePath(fileId);
 
+            validateFileUnderBucket(bucketPath, fileId);
+
+            try {
+                final Object fileKey = (blobStore != null) ? blobStore.fileKey(filePath) : null;
+                Files.delete(filePath);
+                pruneShardDirectories(bucketPath, filePath);
+                if (fileKey != null) {
+                    blobStore.release(fileKey);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            } finally {
+                fileChanged(fileId, filePath);
+            }
+        } finally {
+            fileLock.unlock();
+            bucketLock.unlock();
+        }
+    }
+
+    @Override
+    public void upload(FileId fileId, InputStream dataStream, ExpectedDigests expectedDigests)
+            throws BucketDoesNotExistException, FileAlreadyExistException, ContentDigestMismatchException {
+        // data is written to a temporary file without locks so that a slow upload does not hold back deleting its
+        // bucket, bucket is locked only while existence is checked and the temporary file is created and while the
+        // file is published; file is locked only while it is published so that uploads of the same file do not wait
+        // for each other's data
+        final Lock bucketLock = lockManager.bucketSharedLock(fileId.getBucketId());
+        final Path bucketPath = bucketPath(fileId.getBucketId());
+        final Path tempPath = tempPath(bucketPath);
+        bucketLock.lock();
         try {
-            Files.delete(filePath);
+            if (!bucketExists(fileId.getBucketId())) {
+                throw new BucketDoesNotExistException(fileId.getBucketId());
+            }
+            if (fileExists(fileId)) {
+                throw new FileAlreadyExistException(fileId);
+            }
+            validateFileUnderBucket(bucketPath, fileId);
+            createTempFile(tempPath);
+        } finally {
+            bucketLock.unlock();
+        }
+
+        try {
+            final byte[] digest = writeTempFile(fileId, dataStream, expectedDigests, tempPath, filePath(fileId));
+            bucketLock.lock();
+            try {
+                checkBucketOfTempFile(fileId.getBucketId(), tempPath);
+                final Lock fileLock = lockManager.fileLock(fileId);
+                fileLock.lock();
+                final Path filePath = filePath(fileId);
+                try {
+                    if (fileExists(fileId)) {
+                        throw new FileAlreadyExistException(fileId);
+                    }
+                    withParentDirectory(filePath, () -> {
+                        if (blobStore != null) {
+                            blobStore.publish(tempPath, digest, filePath, false);
+                        } else {
+                            publish(tempPath, filePath);
+                        }
+                    });
+                } finally {
+                    fileChanged(fileId, filePath);
+                    fileLock.unlock();
+                }
+            } finally {
+                bucketLock.unlock();
+            }
+        } catch (FileAlreadyExistsException e) {
+            throw new FileAlreadyExistException(fileId);
+        } catch (NoSuchFileException e) {
+            // bucket was deleted with the temporary file before data was written
+            throw new BucketDoesNotExistException(fileId.getBucketId());
         } catch (IOException e) {
             throw new RuntimeException(e);
+        } finally {
+            deleteTempFile(tempPath);
         }
-
     }
 
-    @Override
-    public void upload(FileId fileId, InputStream dataStream) throws BucketDoesNotExistException, FileAlreadyExistException {
-        if (!bucketExists(fileId.getBucketId())) {
-            throw new BucketDoesNotExistException(fileId.getBucketId());
+    /**
+     * Check that the bucket of a temporary file written without locks still exists, the caller holds the shared lock
+     * of the bucket. A bucket deleted in the meantime took the temporary file with it, even if it was created again.
+     */
+    private void checkBucketOfTempFile(BucketId bucketId, Path tempPath) throws BucketDoesNotExistException {
+        if (!bucketExists(bucketId) || !Files.exists(tempPath)) {
+            throw new BucketDoesNotExistException(bucketId);
         }
+    }
 
-        if (fileExists(fileId)) {
-            throw new FileAlreadyExistException(fileId);
+    /**
+     * Digest data of a completed {@link MultipartUploads} upload if its digests are needed (to store them, to publish a
+     * blob or to verify expected digests) and store its checksums. Data is read once, without locks, the upload does
+     * not change while it is completed.
+     * @param dataPath file with uploaded data in the bucket directory
+     * @return digests to publish the upload with
+     */
+    UploadDigests digestUpload(FileId fileId, Path dataPath, ExpectedDigests expectedDigests)
+            throws ContentDigestMismatchException {
+        try {
+            final UploadDigests digests = UploadDigests.forUpload(expectedDigests, contentHashing, blobStore != null);
+            if (!digests.isEmpty()) {
+                digest(dataPath, digests);
+            }
+            digests.verify(fileId, expectedDigests);
+            if (contentHashing) {
+                ContentHash.write(dataPath, digests.sha256(), digests.crc32c());
+            }
+            return digests;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
+    }
 
+    /**
+     * Publish data of a completed {@link MultipartUploads} upload as a new file without copying it, the caller holds the
+     * shared lock of the bucket. Multipart files are not compressed.
+     * @param dataPath file with uploaded data in the bucket directory, it is linked (or moved) to the file
+     * @param digests digests of the data from {@link #digestUpload(FileId, Path, ExpectedDigests)}
+     */
+    void publishUpload(FileId fileId, Path dataPath, UploadDigests digests) throws FileAlreadyExistException {
         final Path bucketPath = bucketPath(fileId.getBucketId());
         final Path filePath = filePath(fileId);
 
-        validateFileUnderBucket(bucketPath, filePath);
+        validateFileUnderBucket(bucketPath, fileId);
 
         try {
-            Files.copy(dataStream, filePath);
+            final Lock fileLock = lockManager.fileLock(fileId);
+            fileLock.lock();
+            try {
+                if (fileExists(fileId)) {
+                    throw new FileAlreadyExistException(fileId);
+                }
+                withParentDirectory(filePath, () -> {
+                    if (blobStore != null) {
+                        blobStore.publish(dataPath, digests.sha256(), filePath, false);
+                    } else {
+                        publish(dataPath, filePath);
+                    }
+                });
+            } finally {
+                fileChanged(fileId, filePath);
+                fileLock.unlock();
+            }
+        } catch (FileAlreadyExistsException e) {
+            throw new FileAlreadyExistException(fileId);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    private static void digest(Path filePath, UploadDigests digests) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            final ByteBuffer buffer = COPY_BUFFER.get();
+            buffer.clear();
+            while (fileChannel.read(buffer) >= 0) {
+                buffer.flip();
+                digests.update(buffer);
+                buffer.clear();
+            }
+        }
+    }
+
     @Override
-    public void overwrite(FileId fileId, InputStream dataStream) throws BucketDoesNotExistException, FileDoesNotExistException {
-        if (!bucketExists(fileId.getBucketId())) {
+    public void overwrite(FileId fileId, InputStream dataStream, ExpectedDigests expectedDigests)
+            throws BucketDoesNotExistException, FileDoesNotExistException, ContentDigestMismatchException {
+        // locked like upload, data is written without locks
+        final Lock bucketLock = lockManager.bucketSharedLock(fileId.getBucketId());
+        final Path bucketPath = bucketPath(fileId.getBucketId());
+        final Path tempPath = tempPath(bucketPath);
+        bucketLock.lock();
+        try {
+            if (!bucketExists(fileId.getBucketId())) {
+                throw new BucketDoesNotExistException(fileId.getBucketId());
+            }
+            if (!fileExists(fileId)) {
+                throw new FileDoesNotExistException(fileId);
+            }
+            validateFileUnderBucket(bucketPath, fileId);
+            createTempFile(tempPath);
+        } finally {
+            bucketLock.unlock();
+        }
+
+        try {
+            final byte[] digest = writeTempFile(fileId, dataStream, expectedDigests, tempPath, filePath(fileId));
+            bucketLock.lock();
+            try {
+                checkBucketOfTempFile(fileId.getBucketId(), tempPath);
+                final Lock fileLock = lockManager.fileLock(fileId);
+                fileLock.lock();
+                final Path filePath = filePath(fileId);
+                try {
+                    // file could be deleted while data was written, overwrite must not recreate it
+                    if (!fileExists(fileId)) {
+                        throw new FileDoesNotExistException(fileId);
+                    }
+                    if (blobStore != null) {
+                        final Object replacedFileKey = blobStore.fileKey(filePath);
+                        blobStore.publish(tempPath, digest, filePath, true);
+                        blobStore.release(replacedFileKey);
+                    } else {
+                        replace(tempPath, filePath);
+                    }
+                } finally {
+                    fileChanged(fileId, filePath);
+                    fileLock.unlock();
+                }
+            } finally {
+                bucketLock.unlock();
+            }
+        } catch (NoSuchFileException e) {
+            // bucket was deleted with the temporary file before data was written
             throw new BucketDoesNotExistException(fileId.getBucketId());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            deleteTempFile(tempPath);
         }
-        if (!fileExists(fileId)) {
-            throw new FileDoesNotExistException(fileId);
+    }
+
+    /**
+     * Move files of a bucket to their location in the configured layout (sharded or flat). Files are moved one by one
+     * under their locks so it can run while the service is used, downloads which already opened a file keep reading it.
+     * Stops early if the calling thread is interrupted.
+     * @param bucketId the id of the bucket
+     * @return number of moved files
+     */
+    public int migrateLayout(BucketId bucketId) throws BucketDoesNotExistException {
+        final Path bucketPath = bucketPath(bucketId);
+        validateBucketUnderContentDir(bucketPath);
+        if (!bucketExists(bucketId)) {
+            throw new BucketDoesNotExistException(bucketId);
         }
 
-        final Path bucketPath = bucketPath(fileId.getBucketId());
-        final Path filePath = filePath(fileId);
+        int moved = 0;
+        final Lock bucketLock = lockManager.bucketSharedLock(bucketId);
+        bucketLock.lock();
+        try (Stream<Path> files = ShardedLayout.list(bucketPath)) {
+            for (Path path : (Iterable<Path>) files::iterator) {
+                if (Thread.currentThread().isInterrupted()) {
+                    break;
+                }
+                final String name = path.getFileName().toString();
+                if (!FileId.isValid(name) || !Files.isRegularFile(path)) {
+                    continue;
+                }
+                final FileId fileId = FileId.from(bucketId.getId(), name);
+                final Path target = sharded ? ShardedLayout.shardedPath(bucketPath, name) : bucketPath.resolve(name);
+                if (path.equals(target)) {
+                    continue;
+                }
+                final Lock fileLock = lockManager.fileLock(fileId);
+                fileLock.lock();
+                try {
+                    // file could be deleted or already moved in the meantime
+                    if (Files.exists(path) && !Files.exists(target)) {
+                        withParentDirectory(target, () -> Files.move(path, target, StandardCopyOption.ATOMIC_MOVE));
+                        pruneShardDirectories(bucketPath, path);
+                        invalidateCaches(path);
+                        fileChanged(fileId, target);
+                        moved++;
+                        migratedFiles.increment();
+                    }
+                } finally {
+                    fileLock.unlock();
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            bucketLock.unlock();
+        }
+        if (moved > 0) {
+            LOGGER.info("Moved {} files of bucket '{}' to {} layout", moved, bucketId, sharded ? "sharded" : "flat");
+        }
+        return moved;
+    }
 
-        validateFileUnderBucket(bucketPath, filePath);
+    /**
+     * Number of files moved by layout migration
+     */
+    public long getMigratedFiles() {
+        return migratedFiles.sum();
+    }
 
+    private void releaseBlobs(List<Object> fileKeys) {
+        for (Object fileKey : fileKeys) {
+            try {
+                blobStore.release(fileKey);
+            } catch (IOException e) {
+                LOGGER.warn("Could not release blob of deleted file", e);
+            }
+        }
+    }
+
+    /**
+     * Delete temporary files left in buckets by uploads which did not finish (for example because of a crash). Must not
+     * be called while uploads are in progress, it is meant to be called on startup.
+     * @return number of deleted files
+     */
+    public int sweepTempFiles() {
+        int deleted = 0;
+        try (DirectoryStream<Path> buckets = Files.newDirectoryStream(contentDirPath, Files::isDirectory)) {
+            for (Path bucketPath : buckets) {
+                try (DirectoryStream<Path> tempFiles = Files.newDirectoryStream(bucketPath, TEMP_FILE_PREFIX + "*")) {
+                    for (Path tempPath : tempFiles) {
+                        Files.deleteIfExists(tempPath);
+                        deleted++;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        if (deleted > 0) {
+            LOGGER.info("Deleted {} orphaned temporary upload files", deleted);
+        }
+        return deleted;
+    }
+
+    private static Path tempPath(Path bucketPath) {
+        return bucketPath.resolve(TEMP_FILE_PREFIX + UUID.randomUUID());
+    }
+
+    /**
+     * Create temporary file of an upload, the caller holds the shared lock of the bucket and checked that it exists. A
+     * bucket delete holds the exclusive lock, so it deletes every temporary file of the bucket and no new one can be
+     * created while it walks the bucket directory.
+     */
+    private static void createTempFile(Path tempPath) {
         try {
-            Files.copy(dataStream, filePath, StandardCopyOption.REPLACE_EXISTING);
+            Files.createFile(tempPath);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    private static void deleteTempFile(Path tempPath) {
+        try {
+            Files.deleteIfExists(tempPath);
+        } catch (IOException e) {
+            LOGGER.warn("Could not delete temporary file '{}'", tempPath, e);
+        }
+    }
+
+    /**
+     * Create parent directory of a file and do given file operation in it. Another file of the same shard directory
+     * may be deleted (and the empty directory pruned) in the meantime, the directory is then created again.
+     */
+    private static void withParentDirectory(Path filePath, FileOperation operation) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            Files.createDirectories(filePath.getParent());
+            try {
+                operation.run();
+                return;
+            } catch (NoSuchFileException e) {
+                if (attempt == 3 || Files.isDirectory(filePath.getParent())) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Delete shard directories of a file which was deleted or moved if they are empty, best effort. The caller holds
+     * the lock of the file, a directory which got new files in the meantime is kept.
+     */
+    private static void pruneShardDirectories(Path bucketPath, Path filePath) {
+        Path directory = filePath.getParent();
+        while (!directory.equals(bucketPath) && directory.startsWith(bucketPath)) {
+            try {
+                Files.delete(directory);
+            } catch (DirectoryNotEmptyException | NoSuchFileException e) {
+                return;
+            } catch (IOException e) {
+                LOGGER.warn("Could not delete empty shard directory '{}'", directory, e);
+                return;
+            }
+            directory = directory.getParent();
+        }
+    }
+
+    @FunctionalInterface
+    private interface FileOperation {
+        void run() throws IOException;
+    }
+
+    /**
+     * Atomically make temporary file visible as target file, fails if target file already exists.
+     *
+     * A hard link is used because rename silently replaces existing files, file systems without hard links fall back to
+     * a move which checks existence of target first.
+     */
+    private static void publish(Path tempPath, Path filePath) throws IOException {
+        try {
+            Files.createLink(filePath, tempPath);
+        } catch (UnsupportedOperationException e) {
+            Files.move(tempPath, filePath);
+        }
+    }
+
+    /**
+     * Atomically replace target file with temporary file, readers which already opened the target keep reading old data.
+     */
+    private static void replace(Path tempPath, Path filePath) throws IOException {
+        try {
+            Files.move(tempPath, filePath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempPath, filePath, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Write uploaded data to temporary file, compressed if the file is compressed by {@link GzipCompression}, verify it
+     * against expected digests and store its checksums if enabled.
+     * @return digest to publish the file with or null if there is no blob store
+     */
+    private byte[] writeTempFile(FileId fileId, InputStream dataStream, ExpectedDigests expectedDigests, Path tempPath, Path filePath)
+            throws IOException, ContentDigestMismatchException {
+        final boolean compress = compression != null && compression.shouldCompress(fileId.getBucketId(), filePath);
+        final UploadDigests digests = UploadDigests.forUpload(expectedDigests, contentHashing, blobStore != null);
+        final long size = write(dataStream, tempPath, digests, compress);
+        digests.verify(fileId, expectedDigests);
+        if (contentHashing) {
+            ContentHash.write(tempPath, digests.sha256(), digests.crc32c());
+        }
+        if (compress) {
+            compression.markCompressed(tempPath, size);
+        }
+        if (blobStore == null) {
+            return null;
+        }
+        return compress ? blobStore.encodedDigest(digests.sha256(), GzipResource.CONTENT_ENCODING) : digests.sha256();
+    }
+
+    /**
+     * Write data stream to file and update digests with written data.
+     *
+     * Streams backed by a file (for example spooled multipart uploads) are copied with
+     * {@link FileChannel#transferFrom(ReadableByteChannel, long, long)} unless they must be digested, other streams are
+     * pumped through a reusable direct buffer so that the file channel does not need a temporary buffer of its own for
+     * each write. Servlet request bodies (raw uploads) are never file backed, they always take the buffered path where
+     * {@link Channels#newChannel(InputStream)} copies data through its own byte array into the direct buffer.
+     *
+     * Compressed data is deflated as it is read, digests are updated with original data.
+     * @return number of bytes read from data stream
+     */
+    private static long write(InputStream dataStream, Path filePath, UploadDigests digests, boolean compress) throws IOException {
+        // file was created empty by the caller, it is not created again if it was deleted in the meantime
+        try (FileChannel fileChannel = FileChannel.open(filePath, StandardOpenOption.WRITE)) {
+            if (compress) {
+                return writeCompressed(dataStream, fileChannel, digests);
+            }
+            if (dataStream instanceof FileInputStream && digests.isEmpty()) {
+                FileChannel source = ((FileInputStream) dataStream).getChannel();
+                long position = 0;
+                long count = source.size() - source.position();
+                while (position < count) {
+                    long n = fileChannel.transferFrom(source, position, count - position);
+                    if (n <= 0) {
+                        break;
+                    }
+                    position += n;
+                }
+                return position;
+            }
+
+            ReadableByteChannel source = Channels.newChannel(dataStream);
+            ByteBuffer buffer = COPY_BUFFER.get();
+            long written = 0;
+            boolean endOfStream = false;
+            while (!endOfStream) {
+                buffer.clear();
+                while (buffer.hasRemaining()) {
+                    if (source.read(buffer) < 0) {
+                        endOfStream = true;
+                        break;
+                    }
+                }
+                buffer.flip();
+                if (!digests.isEmpty()) {
+                    digests.update(buffer);
+                    buffer.rewind();
+                }
+                while (buffer.hasRemaining()) {
+                    written += fileChannel.write(buffer);
+                }
+            }
+            return written;
+        }
+    }
+
+    private static long writeCompressed(InputStream dataStream, FileChannel fileChannel, UploadDigests digests) throws IOException {
+        final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        long read = 0;
+        // closing the gzip stream releases native memory of its deflater
+        try (OutputStream out = new GZIPOutputStream(Channels.newOutputStream(fileChannel), COPY_BUFFER_SIZE)) {
+            int n;
+            while ((n = dataStream.read(buffer)) >= 0) {
+                digests.update(buffer, 0, n);
+                out.write(buffer, 0, n);
+                read += n;
+            }
+        }
+        return read;
+    }
+
     @Override
     public Resource download(FileId fileId) throws BucketDoesNotExistException, FileDoesNotExistException {
 
@@ -280,7 +1185,51 @@ public class FileSystemFileService implements FileService {
         final Path bucketPath = bucketPath(fileId.getBucketId());
         final Path filePath = filePath(fileId);
 
-        validateFileUnderBucket(bucketPath, filePath);
+        validateFileUnderBucket(bucketPath, fileId);
+
+        final Resource stored = storedResource(fileId, filePath);
+        if (compression == null) {
+            return stored;
+        }
+        try {
+            return compression.decode(filePath, stored);
+        } catch (IOException e) {
+            if (stored instanceof Closeable) {
+                try {
+                    ((Closeable) stored).close();
+                } catch (IOException closeException) {
+                    e.addSuppressed(closeException);
+                }
+            }
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Get stored bytes of a file from memory mapped files, read cache or file system.
+     */
+    private Resource storedResource(FileId fileId, Path filePath) {
+        if (mappedFilePool != null && mappedBuckets.contains(fileId.getBucketId())) {
+            try {
+                final Resource mapped = mappedFilePool.get(filePath);
+                if (mapped != null) {
+                    return mapped;
+                }
+            } catch (IOException | UnsupportedOperationException e) {
+                // serve the file from file system
+            }
+        }
+
+        if (readCache != null) {
+            try {
+                final Resource cached = readCache.get(filePath);
+                if (cached != null) {
+                    return cached;
+                }
+            } catch (IOException e) {
+                // serve the file from file system
+            }
+        }
 
         return resourceLoader.getResource(filePath.toAbsolutePath().toString());
     }
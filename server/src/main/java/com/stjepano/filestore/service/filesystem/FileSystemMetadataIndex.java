@@ -0,0 +1,394 @@
+package com.stjepano.filestore.service.filesystem;
+
+import com.stjepano.filestore.common.FileInfo;
+import com.stjepano.filestore.common.FilePage;
+import com.stjepano.filestore.service.BucketId;
+import com.stjepano.filestore.service.FileId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * In memory index of buckets and files stored by {@link FileSystemFileService}.
+ *
+ * The index is loaded on {@link #start()} and kept consistent by the file service on every mutation. Changes made to the
+ * content directory by other processes are picked up by a {@link WatchService} based reconciler (if enabled) or by
+ * calling {@link #load()} again. Only bucket directories are watched, changes made by other processes inside shard
+ * directories of a sharded bucket are picked up by {@link #loadBucket(BucketId)}.
+ */
+public class FileSystemMetadataIndex {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FileSystemMetadataIndex.class);
+
+    // size of a sub map of the skip list is computed by walking it, so page capacity does not depend on it
+    private static final int INITIAL_PAGE_CAPACITY = 128;
+
+    private final Path contentDirPath;
+    private final boolean watchForChanges;
+
+    private final ConcurrentNavigableMap<String, ConcurrentNavigableMap<String, FileInfo>> buckets = new ConcurrentSkipListMap<>();
+
+    private final Map<WatchKey, BucketId> watchedBuckets = new ConcurrentHashMap<>();
+    private volatile WatchService watchService;
+    private volatile WatchKey contentDirWatchKey;
+    private Thread watchThread;
+
+    private FileInfoCache fileInfoCache;
+
+    private GzipCompression compression;
+
+    private final List<Consumer<Path>> fileChangeListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Initialize {@link FileSystemMetadataIndex}.
+     * @param contentDir root of content directory
+     * @param fileSystem fileSystem to use
+     * @param watchForChanges if true changes made by other processes are reconciled with a {@link WatchService}
+     */
+    public FileSystemMetadataIndex(String contentDir, FileSystem fileSystem, boolean watchForChanges) {
+        this.contentDirPath = fileSystem.getPath(contentDir);
+        this.watchForChanges = watchForChanges;
+    }
+
+    /**
+     * Use given cache to read file info, must be set before index is started.
+     * @param fileInfoCache a cache or null
+     */
+    public void setFileInfoCache(FileInfoCache fileInfoCache) {
+        this.fileInfoCache = fileInfoCache;
+    }
+
+    /**
+     * Report original size of compressed files when there is no file info cache, must be set before index is started.
+     * @param compression the compression or null to report stored size
+     */
+    public void setCompression(GzipCompression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Register a listener which is called with the path of a file changed by another process.
+     * @param listener the listener
+     */
+    public void addFileChangeListener(Consumer<Path> listener) {
+        fileChangeListeners.add(listener);
+    }
+
+    /**
+     * Load the index and start watching for changes if configured to do so.
+     */
+    public synchronized void start() {
+        if (watchForChanges && watchService == null) {
+            try {
+                watchService = contentDirPath.getFileSystem().newWatchService();
+                contentDirWatchKey = contentDirPath.register(watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            watchThread = new Thread(this::watch, "filestore-metadata-index");
+            watchThread.setDaemon(true);
+            watchThread.start();
+        }
+        load();
+    }
+
+    /**
+     * Stop watching for changes.
+     */
+    public synchronized void stop() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                LOGGER.warn("Failed to close watch service", e);
+            }
+            watchService = null;
+            watchedBuckets.clear();
+            try {
+                watchThread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            watchThread = null;
+        }
+    }
+
+    /**
+     * (Re)load whole index from the content directory.
+     */
+    public void load() {
+        List<String> found = new ArrayList<>();
+        try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(contentDirPath)) {
+            for (Path path : directoryStream) {
+                final String name = path.getFileName().toString();
+                if (isBucketDirectory(path)) {
+                    found.add(name);
+                    loadBucket(BucketId.from(name));
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        buckets.keySet().retainAll(found);
+    }
+
+    /**
+     * (Re)load files of a bucket from the content directory.
+     * @param bucketId the id of the bucket
+     */
+    public void loadBucket(BucketId bucketId) {
+        final Path bucketPath = contentDirPath.resolve(bucketId.getId());
+        if (!isBucketDirectory(bucketPath)) {
+            buckets.remove(bucketId.getId());
+            unwatchBucket(bucketId);
+            return;
+        }
+        watchBucket(bucketId, bucketPath);
+        if (fileInfoCache != null) {
+            fileInfoCache.invalidateAll(bucketPath);
+        }
+
+        ConcurrentNavigableMap<String, FileInfo> files = new ConcurrentSkipListMap<>();
+        try (Stream<Path> directoryStream = ShardedLayout.list(bucketPath)) {
+            for (Path path : (Iterable<Path>) directoryStream::iterator) {
+                FileInfo fileInfo = readFileInfo(path);
+                if (fileInfo != null) {
+                    files.put(fileInfo.getName(), fileInfo);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        buckets.put(bucketId.getId(), files);
+    }
+
+    /**
+     * Get all bucket names sorted alphabetically
+     */
+    public List<String> getBuckets() {
+        return new ArrayList<>(buckets.keySet());
+    }
+
+    public boolean bucketExists(BucketId bucketId) {
+        return buckets.containsKey(bucketId.getId());
+    }
+
+    /**
+     * Get files of the bucket sorted by name
+     * @param bucketId the id of the bucket
+     * @return list of {@link FileInfo} objects or null if bucket does not exist
+     */
+    public List<FileInfo> getFiles(BucketId bucketId) {
+        final Map<String, FileInfo> files = buckets.get(bucketId.getId());
+        return files == null ? null : new ArrayList<>(files.values());
+    }
+
+    /**
+     * Get files of the bucket sorted by name without copying them
+     * @param bucketId the id of the bucket
+     * @return a stream of {@link FileInfo} objects or null if bucket does not exist
+     */
+    public Stream<FileInfo> streamFiles(BucketId bucketId) {
+        final Map<String, FileInfo> files = buckets.get(bucketId.getId());
+        return files == null ? null : files.values().stream();
+    }
+
+    /**
+     * Get a page of files of the bucket sorted by name
+     * @param bucketId the id of the bucket
+     * @param prefix only files with names starting with prefix, null for all
+     * @param startAfter only files with names after this one, null to start from the first file
+     * @param limit maximal number of files in page
+     * @return a {@link FilePage} or null if bucket does not exist
+     */
+    public FilePage getFiles(BucketId bucketId, String prefix, String startAfter, int limit) {
+        NavigableMap<String, FileInfo> files = buckets.get(bucketId.getId());
+        if (files == null) {
+            return null;
+        }
+        if (startAfter != null && (prefix == null || startAfter.compareTo(prefix) >= 0)) {
+            files = files.tailMap(startAfter, false);
+        } else if (prefix != null) {
+            files = files.tailMap(prefix, true);
+        }
+
+        List<FileInfo> page = new ArrayList<>(Math.min(limit, INITIAL_PAGE_CAPACITY));
+        for (Map.Entry<String, FileInfo> entry : files.entrySet()) {
+            if (prefix != null && !entry.getKey().startsWith(prefix)) {
+                break;
+            }
+            if (page.size() == limit) {
+                return new FilePage(page, page.get(page.size() - 1).getName());
+            }
+            page.add(entry.getValue());
+        }
+        return new FilePage(page, null);
+    }
+
+    /**
+     * Get info of a single file
+     * @param fileId the id of the file
+     * @return a {@link FileInfo} or null if file (or bucket) does not exist
+     */
+    public FileInfo getFile(FileId fileId) {
+        final Map<String, FileInfo> files = buckets.get(fileId.getBucketId().getId());
+        return files == null ? null : files.get(fileId.getFileName());
+    }
+
+    public boolean fileExists(FileId fileId) {
+        return getFile(fileId) != null;
+    }
+
+    void bucketCreated(BucketId bucketId) {
+        buckets.putIfAbsent(bucketId.getId(), new ConcurrentSkipListMap<>());
+        watchBucket(bucketId, contentDirPath.resolve(bucketId.getId()));
+    }
+
+    void fileUpdated(FileId fileId, Path filePath) {
+        final Map<String, FileInfo> files = buckets.get(fileId.getBucketId().getId());
+        if (files == null) {
+            return;
+        }
+        FileInfo fileInfo = readFileInfo(filePath);
+        if (fileInfo == null) {
+            files.remove(fileId.getFileName());
+        } else {
+            files.put(fileId.getFileName(), fileInfo);
+        }
+    }
+
+    private static boolean isBucketDirectory(Path path) {
+        final String name = path.getFileName().toString();
+        return BucketId.isValid(name) && Files.isDirectory(path) && Files.isReadable(path);
+    }
+
+    private FileInfo readFileInfo(Path path) {
+        final String name = path.getFileName().toString();
+        if (!FileId.isValid(name) || !Files.isRegularFile(path) || !Files.isReadable(path)) {
+            return null;
+        }
+        try {
+            if (fileInfoCache != null) {
+                return fileInfoCache.fileInfo(path);
+            }
+            return FileInfoCache.read(path, compression);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Stop watching a deleted bucket, a directory moved to the trash would report deletes of its files otherwise
+     */
+    private void unwatchBucket(BucketId bucketId) {
+        watchedBuckets.entrySet().removeIf(watched -> {
+            if (watched.getValue().equals(bucketId)) {
+                watched.getKey().cancel();
+                return true;
+            }
+            return false;
+        });
+    }
+
+    private void watchBucket(BucketId bucketId, Path bucketPath) {
+        final WatchService watchService = this.watchService;
+        if (watchService == null) {
+            return;
+        }
+        try {
+            WatchKey watchKey = bucketPath.register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+            watchedBuckets.put(watchKey, bucketId);
+        } catch (IOException | ClosedWatchServiceException e) {
+            LOGGER.warn("Could not watch bucket '{}' for changes", bucketId, e);
+        }
+    }
+
+    private void watch() {
+        final WatchService watchService = this.watchService;
+        while (true) {
+            WatchKey watchKey;
+            try {
+                watchKey = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            try {
+                if (watchKey == contentDirWatchKey) {
+                    reconcileContentDir(watchKey);
+                } else {
+                    reconcileBucket(watchKey);
+                }
+            } catch (RuntimeException e) {
+                LOGGER.warn("Failed to reconcile metadata index", e);
+            }
+            if (!watchKey.reset()) {
+                watchedBuckets.remove(watchKey);
+            }
+        }
+    }
+
+    private void reconcileContentDir(WatchKey watchKey) {
+        for (WatchEvent<?> event : watchKey.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                load();
+                continue;
+            }
+            final String name = event.context().toString();
+            if (BucketId.isValid(name)) {
+                loadBucket(BucketId.from(name));
+            }
+        }
+    }
+
+    private void reconcileBucket(WatchKey watchKey) {
+        final BucketId bucketId = watchedBuckets.get(watchKey);
+        if (bucketId == null) {
+            watchKey.pollEvents();
+            return;
+        }
+        for (WatchEvent<?> event : watchKey.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                loadBucket(bucketId);
+                continue;
+            }
+            final String name = event.context().toString();
+            if (FileId.isValid(name)) {
+                final FileId fileId = FileId.from(bucketId.getId(), name);
+                final Path bucketPath = contentDirPath.resolve(bucketId.getId());
+                final Path filePath = bucketPath.resolve(name);
+                if (fileInfoCache != null) {
+                    fileInfoCache.invalidate(filePath);
+                }
+                fileChangeListeners.forEach(listener -> listener.accept(filePath));
+                // file could have been moved to its shard by layout migration
+                final Path shardedPath = ShardedLayout.shardedPath(bucketPath, name);
+                fileUpdated(fileId, !Files.exists(filePath) && Files.exists(shardedPath) ? shardedPath : filePath);
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.stjepano.filestore.service.filesystem;
+
+/**
+ * Approximate access frequency counter (count-min sketch with 4 bit counters) used for TinyLFU admission.
+ *
+ * Counters are halved after a number of increments so that frequencies reflect recent accesses. Not thread safe, the
+ * owner guards it with its own lock.
+ */
+class FrequencySketch {
+
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = {0x97cb3127, 0xb15b2bfb, 0x7f4a7c15, 0x2545f491};
+
+    private final byte[] table;
+    private final int mask;
+    private final int resetSize;
+    private int additions;
+
+    /**
+     * @param expectedEntries expected number of distinct hot entries
+     */
+    FrequencySketch(int expectedEntries) {
+        int size = Integer.highestOneBit(Math.max(64, Math.min(expectedEntries, 1 << 24)) * 2 - 1);
+        this.table = new byte[size];
+        this.mask = size - 1;
+        this.resetSize = size * 10;
+    }
+
+    void increment(Object key) {
+        final int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int seed : SEEDS) {
+            final int index = index(hash, seed);
+            if (table[index] < MAX_COUNT) {
+                table[index]++;
+                added = true;
+            }
+        }
+        if (added && ++additions >= resetSize) {
+            reset();
+        }
+    }
+
+    int frequency(Object key) {
+        final int hash = spread(key.hashCode());
+        int frequency = MAX_COUNT;
+        for (int seed : SEEDS) {
+            frequency = Math.min(frequency, table[index(hash, seed)]);
+        }
+        return frequency;
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (byte) (table[i] >>> 1);
+        }
+        additions /= 2;
+    }
+
+    private int index(int hash, int seed) {
+        int h = hash * seed;
+        h ^= h >>> 17;
+        return h & mask;
+    }
+
+    private static int spread(int hash) {
+        int h = hash * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,161 @@
+package com.stjepano.filestore.service.filesystem;
+
+import com.stjepano.filestore.common.FileInfo;
+import com.stjepano.filestore.service.BucketId;
+import org.springframework.core.io.Resource;
+
+import java.io.IOException;
+import java.net.FileNameMap;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * At-rest gzip compression of files used by {@link FileSystemFileService}.
+ *
+ * Files of compressed buckets with a compressible mime type are compressed while they are uploaded. The codec and the
+ * original size are stored in a user defined extended attribute of the file ({@value #ATTRIBUTE}), so files keep being
+ * decoded correctly when a bucket is no longer compressed and files stored before compression was enabled are served
+ * as they are.
+ */
+public class GzipCompression {
+
+    static final String ATTRIBUTE = "filestore.encoding";
+
+    private static final FileNameMap FILE_NAME_MAP = URLConnection.getFileNameMap();
+
+    private final Set<BucketId> buckets;
+    private final List<String> mimeTypes;
+    private final boolean supported;
+
+    private final LongAdder compressedFiles = new LongAdder();
+    private final LongAdder decodedBytes = new LongAdder();
+    private final LongAdder encodedBytes = new LongAdder();
+
+    /**
+     * Initialize {@link GzipCompression}.
+     * @param contentDirPath the content directory, its file system must support user defined attributes if any bucket
+     *                       is compressed
+     * @param buckets buckets whose files are compressed
+     * @param mimeTypes compressible mime types, a type ending with /* matches all its subtypes (for example text/*)
+     */
+    public GzipCompression(Path contentDirPath, Collection<BucketId> buckets, Collection<String> mimeTypes) {
+        this.buckets = new HashSet<>(buckets);
+        this.mimeTypes = mimeTypes.stream()
+                .map(mimeType -> mimeType.trim().toLowerCase(Locale.ROOT))
+                .filter(mimeType -> !mimeType.isEmpty())
+                .collect(Collectors.toList());
+        this.supported = UserAttributes.isSupported(contentDirPath);
+        if (!supported && !this.buckets.isEmpty()) {
+            throw new IllegalStateException(String.format(
+                    "File system of '%s' does not support user defined file attributes needed for compression!", contentDirPath));
+        }
+    }
+
+    /**
+     * True if a file uploaded to given path of given bucket should be compressed
+     */
+    boolean shouldCompress(BucketId bucketId, Path filePath) {
+        if (!buckets.contains(bucketId)) {
+            return false;
+        }
+        final String mimeType = mimeType(filePath);
+        if (mimeType == null) {
+            return false;
+        }
+        for (String compressible : mimeTypes) {
+            if (compressible.endsWith("/*")
+                    ? mimeType.startsWith(compressible.substring(0, compressible.length() - 1))
+                    : mimeType.equals(compressible)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String mimeType(Path filePath) {
+        String mimeType = null;
+        try {
+            mimeType = Files.probeContentType(filePath);
+        } catch (IOException e) {
+            // fall back to file name map
+        }
+        if (mimeType == null) {
+            mimeType = FILE_NAME_MAP.getContentTypeFor(filePath.getFileName().toString());
+        }
+        return mimeType == null ? null : mimeType.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Record that given file is stored gzip compressed.
+     * @param path the compressed file
+     * @param decodedSize size of the original data
+     */
+    void markCompressed(Path path, long decodedSize) throws IOException {
+        UserAttributes.write(path, ATTRIBUTE, GzipResource.CONTENT_ENCODING + " " + decodedSize);
+        compressedFiles.increment();
+        decodedBytes.add(decodedSize);
+        encodedBytes.add(Files.size(path));
+    }
+
+    /**
+     * Get size of original data of a compressed file.
+     * @param path the file
+     * @return the original size or -1 if the file is not compressed
+     */
+    long decodedSize(Path path) throws IOException {
+        if (!supported) {
+            return -1;
+        }
+        final String attribute = UserAttributes.read(path, ATTRIBUTE);
+        if (attribute == null) {
+            return -1;
+        }
+        final String[] value = attribute.split(" ");
+        if (value.length != 2 || !GzipResource.CONTENT_ENCODING.equals(value[0])) {
+            throw new IOException(String.format("Unsupported encoding of file '%s'", path));
+        }
+        return Long.parseLong(value[1]);
+    }
+
+    /**
+     * Get a resource of original data if given file is compressed.
+     * @param path the file
+     * @param stored resource of stored bytes of the file
+     * @return a {@link GzipResource} or the stored resource if the file is not compressed
+     */
+    Resource decode(Path path, Resource stored) throws IOException {
+        final long decodedSize = decodedSize(path);
+        return decodedSize < 0 ? stored : new GzipResource(stored, decodedSize);
+    }
+
+    /**
+     * Correct size of file info of a compressed file to its original size.
+     */
+    FileInfo decode(Path path, FileInfo fileInfo) throws IOException {
+        final long decodedSize = decodedSize(path);
+        if (decodedSize >= 0) {
+            fileInfo.setSize(decodedSize);
+        }
+        return fileInfo;
+    }
+
+    public long getCompressedFiles() {
+        return compressedFiles.sum();
+    }
+
+    public long getDecodedBytes() {
+        return decodedBytes.sum();
+    }
+
+    public long getEncodedBytes() {
+        return encodedBytes.sum();
+    }
+}
@@ -0,0 +1,83 @@
+package com.stjepano.filestore.service.filesystem;
+
+import com.stjepano.filestore.service.CompressedResource;
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.Resource;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * {@link CompressedResource} of a file stored gzip compressed, the content is decompressed as it is read.
+ */
+public class GzipResource extends AbstractResource implements CompressedResource, Closeable {
+
+    static final String CONTENT_ENCODING = "gzip";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Resource encodedResource;
+    private final long decodedLength;
+
+    /**
+     * Initialize {@link GzipResource}.
+     * @param encodedResource resource of stored (compressed) bytes
+     * @param decodedLength size of the original content
+     */
+    public GzipResource(Resource encodedResource, long decodedLength) {
+        this.encodedResource = encodedResource;
+        this.decodedLength = decodedLength;
+    }
+
+    @Override
+    public String getContentEncoding() {
+        return CONTENT_ENCODING;
+    }
+
+    @Override
+    public Resource getEncodedResource() {
+        return encodedResource;
+    }
+
+    @Override
+    public boolean exists() {
+        return encodedResource.exists();
+    }
+
+    @Override
+    public long contentLength() {
+        return decodedLength;
+    }
+
+    @Override
+    public long lastModified() throws IOException {
+        return encodedResource.lastModified();
+    }
+
+    @Override
+    public String getFilename() {
+        return encodedResource.getFilename();
+    }
+
+    @Override
+    public String getDescription() {
+        return "Gzip compressed " + encodedResource.getDescription();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return new GZIPInputStream(encodedResource.getInputStream(), BUFFER_SIZE);
+    }
+
+    /**
+     * Release the encoded resource if it holds something (for example a memory mapping)
+     */
+    @Override
+    public void close() throws IOException {
+        if (encodedResource instanceof Closeable) {
+            ((Closeable) encodedResource).close();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.stjepano.filestore.service.filesystem;
+
+import com.stjepano.filestore.service.BucketDoesNotExistException;
+import com.stjepano.filestore.service.BucketId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Background migration of all buckets of a {@link FileSystemFileService} to its configured layout.
+ *
+ * Buckets are migrated one after another by a daemon thread with {@link FileSystemFileService#migrateLayout(BucketId)},
+ * the service keeps serving requests in the meantime.
+ */
+public class LayoutMigration {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LayoutMigration.class);
+
+    private final FileSystemFileService fileService;
+
+    private Thread migrationThread;
+
+    private volatile boolean finished;
+
+    /**
+     * Initialize {@link LayoutMigration}.
+     * @param fileService the service to migrate
+     */
+    public LayoutMigration(FileSystemFileService fileService) {
+        this.fileService = fileService;
+    }
+
+    /**
+     * Start migration.
+     */
+    public synchronized void start() {
+        if (migrationThread != null) {
+            return;
+        }
+        migrationThread = new Thread(this::migrate, "filestore-layout-migration");
+        migrationThread.setDaemon(true);
+        migrationThread.start();
+    }
+
+    /**
+     * Stop migration after the file being moved, an unfinished migration continues from the start when started again.
+     */
+    public synchronized void stop() {
+        if (migrationThread != null) {
+            migrationThread.interrupt();
+            try {
+                migrationThread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            migrationThread = null;
+        }
+    }
+
+    private void migrate() {
+        LOGGER.info("Layout migration started");
+        for (String bucket : fileService.getBuckets()) {
+            if (Thread.currentThread().isInterrupted()) {
+                LOGGER.info("Layout migration stopped");
+                return;
+            }
+            try {
+                fileService.migrateLayout(BucketId.from(bucket));
+            } catch (BucketDoesNotExistException e) {
+                // bucket was deleted in the meantime
+            } catch (RuntimeException e) {
+                LOGGER.error("Layout migration of bucket '{}' failed", bucket, e);
+            }
+        }
+        finished = true;
+        LOGGER.info("Layout migration finished, moved {} files", fileService.getMigratedFiles());
+    }
+
+    /**
+     * True when all buckets were migrated
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+}
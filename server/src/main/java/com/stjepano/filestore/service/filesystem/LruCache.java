@@ -0,0 +1,42 @@
+package com.stjepano.filestore.service.filesystem;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Simple thread safe map bounded by number of entries which evicts least recently used entries.
+ */
+class LruCache<K, V> {
+
+    private final LinkedHashMap<K, V> map;
+
+    LruCache(int maxEntries) {
+        this.map = new LinkedHashMap<K, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    synchronized V get(K key) {
+        return map.get(key);
+    }
+
+    synchronized void put(K key, V value) {
+        map.put(key, value);
+    }
+
+    synchronized V remove(K key) {
+        return map.remove(key);
+    }
+
+    synchronized void removeIf(Predicate<K> keyPredicate) {
+        map.keySet().removeIf(keyPredicate);
+    }
+
+    synchronized int size() {
+        return map.size();
+    }
+}
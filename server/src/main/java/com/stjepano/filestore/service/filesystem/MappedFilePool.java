@@ -0,0 +1,287 @@
+package com.stjepano.filestore.service.filesystem;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.Resource;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded pool of memory mapped files used by {@link FileSystemFileService} to serve files of read-mostly buckets.
+ *
+ * Mappings are kept in LRU order and limited by number and total size. A mapping is unmapped when it is evicted or
+ * invalidated and no download is reading it anymore, resources returned by {@link #get(Path)} must be closed when
+ * download is done (mappings of resources which are never closed are unmapped by garbage collector).
+ */
+public class MappedFilePool {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MappedFilePool.class);
+
+    private final int maxMappings;
+    private final long maxMappedBytes;
+
+    private final LinkedHashMap<Path, Mapping> mappings = new LinkedHashMap<>(16, 0.75f, true);
+    private long mappedBytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder unmaps = new LongAdder();
+
+    /**
+     * Initialize {@link MappedFilePool}.
+     * @param maxMappings maximal number of live mappings
+     * @param maxMappedBytes maximal total size of live mappings
+     */
+    public MappedFilePool(int maxMappings, long maxMappedBytes) {
+        this.maxMappings = maxMappings;
+        this.maxMappedBytes = maxMappedBytes;
+    }
+
+    /**
+     * Get a mapped file, mapping it if needed. Returned resource must be closed after use.
+     *
+     * @param path the path of the file
+     * @return a resource or null if file can not be mapped (too large)
+     * @throws IOException if file could not be mapped
+     */
+    public Resource get(Path path) throws IOException {
+        synchronized (this) {
+            final Mapping mapping = mappings.get(path);
+            if (mapping != null) {
+                hits.increment();
+                return mapping.lease();
+            }
+        }
+        misses.increment();
+
+        final long lastModified = Files.getLastModifiedTime(path).toMillis();
+        final MappedByteBuffer buffer;
+        try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final long size = fileChannel.size();
+            if (size > Integer.MAX_VALUE || size > maxMappedBytes) {
+                return null;
+            }
+            buffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+
+        final Mapping mapping = new Mapping(path, buffer, lastModified);
+        final List<Mapping> evicted = new ArrayList<>();
+        final Resource resource;
+        synchronized (this) {
+            final Mapping existing = mappings.get(path);
+            if (existing != null) {
+                evicted.add(mapping);
+                resource = existing.lease();
+            } else {
+                mappings.put(path, mapping);
+                mappedBytes += buffer.capacity();
+                resource = mapping.lease();
+                final Iterator<Mapping> iterator = mappings.values().iterator();
+                while ((mappings.size() > maxMappings || mappedBytes > maxMappedBytes) && iterator.hasNext()) {
+                    final Mapping eldest = iterator.next();
+                    if (eldest == mapping) {
+                        continue;
+                    }
+                    iterator.remove();
+                    mappedBytes -= eldest.buffer.capacity();
+                    evicted.add(eldest);
+                }
+            }
+        }
+        evicted.forEach(Mapping::retire);
+        return resource;
+    }
+
+    /**
+     * Drop mapping of a file, must be called before file is changed or deleted.
+     */
+    public void invalidate(Path path) {
+        final Mapping mapping;
+        synchronized (this) {
+            mapping = mappings.remove(path);
+            if (mapping != null) {
+                mappedBytes -= mapping.buffer.capacity();
+            }
+        }
+        if (mapping != null) {
+            mapping.retire();
+        }
+    }
+
+    /**
+     * Drop mappings of all files in given directory and its subdirectories.
+     */
+    public void invalidateAll(Path directory) {
+        final List<Mapping> removed = new ArrayList<>();
+        synchronized (this) {
+            final Iterator<Map.Entry<Path, Mapping>> iterator = mappings.entrySet().iterator();
+            while (iterator.hasNext()) {
+                final Map.Entry<Path, Mapping> entry = iterator.next();
+                if (entry.getKey().startsWith(directory)) {
+                    iterator.remove();
+                    mappedBytes -= entry.getValue().buffer.capacity();
+                    removed.add(entry.getValue());
+                }
+            }
+        }
+        removed.forEach(Mapping::retire);
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getUnmaps() {
+        return unmaps.sum();
+    }
+
+    public synchronized int getMappings() {
+        return mappings.size();
+    }
+
+    public synchronized long getMappedBytes() {
+        return mappedBytes;
+    }
+
+    /**
+     * A live mapping, unmapped once it is retired and all leases are closed.
+     */
+    private final class Mapping {
+        private final Path path;
+        private final MappedByteBuffer buffer;
+        private final long lastModified;
+        private int leases;
+        private boolean retired;
+        private boolean unmapped;
+
+        private Mapping(Path path, MappedByteBuffer buffer, long lastModified) {
+            this.path = path;
+            this.buffer = buffer;
+            this.lastModified = lastModified;
+        }
+
+        private synchronized Resource lease() {
+            leases++;
+            return new MappedFileResource(this);
+        }
+
+        private void release() {
+            synchronized (this) {
+                leases--;
+                if (!retired || leases > 0) {
+                    return;
+                }
+            }
+            unmap();
+        }
+
+        private void retire() {
+            synchronized (this) {
+                retired = true;
+                if (leases > 0) {
+                    return;
+                }
+            }
+            unmap();
+        }
+
+        private void unmap() {
+            synchronized (this) {
+                if (unmapped) {
+                    return;
+                }
+                unmapped = true;
+            }
+            unmaps.increment();
+            MappedFilePool.unmap(buffer);
+        }
+    }
+
+    /**
+     * Mapped file content, closing the resource releases the mapping.
+     */
+    private static final class MappedFileResource extends ByteBufferResource implements Closeable {
+        private final Mapping mapping;
+        private boolean closed;
+
+        private MappedFileResource(Mapping mapping) {
+            super(mapping.buffer, mapping.path.getFileName().toString(), mapping.lastModified);
+            this.mapping = mapping;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                mapping.release();
+            }
+        }
+    }
+
+    private static final UnmapHandle UNMAP_HANDLE = unmapHandle();
+
+    private static void unmap(ByteBuffer buffer) {
+        if (UNMAP_HANDLE == null) {
+            return;
+        }
+        try {
+            UNMAP_HANDLE.unmap(buffer);
+        } catch (Exception e) {
+            LOGGER.debug("Could not unmap buffer, leaving it to garbage collector", e);
+        }
+    }
+
+    @FunctionalInterface
+    private interface UnmapHandle {
+        void unmap(ByteBuffer buffer) throws Exception;
+    }
+
+    /**
+     * Find a way to release a mapping without waiting for garbage collector (sun.misc.Unsafe#invokeCleaner on Java 9+,
+     * DirectBuffer cleaner on Java 8).
+     */
+    private static UnmapHandle unmapHandle() {
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            final Object unsafe = theUnsafe.get(null);
+            return buffer -> invokeCleaner.invoke(unsafe, buffer);
+        } catch (Exception e) {
+            // not Java 9+
+        }
+        try {
+            final Method cleanerMethod = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+            final Method cleanMethod = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            return buffer -> {
+                final Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleanMethod.invoke(cleaner);
+                }
+            };
+        } catch (Exception e) {
+            LOGGER.info("Explicit unmapping of files is not supported, mappings are released by garbage collector");
+            return null;
+        }
+    }
+}
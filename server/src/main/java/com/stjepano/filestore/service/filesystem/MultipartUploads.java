@@ -0,0 +1,627 @@
+package com.stjepano.filestore.service.filesystem;
+
+import com.stjepano.filestore.common.MultipartUpload;
+import com.stjepano.filestore.service.BucketDoesNotExistException;
+import com.stjepano.filestore.service.BucketId;
+import com.stjepano.filestore.service.ContentDigestMismatchException;
+import com.stjepano.filestore.service.ExpectedDigests;
+import com.stjepano.filestore.service.FileAlreadyExistException;
+import com.stjepano.filestore.service.FileDoesNotExistException;
+import com.stjepano.filestore.service.FileId;
+import com.stjepano.filestore.service.FileService;
+import com.stjepano.filestore.service.InvalidUploadException;
+import com.stjepano.filestore.service.UploadDoesNotExistException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+/**
+ * Multipart uploads of large files into buckets of a {@link FileSystemFileService}.
+ *
+ * An upload is initiated with the size of the file, which is split into parts of equal size (the last part can be
+ * shorter). Parts are uploaded concurrently and in any order, each one is written at its offset into one data file, so
+ * a failed part is uploaded again without the others and completing the upload links the data file into the bucket
+ * without copying it. Uploaded parts are recorded on disk, an upload can be resumed after a restart of the client or of
+ * the server.
+ *
+ * An upload is kept in a directory of its bucket ({@code .filestore-multipart-<id>}) which is never listed, is on the
+ * same file system as the file it becomes and is deleted with the bucket. Uploads which were not changed for a while
+ * are deleted by {@link #deleteStaleUploads(long)}.
+ *
+ * Completed files are not compressed, their digests are computed with one read of the data file if they are needed.
+ * The data file is read without locks, parts can not be uploaded while an upload is being completed.
+ */
+public class MultipartUploads {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MultipartUploads.class);
+
+    static final String UPLOAD_DIR_PREFIX = ".filestore-multipart-";
+
+    private static final String STATE_FILE = "upload.properties";
+    private static final String DATA_FILE = "data";
+    private static final String PART_PREFIX = "part-";
+
+    private static final Pattern UPLOAD_ID = Pattern.compile("[0-9a-f]{32}");
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    private static final ThreadLocal<ByteBuffer> COPY_BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(COPY_BUFFER_SIZE));
+
+    private static final int LOCK_STRIPES = 64;
+
+    private final FileService fileService;
+    private final FileSystemFileService fileSystemFileService;
+    private final StripedLockManager lockManager;
+    private final long minPartSize;
+    private final int maxParts;
+
+    /** Parts hold the read lock of their upload, completing, aborting and expiring the upload hold its write lock */
+    private final ReadWriteLock[] uploadLocks = new ReadWriteLock[LOCK_STRIPES];
+
+    /** Ids of uploads whose data is digested by {@link #complete(FileId, String, ExpectedDigests)} */
+    private final Set<String> completing = ConcurrentHashMap.newKeySet();
+
+    private Thread cleanupThread;
+
+    private final LongAdder initiated = new LongAdder();
+    private final LongAdder uploadedParts = new LongAdder();
+    private final LongAdder uploadedBytes = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder aborted = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+
+    /**
+     * Initialize {@link MultipartUploads}.
+     * @param fileService service of the buckets, a {@link FileSystemFileService} or a {@link PackedFileService}
+     * @param minPartSize minimal size of a part, except the last one
+     * @param maxParts maximal number of parts of an upload
+     */
+    public MultipartUploads(FileService fileService, long minPartSize, int maxParts) {
+        this.fileService = fileService;
+        if (fileService instanceof PackedFileService) {
+            this.fileSystemFileService = ((PackedFileService) fileService).getDelegate();
+        } else if (fileService instanceof FileSystemFileService) {
+            this.fileSystemFileService = (FileSystemFileService) fileService;
+        } else {
+            throw new IllegalArgumentException("Multipart uploads need buckets stored in a file system!");
+        }
+        this.lockManager = fileSystemFileService.getLockManager();
+        this.minPartSize = Math.max(1, minPartSize);
+        this.maxParts = Math.max(1, maxParts);
+        for (int i = 0; i < uploadLocks.length; i++) {
+            uploadLocks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    /**
+     * Start an upload of a new file.
+     * @param fileId the file, it must not exist when the upload is started nor when it is completed
+     * @param size size of the file
+     * @param partSize size of parts or null to use the smallest size which does not need more than max parts
+     * @return the new upload without uploaded parts
+     * @throws InvalidUploadException if parts are smaller than min part size or there are more than max parts
+     */
+    public MultipartUpload initiate(FileId fileId, long size, Long partSize)
+            throws BucketDoesNotExistException, FileAlreadyExistException {
+        if (size < 0) {
+            throw new InvalidUploadException("Size of the file can not be negative!");
+        }
+        final long effectivePartSize = partSize != null ? partSize : Math.max(minPartSize, (size + maxParts - 1) / maxParts);
+        if (effectivePartSize <= 0 || (effectivePartSize < minPartSize && effectivePartSize < size)) {
+            throw new InvalidUploadException(String.format("Parts must have at least %d bytes!", minPartSize));
+        }
+        if (partCount(size, effectivePartSize) > maxParts) {
+            throw new InvalidUploadException(String.format("Upload can have at most %d parts, use larger parts!", maxParts));
+        }
+
+        final Lock bucketLock = lockManager.bucketSharedLock(fileId.getBucketId());
+        bucketLock.lock();
+        try {
+            if (!fileSystemFileService.bucketExists(fileId.getBucketId())) {
+                throw new BucketDoesNotExistException(fileId.getBucketId());
+            }
+            checkFileDoesNotExist(fileId);
+
+            final String uploadId = UUID.randomUUID().toString().replace("-", "");
+            final Path uploadPath = uploadPath(fileId.getBucketId(), uploadId);
+            final UploadState state = new UploadState(fileId.getFileName(), size, effectivePartSize);
+            try {
+                Files.createDirectory(uploadPath);
+                Files.createFile(uploadPath.resolve(DATA_FILE));
+                state.write(uploadPath.resolve(STATE_FILE));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            initiated.increment();
+            LOGGER.debug("Initiated upload '{}' of file '{}' with {} parts", uploadId, fileId, state.partCount());
+            return toUpload(uploadId, state, Collections.emptyList());
+        } finally {
+            bucketLock.unlock();
+        }
+    }
+
+    /**
+     * Upload one part, a part which was already uploaded is replaced.
+     * @param partNumber number of the part, from 1
+     * @param data data of the part, it must have exactly the size of the part
+     * @param expectedDigests digests the data of the part must match
+     * @throws InvalidUploadException if there is no such part or data does not have the size of the part
+     */
+    public void uploadPart(FileId fileId, String uploadId, int partNumber, InputStream data, ExpectedDigests expectedDigests)
+            throws BucketDoesNotExistException, UploadDoesNotExistException, ContentDigestMismatchException {
+        // data is written without the bucket lock, the part holds the read lock of its upload while it is written so
+        // that the upload is not expired in the meantime; the part is missing until it is recorded, so a completion
+        // or an abort in the meantime is seen when the part is recorded
+        final Lock bucketLock = lockManager.bucketSharedLock(fileId.getBucketId());
+        final Lock uploadLock = uploadLock(uploadId).readLock();
+        final Path uploadPath;
+        final long offset;
+        final long length;
+        final Path marker;
+        bucketLock.lock();
+        uploadLock.lock();
+        try {
+            uploadPath = existingUploadPath(fileId, uploadId);
+            final UploadState state = state(fileId, uploadId, uploadPath);
+            if (partNumber < 1 || partNumber > state.partCount()) {
+                throw new InvalidUploadException(String.format("Upload has parts 1 to %d!", state.partCount()));
+            }
+            checkNotCompleting(uploadId);
+            offset = (partNumber - 1) * state.partSize;
+            length = Math.min(state.partSize, state.size - offset);
+            marker = uploadPath.resolve(PART_PREFIX + partNumber);
+            // a part which is uploaded again is missing until its new data is written
+            Files.deleteIfExists(marker);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            uploadLock.unlock();
+            bucketLock.unlock();
+        }
+
+        uploadLock.lock();
+        try {
+            final UploadDigests digests = UploadDigests.forUpload(expectedDigests, false, false);
+            final long written = writePart(data, uploadPath.resolve(DATA_FILE), offset, length, digests);
+            if (written != length) {
+                throw new InvalidUploadException(String.format("Part %d must have %d bytes!", partNumber, length));
+            }
+            digests.verify(fileId, expectedDigests);
+        } catch (NoSuchFileException e) {
+            // upload was deleted with its bucket
+            throw new UploadDoesNotExistException(fileId, uploadId);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            uploadLock.unlock();
+        }
+
+        bucketLock.lock();
+        uploadLock.lock();
+        try {
+            state(fileId, uploadId, existingUploadPath(fileId, uploadId));
+            checkNotCompleting(uploadId);
+            // data is on disk before the part is recorded, a recorded part survives a crash
+            Files.createFile(marker);
+            forceDirectory(uploadPath);
+        } catch (FileAlreadyExistsException e) {
+            // same part was uploaded concurrently
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            uploadLock.unlock();
+            bucketLock.unlock();
+        }
+        uploadedParts.increment();
+        uploadedBytes.add(length);
+    }
+
+    /**
+     * Get state of an upload with its uploaded parts, used to resume it.
+     */
+    public MultipartUpload getUpload(FileId fileId, String uploadId)
+            throws BucketDoesNotExistException, UploadDoesNotExistException {
+        final Lock bucketLock = lockManager.bucketSharedLock(fileId.getBucketId());
+        bucketLock.lock();
+        try {
+            final Path uploadPath = existingUploadPath(fileId, uploadId);
+            final UploadState state = state(fileId, uploadId, uploadPath);
+            return toUpload(uploadId, state, uploadedParts(uploadPath));
+        } finally {
+            bucketLock.unlock();
+        }
+    }
+
+    /**
+     * Complete an upload, its data becomes the file and the upload is deleted.
+     * @param expectedDigests digests the data of the whole file must match
+     * @throws InvalidUploadException if some parts were not uploaded
+     * @throws FileAlreadyExistException if the file was created after the upload was started, upload is kept then
+     */
+    public void complete(FileId fileId, String uploadId, ExpectedDigests expectedDigests)
+            throws BucketDoesNotExistException, UploadDoesNotExistException, FileAlreadyExistException,
+            ContentDigestMismatchException {
+        // data is digested without locks, parts can not be uploaded and the upload can not be aborted in the meantime
+        final Lock bucketLock = lockManager.bucketSharedLock(fileId.getBucketId());
+        final Lock uploadLock = uploadLock(uploadId).writeLock();
+        final Path uploadPath;
+        bucketLock.lock();
+        uploadLock.lock();
+        try {
+            uploadPath = existingUploadPath(fileId, uploadId);
+            final UploadState state = state(fileId, uploadId, uploadPath);
+            final int uploaded = uploadedParts(uploadPath).size();
+            if (uploaded != state.partCount()) {
+                throw new InvalidUploadException(String.format("Upload is incomplete, %d of %d parts were uploaded!",
+                        uploaded, state.partCount()));
+            }
+            // packed files are not seen by the file system service
+            checkFileDoesNotExist(fileId);
+            if (!completing.add(uploadId)) {
+                throw new InvalidUploadException("Upload is already being completed!");
+            }
+        } finally {
+            uploadLock.unlock();
+            bucketLock.unlock();
+        }
+
+        try {
+            final Path dataPath = uploadPath.resolve(DATA_FILE);
+            final UploadDigests digests = fileSystemFileService.digestUpload(fileId, dataPath, expectedDigests);
+            bucketLock.lock();
+            uploadLock.lock();
+            try {
+                // bucket could be deleted while data was digested
+                state(fileId, uploadId, existingUploadPath(fileId, uploadId));
+                checkFileDoesNotExist(fileId);
+                fileSystemFileService.publishUpload(fileId, dataPath, digests);
+                deleteUpload(uploadPath);
+                completed.increment();
+            } finally {
+                uploadLock.unlock();
+                bucketLock.unlock();
+            }
+        } finally {
+            completing.remove(uploadId);
+        }
+    }
+
+    /**
+     * Abort an upload, its uploaded parts are deleted.
+     */
+    public void abort(FileId fileId, String uploadId) throws BucketDoesNotExistException, UploadDoesNotExistException {
+        final Lock bucketLock = lockManager.bucketSharedLock(fileId.getBucketId());
+        final Lock uploadLock = uploadLock(uploadId).writeLock();
+        bucketLock.lock();
+        uploadLock.lock();
+        try {
+            final Path uploadPath = existingUploadPath(fileId, uploadId);
+            state(fileId, uploadId, uploadPath);
+            checkNotCompleting(uploadId);
+            deleteUpload(uploadPath);
+            aborted.increment();
+        } finally {
+            uploadLock.unlock();
+            bucketLock.unlock();
+        }
+    }
+
+    /**
+     * Delete uploads of all buckets which were not changed for given time, uploads with a part in progress are kept.
+     * @return number of deleted uploads
+     */
+    public int deleteStaleUploads(long maxAgeMillis) {
+        final long oldest = System.currentTimeMillis() - maxAgeMillis;
+        int deleted = 0;
+        for (String bucket : fileSystemFileService.getBuckets()) {
+            final BucketId bucketId = BucketId.from(bucket);
+            final Lock bucketLock = lockManager.bucketSharedLock(bucketId);
+            bucketLock.lock();
+            try (DirectoryStream<Path> uploads = Files.newDirectoryStream(fileSystemFileService.bucketPath(bucketId),
+                    UPLOAD_DIR_PREFIX + "*")) {
+                for (Path uploadPath : uploads) {
+                    final String uploadId = uploadPath.getFileName().toString().substring(UPLOAD_DIR_PREFIX.length());
+                    final Lock uploadLock = uploadLock(uploadId).writeLock();
+                    if (completing.contains(uploadId) || !uploadLock.tryLock()) {
+                        continue;
+                    }
+                    try {
+                        if (lastModified(uploadPath) < oldest) {
+                            deleteUpload(uploadPath);
+                            expired.increment();
+                            deleted++;
+                        }
+                    } finally {
+                        uploadLock.unlock();
+                    }
+                }
+            } catch (NoSuchFileException e) {
+                // bucket was deleted in the meantime
+            } catch (IOException e) {
+                LOGGER.error("Could not delete stale uploads of bucket '{}'", bucketId, e);
+            } finally {
+                bucketLock.unlock();
+            }
+        }
+        if (deleted > 0) {
+            LOGGER.info("Deleted {} stale multipart uploads", deleted);
+        }
+        return deleted;
+    }
+
+    /**
+     * Start a daemon thread deleting stale uploads with given interval.
+     * @param intervalMillis time between two cleanups
+     * @param maxAgeMillis uploads which were not changed for this time are deleted
+     */
+    public synchronized void startCleanup(long intervalMillis, long maxAgeMillis) {
+        if (cleanupThread != null) {
+            return;
+        }
+        cleanupThread = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    Thread.sleep(intervalMillis);
+                    deleteStaleUploads(maxAgeMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (RuntimeException e) {
+                    LOGGER.error("Multipart upload cleanup failed", e);
+                }
+            }
+        }, "filestore-multipart-cleanup");
+        cleanupThread.setDaemon(true);
+        cleanupThread.start();
+    }
+
+    /**
+     * Stop deleting stale uploads.
+     */
+    public void stop() {
+        final Thread thread;
+        synchronized (this) {
+            thread = cleanupThread;
+            cleanupThread = null;
+        }
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void checkFileDoesNotExist(FileId fileId) throws BucketDoesNotExistException, FileAlreadyExistException {
+        try {
+            fileService.getFileInfo(fileId);
+        } catch (FileDoesNotExistException e) {
+            return;
+        }
+        throw new FileAlreadyExistException(fileId);
+    }
+
+    private Path uploadPath(BucketId bucketId, String uploadId) {
+        return fileSystemFileService.bucketPath(bucketId).resolve(UPLOAD_DIR_PREFIX + uploadId);
+    }
+
+    private Path existingUploadPath(FileId fileId, String uploadId)
+            throws BucketDoesNotExistException, UploadDoesNotExistException {
+        if (!fileSystemFileService.bucketExists(fileId.getBucketId())) {
+            throw new BucketDoesNotExistException(fileId.getBucketId());
+        }
+        // upload id is a part of a path
+        if (uploadId == null || !UPLOAD_ID.matcher(uploadId).matches()) {
+            throw new UploadDoesNotExistException(fileId, uploadId);
+        }
+        return uploadPath(fileId.getBucketId(), uploadId);
+    }
+
+    private static UploadState state(FileId fileId, String uploadId, Path uploadPath) throws UploadDoesNotExistException {
+        final UploadState state;
+        try {
+            state = UploadState.read(uploadPath.resolve(STATE_FILE));
+        } catch (NoSuchFileException e) {
+            throw new UploadDoesNotExistException(fileId, uploadId);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        if (!fileId.getFileName().equals(state.name)) {
+            throw new UploadDoesNotExistException(fileId, uploadId);
+        }
+        return state;
+    }
+
+    private void checkNotCompleting(String uploadId) {
+        if (completing.contains(uploadId)) {
+            throw new InvalidUploadException("Upload is being completed!");
+        }
+    }
+
+    private ReadWriteLock uploadLock(String uploadId) {
+        final int hash = uploadId == null ? 0 : uploadId.hashCode();
+        return uploadLocks[(hash ^ (hash >>> 16)) & (LOCK_STRIPES - 1)];
+    }
+
+    private static List<Integer> uploadedParts(Path uploadPath) {
+        final List<Integer> parts = new ArrayList<>();
+        try (DirectoryStream<Path> markers = Files.newDirectoryStream(uploadPath, PART_PREFIX + "*")) {
+            for (Path marker : markers) {
+                parts.add(Integer.parseInt(marker.getFileName().toString().substring(PART_PREFIX.length())));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        Collections.sort(parts);
+        return parts;
+    }
+
+    private static MultipartUpload toUpload(String uploadId, UploadState state, List<Integer> uploadedParts) {
+        return new MultipartUpload(uploadId, state.name, state.size, state.partSize, state.partCount(), uploadedParts);
+    }
+
+    private static long partCount(long size, long partSize) {
+        return (size + partSize - 1) / partSize;
+    }
+
+    /**
+     * Write data of a part at its offset and update digests with written data.
+     * @return number of bytes read from data, more than length if the part is too long
+     */
+    private static long writePart(InputStream data, Path dataPath, long offset, long length, UploadDigests digests)
+            throws IOException {
+        final ReadableByteChannel source = Channels.newChannel(data);
+        final ByteBuffer buffer = COPY_BUFFER.get();
+        long written = 0;
+        try (FileChannel fileChannel = FileChannel.open(dataPath, StandardOpenOption.WRITE)) {
+            while (true) {
+                buffer.clear();
+                // one byte more than remains shows a part which is too long
+                buffer.limit((int) Math.min(buffer.capacity(), length - written + 1));
+                final int n = source.read(buffer);
+                if (n < 0) {
+                    fileChannel.force(true);
+                    return written;
+                }
+                if (written + n > length) {
+                    return written + n;
+                }
+                buffer.flip();
+                if (!digests.isEmpty()) {
+                    digests.update(buffer);
+                    buffer.rewind();
+                }
+                while (buffer.hasRemaining()) {
+                    written += fileChannel.write(buffer, offset + written);
+                }
+            }
+        }
+    }
+
+    /**
+     * Flush entries of a directory to disk, best effort: directories can not be opened on every platform.
+     */
+    private static void forceDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            LOGGER.debug("Could not flush directory '{}'", directory, e);
+        }
+    }
+
+    /**
+     * Time of the last change of an upload, data is written without changing the directory
+     */
+    private static long lastModified(Path uploadPath) throws IOException {
+        long lastModified = Files.getLastModifiedTime(uploadPath).toMillis();
+        final Path dataPath = uploadPath.resolve(DATA_FILE);
+        if (Files.exists(dataPath)) {
+            lastModified = Math.max(lastModified, Files.getLastModifiedTime(dataPath).toMillis());
+        }
+        return lastModified;
+    }
+
+    private static void deleteUpload(Path uploadPath) {
+        try {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(uploadPath)) {
+                for (Path file : files) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            Files.deleteIfExists(uploadPath);
+        } catch (IOException e) {
+            LOGGER.warn("Could not delete upload directory '{}'", uploadPath, e);
+        }
+    }
+
+    public long getInitiated() {
+        return initiated.sum();
+    }
+
+    public long getUploadedParts() {
+        return uploadedParts.sum();
+    }
+
+    public long getUploadedBytes() {
+        return uploadedBytes.sum();
+    }
+
+    public long getCompleted() {
+        return completed.sum();
+    }
+
+    public long getAborted() {
+        return aborted.sum();
+    }
+
+    /**
+     * Number of uploads deleted because they were not changed for too long
+     */
+    public long getExpired() {
+        return expired.sum();
+    }
+
+    /**
+     * File, size and part size of an upload, stored as properties in its directory
+     */
+    private static class UploadState {
+        final String name;
+        final long size;
+        final long partSize;
+
+        UploadState(String name, long size, long partSize) {
+            this.name = name;
+            this.size = size;
+            this.partSize = partSize;
+        }
+
+        int partCount() {
+            return (int) MultipartUploads.partCount(size, partSize);
+        }
+
+        void write(Path statePath) throws IOException {
+            final Properties properties = new Properties();
+            properties.setProperty("name", name);
+            properties.setProperty("size", Long.toString(size));
+            properties.setProperty("partSize", Long.toString(partSize));
+            try (OutputStream out = Files.newOutputStream(statePath, StandardOpenOption.CREATE_NEW)) {
+                properties.store(out, null);
+            }
+        }
+
+        static UploadState read(Path statePath) throws IOException {
+            final Properties properties = new Properties();
+            try (InputStream in = Files.newInputStream(statePath)) {
+                properties.load(in);
+            }
+            return new UploadState(properties.getProperty("name"),
+                    Long.parseLong(properties.getProperty("size")),
+                    Long.parseLong(properties.getProperty("partSize")));
+        }
+    }
+}
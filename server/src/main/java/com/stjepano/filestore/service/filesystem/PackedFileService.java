@@ -0,0 +1,391 @@
+package com.stjepano.filestore.service.filesystem;
+
+import com.stjepano.filestore.common.FileInfo;
+import com.stjepano.filestore.common.FilePage;
+import com.stjepano.filestore.service.BucketAlreadyExistsException;
+import com.stjepano.filestore.service.BucketDoesNotExistException;
+import com.stjepano.filestore.service.BucketId;
+import com.stjepano.filestore.service.ContentDigestMismatchException;
+import com.stjepano.filestore.service.ExpectedDigests;
+import com.stjepano.filestore.service.FileAlreadyExistException;
+import com.stjepano.filestore.service.FileDoesNotExistException;
+import com.stjepano.filestore.service.FileId;
+import com.stjepano.filestore.service.FileService;
+import org.springframework.core.io.Resource;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.FileNameMap;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.Stream;
+
+/**
+ * Implementation of {@link FileService} that keeps small files in a {@link SegmentLog} and everything else in a
+ * {@link FileSystemFileService}.
+ *
+ * Buckets are directories of the file system service. Uploads up to max packed size are appended to the segment log
+ * instead of being written as separate files, so storing them costs one sequential write and no inode, and downloads
+ * are served from memory read with one positional read. Larger uploads, and files already in bucket directories, are
+ * handled by the file system service. Overwrites move a file between the two when its size crosses max packed size,
+ * listings merge both.
+ *
+ * The locks of the file system service are shared, so packed and plain files of a bucket are never changed
+ * concurrently.
+ */
+public class PackedFileService implements FileService {
+
+    private static final FileNameMap FILE_NAME_MAP = URLConnection.getFileNameMap();
+
+    private final FileSystemFileService delegate;
+    private final SegmentLog segmentLog;
+    private final int maxPackedSize;
+    private final StripedLockManager lockManager;
+
+    /**
+     * Initialize {@link PackedFileService}, packed files of buckets which do not exist anymore are dropped.
+     * @param delegate service storing buckets and files larger than max packed size
+     * @param segmentLog opened segment log
+     * @param maxPackedSize files up to this size are packed
+     */
+    public PackedFileService(FileSystemFileService delegate, SegmentLog segmentLog, int maxPackedSize) {
+        this.delegate = delegate;
+        this.segmentLog = segmentLog;
+        this.maxPackedSize = maxPackedSize;
+        this.lockManager = delegate.getLockManager();
+        try {
+            segmentLog.retainBuckets(delegate.getBuckets());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Service storing buckets and files which are not packed
+     */
+    FileSystemFileService getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public List<String> getBuckets() {
+        return delegate.getBuckets();
+    }
+
+    @Override
+    public void createBucket(BucketId bucketId) throws BucketAlreadyExistsException {
+        delegate.createBucket(bucketId);
+    }
+
+    @Override
+    public void deleteBucket(BucketId bucketId) throws BucketDoesNotExistException {
+        final Lock bucketLock = lockManager.bucketExclusiveLock(bucketId);
+        bucketLock.lock();
+        try {
+            delegate.deleteBucket(bucketId);
+            segmentLog.deleteBucket(bucketId.getId());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            bucketLock.unlock();
+        }
+    }
+
+    @Override
+    public List<FileInfo> getFiles(BucketId bucketId) throws BucketDoesNotExistException {
+        final List<FileInfo> files = delegate.getFiles(bucketId);
+        final NavigableMap<String, SegmentLog.Entry> packed = segmentLog.getFiles(bucketId.getId());
+        if (packed.isEmpty()) {
+            return files;
+        }
+        final TreeMap<String, FileInfo> merged = new TreeMap<>();
+        packed.forEach((name, entry) -> merged.put(name, fileInfo(name, entry)));
+        for (FileInfo file : files) {
+            merged.put(file.getName(), file);
+        }
+        return new ArrayList<>(merged.values());
+    }
+
+    @Override
+    public FilePage getFiles(BucketId bucketId, String prefix, String startAfter, int limit) throws BucketDoesNotExistException {
+        final FilePage page = delegate.getFiles(bucketId, prefix, startAfter, limit);
+
+        NavigableMap<String, SegmentLog.Entry> packed = segmentLog.getFiles(bucketId.getId());
+        if (prefix != null && (startAfter == null || prefix.compareTo(startAfter) > 0)) {
+            packed = packed.tailMap(prefix, true);
+        } else if (startAfter != null) {
+            packed = packed.tailMap(startAfter, false);
+        }
+        final TreeMap<String, FileInfo> merged = new TreeMap<>();
+        for (Map.Entry<String, SegmentLog.Entry> entry : packed.entrySet()) {
+            if (merged.size() > limit || (prefix != null && !entry.getKey().startsWith(prefix))) {
+                break;
+            }
+            merged.put(entry.getKey(), fileInfo(entry.getKey(), entry.getValue()));
+        }
+        if (merged.isEmpty()) {
+            return page;
+        }
+        for (FileInfo file : page.getFiles()) {
+            merged.put(file.getName(), file);
+        }
+
+        // both sources hold the first limit names after the cursor, later names are picked up by the next page
+        final List<FileInfo> files = new ArrayList<>(limit);
+        for (FileInfo file : merged.values()) {
+            if (files.size() == limit) {
+                break;
+            }
+            files.add(file);
+        }
+        final boolean more = merged.size() > limit || page.getNextStartAfter() != null;
+        return new FilePage(files, more ? files.get(files.size() - 1).getName() : null);
+    }
+
+    @Override
+    public Stream<FileInfo> streamFiles(BucketId bucketId) throws BucketDoesNotExistException {
+        final Stream<FileInfo> files = delegate.streamFiles(bucketId);
+        final Stream<FileInfo> packed = segmentLog.getFiles(bucketId.getId()).entrySet().stream()
+                .map(entry -> fileInfo(entry.getKey(), entry.getValue()));
+        return Stream.concat(files, packed);
+    }
+
+    @Override
+    public FileInfo getFileInfo(FileId fileId) throws BucketDoesNotExistException, FileDoesNotExistException {
+        if (!delegate.bucketExists(fileId.getBucketId())) {
+            throw new BucketDoesNotExistException(fileId.getBucketId());
+        }
+        final SegmentLog.Entry entry = segmentLog.get(fileId.getBucketId().getId(), fileId.getFileName());
+        if (entry != null) {
+            return fileInfo(fileId.getFileName(), entry);
+        }
+        return delegate.getFileInfo(fileId);
+    }
+
+    @Override
+    public void deleteFile(FileId fileId) throws BucketDoesNotExistException, FileDoesNotExistException {
+        final Lock bucketLock = lockManager.bucketSharedLock(fileId.getBucketId());
+        final Lock fileLock = lockManager.fileLock(fileId);
+        bucketLock.lock();
+        fileLock.lock();
+        try {
+            if (!delegate.bucketExists(fileId.getBucketId())) {
+                throw new BucketDoesNotExistException(fileId.getBucketId());
+            }
+            if (!segmentLog.delete(fileId.getBucketId().getId(), fileId.getFileName())) {
+                delegate.deleteFile(fileId);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            fileLock.unlock();
+            bucketLock.unlock();
+        }
+    }
+
+    @Override
+    public void upload(FileId fileId, InputStream dataStream, ExpectedDigests expectedDigests)
+            throws BucketDoesNotExistException, FileAlreadyExistException, ContentDigestMismatchException {
+        // data is read without locks like in the delegate, bucket is locked only to check it and to change files
+        final Lock bucketLock = lockManager.bucketSharedLock(fileId.getBucketId());
+        bucketLock.lock();
+        try {
+            if (!delegate.bucketExists(fileId.getBucketId())) {
+                throw new BucketDoesNotExistException(fileId.getBucketId());
+            }
+            if (packedExists(fileId)) {
+                throw new FileAlreadyExistException(fileId);
+            }
+        } finally {
+            bucketLock.unlock();
+        }
+
+        try {
+            final byte[] head = readHead(dataStream);
+            final Lock fileLock = lockManager.fileLock(fileId);
+            if (head.length <= maxPackedSize) {
+                verify(fileId, head, expectedDigests);
+                bucketLock.lock();
+                fileLock.lock();
+                try {
+                    // bucket could be deleted while data was read
+                    if (!delegate.bucketExists(fileId.getBucketId())) {
+                        throw new BucketDoesNotExistException(fileId.getBucketId());
+                    }
+                    if (packedExists(fileId) || delegate.fileExists(fileId)) {
+                        throw new FileAlreadyExistException(fileId);
+                    }
+                    segmentLog.put(fileId.getBucketId().getId(), fileId.getFileName(), ByteBuffer.wrap(head), System.currentTimeMillis());
+                } finally {
+                    fileLock.unlock();
+                    bucketLock.unlock();
+                }
+                return;
+            }
+
+            delegate.upload(fileId, new SequenceInputStream(new ByteArrayInputStream(head), dataStream), expectedDigests);
+            // a small upload of the same file may have been packed while data was written, the first one wins
+            bucketLock.lock();
+            fileLock.lock();
+            try {
+                if (packedExists(fileId)) {
+                    delegate.deleteFile(fileId);
+                    throw new FileAlreadyExistException(fileId);
+                }
+            } catch (FileDoesNotExistException e) {
+                throw new FileAlreadyExistException(fileId);
+            } finally {
+                fileLock.unlock();
+                bucketLock.unlock();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void overwrite(FileId fileId, InputStream dataStream, ExpectedDigests expectedDigests)
+            throws BucketDoesNotExistException, FileDoesNotExistException, ContentDigestMismatchException {
+        final Lock bucketLock = lockManager.bucketSharedLock(fileId.getBucketId());
+        bucketLock.lock();
+        try {
+            if (!delegate.bucketExists(fileId.getBucketId())) {
+                throw new BucketDoesNotExistException(fileId.getBucketId());
+            }
+            if (!packedExists(fileId) && !delegate.fileExists(fileId)) {
+                throw new FileDoesNotExistException(fileId);
+            }
+        } finally {
+            bucketLock.unlock();
+        }
+
+        try {
+            final byte[] head = readHead(dataStream);
+            final Lock fileLock = lockManager.fileLock(fileId);
+            if (head.length <= maxPackedSize) {
+                verify(fileId, head, expectedDigests);
+                bucketLock.lock();
+                fileLock.lock();
+                try {
+                    // bucket could be deleted while data was read
+                    if (!delegate.bucketExists(fileId.getBucketId())) {
+                        throw new BucketDoesNotExistException(fileId.getBucketId());
+                    }
+                    final boolean plain = delegate.fileExists(fileId);
+                    if (!plain && !packedExists(fileId)) {
+                        throw new FileDoesNotExistException(fileId);
+                    }
+                    segmentLog.put(fileId.getBucketId().getId(), fileId.getFileName(), ByteBuffer.wrap(head), System.currentTimeMillis());
+                    if (plain) {
+                        delegate.deleteFile(fileId);
+                    }
+                } finally {
+                    fileLock.unlock();
+                    bucketLock.unlock();
+                }
+                return;
+            }
+
+            final InputStream data = new SequenceInputStream(new ByteArrayInputStream(head), dataStream);
+            if (!packedExists(fileId)) {
+                delegate.overwrite(fileId, data, expectedDigests);
+                return;
+            }
+            try {
+                delegate.upload(fileId, data, expectedDigests);
+            } catch (FileAlreadyExistException e) {
+                // concurrent overwrite already moved the file out of the log
+                throw new RuntimeException(e);
+            }
+            bucketLock.lock();
+            fileLock.lock();
+            try {
+                // file could be deleted while data was written, overwrite must not recreate it
+                if (!segmentLog.delete(fileId.getBucketId().getId(), fileId.getFileName())) {
+                    delegate.deleteFile(fileId);
+                    throw new FileDoesNotExistException(fileId);
+                }
+            } finally {
+                fileLock.unlock();
+                bucketLock.unlock();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public Resource download(FileId fileId) throws BucketDoesNotExistException, FileDoesNotExistException {
+        if (!delegate.bucketExists(fileId.getBucketId())) {
+            throw new BucketDoesNotExistException(fileId.getBucketId());
+        }
+        final SegmentLog.Entry entry = segmentLog.get(fileId.getBucketId().getId(), fileId.getFileName());
+        if (entry != null) {
+            try {
+                final ByteBuffer data = segmentLog.read(fileId.getBucketId().getId(), fileId.getFileName());
+                if (data != null) {
+                    return new ByteBufferResource(data, fileId.getFileName(), entry.getCreated());
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return delegate.download(fileId);
+    }
+
+    private boolean packedExists(FileId fileId) {
+        return segmentLog.get(fileId.getBucketId().getId(), fileId.getFileName()) != null;
+    }
+
+    /**
+     * Verify data of a small file before it is packed, checksums of packed files are not stored.
+     */
+    private static void verify(FileId fileId, byte[] data, ExpectedDigests expectedDigests) throws ContentDigestMismatchException {
+        if (expectedDigests.isEmpty()) {
+            return;
+        }
+        final UploadDigests digests = UploadDigests.forUpload(expectedDigests, false, false);
+        digests.update(data, 0, data.length);
+        digests.verify(fileId, expectedDigests);
+    }
+
+    /**
+     * Read data up to one byte more than max packed size, so a shorter result is the whole file.
+     */
+    private byte[] readHead(InputStream dataStream) throws IOException {
+        final byte[] buffer = new byte[maxPackedSize + 1];
+        int length = 0;
+        while (length < buffer.length) {
+            final int n = dataStream.read(buffer, length, buffer.length - length);
+            if (n < 0) {
+                break;
+            }
+            length += n;
+        }
+        if (length == buffer.length) {
+            return buffer;
+        }
+        final byte[] head = new byte[length];
+        System.arraycopy(buffer, 0, head, 0, length);
+        return head;
+    }
+
+    private static FileInfo fileInfo(String name, SegmentLog.Entry entry) {
+        final LocalDateTime dateCreated = LocalDateTime.ofInstant(Instant.ofEpochMilli(entry.getCreated()), ZoneOffset.systemDefault());
+        final FileInfo fileInfo = new FileInfo(name, entry.getLength(), FILE_NAME_MAP.getContentTypeFor(name), dateCreated);
+        // records are never changed, a changed file is a new record
+        fileInfo.setLastModified(dateCreated);
+        return fileInfo;
+    }
+}
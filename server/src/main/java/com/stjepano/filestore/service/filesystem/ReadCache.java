@@ -0,0 +1,274 @@
+package com.stjepano.filestore.service.filesystem;
+
+import org.springframework.core.io.Resource;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Size bounded cache of small files held in direct (off-heap) buffers, used by {@link FileSystemFileService} to serve
+ * hot files from memory.
+ *
+ * Files are kept in LRU order, a new file is admitted only if it was accessed more often than the files it would evict
+ * (TinyLFU admission) so that one time reads do not flush hot files out of the cache. Buffers of evicted files are
+ * released by the garbage collector, so downloads still reading an evicted buffer are not affected.
+ *
+ * The cache is split by path into segments (up to 16, each holds at least one file of maximal size) with their own
+ * lock, LRU order and access frequencies, so a hit takes one lock shared only with files of its segment. Space for a
+ * file is reserved before its buffer is allocated, files which are not admitted are never read.
+ *
+ * Cache must be invalidated when files change.
+ */
+public class ReadCache {
+
+    private static final int MAX_SEGMENTS = 16;
+
+    private final long maxFileSize;
+
+    private final Segment[] segments;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+    /**
+     * Initialize {@link ReadCache}.
+     * @param capacity maximal number of bytes held in the cache
+     * @param maxFileSize maximal size of cached file
+     */
+    public ReadCache(long capacity, long maxFileSize) {
+        this.maxFileSize = Math.min(maxFileSize, Math.min(capacity, Integer.MAX_VALUE));
+        final long filesPerCache = capacity / Math.max(1, this.maxFileSize);
+        final int segmentCount = Integer.highestOneBit((int) Math.max(1, Math.min(MAX_SEGMENTS, filesPerCache)));
+        final long segmentCapacity = capacity / segmentCount;
+        final int expectedEntries = (int) Math.min(Integer.MAX_VALUE, segmentCapacity / Math.max(1, Math.min(4096, this.maxFileSize)));
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(segmentCapacity, expectedEntries);
+        }
+    }
+
+    /**
+     * Get cached content of a file, reading the file into the cache if it is small and hot enough.
+     *
+     * @param path the path of the file
+     * @return a resource with file content or null if file is not cached
+     * @throws IOException if file could not be read
+     */
+    public Resource get(Path path) throws IOException {
+        final Segment segment = segment(path);
+        final long generation;
+        synchronized (segment) {
+            segment.sketch.increment(path);
+            final ByteBufferResource resource = segment.entries.get(path);
+            if (resource != null) {
+                hits.increment();
+                return resource;
+            }
+            generation = segment.invalidations;
+        }
+        misses.increment();
+
+        final long fileSize = Files.size(path);
+        if (fileSize > maxFileSize) {
+            return null;
+        }
+        synchronized (segment) {
+            if (!segment.reserve(path, fileSize)) {
+                rejections.increment();
+                return null;
+            }
+        }
+
+        boolean cached = false;
+        try {
+            final long lastModified = Files.getLastModifiedTime(path).toMillis();
+            final ByteBuffer buffer;
+            try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+                buffer = ByteBuffer.allocateDirect((int) fileSize);
+                while (buffer.hasRemaining()) {
+                    if (fileChannel.read(buffer) < 0) {
+                        break;
+                    }
+                }
+                if (fileChannel.size() != fileSize || buffer.hasRemaining()) {
+                    // file is being changed
+                    return null;
+                }
+            }
+            buffer.flip();
+
+            final ByteBufferResource resource = new ByteBufferResource(buffer, path.getFileName().toString(), lastModified);
+            synchronized (segment) {
+                if (generation == segment.invalidations && !segment.entries.containsKey(path)) {
+                    // reserved space becomes space of the entry
+                    segment.entries.put(path, resource);
+                    cached = true;
+                }
+            }
+            return resource;
+        } finally {
+            if (!cached) {
+                synchronized (segment) {
+                    segment.size -= fileSize;
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove a file from the cache, must be called when file is changed or deleted.
+     */
+    public void invalidate(Path path) {
+        final Segment segment = segment(path);
+        synchronized (segment) {
+            segment.invalidations++;
+            final ByteBufferResource resource = segment.entries.remove(path);
+            if (resource != null) {
+                segment.size -= resource.contentLength();
+            }
+        }
+    }
+
+    /**
+     * Remove all files in given directory and its subdirectories from the cache.
+     */
+    public void invalidateAll(Path directory) {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.invalidations++;
+                final Iterator<Map.Entry<Path, ByteBufferResource>> iterator = segment.entries.entrySet().iterator();
+                while (iterator.hasNext()) {
+                    final Map.Entry<Path, ByteBufferResource> entry = iterator.next();
+                    if (entry.getKey().startsWith(directory)) {
+                        segment.size -= entry.getValue().contentLength();
+                        iterator.remove();
+                    }
+                }
+            }
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public double getHitRatio() {
+        final long hits = getHits();
+        final long requests = hits + getMisses();
+        return requests == 0 ? 0 : (double) hits / requests;
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getRejections() {
+        return rejections.sum();
+    }
+
+    /**
+     * Number of bytes held in the cache (including space reserved for files being read)
+     */
+    public long getSize() {
+        long size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+
+    public int getEntries() {
+        int entries = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                entries += segment.entries.size();
+            }
+        }
+        return entries;
+    }
+
+    private Segment segment(Path path) {
+        final int hash = path.hashCode() * 0x9e3779b9;
+        return segments[(hash ^ (hash >>> 16)) & (segments.length - 1)];
+    }
+
+    /**
+     * Part of the cache, all fields are guarded by the segment's monitor.
+     */
+    private final class Segment {
+
+        private final long capacity;
+        private final LinkedHashMap<Path, ByteBufferResource> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private final FrequencySketch sketch;
+        private long size;
+        private long invalidations;
+
+        private Segment(long capacity, int expectedEntries) {
+            this.capacity = capacity;
+            this.sketch = new FrequencySketch(expectedEntries);
+        }
+
+        /**
+         * Evict files to make room for a file and reserve the room.
+         *
+         * @return false if file should not be admitted, nothing is evicted then
+         */
+        private boolean reserve(Path path, long fileSize) {
+            final List<Path> victims = victims(path, fileSize);
+            if (victims == null) {
+                return false;
+            }
+            for (Path victim : victims) {
+                size -= entries.remove(victim).contentLength();
+                evictions.increment();
+            }
+            size += fileSize;
+            return true;
+        }
+
+        /**
+         * Get files which need to be evicted to make room for a file.
+         *
+         * @return list of files to evict or null if file should not be admitted
+         */
+        private List<Path> victims(Path path, long fileSize) {
+            final List<Path> victims = new ArrayList<>();
+            long free = capacity - size;
+            final Iterator<Map.Entry<Path, ByteBufferResource>> iterator = entries.entrySet().iterator();
+            int candidateFrequency = -1;
+            while (free < fileSize) {
+                if (!iterator.hasNext()) {
+                    return null;
+                }
+                final Map.Entry<Path, ByteBufferResource> victim = iterator.next();
+                if (candidateFrequency < 0) {
+                    candidateFrequency = sketch.frequency(path);
+                }
+                if (sketch.frequency(victim.getKey()) >= candidateFrequency) {
+                    return null;
+                }
+                victims.add(victim.getKey());
+                free += victim.getValue().contentLength();
+            }
+            return victims;
+        }
+    }
+}
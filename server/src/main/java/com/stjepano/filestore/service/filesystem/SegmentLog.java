@@ -0,0 +1,621 @@
+package com.stjepano.filestore.service.filesystem;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/**
+ * Append only log of small files used by {@link PackedFileService}.
+ *
+ * Files are appended as records to the active segment file, when it would grow over segment size it is sealed (forced
+ * to disk) and a new one is started. An in-memory index maps bucket and file name to the position of the latest record,
+ * so a read is one positional read from an open segment channel. Deleting a file or a bucket appends a tombstone.
+ * Replaced and deleted files leave dead records behind, {@link #compact(double)} appends live records of sparse sealed
+ * segments again and deletes those segments.
+ *
+ * Record layout: magic (int), CRC32 of the rest of the record (int), type (byte), sequence number (long), creation time
+ * (long), bucket length (short), bucket (UTF-8), name length (short), name (UTF-8), data length (int), data. Records
+ * keep their sequence number when they are moved by compaction, the record with the highest sequence number wins, so
+ * the index does not depend on the order of records in segments.
+ *
+ * On {@link #open()} the index is rebuilt from record headers of all segments. Sealed segments were forced to disk so
+ * only the last segment is verified with CRCs, it is truncated at the first incomplete or damaged record (a write
+ * interrupted by a crash).
+ */
+public class SegmentLog implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SegmentLog.class);
+
+    static final int MAGIC = 0x46534c31;
+
+    static final byte PUT = 1;
+    static final byte DELETE = 2;
+    static final byte DELETE_BUCKET = 3;
+
+    // magic, crc, type, sequence, created, bucket length, name length, data length
+    private static final int FIXED_RECORD_SIZE = 4 + 4 + 1 + 8 + 8 + 2 + 2 + 4;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final Path directory;
+    private final long segmentSize;
+
+    private final ConcurrentNavigableMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, ConcurrentNavigableMap<String, Entry>> index = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    // guarded by this
+    private Segment active;
+
+    private final LongAdder compactions = new LongAdder();
+    private final LongAdder reclaimedBytes = new LongAdder();
+
+    private Thread compactionThread;
+
+    /**
+     * Initialize {@link SegmentLog}, {@link #open()} must be called before use.
+     * @param directory directory of segment files
+     * @param fileSystem file system of the directory
+     * @param segmentSize size at which segments are sealed
+     */
+    public SegmentLog(String directory, FileSystem fileSystem, long segmentSize) {
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("Segment size must be positive!");
+        }
+        this.directory = fileSystem.getPath(directory);
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Open existing segments (or create the first one) and rebuild the index.
+     */
+    public synchronized void open() throws IOException {
+        Files.createDirectories(directory);
+        final List<Long> ids = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                final String name = file.getFileName().toString();
+                ids.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        Collections.sort(ids);
+
+        final Replay replay = new Replay();
+        for (int i = 0; i < ids.size(); i++) {
+            final Segment segment = new Segment(ids.get(i), segmentPath(ids.get(i)), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            segments.put(segment.id, segment);
+            final boolean last = i == ids.size() - 1;
+            replay.segment = segment;
+            final long validSize = scan(segment, last, replay);
+            if (validSize < segment.channel.size()) {
+                LOGGER.warn("Truncating damaged tail of segment '{}' at {}", segment.path, validSize);
+                segment.channel.truncate(validSize);
+            }
+            segment.size = validSize;
+        }
+        replay.apply();
+
+        if (segments.isEmpty()) {
+            active = createSegment(1);
+        } else {
+            active = segments.lastEntry().getValue();
+        }
+        LOGGER.info("Opened {} segments with {} files", segments.size(), getFiles());
+    }
+
+    /**
+     * Start a daemon thread compacting segments with given interval.
+     * @param intervalMillis time between compactions
+     * @param maxLiveRatio segments with smaller ratio of live data are compacted
+     */
+    public synchronized void startCompaction(long intervalMillis, double maxLiveRatio) {
+        if (compactionThread != null) {
+            return;
+        }
+        compactionThread = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    Thread.sleep(intervalMillis);
+                    compact(maxLiveRatio);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.error("Segment compaction failed", e);
+                }
+            }
+        }, "filestore-segment-compaction");
+        compactionThread.setDaemon(true);
+        compactionThread.start();
+    }
+
+    @Override
+    public void close() throws IOException {
+        final Thread thread;
+        synchronized (this) {
+            thread = compactionThread;
+            compactionThread = null;
+        }
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            for (Segment segment : segments.values()) {
+                segment.channel.close();
+            }
+        }
+    }
+
+    /**
+     * Get the latest record of a file.
+     * @return the entry or null if there is no such file
+     */
+    public Entry get(String bucket, String name) {
+        final NavigableMap<String, Entry> files = index.get(bucket);
+        return (files == null) ? null : files.get(name);
+    }
+
+    /**
+     * Get files of a bucket sorted by name.
+     * @return read-only view of file entries, empty if the bucket has no packed files
+     */
+    public NavigableMap<String, Entry> getFiles(String bucket) {
+        final ConcurrentNavigableMap<String, Entry> files = index.get(bucket);
+        return (files == null) ? Collections.emptyNavigableMap() : Collections.unmodifiableNavigableMap(files);
+    }
+
+    /**
+     * Read data of a file.
+     * @return data of the file or null if there is no such file
+     */
+    public ByteBuffer read(String bucket, String name) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            final Entry entry = get(bucket, name);
+            if (entry == null) {
+                return null;
+            }
+            final ByteBuffer data = ByteBuffer.allocate(entry.length);
+            try {
+                readFully(entry.segment.channel, data, entry.dataOffset);
+                data.flip();
+                return data;
+            } catch (ClosedChannelException e) {
+                // segment was compacted away (the file has a new record) or channel was closed by an interrupted reader
+                if (attempt >= 2) {
+                    throw e;
+                }
+                entry.segment.reopenIfLive();
+            }
+        }
+    }
+
+    /**
+     * Append data as the latest record of a file.
+     * @param data content of the file from position to limit
+     * @param created creation time of the file in millis
+     */
+    public synchronized Entry put(String bucket, String name, ByteBuffer data, long created) throws IOException {
+        final Entry entry = append(PUT, sequence.incrementAndGet(), created, bucket, name, data);
+        index(entry);
+        return entry;
+    }
+
+    /**
+     * Append a tombstone of a file.
+     * @return false if there is no such file
+     */
+    public synchronized boolean delete(String bucket, String name) throws IOException {
+        final Map<String, Entry> files = index.get(bucket);
+        if (files == null || !files.containsKey(name)) {
+            return false;
+        }
+        append(DELETE, sequence.incrementAndGet(), System.currentTimeMillis(), bucket, name, ByteBuffer.allocate(0));
+        dead(files.remove(name));
+        return true;
+    }
+
+    /**
+     * Append a tombstone of all files of a bucket.
+     */
+    public synchronized void deleteBucket(String bucket) throws IOException {
+        final Map<String, Entry> files = index.get(bucket);
+        if (files == null || files.isEmpty()) {
+            index.remove(bucket);
+            return;
+        }
+        append(DELETE_BUCKET, sequence.incrementAndGet(), System.currentTimeMillis(), bucket, "", ByteBuffer.allocate(0));
+        index.remove(bucket);
+        for (Entry entry : files.values()) {
+            dead(entry);
+        }
+    }
+
+    /**
+     * Delete files of buckets which are not in given collection (buckets deleted while their tombstone was not
+     * written). The tombstone is appended now, otherwise the files would come back in a bucket created later with the
+     * same name.
+     */
+    public synchronized void retainBuckets(Collection<String> buckets) throws IOException {
+        for (String bucket : new ArrayList<>(index.keySet())) {
+            if (!buckets.contains(bucket)) {
+                deleteBucket(bucket);
+            }
+        }
+    }
+
+    /**
+     * Rewrite live records of sealed segments which have less than given ratio of live data and delete those segments.
+     * @param maxLiveRatio segments with smaller ratio of live data are compacted
+     * @return number of compacted segments
+     */
+    public int compact(double maxLiveRatio) throws IOException {
+        final List<Segment> victims = new ArrayList<>();
+        synchronized (this) {
+            for (Segment segment : segments.values()) {
+                if (segment != active && segment.size > 0 && (double) segment.liveBytes.get() / segment.size < maxLiveRatio) {
+                    victims.add(segment);
+                }
+            }
+        }
+
+        for (Segment victim : victims) {
+            // tombstones must be kept as long as an older segment may hold records they delete
+            final boolean oldest = segments.firstKey() == victim.id;
+            scan(victim, false, (type, seq, created, bucket, name, recordOffset, dataOffset, length) -> {
+                synchronized (this) {
+                    if (type == PUT) {
+                        final Entry entry = get(bucket, name);
+                        if (entry != null && entry.segment == victim && entry.recordOffset == recordOffset) {
+                            final ByteBuffer data = ByteBuffer.allocate(length);
+                            readFully(victim.channel, data, dataOffset);
+                            data.flip();
+                            index(append(PUT, seq, created, bucket, name, data));
+                        }
+                    } else if (!oldest) {
+                        final Entry entry = (type == DELETE) ? get(bucket, name) : null;
+                        if (entry == null || entry.seq < seq) {
+                            append(type, seq, created, bucket, name, ByteBuffer.allocate(0));
+                        }
+                    }
+                }
+            });
+            synchronized (this) {
+                // moved records must be durable before their only other copy is deleted
+                active.channel.force(false);
+                segments.remove(victim.id);
+                victim.channel.close();
+                Files.delete(victim.path);
+            }
+            reclaimedBytes.add(victim.size - victim.liveBytes.get());
+            compactions.increment();
+            LOGGER.info("Compacted segment '{}'", victim.path);
+        }
+        return victims.size();
+    }
+
+    public int getSegments() {
+        return segments.size();
+    }
+
+    public long getFiles() {
+        long files = 0;
+        for (Map<String, Entry> bucketFiles : index.values()) {
+            files += bucketFiles.size();
+        }
+        return files;
+    }
+
+    public long getLiveBytes() {
+        long liveBytes = 0;
+        for (Segment segment : segments.values()) {
+            liveBytes += segment.liveBytes.get();
+        }
+        return liveBytes;
+    }
+
+    public long getTotalBytes() {
+        long totalBytes = 0;
+        for (Segment segment : segments.values()) {
+            totalBytes += segment.size;
+        }
+        return totalBytes;
+    }
+
+    public long getCompactions() {
+        return compactions.sum();
+    }
+
+    public long getReclaimedBytes() {
+        return reclaimedBytes.sum();
+    }
+
+    private Path segmentPath(long id) {
+        return directory.resolve(String.format("%s%010d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    }
+
+    private Segment createSegment(long id) throws IOException {
+        final Segment segment = new Segment(id, segmentPath(id), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segments.put(id, segment);
+        return segment;
+    }
+
+    // must be called while holding the monitor
+    private Entry append(byte type, long seq, long created, String bucket, String name, ByteBuffer data) throws IOException {
+        final byte[] bucketBytes = bucket.getBytes(StandardCharsets.UTF_8);
+        final byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (bucketBytes.length > 0xffff || nameBytes.length > 0xffff) {
+            throw new IllegalArgumentException("Bucket or file name is too long!");
+        }
+        final int length = data.remaining();
+        final int recordLength = FIXED_RECORD_SIZE + bucketBytes.length + nameBytes.length + length;
+
+        if (active.size > 0 && active.size + recordLength > segmentSize) {
+            // drop anything left after the last record by a failed write before sealing
+            active.channel.truncate(active.size);
+            active.channel.force(true);
+            active = createSegment(active.id + 1);
+        }
+
+        final ByteBuffer record = ByteBuffer.allocate(recordLength);
+        record.putInt(MAGIC).putInt(0).put(type).putLong(seq).putLong(created)
+                .putShort((short) bucketBytes.length).put(bucketBytes)
+                .putShort((short) nameBytes.length).put(nameBytes)
+                .putInt(length).put(data.duplicate());
+        final CRC32 crc = new CRC32();
+        crc.update(record.array(), 8, recordLength - 8);
+        record.putInt(4, (int) crc.getValue());
+        record.flip();
+
+        final long offset = active.size;
+        while (record.hasRemaining()) {
+            active.channel.write(record, offset + record.position());
+        }
+        active.size = offset + recordLength;
+        return new Entry(active, seq, created, offset, recordLength, offset + recordLength - length, length, bucket, name);
+    }
+
+    // must be called while holding the monitor
+    private void index(Entry entry) {
+        final Entry replaced = index.computeIfAbsent(entry.bucket(), b -> new ConcurrentSkipListMap<>()).put(entry.name(), entry);
+        entry.segment.liveBytes.addAndGet(entry.recordLength);
+        dead(replaced);
+    }
+
+    private static void dead(Entry entry) {
+        if (entry != null) {
+            entry.segment.liveBytes.addAndGet(-entry.recordLength);
+        }
+    }
+
+    /**
+     * Read records of a segment.
+     * @param verify if true data is read and checked against CRC
+     * @return offset after the last valid record
+     */
+    private long scan(Segment segment, boolean verify, RecordVisitor visitor) throws IOException {
+        long offset = 0;
+        try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ)) {
+            final DataInputStream input = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 64 * 1024));
+            final byte[] header = new byte[FIXED_RECORD_SIZE - 4];
+            final CRC32 crc = new CRC32();
+            while (true) {
+                try {
+                    if (input.readInt() != MAGIC) {
+                        return offset;
+                    }
+                    final int expectedCrc = input.readInt();
+                    final byte type = input.readByte();
+                    final long seq = input.readLong();
+                    final long created = input.readLong();
+                    final byte[] bucket = new byte[input.readUnsignedShort()];
+                    input.readFully(bucket);
+                    final byte[] name = new byte[input.readUnsignedShort()];
+                    input.readFully(name);
+                    final int length = input.readInt();
+                    if (length < 0 || (type != PUT && type != DELETE && type != DELETE_BUCKET)) {
+                        return offset;
+                    }
+                    final int recordLength = FIXED_RECORD_SIZE + bucket.length + name.length + length;
+                    if (verify) {
+                        final byte[] data = new byte[length];
+                        input.readFully(data);
+                        crc.reset();
+                        ByteBuffer.wrap(header).put(type).putLong(seq).putLong(created).putShort((short) bucket.length);
+                        crc.update(header, 0, 1 + 8 + 8 + 2);
+                        crc.update(bucket);
+                        crc.update(ByteBuffer.allocate(2).putShort((short) name.length).array());
+                        crc.update(name);
+                        crc.update(ByteBuffer.allocate(4).putInt(length).array());
+                        crc.update(data);
+                        if ((int) crc.getValue() != expectedCrc) {
+                            return offset;
+                        }
+                    } else if (!skipFully(input, length)) {
+                        return offset;
+                    }
+                    visitor.visit(type, seq, created, new String(bucket, StandardCharsets.UTF_8), new String(name, StandardCharsets.UTF_8),
+                            offset, offset + recordLength - length, length);
+                    offset += recordLength;
+                } catch (EOFException e) {
+                    return offset;
+                }
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface RecordVisitor {
+        void visit(byte type, long seq, long created, String bucket, String name, long recordOffset, long dataOffset, int length) throws IOException;
+    }
+
+    /**
+     * Index rebuilt from records visited in any order, the record with the highest sequence number of each file wins.
+     */
+    private final class Replay implements RecordVisitor {
+
+        private Segment segment;
+
+        private final Map<String, Map<String, Entry>> files = new HashMap<>();
+        private final Map<String, Map<String, Long>> deletedFiles = new HashMap<>();
+        private final Map<String, Long> deletedBuckets = new HashMap<>();
+
+        @Override
+        public void visit(byte type, long seq, long created, String bucket, String name, long recordOffset, long dataOffset, int length) {
+            sequence.accumulateAndGet(seq, Math::max);
+            if (type == PUT) {
+                final Entry current = files.computeIfAbsent(bucket, b -> new HashMap<>()).get(name);
+                if (current == null || current.seq < seq) {
+                    final int recordLength = (int) (dataOffset - recordOffset) + length;
+                    files.get(bucket).put(name, new Entry(segment, seq, created, recordOffset, recordLength, dataOffset, length, bucket, name));
+                }
+            } else if (type == DELETE) {
+                deletedFiles.computeIfAbsent(bucket, b -> new HashMap<>()).merge(name, seq, Math::max);
+            } else {
+                deletedBuckets.merge(bucket, seq, Math::max);
+            }
+        }
+
+        void apply() {
+            for (Map.Entry<String, Map<String, Entry>> bucketFiles : files.entrySet()) {
+                final String bucket = bucketFiles.getKey();
+                final long bucketDeleted = deletedBuckets.getOrDefault(bucket, 0L);
+                final Map<String, Long> deleted = deletedFiles.getOrDefault(bucket, Collections.emptyMap());
+                for (Entry entry : bucketFiles.getValue().values()) {
+                    if (entry.seq > bucketDeleted && entry.seq > deleted.getOrDefault(entry.name(), 0L)) {
+                        index(entry);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A segment file, records are appended only to the active (last) segment.
+     */
+    private final class Segment {
+        final long id;
+        final Path path;
+        final AtomicLong liveBytes = new AtomicLong();
+        volatile FileChannel channel;
+        // guarded by log monitor, read without it only for metrics
+        volatile long size;
+
+        Segment(long id, Path path, StandardOpenOption... options) throws IOException {
+            this.id = id;
+            this.path = path;
+            this.channel = FileChannel.open(path, options);
+        }
+
+        void reopenIfLive() throws IOException {
+            synchronized (SegmentLog.this) {
+                if (segments.get(id) == this && !channel.isOpen()) {
+                    channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                }
+            }
+        }
+    }
+
+    /**
+     * Position of the latest record of a file.
+     */
+    public static final class Entry {
+        private final Segment segment;
+        private final long seq;
+        private final long created;
+        private final long recordOffset;
+        private final int recordLength;
+        private final long dataOffset;
+        private final int length;
+        private final String bucket;
+        private final String name;
+
+        private Entry(Segment segment, long seq, long created, long recordOffset, int recordLength, long dataOffset, int length, String bucket, String name) {
+            this.segment = segment;
+            this.seq = seq;
+            this.created = created;
+            this.recordOffset = recordOffset;
+            this.recordLength = recordLength;
+            this.dataOffset = dataOffset;
+            this.length = length;
+            this.bucket = bucket;
+            this.name = name;
+        }
+
+        String bucket() {
+            return bucket;
+        }
+
+        String name() {
+            return name;
+        }
+
+        /**
+         * Size of the file
+         */
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * Creation time of the file in millis
+         */
+        public long getCreated() {
+            return created;
+        }
+    }
+
+    private static boolean skipFully(DataInputStream input, int length) throws IOException {
+        int remaining = length;
+        while (remaining > 0) {
+            final int skipped = input.skipBytes(remaining);
+            if (skipped <= 0) {
+                return input.read() >= 0 && skipFully(input, remaining - 1);
+            }
+            remaining -= skipped;
+        }
+        return true;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        final long start = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, start + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.stjepano.filestore.service.filesystem;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Sharded layout of files in a bucket directory.
+ *
+ * A sharded file is stored two directory levels below its bucket, in {@code bucket/.ab/cd/name} where {@code ab} and
+ * {@code cd} are the first two bytes of the CRC32 of the file name. 65536 shard directories keep directories small
+ * (about 150 entries per directory with 10 million files in a bucket). Top level shard directories are dot directories
+ * so they can never clash with a file name.
+ */
+final class ShardedLayout {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private ShardedLayout() { }
+
+    /**
+     * Get the sharded path of a file.
+     * @param bucketPath path of the bucket directory
+     * @param fileName name of the file
+     */
+    static Path shardedPath(Path bucketPath, String fileName) {
+        final CRC32 crc = new CRC32();
+        crc.update(fileName.getBytes(StandardCharsets.UTF_8));
+        final int hash = (int) crc.getValue();
+        return bucketPath
+                .resolve(new String(new char[] {'.', HEX[(hash >>> 28) & 0xf], HEX[(hash >>> 24) & 0xf]}))
+                .resolve(new String(new char[] {HEX[(hash >>> 20) & 0xf], HEX[(hash >>> 16) & 0xf]}))
+                .resolve(fileName);
+    }
+
+    static boolean isShardDirectory(Path path) {
+        final String name = path.getFileName().toString();
+        return name.length() == 3 && name.charAt(0) == '.' && isHex(name.charAt(1)) && isHex(name.charAt(2))
+                && Files.isDirectory(path);
+    }
+
+    /**
+     * List entries of a bucket directory and of its shard directories, whatever the configured layout is (a bucket may
+     * be in the middle of a migration). The stream must be closed after use.
+     * @param bucketPath path of the bucket directory
+     * @return lazily populated stream of paths, callers filter out directories and invalid file names
+     */
+    static Stream<Path> list(Path bucketPath) throws IOException {
+        return Files.list(bucketPath).flatMap(path -> {
+            if (!isShardDirectory(path)) {
+                return Stream.of(path);
+            }
+            try {
+                return Files.walk(path, 2).filter(Files::isRegularFile);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private static boolean isHex(char c) {
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f');
+    }
+}
@@ -0,0 +1,72 @@
+package com.stjepano.filestore.service.filesystem;
+
+import com.stjepano.filestore.service.BucketId;
+import com.stjepano.filestore.service.FileId;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Fixed number of locks shared by all buckets and files, used by {@link FileSystemFileService} to make existence checks
+ * and the mutation which follows them one step.
+ *
+ * Each bucket maps to one of the bucket stripes, operations on files take it shared and bucket creation/deletion takes
+ * it exclusive. Each file maps to one of the file stripes which is taken exclusive while a file is published, replaced
+ * or deleted. Locks must be taken in that order (bucket first). Unrelated buckets and files only wait for each other if
+ * they map to the same stripe, downloads and listings do not lock at all.
+ */
+public class StripedLockManager {
+
+    private final ReadWriteLock[] bucketLocks;
+    private final Lock[] fileLocks;
+
+    /**
+     * Initialize {@link StripedLockManager}.
+     * @param stripes number of bucket and file stripes, rounded up to a power of 2
+     */
+    public StripedLockManager(int stripes) {
+        if (stripes <= 0) {
+            throw new IllegalArgumentException("Number of stripes must be positive!");
+        }
+        final int size = Integer.highestOneBit(stripes - 1) << 1;
+        bucketLocks = new ReadWriteLock[Math.max(size, 1)];
+        fileLocks = new Lock[bucketLocks.length];
+        for (int i = 0; i < bucketLocks.length; i++) {
+            bucketLocks[i] = new ReentrantReadWriteLock();
+            fileLocks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Lock taken while files of the bucket are changed.
+     */
+    public Lock bucketSharedLock(BucketId bucketId) {
+        return bucketLocks[stripe(bucketId.getId().hashCode())].readLock();
+    }
+
+    /**
+     * Lock taken while the bucket itself is created or deleted.
+     */
+    public Lock bucketExclusiveLock(BucketId bucketId) {
+        return bucketLocks[stripe(bucketId.getId().hashCode())].writeLock();
+    }
+
+    /**
+     * Lock taken while the file is created, replaced or deleted.
+     */
+    public Lock fileLock(FileId fileId) {
+        return fileLocks[stripe(31 * fileId.getBucketId().getId().hashCode() + fileId.getFileName().hashCode())];
+    }
+
+    public int getStripes() {
+        return bucketLocks.length;
+    }
+
+    private int stripe(int hash) {
+        // spread higher bits, similar names differ mostly in the last characters
+        final int h = hash ^ (hash >>> 16);
+        return h & (bucketLocks.length - 1);
+    }
+}
@@ -0,0 +1,114 @@
+package com.stjepano.filestore.service.filesystem;
+
+import com.stjepano.filestore.service.ContentDigestMismatchException;
+import com.stjepano.filestore.service.ExpectedDigests;
+import com.stjepano.filestore.service.FileId;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Digests of uploaded data computed in the same pass in which data is written, only the digests which are needed
+ * (to store them, to publish a blob or to verify expected digests) are computed.
+ */
+final class UploadDigests {
+
+    private final MessageDigest sha256;
+    private final Crc32c crc32c;
+    private final MessageDigest md5;
+
+    private byte[] sha256Value;
+
+    UploadDigests(boolean sha256, boolean crc32c, boolean md5) {
+        this.sha256 = sha256 ? ContentHash.newDigest() : null;
+        this.crc32c = crc32c ? new Crc32c() : null;
+        try {
+            this.md5 = md5 ? MessageDigest.getInstance("MD5") : null;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * True if no digest is computed
+     */
+    boolean isEmpty() {
+        return sha256 == null && crc32c == null && md5 == null;
+    }
+
+    /**
+     * Update digests with remaining bytes of a buffer, on return position of the buffer is its limit.
+     */
+    void update(ByteBuffer buffer) {
+        final int position = buffer.position();
+        if (sha256 != null) {
+            buffer.position(position);
+            sha256.update(buffer);
+        }
+        if (crc32c != null) {
+            buffer.position(position);
+            crc32c.update(buffer);
+        }
+        if (md5 != null) {
+            buffer.position(position);
+            md5.update(buffer);
+        }
+        buffer.position(buffer.limit());
+    }
+
+    void update(byte[] bytes, int offset, int length) {
+        if (sha256 != null) {
+            sha256.update(bytes, offset, length);
+        }
+        if (crc32c != null) {
+            crc32c.update(bytes, offset, length);
+        }
+        if (md5 != null) {
+            md5.update(bytes, offset, length);
+        }
+    }
+
+    /**
+     * Get SHA-256 digest of all data, digests must not be updated afterwards.
+     * @return the digest or null if it is not computed
+     */
+    byte[] sha256() {
+        if (sha256Value == null && sha256 != null) {
+            sha256Value = sha256.digest();
+        }
+        return sha256Value;
+    }
+
+    /**
+     * Get CRC32C checksum of all data or -1 if it is not computed
+     */
+    long crc32c() {
+        return crc32c != null ? crc32c.getValue() : -1;
+    }
+
+    /**
+     * Check computed digests against expected ones, digests must not be updated afterwards.
+     * @throws ContentDigestMismatchException if a digest does not match
+     */
+    void verify(FileId fileId, ExpectedDigests expected) throws ContentDigestMismatchException {
+        if (expected.getSha256() != null && !MessageDigest.isEqual(expected.getSha256(), sha256())) {
+            throw new ContentDigestMismatchException(fileId, "SHA-256");
+        }
+        if (expected.getCrc32c() != null && (expected.getCrc32c() & 0xffffffffL) != crc32c()) {
+            throw new ContentDigestMismatchException(fileId, "CRC32C");
+        }
+        if (expected.getMd5() != null && !MessageDigest.isEqual(expected.getMd5(), md5.digest())) {
+            throw new ContentDigestMismatchException(fileId, "MD5");
+        }
+    }
+
+    /**
+     * Create digests needed to verify given expected digests and, if store is true, to store checksums of data
+     */
+    static UploadDigests forUpload(ExpectedDigests expected, boolean store, boolean blobStore) {
+        return new UploadDigests(store || blobStore || expected.getSha256() != null,
+                store || expected.getCrc32c() != null,
+                expected.getMd5() != null);
+    }
+}
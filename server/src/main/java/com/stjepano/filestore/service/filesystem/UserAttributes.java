@@ -0,0 +1,64 @@
+package com.stjepano.filestore.service.filesystem;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+
+/**
+ * Access to user defined extended attributes in which metadata of stored files is kept. Attributes are linked to the
+ * file (inode), so they survive moves and are shared by hard links.
+ */
+final class UserAttributes {
+
+    private static final String PROBE_ATTRIBUTE = "filestore.probe";
+
+    private UserAttributes() { }
+
+    /**
+     * Check support of user defined attributes by writing one, file stores do not always report it (for example ext4
+     * without explicit user_xattr mount option, where they are enabled by default).
+     * @param directory a directory on the file store
+     */
+    static boolean isSupported(Path directory) {
+        final UserDefinedFileAttributeView view = Files.getFileAttributeView(directory, UserDefinedFileAttributeView.class);
+        if (view == null) {
+            return false;
+        }
+        try {
+            view.write(PROBE_ATTRIBUTE, ByteBuffer.wrap(new byte[]{1}));
+            view.delete(PROBE_ATTRIBUTE);
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Read an attribute.
+     * @return value of the attribute or null if file does not have it (or attributes are not supported)
+     */
+    static String read(Path path, String name) throws IOException {
+        final UserDefinedFileAttributeView view = Files.getFileAttributeView(path, UserDefinedFileAttributeView.class);
+        if (view == null || !view.list().contains(name)) {
+            return null;
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(view.size(name));
+        view.read(name, buffer);
+        buffer.flip();
+        return StandardCharsets.US_ASCII.decode(buffer).toString();
+    }
+
+    /**
+     * Write an attribute, replacing its value if file already has it.
+     */
+    static void write(Path path, String name, String value) throws IOException {
+        final UserDefinedFileAttributeView view = Files.getFileAttributeView(path, UserDefinedFileAttributeView.class);
+        if (view == null) {
+            throw new UnsupportedOperationException("User defined file attributes are not supported");
+        }
+        view.write(name, StandardCharsets.US_ASCII.encode(value));
+    }
+}
@@ -0,0 +1,292 @@
+package com.stjepano.filestore.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.stjepano.filestore.common.BatchResult;
+import com.stjepano.filestore.service.ArchiveExport;
+import com.stjepano.filestore.service.ArchiveIngest;
+import com.stjepano.filestore.service.BucketDoesNotExistException;
+import com.stjepano.filestore.service.BucketId;
+import com.stjepano.filestore.service.FileService;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.RequestBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Test for {@link ArchiveController}
+ */
+@RunWith(SpringRunner.class)
+@WebMvcTest(ArchiveController.class)
+@TestPropertySource(properties = "filestore.batch.maxOperations=3")
+public class ArchiveControllerTest {
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @MockBean
+    private FileService fileService;
+
+    @MockBean
+    private ArchiveIngest archiveIngest;
+
+    @MockBean
+    private ArchiveExport archiveExport;
+
+    @Test
+    public void testExtractTar() throws Exception {
+        doAnswer(invocation -> {
+            assertThat(read(invocation.getArgumentAt(2, InputStream.class))).isEqualTo("archive");
+            ArchiveIngest.ResultListener listener = invocation.getArgumentAt(5, ArchiveIngest.ResultListener.class);
+            listener.onResult(result(ArchiveIngest.UPLOAD, "a.txt", 200));
+            listener.onResult(result(ArchiveIngest.SKIP, "b.txt", 200));
+            return null;
+        }).when(archiveIngest).extract(eq(BucketId.from("bucket")), eq(ArchiveIngest.Format.TAR), any(InputStream.class),
+                eq(ArchiveIngest.ConflictPolicy.SKIP), eq(1), any(ArchiveIngest.ResultListener.class));
+
+        List<BatchResult> results = extract(post("/store/bucket/?extract=true&conflict=skip&strip=1")
+                .contentType(ArchiveController.TAR)
+                .content("archive"));
+
+        assertThat(results).extracting(BatchResult::getName).containsExactly("a.txt", "b.txt");
+        assertThat(results).extracting(BatchResult::getOp).containsExactly(ArchiveIngest.UPLOAD, ArchiveIngest.SKIP);
+    }
+
+    @Test
+    public void testExtractGzip() throws Exception {
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(gzipped)) {
+            out.write("archive".getBytes(StandardCharsets.UTF_8));
+        }
+        doAnswer(invocation -> {
+            assertThat(read(invocation.getArgumentAt(2, InputStream.class))).isEqualTo("archive");
+            return null;
+        }).when(archiveIngest).extract(any(BucketId.class), eq(ArchiveIngest.Format.TAR), any(InputStream.class),
+                eq(ArchiveIngest.ConflictPolicy.FAIL), eq(0), any(ArchiveIngest.ResultListener.class));
+
+        assertThat(extract(post("/store/bucket/?extract=true")
+                .contentType(ArchiveController.GZIP)
+                .content(gzipped.toByteArray()))).isEmpty();
+        assertThat(extract(post("/store/bucket/?extract=true")
+                .contentType(ArchiveController.TAR)
+                .header(HttpHeaders.CONTENT_ENCODING, "gzip")
+                .content(gzipped.toByteArray()))).isEmpty();
+    }
+
+    @Test
+    public void testExtractZip() throws Exception {
+        extract(post("/store/bucket/?extract=true&conflict=overwrite")
+                .contentType(ArchiveController.ZIP)
+                .content("zip"));
+
+        verify(archiveIngest).extract(eq(BucketId.from("bucket")), eq(ArchiveIngest.Format.ZIP), any(InputStream.class),
+                eq(ArchiveIngest.ConflictPolicy.OVERWRITE), eq(0), any(ArchiveIngest.ResultListener.class));
+    }
+
+    @Test
+    public void testExtract_UnknownConflictPolicy() throws Exception {
+        mockMvc.perform(post("/store/bucket/?extract=true&conflict=merge")
+                .contentType(ArchiveController.TAR)
+                .content("archive"))
+                .andExpect(status().isBadRequest());
+
+        verify(archiveIngest, never()).extract(any(BucketId.class), any(ArchiveIngest.Format.class), any(InputStream.class),
+                any(ArchiveIngest.ConflictPolicy.class), anyInt(), any(ArchiveIngest.ResultListener.class));
+    }
+
+    @Test
+    public void testExtract_NotAnArchive() throws Exception {
+        doThrow(new IOException("Not a tar archive"))
+                .when(archiveIngest).extract(any(BucketId.class), any(ArchiveIngest.Format.class), any(InputStream.class),
+                any(ArchiveIngest.ConflictPolicy.class), anyInt(), any(ArchiveIngest.ResultListener.class));
+
+        mockMvc.perform(post("/store/bucket/?extract=true")
+                .contentType(ArchiveController.TAR)
+                .content("archive"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void testExtract_NotGzipped() throws Exception {
+        mockMvc.perform(post("/store/bucket/?extract=true")
+                .contentType(ArchiveController.GZIP)
+                .content("archive"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void testExtract_CorruptedAfterFirstEntry() throws Exception {
+        doAnswer(invocation -> {
+            ArchiveIngest.ResultListener listener = invocation.getArgumentAt(5, ArchiveIngest.ResultListener.class);
+            listener.onResult(result(ArchiveIngest.UPLOAD, "a.txt", 200));
+            throw new IOException("Unexpected end of tar archive");
+        }).when(archiveIngest).extract(any(BucketId.class), any(ArchiveIngest.Format.class), any(InputStream.class),
+                any(ArchiveIngest.ConflictPolicy.class), anyInt(), any(ArchiveIngest.ResultListener.class));
+
+        List<BatchResult> results = extract(post("/store/bucket/?extract=true")
+                .contentType(ArchiveController.TAR)
+                .content("archive"));
+
+        assertThat(results).hasSize(2);
+        assertThat(results.get(1).getOp()).isEqualTo(ArchiveController.EXTRACT);
+        assertThat(results.get(1).getStatus()).isEqualTo(400);
+        assertThat(results.get(1).getMessage()).contains("Unexpected end of tar archive");
+    }
+
+    @Test
+    public void testExtract_BucketDoesNotExist() throws Exception {
+        doThrow(new BucketDoesNotExistException(BucketId.from("bucket")))
+                .when(archiveIngest).extract(any(BucketId.class), any(ArchiveIngest.Format.class), any(InputStream.class),
+                any(ArchiveIngest.ConflictPolicy.class), anyInt(), any(ArchiveIngest.ResultListener.class));
+
+        mockMvc.perform(post("/store/bucket/?extract=true")
+                .contentType(ArchiveController.TAR)
+                .content("archive"))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    public void testDownloadArchive() throws Exception {
+        doAnswer(invocation -> {
+            invocation.getArgumentAt(4, OutputStream.class).write("zip".getBytes(StandardCharsets.UTF_8));
+            return null;
+        }).when(archiveExport).write(eq(BucketId.from("bucket")), eq("a"), eq(ArchiveIngest.Format.ZIP),
+                eq(ArchiveExport.Compression.AUTO), any(OutputStream.class));
+
+        mockMvc.perform(get("/store/bucket/?archive=zip&prefix=a&compress=auto"))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.CONTENT_TYPE, ArchiveController.ZIP))
+                .andExpect(header().string(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"bucket.zip\""))
+                .andExpect(content().string("zip"));
+    }
+
+    @Test
+    public void testDownloadArchive_Files() throws Exception {
+        doAnswer(invocation -> {
+            invocation.getArgumentAt(4, OutputStream.class).write("tar".getBytes(StandardCharsets.UTF_8));
+            return null;
+        }).when(archiveExport).write(eq(BucketId.from("bucket")), eq(Arrays.asList("a.txt", "b.txt")),
+                eq(ArchiveIngest.Format.TAR), eq(ArchiveExport.Compression.ALL), any(OutputStream.class));
+
+        mockMvc.perform(post("/store/bucket/?archive=tar")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(Arrays.asList("a.txt", "b.txt"))))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.CONTENT_TYPE, ArchiveController.TAR))
+                .andExpect(header().string(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"bucket.tar\""))
+                .andExpect(content().string("tar"));
+    }
+
+    @Test
+    public void testDownloadArchive_TooManyFiles() throws Exception {
+        mockMvc.perform(post("/store/bucket/?archive=zip")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(Arrays.asList("a", "b", "c", "d"))))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void testDownloadArchive_UnknownFormat() throws Exception {
+        mockMvc.perform(get("/store/bucket/?archive=rar"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void testDownloadArchive_BucketDoesNotExist() throws Exception {
+        doThrow(new BucketDoesNotExistException(BucketId.from("bucket")))
+                .when(archiveExport).write(any(BucketId.class), any(String.class), any(ArchiveIngest.Format.class),
+                any(ArchiveExport.Compression.class), any(OutputStream.class));
+
+        mockMvc.perform(get("/store/bucket/?archive=zip"))
+                .andExpect(status().isNotFound())
+                .andExpect(header().doesNotExist(HttpHeaders.CONTENT_DISPOSITION));
+    }
+
+    @Test
+    public void testDownloadArchive_FailsBeforeResponseIsSent() throws Exception {
+        doAnswer(invocation -> {
+            invocation.getArgumentAt(4, OutputStream.class).write("partial".getBytes(StandardCharsets.UTF_8));
+            throw new IOException("Disk error");
+        }).when(archiveExport).write(any(BucketId.class), any(String.class), any(ArchiveIngest.Format.class),
+                any(ArchiveExport.Compression.class), any(OutputStream.class));
+
+        mockMvc.perform(get("/store/bucket/?archive=zip"))
+                .andExpect(status().isInternalServerError())
+                .andExpect(header().doesNotExist(HttpHeaders.CONTENT_DISPOSITION));
+    }
+
+    @Test
+    public void testDownloadArchive_FailsAfterResponseIsSent() throws Exception {
+        byte[] partial = new byte[200000];
+        Arrays.fill(partial, (byte) 'x');
+        doAnswer(invocation -> {
+            invocation.getArgumentAt(4, OutputStream.class).write(partial);
+            throw new IOException("Disk error");
+        }).when(archiveExport).write(any(BucketId.class), any(String.class), any(ArchiveIngest.Format.class),
+                any(ArchiveExport.Compression.class), any(OutputStream.class));
+
+        // the incomplete archive is sent to its end, nothing is appended to it
+        mockMvc.perform(get("/store/bucket/?archive=zip"))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"bucket.zip\""))
+                .andExpect(content().bytes(partial));
+    }
+
+    private List<BatchResult> extract(RequestBuilder request) throws Exception {
+        String response = mockMvc.perform(request)
+                .andExpect(status().isOk())
+                .andReturn()
+                .getResponse()
+                .getContentAsString();
+        return objectMapper.readValue(response,
+                objectMapper.getTypeFactory().constructCollectionType(List.class, BatchResult.class));
+    }
+
+    private static BatchResult result(String op, String name, int status) {
+        BatchResult result = new BatchResult(op, name);
+        result.setStatus(status);
+        return result;
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,178 @@
+package com.stjepano.filestore.controller;
+
+import com.stjepano.filestore.common.FileInfo;
+import com.stjepano.filestore.service.FileAlreadyExistException;
+import com.stjepano.filestore.service.FileDoesNotExistException;
+import com.stjepano.filestore.service.FileId;
+import com.stjepano.filestore.service.FileService;
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.time.LocalDateTime;
+
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.verify;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.fileUpload;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Test for {@link AsyncFileController}
+ */
+@RunWith(SpringRunner.class)
+@WebMvcTest(AsyncFileController.class)
+@TestPropertySource(properties = "filestore.async.enabled=true")
+public class AsyncFileControllerTest {
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @MockBean
+    private FileService fileService;
+
+    private void mockDownloadResource(byte[] bytes) throws Exception {
+        doReturn(new FileInfo("fileA.png", bytes.length, "image/png", LocalDateTime.now()))
+                .when(fileService)
+                .getFileInfo(eq(FileId.from("bucket", "fileA.png")));
+        doReturn(new ByteArrayResource(bytes) {
+            @Override
+            public String getFilename() {
+                return "fileA.png";
+            }
+        }).when(fileService).download(eq(FileId.from("bucket", "fileA.png")));
+    }
+
+    @Test
+    public void testDownloadFile() throws Exception {
+        mockDownloadResource("abcd".getBytes());
+
+        MvcResult mvcResult = mockMvc.perform(get("/store/bucket/fileA.png"))
+                .andExpect(request().asyncStarted())
+                .andExpect(status().isOk())
+                .andExpect(header().longValue(HttpHeaders.CONTENT_LENGTH, 4))
+                .andExpect(header().string(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"fileA.png\""))
+                .andReturn();
+
+        // streamed body is written to the response while the request is still in async mode
+        mvcResult.getAsyncResult();
+        Assertions.assertThat(mvcResult.getResponse().getContentAsByteArray())
+                .isEqualTo("abcd".getBytes());
+    }
+
+    @Test
+    public void testDownloadFile_Range() throws Exception {
+        mockDownloadResource("abcd".getBytes());
+
+        MvcResult mvcResult = mockMvc.perform(get("/store/bucket/fileA.png").header(HttpHeaders.RANGE, "bytes=1-2"))
+                .andExpect(request().asyncStarted())
+                .andExpect(status().isPartialContent())
+                .andExpect(header().longValue(HttpHeaders.CONTENT_LENGTH, 2))
+                .andExpect(header().string(HttpHeaders.CONTENT_RANGE, "bytes 1-2/4"))
+                .andReturn();
+
+        mvcResult.getAsyncResult();
+        Assertions.assertThat(mvcResult.getResponse().getContentAsByteArray())
+                .isEqualTo("bc".getBytes());
+    }
+
+    @Test
+    public void testDownloadFile_RangeNotSatisfiable() throws Exception {
+        mockDownloadResource("abcd".getBytes());
+
+        mockMvc.perform(get("/store/bucket/fileA.png").header(HttpHeaders.RANGE, "bytes=10-20"))
+                .andExpect(status().isRequestedRangeNotSatisfiable())
+                .andExpect(header().string(HttpHeaders.CONTENT_RANGE, "bytes */4"));
+    }
+
+    @Test
+    public void testDownloadFile_FileDoesNotExist() throws Exception {
+        doThrow(new FileDoesNotExistException(FileId.from("bucket", "fileA.png")))
+                .when(fileService)
+                .getFileInfo(eq(FileId.from("bucket", "fileA.png")));
+
+        mockMvc.perform(get("/store/bucket/fileA.png"))
+                .andExpect(request().asyncNotStarted())
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    public void testUploadRawFile() throws Exception {
+        ArgumentCaptor<InputStream> dataStream = ArgumentCaptor.forClass(InputStream.class);
+        doNothing()
+                .when(fileService)
+                .upload(eq(FileId.from("bucket", "fileA.png")), dataStream.capture());
+
+        MvcResult mvcResult = mockMvc.perform(post("/store/bucket/fileA.png")
+                    .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                    .content("abcd".getBytes()))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        mockMvc.perform(asyncDispatch(mvcResult))
+                .andExpect(status().isOk());
+        Assertions.assertThat(dataStream.getValue())
+                .hasSameContentAs(new ByteArrayInputStream("abcd".getBytes()));
+    }
+
+    @Test
+    public void testUploadRawFile_FileAlreadyExist() throws Exception {
+        doThrow(new FileAlreadyExistException(FileId.from("bucket", "fileA.png")))
+                .when(fileService)
+                .upload(eq(FileId.from("bucket", "fileA.png")), any(InputStream.class));
+
+        MvcResult mvcResult = mockMvc.perform(post("/store/bucket/fileA.png")
+                    .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                    .content("abcd".getBytes()))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        mockMvc.perform(asyncDispatch(mvcResult))
+                .andExpect(status().isConflict());
+    }
+
+    @Test
+    public void testOverwriteFile() throws Exception {
+        MockMultipartFile file = new MockMultipartFile("file", "fileA.png", "image/png", "abcd".getBytes());
+
+        MvcResult mvcResult = mockMvc.perform(fileUpload("/store/bucket/fileA.png").file(file).with(request -> { request.setMethod("PUT"); return request; }))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+
+        mockMvc.perform(asyncDispatch(mvcResult))
+                .andExpect(status().isOk());
+        verify(fileService).overwrite(eq(FileId.from("bucket", "fileA.png")), any(InputStream.class));
+    }
+
+    @Test
+    public void testOverwriteRawFile_InvalidFileName() throws Exception {
+        mockMvc.perform(put("/store/bucket/fileA\\.png")
+                    .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                    .content("abcd".getBytes()))
+                .andExpect(request().asyncNotStarted())
+                .andExpect(status().isBadRequest());
+    }
+}
@@ -0,0 +1,93 @@
+package com.stjepano.filestore.controller;
+
+import com.stjepano.filestore.IoTaskExecutor;
+import com.stjepano.filestore.common.FileInfo;
+import com.stjepano.filestore.service.FileId;
+import com.stjepano.filestore.service.FileService;
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.mock.web.MockAsyncContext;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import java.io.Closeable;
+import java.time.LocalDateTime;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.eq;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+
+/**
+ * Test for {@link AsyncFileController} downloads whose streaming task never runs (the executor is a mock).
+ */
+@RunWith(SpringRunner.class)
+@WebMvcTest(AsyncFileController.class)
+@TestPropertySource(properties = "filestore.async.enabled=true")
+public class AsyncFileControllerTimeoutTest {
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @MockBean
+    private FileService fileService;
+
+    @MockBean
+    private IoTaskExecutor ioTaskExecutor;
+
+    @Test
+    public void testDownloadFile_TimeoutReleasesBody() throws Exception {
+        final AtomicInteger closed = new AtomicInteger();
+        doReturn(new FileInfo("fileA.png", 4, "image/png", LocalDateTime.now()))
+                .when(fileService)
+                .getFileInfo(eq(FileId.from("bucket", "fileA.png")));
+        doReturn(new ClosableByteArrayResource("abcd".getBytes(), closed))
+                .when(fileService)
+                .download(eq(FileId.from("bucket", "fileA.png")));
+
+        MvcResult mvcResult = mockMvc.perform(get("/store/bucket/fileA.png"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        Assertions.assertThat(closed.get()).isEqualTo(0);
+
+        final MockAsyncContext asyncContext = (MockAsyncContext) mvcResult.getRequest().getAsyncContext();
+        for (AsyncListener listener : asyncContext.getListeners()) {
+            listener.onTimeout(new AsyncEvent(asyncContext));
+        }
+        for (AsyncListener listener : asyncContext.getListeners()) {
+            listener.onComplete(new AsyncEvent(asyncContext));
+        }
+
+        Assertions.assertThat(closed.get()).isEqualTo(1);
+    }
+
+    private static class ClosableByteArrayResource extends ByteArrayResource implements Closeable {
+
+        private final AtomicInteger closed;
+
+        ClosableByteArrayResource(byte[] bytes, AtomicInteger closed) {
+            super(bytes);
+            this.closed = closed;
+        }
+
+        @Override
+        public String getFilename() {
+            return "fileA.png";
+        }
+
+        @Override
+        public void close() {
+            closed.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.stjepano.filestore.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.stjepano.filestore.common.BatchOperation;
+import com.stjepano.filestore.common.BatchResult;
+import com.stjepano.filestore.common.FileInfo;
+import com.stjepano.filestore.service.FileDoesNotExistException;
+import com.stjepano.filestore.service.FileId;
+import com.stjepano.filestore.service.FileService;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.servlet.MockMvc;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Test for {@link BatchController}
+ */
+@RunWith(SpringRunner.class)
+@WebMvcTest(BatchController.class)
+@TestPropertySource(properties = {"filestore.batch.maxOperations=5", "filestore.batch.parallelism=2"})
+public class BatchControllerTest {
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @MockBean
+    private FileService fileService;
+
+    @Test
+    public void testBatch() throws Exception {
+        FileInfo fileInfo = new FileInfo("b.txt", 3, "text/plain", LocalDateTime.now());
+        when(fileService.getFileInfo(FileId.from("bucket", "b.txt")))
+                .thenReturn(fileInfo);
+        doThrow(new FileDoesNotExistException(FileId.from("bucket", "missing.txt")))
+                .when(fileService)
+                .deleteFile(FileId.from("bucket", "missing.txt"));
+
+        List<BatchResult> results = batch("bucket",
+                new BatchOperation(BatchOperation.DELETE, "a.txt"),
+                new BatchOperation(BatchOperation.DELETE, "missing.txt"),
+                new BatchOperation(BatchOperation.STAT, "b.txt"),
+                new BatchOperation("rename", "c.txt"),
+                new BatchOperation(BatchOperation.STAT, ".hidden"));
+
+        assertThat(results).hasSize(5);
+        Map<String, BatchResult> byName = results.stream()
+                .collect(Collectors.toMap(BatchResult::getName, Function.identity()));
+        assertThat(byName.get("a.txt").getStatus()).isEqualTo(200);
+        assertThat(byName.get("a.txt").getMessage()).isNull();
+        assertThat(byName.get("missing.txt").getStatus()).isEqualTo(404);
+        assertThat(byName.get("missing.txt").getMessage()).isNotNull();
+        assertThat(byName.get("b.txt").getStatus()).isEqualTo(200);
+        assertThat(byName.get("b.txt").getFileInfo().getName()).isEqualTo("b.txt");
+        assertThat(byName.get("b.txt").getFileInfo().getSize()).isEqualTo(3);
+        assertThat(byName.get("c.txt").getStatus()).isEqualTo(400);
+        assertThat(byName.get(".hidden").getStatus()).isEqualTo(400);
+
+        verify(fileService, times(1)).deleteFile(FileId.from("bucket", "a.txt"));
+        verify(fileService, times(1)).deleteFile(FileId.from("bucket", "missing.txt"));
+        verify(fileService, never()).deleteFile(FileId.from("bucket", "c.txt"));
+    }
+
+    @Test
+    public void testBatch_Empty() throws Exception {
+        assertThat(batch("bucket")).isEmpty();
+    }
+
+    @Test
+    public void testBatch_TooManyOperations() throws Exception {
+        BatchOperation[] operations = new BatchOperation[6];
+        Arrays.setAll(operations, i -> new BatchOperation(BatchOperation.DELETE, "file" + i));
+
+        mockMvc.perform(post("/store/bucket/?batch=true")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(operations)))
+                .andExpect(status().isBadRequest());
+
+        verify(fileService, never()).deleteFile(any(FileId.class));
+    }
+
+    @Test
+    public void testBatch_InvalidBucketName() throws Exception {
+        mockMvc.perform(post("/store/.bucket/?batch=true")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content("[]"))
+                .andExpect(status().isBadRequest());
+    }
+
+    private List<BatchResult> batch(String bucket, BatchOperation... operations) throws Exception {
+        String response = mockMvc.perform(post("/store/" + bucket + "/?batch=true")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(operations)))
+                .andExpect(status().isOk())
+                .andReturn()
+                .getResponse()
+                .getContentAsString();
+        return objectMapper.readValue(response,
+                objectMapper.getTypeFactory().constructCollectionType(List.class, BatchResult.class));
+    }
+}
@@ -2,29 +2,45 @@ package com.stjepano.filestore.controller;
 
 import com.stjepano.filestore.service.BucketDoesNotExistException;
 import com.stjepano.filestore.service.BucketId;
+import com.stjepano.filestore.service.ContentDigestMismatchException;
+import com.stjepano.filestore.service.ExpectedDigests;
 import com.stjepano.filestore.service.FileAlreadyExistException;
 import com.stjepano.filestore.service.FileDoesNotExistException;
 import com.stjepano.filestore.service.FileId;
 import com.stjepano.filestore.common.FileInfo;
+import com.stjepano.filestore.common.FilePage;
 import com.stjepano.filestore.service.FileService;
+import com.stjepano.filestore.service.filesystem.GzipResource;
+import org.assertj.core.api.Assertions;
+import org.hamcrest.Matchers;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.skyscreamer.jsonassert.JSONAssert;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.core.io.ByteArrayResource;
 import org.springframework.core.io.Resource;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
 import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
+import java.security.MessageDigest;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
 
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.doNothing;
@@ -37,6 +53,8 @@ import static org.mockito.Mockito.when;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.fileUpload;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
@@ -73,7 +91,7 @@ public class FileControllerTest {
                 .getResponse()
                 .getContentAsString();
 
-        String expectedJson = "[{\"name\": \"filea.png\", \"size\": 5000, \"mimeType\": \"image/png\", \"dateCreated\": \""+nowStr+"\"}]";
+        String expectedJson = "[{\"name\": \"filea.png\", \"size\": 5000, \"mimeType\": \"image/png\", \"dateCreated\": \""+nowStr+"\", \"lastModified\": null, \"sha256\": null, \"crc32c\": null}]";
 
         JSONAssert.assertEquals(expectedJson, response, true);
 
@@ -97,6 +115,81 @@ public class FileControllerTest {
                 .andExpect(status().isNotFound());
     }
 
+    @Test
+    public void testListFilesStream() throws Exception {
+        LocalDateTime now = LocalDateTime.now();
+        String nowStr = now.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+        when(fileService.streamFiles(BucketId.from("bucket")))
+                .thenReturn(Stream.of(
+                        new FileInfo("filea.png", 5000, "image/png", now),
+                        new FileInfo("fileb.txt", 10, "text/plain", now)
+                ));
+
+        String response = mockMvc.perform(get("/store/bucket/?stream=true"))
+                .andExpect(status().isOk())
+                .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_JSON))
+                .andReturn()
+                .getResponse()
+                .getContentAsString();
+
+        String expectedJson = "[{\"name\": \"filea.png\", \"size\": 5000, \"mimeType\": \"image/png\", \"dateCreated\": \""+nowStr+"\", \"lastModified\": null, \"sha256\": null, \"crc32c\": null}," +
+                "{\"name\": \"fileb.txt\", \"size\": 10, \"mimeType\": \"text/plain\", \"dateCreated\": \""+nowStr+"\", \"lastModified\": null, \"sha256\": null, \"crc32c\": null}]";
+
+        JSONAssert.assertEquals(expectedJson, response, true);
+    }
+
+    @Test
+    public void testListFilesStream_BucketDoesNotExist() throws Exception {
+        doThrow(new BucketDoesNotExistException(BucketId.from("bucket")))
+                .when(fileService)
+                .streamFiles(BucketId.from("bucket"));
+
+        mockMvc.perform(get("/store/bucket/?stream=true"))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    public void testListFilesPage() throws Exception {
+        LocalDateTime now = LocalDateTime.now();
+        String nowStr = now.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+        when(fileService.getFiles(BucketId.from("bucket"), "file", "filea.png", 1))
+                .thenReturn(new FilePage(Arrays.asList(
+                        new FileInfo("fileb.png", 5000, "image/png", now)
+                ), "fileb.png"));
+
+        String response = mockMvc.perform(get("/store/bucket/?limit=1&startAfter=filea.png&prefix=file"))
+                .andExpect(status().isOk())
+                .andReturn()
+                .getResponse()
+                .getContentAsString();
+
+        String expectedJson = "{\"files\": [{\"name\": \"fileb.png\", \"size\": 5000, \"mimeType\": \"image/png\", \"dateCreated\": \""+nowStr+"\", \"lastModified\": null, \"sha256\": null, \"crc32c\": null}], \"nextStartAfter\": \"fileb.png\"}";
+
+        JSONAssert.assertEquals(expectedJson, response, true);
+    }
+
+    @Test
+    public void testListFilesPage_LimitIsCapped() throws Exception {
+        when(fileService.getFiles(BucketId.from("bucket"), null, null, FileController.MAX_PAGE_SIZE))
+                .thenReturn(new FilePage(Collections.emptyList(), null));
+
+        mockMvc.perform(get("/store/bucket/?limit=1000000"))
+                .andExpect(status().isOk());
+
+        verify(fileService, times(1))
+                .getFiles(BucketId.from("bucket"), null, null, FileController.MAX_PAGE_SIZE);
+    }
+
+    @Test
+    public void testListFilesPage_BucketDoesNotExist() throws Exception {
+        doThrow(new BucketDoesNotExistException(BucketId.from("bucket")))
+                .when(fileService)
+                .getFiles(BucketId.from("bucket"), null, null, 10);
+
+        mockMvc.perform(get("/store/bucket/?limit=10"))
+                .andExpect(status().isNotFound());
+    }
+
     @Test
     public void testDeleteFile() throws Exception {
         doNothing()
@@ -280,8 +373,153 @@ public class FileControllerTest {
     }
 
 
+    @Test
+    public void testUploadRawFile() throws Exception {
+        ArgumentCaptor<InputStream> dataStream = ArgumentCaptor.forClass(InputStream.class);
+        doNothing()
+                .when(fileService)
+                .upload(eq(FileId.from("bucket", "fileA.png")), dataStream.capture());
+
+        mockMvc.perform(post("/store/bucket/fileA.png")
+                    .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                    .content("abcd".getBytes()))
+                .andExpect(status().isOk());
+
+        verify(fileService, times(1))
+                .upload(eq(FileId.from("bucket", "fileA.png")), any(InputStream.class));
+        Assertions.assertThat(dataStream.getValue())
+                .hasSameContentAs(new ByteArrayInputStream("abcd".getBytes()));
+    }
+
+    @Test
+    public void testUploadRawFile_ExpectedDigests() throws Exception {
+        byte[] md5 = MessageDigest.getInstance("MD5").digest("abcd".getBytes());
+        byte[] sha256 = MessageDigest.getInstance("SHA-256").digest("abcd".getBytes());
+        ArgumentCaptor<ExpectedDigests> expectedDigests = ArgumentCaptor.forClass(ExpectedDigests.class);
+        doNothing()
+                .when(fileService)
+                .upload(eq(FileId.from("bucket", "fileA.png")), any(InputStream.class), expectedDigests.capture());
+
+        mockMvc.perform(post("/store/bucket/fileA.png")
+                    .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                    .header("Content-MD5", Base64.getEncoder().encodeToString(md5))
+                    .header("Digest", "unixsum=30637, SHA-256=" + Base64.getEncoder().encodeToString(sha256) + ", crc32c=ksgKMQ==")
+                    .content("abcd".getBytes()))
+                .andExpect(status().isOk());
+
+        Assertions.assertThat(expectedDigests.getValue().getMd5()).isEqualTo(md5);
+        Assertions.assertThat(expectedDigests.getValue().getSha256()).isEqualTo(sha256);
+        Assertions.assertThat(expectedDigests.getValue().getCrc32c()).isEqualTo(0x92c80a31);
+    }
+
+    @Test
+    public void testUploadRawFile_DigestMismatch() throws Exception {
+        doThrow(new ContentDigestMismatchException(FileId.from("bucket", "fileA.png"), "MD5"))
+                .when(fileService)
+                .upload(eq(FileId.from("bucket", "fileA.png")), any(InputStream.class), any(ExpectedDigests.class));
+
+        mockMvc.perform(post("/store/bucket/fileA.png")
+                    .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                    .header("Content-MD5", "AAAAAAAAAAAAAAAAAAAAAA==")
+                    .content("abcd".getBytes()))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void testUploadRawFile_MalformedDigest() throws Exception {
+        mockMvc.perform(post("/store/bucket/fileA.png")
+                    .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                    .header("Digest", "sha-256=abcd")
+                    .content("abcd".getBytes()))
+                .andExpect(status().isBadRequest());
+
+        verify(fileService, times(0))
+                .upload(any(FileId.class), any(InputStream.class));
+    }
+
+    @Test
+    public void testUploadRawFile_WantDigest() throws Exception {
+        FileInfo fileInfo = new FileInfo("fileA.png", 4, "image/png", LocalDateTime.now());
+        fileInfo.setSha256("88d4266fd4e6338d13b845fcf289579d209c897823b9217da3e161936f031589");
+        fileInfo.setCrc32c("92c80a31");
+        doReturn(fileInfo)
+                .when(fileService)
+                .getFileInfo(eq(FileId.from("bucket", "fileA.png")));
+
+        mockMvc.perform(post("/store/bucket/fileA.png")
+                    .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                    .header("Want-Digest", "SHA-256;q=1, md5, crc32c;q=0")
+                    .content("abcd".getBytes()))
+                .andExpect(status().isOk())
+                .andExpect(header().string("Digest", "sha-256=iNQmb9TmM40TuEX88olXnSCciXgjuSF9o+Fhk28DFYk="));
+    }
+
+    @Test
+    public void testUploadFile_RequestDigestDoesNotApplyToPart() throws Exception {
+        MockMultipartFile file = new MockMultipartFile("file", "fileA.png", "image/png", "abcd".getBytes());
+
+        // digest of a multipart request is digest of the whole body, file digests are sent with the part
+        mockMvc.perform(fileUpload("/store/bucket/").file(file).header("Content-MD5", "AAAAAAAAAAAAAAAAAAAAAA=="))
+                .andExpect(status().isOk());
+
+        verify(fileService, times(1))
+                .upload(eq(FileId.from("bucket", "fileA.png")), any(InputStream.class));
+    }
+
+    @Test
+    public void testUploadRawFile_InvalidFileName() throws Exception {
+        mockMvc.perform(post("/store/bucket/fileA\\.png")
+                    .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                    .content("abcd".getBytes()))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void testUploadRawFile_FileAlreadyExist() throws Exception {
+        doThrow(new FileAlreadyExistException(FileId.from("bucket", "fileA.png")))
+                .when(fileService)
+                .upload(eq(FileId.from("bucket", "fileA.png")), any(InputStream.class));
+
+        mockMvc.perform(post("/store/bucket/fileA.png")
+                    .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                    .content("abcd".getBytes()))
+                .andExpect(status().isConflict());
+    }
+
+    @Test
+    public void testOverwriteRawFile() throws Exception {
+        ArgumentCaptor<InputStream> dataStream = ArgumentCaptor.forClass(InputStream.class);
+        doNothing()
+                .when(fileService)
+                .overwrite(eq(FileId.from("bucket", "fileA.png")), dataStream.capture());
+
+        mockMvc.perform(put("/store/bucket/fileA.png")
+                    .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                    .content("abcd".getBytes()))
+                .andExpect(status().isOk());
+
+        verify(fileService, times(1))
+                .overwrite(eq(FileId.from("bucket", "fileA.png")), any(InputStream.class));
+        Assertions.assertThat(dataStream.getValue())
+                .hasSameContentAs(new ByteArrayInputStream("abcd".getBytes()));
+    }
+
+    @Test
+    public void testOverwriteRawFile_FileDoesNotExist() throws Exception {
+        doThrow(new FileDoesNotExistException(FileId.from("bucket", "fileA.png")))
+                .when(fileService)
+                .overwrite(eq(FileId.from("bucket", "fileA.png")), any(InputStream.class));
+
+        mockMvc.perform(put("/store/bucket/fileA.png")
+                    .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                    .content("abcd".getBytes()))
+                .andExpect(status().isNotFound());
+    }
+
+
     @Test
     public void testDownloadFile() throws Exception {
+        mockFileInfo("fileA.png", 4);
         doReturn(resource)
                 .when(fileService)
                 .download(eq(FileId.from("bucket", "fileA.png")));
@@ -313,6 +551,7 @@ public class FileControllerTest {
 
     @Test
     public void testDownloadFile_NotAttachment() throws Exception {
+        mockFileInfo("fileA.png", 4);
         doReturn(resource)
                 .when(fileService)
                 .download(eq(FileId.from("bucket", "fileA.png")));
@@ -331,11 +570,286 @@ public class FileControllerTest {
     }
 
 
+    @Test
+    public void testDownloadFile_Range() throws Exception {
+        mockDownloadResource("abcd".getBytes());
+
+        mockMvc.perform(get("/store/bucket/fileA.png").header(HttpHeaders.RANGE, "bytes=1-2"))
+                .andExpect(status().isPartialContent())
+                .andExpect(content().bytes("bc".getBytes()))
+                .andExpect(header().string(HttpHeaders.CONTENT_RANGE, "bytes 1-2/4"))
+                .andExpect(header().string(HttpHeaders.ACCEPT_RANGES, "bytes"));
+    }
+
+    @Test
+    public void testDownloadFile_SuffixRange() throws Exception {
+        mockDownloadResource("abcd".getBytes());
+
+        mockMvc.perform(get("/store/bucket/fileA.png").header(HttpHeaders.RANGE, "bytes=-3"))
+                .andExpect(status().isPartialContent())
+                .andExpect(content().bytes("bcd".getBytes()))
+                .andExpect(header().string(HttpHeaders.CONTENT_RANGE, "bytes 1-3/4"));
+    }
+
+    @Test
+    public void testDownloadFile_MultipleRanges() throws Exception {
+        mockDownloadResource("abcd".getBytes());
+
+        String response = mockMvc.perform(get("/store/bucket/fileA.png").header(HttpHeaders.RANGE, "bytes=0-0,2-3"))
+                .andExpect(status().isPartialContent())
+                .andExpect(header().string(HttpHeaders.CONTENT_TYPE, Matchers.startsWith("multipart/byteranges;boundary=")))
+                .andReturn()
+                .getResponse()
+                .getContentAsString();
+
+        Assertions.assertThat(response)
+                .contains("Content-Type: image/png\r\nContent-Range: bytes 0-0/4\r\n\r\na\r\n")
+                .contains("Content-Type: image/png\r\nContent-Range: bytes 2-3/4\r\n\r\ncd\r\n");
+    }
+
+    @Test
+    public void testDownloadFile_RangeNotSatisfiable() throws Exception {
+        mockDownloadResource("abcd".getBytes());
+
+        mockMvc.perform(get("/store/bucket/fileA.png").header(HttpHeaders.RANGE, "bytes=10-20"))
+                .andExpect(status().isRequestedRangeNotSatisfiable())
+                .andExpect(header().string(HttpHeaders.CONTENT_RANGE, "bytes */4"));
+    }
+
+    @Test
+    public void testDownloadFile_MalformedRange() throws Exception {
+        mockDownloadResource("abcd".getBytes());
+
+        mockMvc.perform(get("/store/bucket/fileA.png").header(HttpHeaders.RANGE, "lines=1-2"))
+                .andExpect(status().isOk())
+                .andExpect(content().bytes("abcd".getBytes()));
+    }
+
+    @Test
+    public void testDownloadFile_IfRangeNotModified() throws Exception {
+        mockDownloadResource("abcd".getBytes());
+
+        mockMvc.perform(get("/store/bucket/fileA.png")
+                    .header(HttpHeaders.RANGE, "bytes=1-2")
+                    .header(HttpHeaders.IF_RANGE, "Tue, 01 Jan 2030 00:00:00 GMT"))
+                .andExpect(status().isPartialContent())
+                .andExpect(content().bytes("bc".getBytes()));
+    }
+
+    @Test
+    public void testDownloadFile_IfRangeModified() throws Exception {
+        mockDownloadResource("abcd".getBytes());
+
+        mockMvc.perform(get("/store/bucket/fileA.png")
+                    .header(HttpHeaders.RANGE, "bytes=1-2")
+                    .header(HttpHeaders.IF_RANGE, "Tue, 01 Jan 2000 00:00:00 GMT"))
+                .andExpect(status().isOk())
+                .andExpect(content().bytes("abcd".getBytes()));
+    }
+
+    @Test
+    public void testDownloadFile_CompressedEncodingAccepted() throws Exception {
+        mockFileInfo("fileA.txt", 4);
+        byte[] gzipped = gzip("abcd".getBytes());
+        doReturn(new GzipResource(new ByteArrayResource(gzipped), 4))
+                .when(fileService)
+                .download(eq(FileId.from("bucket", "fileA.txt")));
+
+        mockMvc.perform(get("/store/bucket/fileA.txt?att=false").header(HttpHeaders.ACCEPT_ENCODING, "deflate, gzip;q=0.8"))
+                .andExpect(status().isOk())
+                .andExpect(content().bytes(gzipped))
+                .andExpect(header().string(HttpHeaders.CONTENT_ENCODING, "gzip"))
+                .andExpect(header().string(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING))
+                .andExpect(header().longValue(HttpHeaders.CONTENT_LENGTH, gzipped.length));
+    }
+
+    @Test
+    public void testDownloadFile_CompressedEncodingNotAccepted() throws Exception {
+        mockFileInfo("fileA.txt", 4);
+        doReturn(new GzipResource(new ByteArrayResource(gzip("abcd".getBytes())), 4))
+                .when(fileService)
+                .download(eq(FileId.from("bucket", "fileA.txt")));
+
+        mockMvc.perform(get("/store/bucket/fileA.txt?att=false").header(HttpHeaders.ACCEPT_ENCODING, "*, gzip;q=0"))
+                .andExpect(status().isOk())
+                .andExpect(content().bytes("abcd".getBytes()))
+                .andExpect(header().doesNotExist(HttpHeaders.CONTENT_ENCODING))
+                .andExpect(header().string(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING))
+                .andExpect(header().longValue(HttpHeaders.CONTENT_LENGTH, 4));
+    }
+
+    @Test
+    public void testDownloadFile_CompressedRangeOfDecodedFile() throws Exception {
+        mockFileInfo("fileA.txt", 4);
+        doReturn(new GzipResource(new ByteArrayResource(gzip("abcd".getBytes())), 4))
+                .when(fileService)
+                .download(eq(FileId.from("bucket", "fileA.txt")));
+
+        mockMvc.perform(get("/store/bucket/fileA.txt?att=false").header(HttpHeaders.RANGE, "bytes=1-2"))
+                .andExpect(status().isPartialContent())
+                .andExpect(content().bytes("bc".getBytes()))
+                .andExpect(header().string(HttpHeaders.CONTENT_RANGE, "bytes 1-2/4"));
+    }
+
+    @Test
+    public void testDownloadFile_Validators() throws Exception {
+        mockDownloadResource("abcd".getBytes());
+        FileInfo fileInfo = mockFileInfo("fileA.png", 4);
+        fileInfo.setSha256("88d4266f");
+
+        mockMvc.perform(get("/store/bucket/fileA.png"))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.ETAG, "\"88d4266f\""))
+                .andExpect(header().dateValue(HttpHeaders.LAST_MODIFIED, EntityTags.lastModified(fileInfo)))
+                .andExpect(header().doesNotExist(HttpHeaders.CACHE_CONTROL));
+    }
+
+    @Test
+    public void testDownloadFile_WeakValidator() throws Exception {
+        mockDownloadResource("abcd".getBytes());
+
+        mockMvc.perform(get("/store/bucket/fileA.png"))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.ETAG, Matchers.startsWith("W/\"4-")));
+    }
+
+    @Test
+    public void testDownloadFile_IfNoneMatch() throws Exception {
+        mockFileInfo("fileA.png", 4).setSha256("88d4266f");
+
+        mockMvc.perform(get("/store/bucket/fileA.png").header(HttpHeaders.IF_NONE_MATCH, "\"other\", \"88d4266f\""))
+                .andExpect(status().isNotModified())
+                .andExpect(header().string(HttpHeaders.ETAG, "\"88d4266f\""))
+                .andExpect(content().bytes(new byte[0]));
+
+        verify(fileService, times(0))
+                .download(any(FileId.class));
+    }
+
+    @Test
+    public void testDownloadFile_IfNoneMatchEncoded() throws Exception {
+        mockFileInfo("fileA.txt", 4).setSha256("88d4266f");
+
+        mockMvc.perform(get("/store/bucket/fileA.txt")
+                    .header(HttpHeaders.IF_NONE_MATCH, "\"88d4266f-gzip\"")
+                    .header(HttpHeaders.ACCEPT_ENCODING, "gzip"))
+                .andExpect(status().isNotModified())
+                .andExpect(header().string(HttpHeaders.ETAG, "\"88d4266f-gzip\""))
+                .andExpect(header().string(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING));
+
+        verify(fileService, times(0))
+                .download(any(FileId.class));
+    }
+
+    @Test
+    public void testDownloadFile_IfNoneMatchChanged() throws Exception {
+        mockDownloadResource("abcd".getBytes());
+        mockFileInfo("fileA.png", 4).setSha256("88d4266f");
+
+        mockMvc.perform(get("/store/bucket/fileA.png")
+                    .header(HttpHeaders.IF_NONE_MATCH, "\"other\"")
+                    .header(HttpHeaders.IF_MODIFIED_SINCE, "Tue, 01 Jan 2030 00:00:00 GMT"))
+                .andExpect(status().isOk())
+                .andExpect(content().bytes("abcd".getBytes()));
+    }
+
+    @Test
+    public void testDownloadFile_IfModifiedSince() throws Exception {
+        FileInfo fileInfo = mockFileInfo("fileA.png", 4);
+        HttpHeaders requestHeaders = new HttpHeaders();
+        requestHeaders.setIfModifiedSince(EntityTags.lastModified(fileInfo));
+
+        mockMvc.perform(get("/store/bucket/fileA.png").headers(requestHeaders))
+                .andExpect(status().isNotModified());
+
+        verify(fileService, times(0))
+                .download(any(FileId.class));
+    }
+
+    @Test
+    public void testDownloadFile_IfRangeEntityTag() throws Exception {
+        mockDownloadResource("abcd".getBytes());
+        mockFileInfo("fileA.png", 4).setSha256("88d4266f");
+
+        mockMvc.perform(get("/store/bucket/fileA.png")
+                    .header(HttpHeaders.RANGE, "bytes=1-2")
+                    .header(HttpHeaders.IF_RANGE, "\"88d4266f\""))
+                .andExpect(status().isPartialContent())
+                .andExpect(content().bytes("bc".getBytes()));
+
+        mockMvc.perform(get("/store/bucket/fileA.png")
+                    .header(HttpHeaders.RANGE, "bytes=1-2")
+                    .header(HttpHeaders.IF_RANGE, "W/\"88d4266f\""))
+                .andExpect(status().isOk())
+                .andExpect(content().bytes("abcd".getBytes()));
+    }
+
+    @Test
+    public void testListFiles_IfNoneMatch() throws Exception {
+        when(fileService.getFiles(BucketId.from("bucket")))
+                .thenReturn(Arrays.asList(
+                        new FileInfo("filea.png", 5000, "image/png", LocalDateTime.of(2017, 1, 1, 12, 0))
+                ));
+
+        String entityTag = mockMvc.perform(get("/store/bucket/"))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.ETAG, Matchers.startsWith("W/")))
+                .andReturn()
+                .getResponse()
+                .getHeader(HttpHeaders.ETAG);
+
+        mockMvc.perform(get("/store/bucket/").header(HttpHeaders.IF_NONE_MATCH, entityTag))
+                .andExpect(status().isNotModified());
+    }
+
+    @Test
+    public void testAcceptsEncoding() {
+        Assertions.assertThat(AbstractFileController.acceptsEncoding(null, "gzip")).isFalse();
+        Assertions.assertThat(AbstractFileController.acceptsEncoding("gzip", "gzip")).isTrue();
+        Assertions.assertThat(AbstractFileController.acceptsEncoding("x-gzip", "gzip")).isTrue();
+        Assertions.assertThat(AbstractFileController.acceptsEncoding("identity, *;q=0.5", "gzip")).isTrue();
+        Assertions.assertThat(AbstractFileController.acceptsEncoding("br, deflate", "gzip")).isFalse();
+        Assertions.assertThat(AbstractFileController.acceptsEncoding("GZIP;q=0.0", "gzip")).isFalse();
+        Assertions.assertThat(AbstractFileController.acceptsEncoding("gzip;q=invalid", "gzip")).isFalse();
+    }
+
+    private static byte[] gzip(byte[] bytes) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzipOut = new GZIPOutputStream(out)) {
+            gzipOut.write(bytes);
+        }
+        return out.toByteArray();
+    }
+
+    private FileInfo mockFileInfo(String filename, long size) throws Exception {
+        FileInfo fileInfo = new FileInfo(filename, size, null, LocalDateTime.of(2017, 1, 1, 12, 0));
+        fileInfo.setLastModified(LocalDateTime.of(2017, 1, 1, 12, 0));
+        doReturn(fileInfo)
+                .when(fileService)
+                .getFileInfo(eq(FileId.from("bucket", filename)));
+        return fileInfo;
+    }
+
+    private void mockDownloadResource(byte[] bytes) throws Exception {
+        mockFileInfo("fileA.png", bytes.length);
+        doReturn(resource)
+                .when(fileService)
+                .download(eq(FileId.from("bucket", "fileA.png")));
+        when(resource.getFilename())
+                .thenReturn("fileA.png");
+        when(resource.contentLength())
+                .thenReturn((long) bytes.length);
+        when(resource.lastModified())
+                .thenReturn(LocalDateTime.of(2017, 1, 1, 12, 0).toInstant(ZoneOffset.UTC).toEpochMilli());
+        when(resource.getInputStream())
+                .thenAnswer(invocation -> new ByteArrayInputStream(bytes));
+    }
+
     @Test
     public void testDownloadFile_BucketDoesNotExist() throws Exception {
         doThrow(new BucketDoesNotExistException(BucketId.from("bucket")))
                 .when(fileService)
-                .download(eq(FileId.from("bucket", "fileA.png")));
+                .getFileInfo(eq(FileId.from("bucket", "fileA.png")));
 
         mockMvc.perform(get("/store/bucket/fileA.png?att=false"))
                 .andExpect(status().isNotFound());
@@ -346,7 +860,7 @@ public class FileControllerTest {
     public void testDownloadFile_FileDoesNotExist() throws Exception {
         doThrow(new FileDoesNotExistException(FileId.from("bucket", "fileA.png")))
                 .when(fileService)
-                .download(eq(FileId.from("bucket", "fileA.png")));
+                .getFileInfo(eq(FileId.from("bucket", "fileA.png")));
 
         mockMvc.perform(get("/store/bucket/fileA.png?att=false"))
                 .andExpect(status().isNotFound());
@@ -0,0 +1,194 @@
+package com.stjepano.filestore.controller;
+
+import com.stjepano.filestore.common.FileInfo;
+import com.stjepano.filestore.common.MultipartUpload;
+import com.stjepano.filestore.service.ContentDigestMismatchException;
+import com.stjepano.filestore.service.ExpectedDigests;
+import com.stjepano.filestore.service.FileId;
+import com.stjepano.filestore.service.FileService;
+import com.stjepano.filestore.service.InvalidUploadException;
+import com.stjepano.filestore.service.UploadDoesNotExistException;
+import com.stjepano.filestore.service.filesystem.MultipartUploads;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.servlet.MockMvc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Base64;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Test for {@link MultipartUploadController}, together with {@link FileController} whose mappings have the same paths
+ */
+@RunWith(SpringRunner.class)
+@WebMvcTest({MultipartUploadController.class, FileController.class})
+public class MultipartUploadControllerTest {
+
+    private static final FileId FILE = FileId.from("bucket", "large.bin");
+    private static final String UPLOAD_ID = "0123456789abcdef0123456789abcdef";
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @MockBean
+    private FileService fileService;
+
+    @MockBean
+    private MultipartUploads multipartUploads;
+
+    @Test
+    public void testInitiateUpload() throws Exception {
+        when(multipartUploads.initiate(FILE, 25, 10L))
+                .thenReturn(new MultipartUpload(UPLOAD_ID, "large.bin", 25, 10, 3, Arrays.asList()));
+
+        // a parameter without value (?uploads) is an empty string in the servlet container
+        mockMvc.perform(post("/store/bucket/large.bin?size=25&partSize=10")
+                .param("uploads", "")
+                .contentType(MediaType.APPLICATION_OCTET_STREAM))
+                .andExpect(status().isOk())
+                .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_JSON))
+                .andExpect(jsonPath("$.uploadId").value(UPLOAD_ID))
+                .andExpect(jsonPath("$.partCount").value(3));
+
+        verify(fileService, never()).upload(any(FileId.class), any(InputStream.class));
+    }
+
+    @Test
+    public void testInitiateUpload_PartsTooSmall() throws Exception {
+        when(multipartUploads.initiate(FILE, 25, 1L)).thenThrow(new InvalidUploadException("Parts must have at least 10 bytes!"));
+
+        mockMvc.perform(post("/store/bucket/large.bin?size=25&partSize=1").param("uploads", ""))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.message").value("Parts must have at least 10 bytes!"));
+    }
+
+    @Test
+    public void testUploadPart() throws Exception {
+        byte[] md5 = MessageDigest.getInstance("MD5").digest("part".getBytes(StandardCharsets.UTF_8));
+        doAnswer(invocation -> {
+            assertThat(read(invocation.getArgumentAt(3, InputStream.class))).isEqualTo("part");
+            assertThat(invocation.getArgumentAt(4, ExpectedDigests.class).getMd5()).isEqualTo(md5);
+            return null;
+        }).when(multipartUploads).uploadPart(eq(FILE), eq(UPLOAD_ID), eq(2), any(InputStream.class), any(ExpectedDigests.class));
+
+        mockMvc.perform(put("/store/bucket/large.bin?uploadId=" + UPLOAD_ID + "&partNumber=2")
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .header(ContentDigests.CONTENT_MD5, Base64.getEncoder().encodeToString(md5))
+                .content("part"))
+                .andExpect(status().isOk());
+
+        verify(multipartUploads).uploadPart(eq(FILE), eq(UPLOAD_ID), eq(2), any(InputStream.class), any(ExpectedDigests.class));
+        verify(fileService, never()).overwrite(any(FileId.class), any(InputStream.class));
+    }
+
+    @Test
+    public void testUploadPart_DigestMismatch() throws Exception {
+        doThrow(new ContentDigestMismatchException(FILE, "MD5")).when(multipartUploads)
+                .uploadPart(eq(FILE), eq(UPLOAD_ID), anyInt(), any(InputStream.class), any(ExpectedDigests.class));
+
+        mockMvc.perform(put("/store/bucket/large.bin?uploadId=" + UPLOAD_ID + "&partNumber=1")
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .content("part"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void testGetUpload() throws Exception {
+        when(multipartUploads.getUpload(FILE, UPLOAD_ID))
+                .thenReturn(new MultipartUpload(UPLOAD_ID, "large.bin", 25, 10, 3, Arrays.asList(1, 3)));
+
+        mockMvc.perform(get("/store/bucket/large.bin?uploadId=" + UPLOAD_ID))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.uploadedParts[0]").value(1))
+                .andExpect(jsonPath("$.uploadedParts[1]").value(3));
+
+        verify(fileService, never()).download(any(FileId.class));
+    }
+
+    @Test
+    public void testGetUpload_DoesNotExist() throws Exception {
+        when(multipartUploads.getUpload(FILE, UPLOAD_ID)).thenThrow(new UploadDoesNotExistException(FILE, UPLOAD_ID));
+
+        mockMvc.perform(get("/store/bucket/large.bin?uploadId=" + UPLOAD_ID))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    public void testCompleteUpload() throws Exception {
+        byte[] sha256 = MessageDigest.getInstance("SHA-256").digest("data".getBytes(StandardCharsets.UTF_8));
+        String digest = "sha-256=" + Base64.getEncoder().encodeToString(sha256);
+        FileInfo fileInfo = new FileInfo();
+        fileInfo.setName("large.bin");
+        fileInfo.setSha256(String.format("%064x", new BigInteger(1, sha256)));
+        when(fileService.getFileInfo(FILE)).thenReturn(fileInfo);
+
+        mockMvc.perform(post("/store/bucket/large.bin?uploadId=" + UPLOAD_ID)
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .header(ContentDigests.DIGEST, digest)
+                .header(ContentDigests.WANT_DIGEST, "sha-256"))
+                .andExpect(status().isOk())
+                .andExpect(header().string(ContentDigests.DIGEST, digest));
+
+        ArgumentCaptor<ExpectedDigests> expected = ArgumentCaptor.forClass(ExpectedDigests.class);
+        verify(multipartUploads).complete(eq(FILE), eq(UPLOAD_ID), expected.capture());
+        assertThat(expected.getValue().getSha256()).isEqualTo(sha256);
+    }
+
+    @Test
+    public void testCompleteUpload_Incomplete() throws Exception {
+        doThrow(new InvalidUploadException("Upload is incomplete, 2 of 3 parts were uploaded!"))
+                .when(multipartUploads).complete(eq(FILE), anyString(), any(ExpectedDigests.class));
+
+        mockMvc.perform(post("/store/bucket/large.bin?uploadId=" + UPLOAD_ID))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void testAbortUpload() throws Exception {
+        mockMvc.perform(delete("/store/bucket/large.bin?uploadId=" + UPLOAD_ID))
+                .andExpect(status().isOk());
+
+        verify(multipartUploads).abort(FILE, UPLOAD_ID);
+        verify(fileService, never()).deleteFile(any(FileId.class));
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,239 @@
+package com.stjepano.filestore.controller;
+
+import com.stjepano.filestore.service.filesystem.ByteBufferResource;
+import com.stjepano.filestore.service.filesystem.FileChannelResource;
+import org.assertj.core.api.Assertions;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.http.HttpRange;
+import org.springframework.http.MediaType;
+import org.springframework.mock.http.MockHttpOutputMessage;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Test for {@link ZeroCopyResourceHttpMessageConverter}
+ */
+public class ZeroCopyResourceHttpMessageConverterTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @After
+    public void tearDown() {
+        RequestContextHolder.resetRequestAttributes();
+    }
+
+    @Test
+    public void writeFileResource() throws Exception {
+        File file = temporaryFolder.newFile("file.txt");
+        Files.write(file.toPath(), "abcdef".getBytes());
+
+        MockHttpOutputMessage outputMessage = new MockHttpOutputMessage();
+        new ZeroCopyResourceHttpMessageConverter(true)
+                .write(new FileSystemResource(file), MediaType.APPLICATION_OCTET_STREAM, outputMessage);
+
+        Assertions.assertThat(outputMessage.getBodyAsBytes())
+                .isEqualTo("abcdef".getBytes());
+        Assertions.assertThat(outputMessage.getHeaders().getContentLength())
+                .isEqualTo(6);
+    }
+
+    @Test
+    public void writeNonFileResource() throws Exception {
+        MockHttpOutputMessage outputMessage = new MockHttpOutputMessage();
+        new ZeroCopyResourceHttpMessageConverter(true)
+                .write(new ByteArrayResource("abcdef".getBytes()), MediaType.APPLICATION_OCTET_STREAM, outputMessage);
+
+        Assertions.assertThat(outputMessage.getBodyAsBytes())
+                .isEqualTo("abcdef".getBytes());
+    }
+
+    @Test
+    public void writeWithSendfile() throws Exception {
+        File file = temporaryFolder.newFile("file.txt");
+        Files.write(file.toPath(), "abcdef".getBytes());
+
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setAttribute(ZeroCopyResourceHttpMessageConverter.SENDFILE_SUPPORTED_ATTRIBUTE, Boolean.TRUE);
+        RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(request));
+
+        MockHttpOutputMessage outputMessage = new MockHttpOutputMessage();
+        new ZeroCopyResourceHttpMessageConverter(true)
+                .write(new FileSystemResource(file), MediaType.APPLICATION_OCTET_STREAM, outputMessage);
+
+        Assertions.assertThat(outputMessage.getBodyAsBytes())
+                .isEmpty();
+        Assertions.assertThat(request.getAttribute(ZeroCopyResourceHttpMessageConverter.SENDFILE_FILENAME_ATTRIBUTE))
+                .isEqualTo(file.getCanonicalPath());
+        Assertions.assertThat(request.getAttribute(ZeroCopyResourceHttpMessageConverter.SENDFILE_START_ATTRIBUTE))
+                .isEqualTo(0L);
+        Assertions.assertThat(request.getAttribute(ZeroCopyResourceHttpMessageConverter.SENDFILE_END_ATTRIBUTE))
+                .isEqualTo(6L);
+    }
+
+    @Test
+    public void writeWithSendfileDisabled() throws Exception {
+        File file = temporaryFolder.newFile("file.txt");
+        Files.write(file.toPath(), "abcdef".getBytes());
+
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setAttribute(ZeroCopyResourceHttpMessageConverter.SENDFILE_SUPPORTED_ATTRIBUTE, Boolean.TRUE);
+        RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(request));
+
+        MockHttpOutputMessage outputMessage = new MockHttpOutputMessage();
+        new ZeroCopyResourceHttpMessageConverter(false)
+                .write(new FileSystemResource(file), MediaType.APPLICATION_OCTET_STREAM, outputMessage);
+
+        Assertions.assertThat(outputMessage.getBodyAsBytes())
+                .isEqualTo("abcdef".getBytes());
+        Assertions.assertThat(request.getAttribute(ZeroCopyResourceHttpMessageConverter.SENDFILE_FILENAME_ATTRIBUTE))
+                .isNull();
+    }
+
+    @Test
+    public void writeOpenFileReplacedBeforeWrite() throws Exception {
+        File file = temporaryFolder.newFile("file.txt");
+        Files.write(file.toPath(), "abcdef".getBytes());
+        FileChannelResource resource = FileChannelResource.open(file);
+
+        File replacement = temporaryFolder.newFile("replacement.txt");
+        Files.write(replacement.toPath(), "replaced content".getBytes());
+        Files.move(replacement.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        MockHttpOutputMessage outputMessage = new MockHttpOutputMessage();
+        new ZeroCopyResourceHttpMessageConverter(false)
+                .write(resource, MediaType.APPLICATION_OCTET_STREAM, outputMessage);
+
+        Assertions.assertThat(outputMessage.getBodyAsBytes())
+                .isEqualTo("abcdef".getBytes());
+        Assertions.assertThat(outputMessage.getHeaders().getContentLength())
+                .isEqualTo(6);
+        Assertions.assertThatThrownBy(() -> resource.transferTo(0, 6, Channels.newChannel(new ByteArrayOutputStream())))
+                .isInstanceOf(ClosedChannelException.class);
+    }
+
+    @Test
+    public void writeByteRangesOfFile() throws Exception {
+        File file = temporaryFolder.newFile("file.txt");
+        Files.write(file.toPath(), "abcdef".getBytes());
+
+        ByteRangeResource byteRanges = ByteRangeResource.create(new FileSystemResource(file), HttpRange.parseRanges("bytes=1-2,4-"));
+
+        MockHttpOutputMessage outputMessage = new MockHttpOutputMessage();
+        new ZeroCopyResourceHttpMessageConverter(true)
+                .write(byteRanges, byteRanges.getMediaType(), outputMessage);
+
+        Assertions.assertThat(outputMessage.getBodyAsString())
+                .contains("Content-Range: bytes 1-2/6\r\n\r\nbc\r\n")
+                .contains("Content-Range: bytes 4-5/6\r\n\r\nef\r\n")
+                .endsWith("--\r\n");
+        Assertions.assertThat(outputMessage.getHeaders().getContentLength())
+                .isEqualTo(outputMessage.getBodyAsBytes().length);
+        Assertions.assertThat(outputMessage.getBodyAsBytes())
+                .isEqualTo(StreamUtils.copyToByteArray(byteRanges.getInputStream()));
+    }
+
+    @Test
+    public void writeSingleByteRangeWithSendfile() throws Exception {
+        File file = temporaryFolder.newFile("file.txt");
+        Files.write(file.toPath(), "abcdef".getBytes());
+
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setAttribute(ZeroCopyResourceHttpMessageConverter.SENDFILE_SUPPORTED_ATTRIBUTE, Boolean.TRUE);
+        RequestContextHolder.setRequestAttributes(new ServletRequestAttributes(request));
+
+        ByteRangeResource byteRanges = ByteRangeResource.create(new FileSystemResource(file), HttpRange.parseRanges("bytes=2-3"));
+
+        MockHttpOutputMessage outputMessage = new MockHttpOutputMessage();
+        new ZeroCopyResourceHttpMessageConverter(true)
+                .write(byteRanges, byteRanges.getMediaType(), outputMessage);
+
+        Assertions.assertThat(outputMessage.getHeaders().getContentLength())
+                .isEqualTo(2);
+        Assertions.assertThat(request.getAttribute(ZeroCopyResourceHttpMessageConverter.SENDFILE_START_ATTRIBUTE))
+                .isEqualTo(2L);
+        Assertions.assertThat(request.getAttribute(ZeroCopyResourceHttpMessageConverter.SENDFILE_END_ATTRIBUTE))
+                .isEqualTo(4L);
+    }
+
+    @Test
+    public void writeByteBufferResource() throws Exception {
+        ByteBufferResource resource = new ByteBufferResource(ByteBuffer.wrap("abcdef".getBytes()), "file.txt", 0);
+
+        MockHttpOutputMessage outputMessage = new MockHttpOutputMessage();
+        new ZeroCopyResourceHttpMessageConverter(true)
+                .write(resource, MediaType.TEXT_PLAIN, outputMessage);
+
+        Assertions.assertThat(outputMessage.getBodyAsString()).isEqualTo("abcdef");
+        Assertions.assertThat(outputMessage.getHeaders().getContentLength()).isEqualTo(6);
+    }
+
+    @Test
+    public void writeByteRangesOfByteBufferResource() throws Exception {
+        ByteBufferResource resource = new ByteBufferResource(ByteBuffer.wrap("abcdef".getBytes()), "file.txt", 0);
+        ByteRangeResource byteRanges = ByteRangeResource.create(resource, HttpRange.parseRanges("bytes=1-2,4-"));
+
+        MockHttpOutputMessage outputMessage = new MockHttpOutputMessage();
+        new ZeroCopyResourceHttpMessageConverter(true)
+                .write(byteRanges, byteRanges.getMediaType(), outputMessage);
+
+        Assertions.assertThat(outputMessage.getBodyAsString())
+                .contains("Content-Range: bytes 1-2/6\r\n\r\nbc\r\n")
+                .contains("Content-Range: bytes 4-5/6\r\n\r\nef\r\n");
+        Assertions.assertThat(outputMessage.getBodyAsBytes())
+                .isEqualTo(StreamUtils.copyToByteArray(byteRanges.getInputStream()));
+
+        ByteRangeResource singleRange = ByteRangeResource.create(resource, HttpRange.parseRanges("bytes=-2"));
+        outputMessage = new MockHttpOutputMessage();
+        new ZeroCopyResourceHttpMessageConverter(true)
+                .write(singleRange, singleRange.getMediaType(), outputMessage);
+
+        Assertions.assertThat(outputMessage.getBodyAsString()).isEqualTo("ef");
+    }
+
+    @Test
+    public void closesCloseableResourceAfterWrite() throws Exception {
+        AtomicInteger closed = new AtomicInteger();
+        ClosingResource resource = new ClosingResource(closed);
+
+        new ZeroCopyResourceHttpMessageConverter(true)
+                .write(resource, MediaType.TEXT_PLAIN, new MockHttpOutputMessage());
+        Assertions.assertThat(closed.get()).isEqualTo(1);
+
+        ByteRangeResource byteRanges = ByteRangeResource.create(new ClosingResource(closed), HttpRange.parseRanges("bytes=1-2"));
+        new ZeroCopyResourceHttpMessageConverter(true)
+                .write(byteRanges, byteRanges.getMediaType(), new MockHttpOutputMessage());
+        Assertions.assertThat(closed.get()).isEqualTo(2);
+    }
+
+    private static class ClosingResource extends ByteBufferResource implements Closeable {
+        private final AtomicInteger closed;
+
+        ClosingResource(AtomicInteger closed) {
+            super(ByteBuffer.wrap("abcdef".getBytes()), "file.txt", 0);
+            this.closed = closed;
+        }
+
+        @Override
+        public void close() {
+            closed.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package com.stjepano.filestore.service;
+
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import com.stjepano.filestore.common.tar.TarEntry;
+import com.stjepano.filestore.common.tar.TarInputStream;
+import com.stjepano.filestore.service.filesystem.FileSystemFileService;
+import com.stjepano.filestore.service.filesystem.GzipResource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.PathResource;
+import org.springframework.core.io.Resource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+import static org.assertj.core.api.Assertions.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Test for {@link ArchiveExport}
+ */
+public class ArchiveExportTest {
+
+    private static final BucketId BUCKET = BucketId.from("bucket");
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private FileSystem fileSystem;
+    private FileService fileService;
+    private ArchiveExport archiveExport;
+
+    @Before
+    public void setUp() throws Exception {
+        fileSystem = Jimfs.newFileSystem(Configuration.unix());
+        Files.createDirectory(fileSystem.getPath("/filestore"));
+        // files are read from the in memory file system
+        fileService = new FileSystemFileService("/filestore", fileSystem, new DefaultResourceLoader() {
+            @Override
+            public Resource getResource(String location) {
+                return new PathResource(fileSystem.getPath(location));
+            }
+        });
+        fileService.createBucket(BUCKET);
+        archiveExport = new ArchiveExport(fileService, Arrays.asList("image/*", "application/zip"));
+        upload("a.txt", "first");
+        upload("b.txt", "second");
+        upload("c.log", "third");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        fileSystem.close();
+    }
+
+    @Test
+    public void writeTarOfBucket() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        archiveExport.write(BUCKET, (String) null, ArchiveIngest.Format.TAR, ArchiveExport.Compression.ALL, out);
+
+        Map<String, String> entries = readTar(out.toByteArray());
+        assertThat(entries).containsExactly(entry("a.txt", "first"), entry("b.txt", "second"), entry("c.log", "third"));
+    }
+
+    @Test
+    public void writeZipOfPrefix() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        archiveExport.write(BUCKET, "b", ArchiveIngest.Format.ZIP, ArchiveExport.Compression.ALL, out);
+
+        assertThat(readZip(out.toByteArray())).containsExactly(entry("b.txt", "second"));
+    }
+
+    @Test
+    public void writeZipOfFiles() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        archiveExport.write(BUCKET, Arrays.asList("c.log", "missing.txt", "a.txt"), ArchiveIngest.Format.ZIP,
+                ArchiveExport.Compression.ALL, out);
+
+        assertThat(readZip(out.toByteArray())).containsExactly(entry("c.log", "third"), entry("a.txt", "first"));
+    }
+
+    @Test
+    public void alreadyCompressedFilesAreStored() throws Exception {
+        byte[] image = new byte[100000];
+        new Random(1).nextBytes(image);
+        fileService.upload(FileId.from(BUCKET.getId(), "image.png"), new ByteArrayInputStream(image));
+        char[] text = new char[100000];
+        Arrays.fill(text, 'x');
+        upload("text.txt", new String(text));
+
+        ByteArrayOutputStream auto = new ByteArrayOutputStream();
+        archiveExport.write(BUCKET, Arrays.asList("image.png", "text.txt"), ArchiveIngest.Format.ZIP,
+                ArchiveExport.Compression.AUTO, auto);
+        ByteArrayOutputStream none = new ByteArrayOutputStream();
+        archiveExport.write(BUCKET, Arrays.asList("image.png", "text.txt"), ArchiveIngest.Format.ZIP,
+                ArchiveExport.Compression.NONE, none);
+
+        // only the text is compressed, stored data has a few bytes of overhead per 64KB
+        assertThat(auto.size()).isBetween(100000, 102000);
+        assertThat(none.size()).isGreaterThan(200000);
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(auto.toByteArray()))) {
+            assertThat(zip.getNextEntry().getName()).isEqualTo("image.png");
+            assertThat(readAll(zip)).isEqualTo(image);
+        }
+    }
+
+    @Test
+    public void writeEmptyArchive() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        archiveExport.write(BUCKET, Collections.emptyList(), ArchiveIngest.Format.TAR, ArchiveExport.Compression.ALL, out);
+
+        assertThat(readTar(out.toByteArray())).isEmpty();
+    }
+
+    @Test(expected = BucketDoesNotExistException.class)
+    public void bucketDoesNotExist() throws Exception {
+        archiveExport.write(BucketId.from("other"), (String) null, ArchiveIngest.Format.ZIP, ArchiveExport.Compression.ALL,
+                new ByteArrayOutputStream());
+    }
+
+    @Test
+    public void invalidFileNameFailsBeforeWriting() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            archiveExport.write(BUCKET, Arrays.asList("a.txt", "../b.txt"), ArchiveIngest.Format.ZIP,
+                    ArchiveExport.Compression.ALL, out);
+        } catch (InvalidFileIdException e) {
+            assertThat(out.size()).isEqualTo(0);
+            return;
+        }
+        throw new AssertionError("Invalid file name was accepted");
+    }
+
+    @Test
+    public void failedTarIsCorrupted() throws Exception {
+        FileService failing = mock(FileService.class);
+        when(failing.getBuckets()).thenReturn(Collections.singletonList(BUCKET.getId()));
+        when(failing.getFileInfo(any(FileId.class))).thenAnswer(invocation -> fileService.getFileInfo(invocation.getArgumentAt(0, FileId.class)));
+        when(failing.download(FileId.from(BUCKET.getId(), "a.txt"))).thenReturn(new ByteArrayResource("first".getBytes(StandardCharsets.UTF_8)));
+        when(failing.download(FileId.from(BUCKET.getId(), "b.txt"))).thenReturn(new ByteArrayResource(new byte[0]) {
+            @Override
+            public InputStream getInputStream() {
+                throw new UncheckedIOException(new IOException("Disk error"));
+            }
+        });
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        try {
+            new ArchiveExport(failing, Collections.emptyList()).write(BUCKET, Arrays.asList("a.txt", "b.txt"),
+                    ArchiveIngest.Format.TAR, ArchiveExport.Compression.ALL, out);
+            fail("Failure was not reported");
+        } catch (UncheckedIOException e) {
+            // expected
+        }
+
+        TarInputStream tar = new TarInputStream(new ByteArrayInputStream(out.toByteArray()));
+        assertThat(tar.getNextEntry().getName()).isEqualTo("a.txt");
+        try {
+            tar.getNextEntry();
+            fail("Failed archive was read as complete");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void tarEntrySizeIsTakenFromOpenedFile() throws Exception {
+        File file = temporaryFolder.newFile("a.txt");
+        Files.write(file.toPath(), "first".getBytes(StandardCharsets.UTF_8));
+        File replacement = temporaryFolder.newFile("replacement.txt");
+        Files.write(replacement.toPath(), "replaced content".getBytes(StandardCharsets.UTF_8));
+        FileService replacing = mock(FileService.class);
+        when(replacing.getBuckets()).thenReturn(Collections.singletonList(BUCKET.getId()));
+        when(replacing.getFileInfo(any(FileId.class))).thenAnswer(invocation -> fileService.getFileInfo(invocation.getArgumentAt(0, FileId.class)));
+        when(replacing.download(FileId.from(BUCKET.getId(), "a.txt"))).thenReturn(new FileSystemResource(file) {
+            @Override
+            public long contentLength() throws IOException {
+                // file is overwritten after it was opened
+                Files.move(replacement.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                return super.contentLength();
+            }
+        });
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        new ArchiveExport(replacing, Collections.emptyList()).write(BUCKET, Collections.singletonList("a.txt"),
+                ArchiveIngest.Format.TAR, ArchiveExport.Compression.ALL, out);
+
+        assertThat(readTar(out.toByteArray())).containsExactly(entry("a.txt", "first"));
+    }
+
+    @Test
+    public void tarEntrySizeOfCompressedFileIsCheckedAgainstOpenedFile() throws Exception {
+        File file = temporaryFolder.newFile("a.txt.gz");
+        try (OutputStream gzip = new GZIPOutputStream(new FileOutputStream(file))) {
+            gzip.write("replaced content".getBytes(StandardCharsets.UTF_8));
+        }
+        FileService replacing = mock(FileService.class);
+        when(replacing.getBuckets()).thenReturn(Collections.singletonList(BUCKET.getId()));
+        when(replacing.getFileInfo(any(FileId.class))).thenAnswer(invocation -> fileService.getFileInfo(invocation.getArgumentAt(0, FileId.class)));
+        // decoded size of the file which was replaced
+        when(replacing.download(FileId.from(BUCKET.getId(), "a.txt"))).thenReturn(new GzipResource(new FileSystemResource(file), 5));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        new ArchiveExport(replacing, Collections.emptyList()).write(BUCKET, Collections.singletonList("a.txt"),
+                ArchiveIngest.Format.TAR, ArchiveExport.Compression.ALL, out);
+
+        assertThat(readTar(out.toByteArray())).containsExactly(entry("a.txt", "replaced content"));
+    }
+
+    @Test
+    public void compressionFrom() {
+        assertThat(ArchiveExport.Compression.from("Auto")).isEqualTo(ArchiveExport.Compression.AUTO);
+    }
+
+    @Test(expected = InvalidBatchException.class)
+    public void unknownCompression() {
+        ArchiveExport.Compression.from("best");
+    }
+
+    private void upload(String filename, String content) throws Exception {
+        fileService.upload(FileId.from(BUCKET.getId(), filename), new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static Map<String, String> readTar(byte[] archive) throws IOException {
+        Map<String, String> entries = new LinkedHashMap<>();
+        TarInputStream tar = new TarInputStream(new ByteArrayInputStream(archive));
+        TarEntry entry;
+        while ((entry = tar.getNextEntry()) != null) {
+            entries.put(entry.getName(), new String(readAll(tar), StandardCharsets.UTF_8));
+        }
+        return entries;
+    }
+
+    private static Map<String, String> readZip(byte[] archive) throws IOException {
+        Map<String, String> entries = new LinkedHashMap<>();
+        ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(archive));
+        ZipEntry entry;
+        while ((entry = zip.getNextEntry()) != null) {
+            entries.put(entry.getName(), new String(readAll(zip), StandardCharsets.UTF_8));
+        }
+        return entries;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            data.write(buffer, 0, n);
+        }
+        return data.toByteArray();
+    }
+}
@@ -0,0 +1,244 @@
+package com.stjepano.filestore.service;
+
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import com.stjepano.filestore.common.BatchResult;
+import com.stjepano.filestore.common.tar.TarEntry;
+import com.stjepano.filestore.common.tar.TarOutputStream;
+import com.stjepano.filestore.service.filesystem.FileSystemFileService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.io.DefaultResourceLoader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+/**
+ * Test for {@link ArchiveIngest}
+ */
+public class ArchiveIngestTest {
+
+    private static final BucketId BUCKET = BucketId.from("bucket");
+
+    private FileSystem fileSystem;
+    private FileService fileService;
+    private ExecutorService executor;
+    private final List<BatchResult> results = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        fileSystem = Jimfs.newFileSystem(Configuration.unix());
+        Files.createDirectory(fileSystem.getPath("/filestore"));
+        fileService = new FileSystemFileService("/filestore", fileSystem, new DefaultResourceLoader());
+        fileService.createBucket(BUCKET);
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        fileSystem.close();
+    }
+
+    @Test
+    public void extractTar() throws Exception {
+        byte[] tar = tar("data/", "", "data/a.txt", "first", "data/b.txt", "second");
+
+        extract(tar, ArchiveIngest.Format.TAR, ArchiveIngest.ConflictPolicy.FAIL, 1, 1024);
+
+        assertThat(results).extracting(BatchResult::getName).containsOnly("a.txt", "b.txt");
+        assertThat(results).extracting(BatchResult::getOp).containsOnly(ArchiveIngest.UPLOAD);
+        assertThat(results).extracting(BatchResult::getStatus).containsOnly(200);
+        assertThat(content("a.txt")).isEqualTo("first");
+        assertThat(content("b.txt")).isEqualTo("second");
+    }
+
+    @Test
+    public void extractZip() throws Exception {
+        ByteArrayOutputStream zip = new ByteArrayOutputStream();
+        try (ZipOutputStream out = new ZipOutputStream(zip)) {
+            out.putNextEntry(new ZipEntry("dir/"));
+            out.putNextEntry(new ZipEntry("dir/a.txt"));
+            out.write("zipped".getBytes(StandardCharsets.UTF_8));
+            out.putNextEntry(new ZipEntry("dir/large.txt"));
+            out.write(repeat('z', 5000).getBytes(StandardCharsets.UTF_8));
+        }
+
+        extract(zip.toByteArray(), ArchiveIngest.Format.ZIP, ArchiveIngest.ConflictPolicy.FAIL, 1, 1024);
+
+        assertThat(results).extracting(BatchResult::getStatus).containsOnly(200);
+        assertThat(content("a.txt")).isEqualTo("zipped");
+        assertThat(content("large.txt")).isEqualTo(repeat('z', 5000));
+    }
+
+    @Test
+    public void largeEntriesAreStreamed() throws Exception {
+        byte[] tar = tar("small.txt", "abc", "large.txt", repeat('l', 3000), "after.txt", "def");
+
+        extract(tar, ArchiveIngest.Format.TAR, ArchiveIngest.ConflictPolicy.FAIL, 0, 100);
+
+        assertThat(results).extracting(BatchResult::getStatus).containsOnly(200);
+        assertThat(content("small.txt")).isEqualTo("abc");
+        assertThat(content("large.txt")).isEqualTo(repeat('l', 3000));
+        assertThat(content("after.txt")).isEqualTo("def");
+    }
+
+    @Test
+    public void conflictSkip() throws Exception {
+        upload("a.txt", "old");
+        upload("large.txt", "old");
+
+        extract(tar("a.txt", "new", "large.txt", repeat('n', 500), "b.txt", "new"),
+                ArchiveIngest.Format.TAR, ArchiveIngest.ConflictPolicy.SKIP, 0, 100);
+
+        Map<String, BatchResult> byName = byName();
+        assertThat(byName.get("a.txt").getOp()).isEqualTo(ArchiveIngest.SKIP);
+        assertThat(byName.get("a.txt").getStatus()).isEqualTo(200);
+        assertThat(byName.get("large.txt").getOp()).isEqualTo(ArchiveIngest.SKIP);
+        assertThat(byName.get("b.txt").getOp()).isEqualTo(ArchiveIngest.UPLOAD);
+        assertThat(content("a.txt")).isEqualTo("old");
+        assertThat(content("large.txt")).isEqualTo("old");
+        assertThat(content("b.txt")).isEqualTo("new");
+    }
+
+    @Test
+    public void conflictOverwrite() throws Exception {
+        upload("a.txt", "old");
+        upload("large.txt", "old");
+
+        extract(tar("a.txt", "new", "large.txt", repeat('n', 500), "b.txt", "new"),
+                ArchiveIngest.Format.TAR, ArchiveIngest.ConflictPolicy.OVERWRITE, 0, 100);
+
+        Map<String, BatchResult> byName = byName();
+        assertThat(byName.get("a.txt").getOp()).isEqualTo(ArchiveIngest.OVERWRITE);
+        assertThat(byName.get("large.txt").getOp()).isEqualTo(ArchiveIngest.OVERWRITE);
+        assertThat(byName.get("b.txt").getOp()).isEqualTo(ArchiveIngest.UPLOAD);
+        assertThat(results).extracting(BatchResult::getStatus).containsOnly(200);
+        assertThat(content("a.txt")).isEqualTo("new");
+        assertThat(content("large.txt")).isEqualTo(repeat('n', 500));
+    }
+
+    @Test
+    public void conflictFail() throws Exception {
+        upload("a.txt", "old");
+
+        extract(tar("a.txt", "new", "b.txt", "new"), ArchiveIngest.Format.TAR, ArchiveIngest.ConflictPolicy.FAIL, 0, 100);
+
+        Map<String, BatchResult> byName = byName();
+        assertThat(byName.get("a.txt").getStatus()).isEqualTo(409);
+        assertThat(byName.get("a.txt").getMessage()).isNotNull();
+        assertThat(byName.get("b.txt").getStatus()).isEqualTo(200);
+        assertThat(content("a.txt")).isEqualTo("old");
+    }
+
+    @Test
+    public void sameFileTwiceIsWrittenInOrder() throws Exception {
+        extract(tar("a.txt", "first", "a.txt", "second"), ArchiveIngest.Format.TAR, ArchiveIngest.ConflictPolicy.OVERWRITE, 0, 100);
+
+        assertThat(results).extracting(BatchResult::getOp).containsExactly(ArchiveIngest.UPLOAD, ArchiveIngest.OVERWRITE);
+        assertThat(content("a.txt")).isEqualTo("second");
+    }
+
+    @Test
+    public void invalidEntriesAreReported() throws Exception {
+        extract(tar("dir/nested.txt", "nested", ".hidden", "hidden", "ok.txt", "ok"),
+                ArchiveIngest.Format.TAR, ArchiveIngest.ConflictPolicy.FAIL, 0, 100);
+
+        Map<String, BatchResult> byName = byName();
+        assertThat(byName.get("dir/nested.txt").getStatus()).isEqualTo(400);
+        assertThat(byName.get(".hidden").getStatus()).isEqualTo(400);
+        assertThat(byName.get("ok.txt").getStatus()).isEqualTo(200);
+        assertThat(fileService.getFiles(BUCKET)).extracting("name").containsOnly("ok.txt");
+    }
+
+    @Test
+    public void corruptedArchiveReportsWrittenFiles() throws Exception {
+        byte[] tar = tar("a.txt", "first", "b.txt", "second");
+        // damage the header of the second entry
+        tar[2 * 512 + 10] ^= 0x55;
+
+        try {
+            extract(tar, ArchiveIngest.Format.TAR, ArchiveIngest.ConflictPolicy.FAIL, 0, 100);
+            fail("archive is corrupted");
+        } catch (IOException e) {
+            assertThat(results).extracting(BatchResult::getName).containsOnly("a.txt");
+            assertThat(content("a.txt")).isEqualTo("first");
+        }
+    }
+
+    @Test(expected = BucketDoesNotExistException.class)
+    public void bucketDoesNotExist() throws Exception {
+        new ArchiveIngest(fileService, executor, 2, 100)
+                .extract(BucketId.from("other"), ArchiveIngest.Format.TAR, new ByteArrayInputStream(tar()),
+                        ArchiveIngest.ConflictPolicy.FAIL, 0, results::add);
+    }
+
+    @Test
+    public void strip() {
+        assertThat(ArchiveIngest.strip("./a/b/c.txt", 0)).isEqualTo("a/b/c.txt");
+        assertThat(ArchiveIngest.strip("./a/b/c.txt", 2)).isEqualTo("c.txt");
+        assertThat(ArchiveIngest.strip("/a//c.txt", 1)).isEqualTo("c.txt");
+        assertThat(ArchiveIngest.strip("a/", 1)).isNull();
+        assertThat(ArchiveIngest.strip("c.txt", 1)).isNull();
+    }
+
+    private void extract(byte[] archive, ArchiveIngest.Format format, ArchiveIngest.ConflictPolicy policy,
+                         int stripComponents, int bufferedEntrySize) throws Exception {
+        new ArchiveIngest(fileService, executor, 2, bufferedEntrySize)
+                .extract(BUCKET, format, new ByteArrayInputStream(archive), policy, stripComponents, results::add);
+    }
+
+    private Map<String, BatchResult> byName() {
+        return results.stream().collect(Collectors.toMap(BatchResult::getName, Function.identity()));
+    }
+
+    private void upload(String filename, String content) throws Exception {
+        fileService.upload(FileId.from(BUCKET.getId(), filename), new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private String content(String filename) throws IOException {
+        return new String(Files.readAllBytes(fileSystem.getPath("/filestore", BUCKET.getId(), filename)), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Build a tar archive of regular files (and directories for names ending with a slash)
+     * @param namesAndContents name and content of each entry
+     */
+    public static byte[] tar(String... namesAndContents) throws IOException {
+        ByteArrayOutputStream tar = new ByteArrayOutputStream();
+        try (TarOutputStream out = new TarOutputStream(tar)) {
+            for (int i = 0; i < namesAndContents.length; i += 2) {
+                String name = namesAndContents[i];
+                byte[] data = namesAndContents[i + 1].getBytes(StandardCharsets.UTF_8);
+                out.putNextEntry(new TarEntry(name, data.length, name.endsWith("/") ? TarEntry.DIRECTORY : TarEntry.FILE,
+                        System.currentTimeMillis()));
+                out.write(data);
+            }
+        }
+        return tar.toByteArray();
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}
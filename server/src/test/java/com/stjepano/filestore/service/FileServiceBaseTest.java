@@ -1,6 +1,7 @@
 package com.stjepano.filestore.service;
 
 import com.stjepano.filestore.common.FileInfo;
+import com.stjepano.filestore.common.FilePage;
 import org.assertj.core.api.Assertions;
 import org.assertj.core.api.Condition;
 import org.junit.Assert;
@@ -12,6 +13,9 @@ import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.time.LocalDateTime;
 import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Base test class for {@link FileService}.
@@ -147,6 +151,90 @@ public abstract class FileServiceBaseTest {
         fileService.getFiles(BucketId.from("bucket_does_not_exist"));
     }
 
+    @Test
+    public void streamFiles() throws Exception {
+        createSomeBuckets("bucket");
+        createSomeFiles("bucket", new String[][] {
+                {"fileB.txt", "bbb"},
+                {"fileA.txt", "a"},
+                {"fileC.txt", "cc"}
+        });
+
+        try (Stream<FileInfo> files = fileService.streamFiles(BucketId.from("bucket"))) {
+            Assertions.assertThat(files.collect(Collectors.toList()))
+                    .extracting(FileInfo::getName, FileInfo::getSize)
+                    .containsExactlyInAnyOrder(
+                            Assertions.tuple("fileA.txt", 1L),
+                            Assertions.tuple("fileB.txt", 3L),
+                            Assertions.tuple("fileC.txt", 2L));
+        }
+    }
+
+    @Test(expected = BucketDoesNotExistException.class)
+    public void streamFilesForNonExistingBucket() throws Exception {
+        createSomeBuckets("bucket");
+
+        fileService.streamFiles(BucketId.from("bucket_does_not_exist"));
+    }
+
+    @Test
+    public void getFilesPage() throws Exception {
+        createSomeBuckets("bucket");
+        createSomeFiles("bucket", new String[][] {
+                {"img-3.png", "3"},
+                {"doc-1.txt", "1"},
+                {"img-1.png", "1"},
+                {"img-2.png", "2"},
+                {"zzz.txt", "z"}
+        });
+
+        FilePage page = fileService.getFiles(BucketId.from("bucket"), null, null, 2);
+        Assertions.assertThat(page.getFiles()).extracting(FileInfo::getName).containsExactly("doc-1.txt", "img-1.png");
+        Assertions.assertThat(page.getNextStartAfter()).isEqualTo("img-1.png");
+
+        page = fileService.getFiles(BucketId.from("bucket"), null, page.getNextStartAfter(), 2);
+        Assertions.assertThat(page.getFiles()).extracting(FileInfo::getName).containsExactly("img-2.png", "img-3.png");
+        Assertions.assertThat(page.getNextStartAfter()).isEqualTo("img-3.png");
+
+        page = fileService.getFiles(BucketId.from("bucket"), null, page.getNextStartAfter(), 2);
+        Assertions.assertThat(page.getFiles()).extracting(FileInfo::getName).containsExactly("zzz.txt");
+        Assertions.assertThat(page.getNextStartAfter()).isNull();
+    }
+
+    @Test
+    public void getFilesPageWithPrefix() throws Exception {
+        createSomeBuckets("bucket");
+        createSomeFiles("bucket", new String[][] {
+                {"img-3.png", "3"},
+                {"doc-1.txt", "1"},
+                {"img-1.png", "1"},
+                {"img-2.png", "2"},
+                {"zzz.txt", "z"}
+        });
+
+        FilePage page = fileService.getFiles(BucketId.from("bucket"), "img-", null, 2);
+        Assertions.assertThat(page.getFiles()).extracting(FileInfo::getName).containsExactly("img-1.png", "img-2.png");
+        Assertions.assertThat(page.getNextStartAfter()).isEqualTo("img-2.png");
+
+        page = fileService.getFiles(BucketId.from("bucket"), "img-", page.getNextStartAfter(), 2);
+        Assertions.assertThat(page.getFiles()).extracting(FileInfo::getName).containsExactly("img-3.png");
+        Assertions.assertThat(page.getNextStartAfter()).isNull();
+
+        page = fileService.getFiles(BucketId.from("bucket"), "img-", "a", 10);
+        Assertions.assertThat(page.getFiles()).extracting(FileInfo::getName).containsExactly("img-1.png", "img-2.png", "img-3.png");
+
+        page = fileService.getFiles(BucketId.from("bucket"), "none", null, 10);
+        Assertions.assertThat(page.getFiles()).isEmpty();
+        Assertions.assertThat(page.getNextStartAfter()).isNull();
+    }
+
+    @Test(expected = BucketDoesNotExistException.class)
+    public void getFilesPageForNonExistingBucket() throws Exception {
+        createSomeBuckets("bucket");
+
+        fileService.getFiles(BucketId.from("bucket_does_not_exist"), null, null, 10);
+    }
+
     @Test
     public void deleteFile() throws Exception {
         createSomeBuckets("bucket");
@@ -209,6 +297,21 @@ public abstract class FileServiceBaseTest {
 
     }
 
+    @Test
+    public void uploadLargeFile() throws Exception {
+        createSomeBuckets("bucket");
+
+        byte[] data = new byte[1024 * 1024 + 123];
+        new Random(42).nextBytes(data);
+        fileService.upload(FileId.from("bucket", "file.dat"), new ByteArrayInputStream(data));
+
+        List<FileInfo> fileInfoList = fileService.getFiles(BucketId.from("bucket"));
+        Assertions.assertThat(fileInfoList)
+                .hasSize(1);
+        Assertions.assertThat(fileInfoList.get(0).getSize())
+                .isEqualTo(data.length);
+    }
+
     @Test(expected = BucketDoesNotExistException.class)
     public void uploadFileWithBucketDoesNotExist() throws Exception {
         Assertions.assertThat(fileService.getBuckets())
@@ -282,6 +385,34 @@ public abstract class FileServiceBaseTest {
     }
 
 
+    @Test
+    public void getFileInfo() throws Exception {
+        createSomeBuckets("bucket");
+        createSomeFiles("bucket", new String[][] {
+                new String[] {"file.txt", "abcd"}
+        });
+
+        FileInfo fileInfo = fileService.getFileInfo(FileId.from("bucket", "file.txt"));
+        Assertions.assertThat(fileInfo.getName())
+                .isEqualTo("file.txt");
+        Assertions.assertThat(fileInfo.getSize())
+                .isEqualTo("abcd".getBytes().length);
+        Assertions.assertThat(fileInfo.getLastModified())
+                .isNotNull();
+    }
+
+    @Test(expected = BucketDoesNotExistException.class)
+    public void getFileInfoWithNonExistingBucket() throws Exception {
+        fileService.getFileInfo(FileId.from("bucket", "file.txt"));
+    }
+
+    @Test(expected = FileDoesNotExistException.class)
+    public void getFileInfoWithFileDoesNotExist() throws Exception {
+        createSomeBuckets("bucket");
+
+        fileService.getFileInfo(FileId.from("bucket", "file.txt"));
+    }
+
     @Test
     public void download() throws Exception {
         createSomeBuckets("bucket");
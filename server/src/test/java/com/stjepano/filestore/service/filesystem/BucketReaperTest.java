@@ -0,0 +1,114 @@
+package com.stjepano.filestore.service.filesystem;
+
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import com.stjepano.filestore.service.BucketId;
+import org.assertj.core.api.Assertions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+/**
+ * Test for {@link BucketReaper}
+ */
+public class BucketReaperTest {
+
+    private FileSystem fileSystem;
+
+    private BucketReaper bucketReaper;
+
+    @Before
+    public void setUp() throws Exception {
+        fileSystem = Jimfs.newFileSystem(Configuration.unix());
+        Files.createDirectories(fileSystem.getPath("/filestore"));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (bucketReaper != null) {
+            bucketReaper.stop();
+        }
+        fileSystem.close();
+    }
+
+    @Test
+    public void trashedBucketIsDeleted() throws Exception {
+        // more files than one batch, some of them in shard directories
+        Path bucket = createBucket("bucket", BucketReaper.BATCH_SIZE * 2 + 500);
+        Path shard = Files.createDirectories(bucket.resolve("ab").resolve("cd"));
+        Files.write(shard.resolve("sharded.txt"), "sharded".getBytes());
+        bucketReaper = new BucketReaper("/filestore/.trash", fileSystem, 3, 0);
+        bucketReaper.start();
+
+        Assertions.assertThat(bucketReaper.trash(BucketId.from("bucket"), bucket)).isTrue();
+        Assertions.assertThat(Files.exists(bucket)).isFalse();
+
+        Assertions.assertThat(bucketReaper.awaitEmpty(10000)).isTrue();
+        assertTrashIsEmpty();
+        Assertions.assertThat(bucketReaper.getDeletedFiles()).isEqualTo(BucketReaper.BATCH_SIZE * 2 + 501);
+        Assertions.assertThat(bucketReaper.getDeletedBytes()).isEqualTo((BucketReaper.BATCH_SIZE * 2 + 500) * 4 + 7);
+        Assertions.assertThat(bucketReaper.getReaped()).isEqualTo(1);
+        Assertions.assertThat(bucketReaper.getFailures()).isEqualTo(0);
+    }
+
+    @Test
+    public void trashLeftByRestartIsDeletedOnStart() throws Exception {
+        Path trashed = createBucket(".trash/bucket-1234", 10);
+        createBucket(".trash/other-5678", 10);
+        bucketReaper = new BucketReaper("/filestore/.trash", fileSystem, 1, 0);
+
+        bucketReaper.start();
+
+        Assertions.assertThat(bucketReaper.awaitEmpty(5000)).isTrue();
+        Assertions.assertThat(Files.exists(trashed)).isFalse();
+        assertTrashIsEmpty();
+        Assertions.assertThat(bucketReaper.getReaped()).isEqualTo(2);
+        Assertions.assertThat(bucketReaper.getDeletedFiles()).isEqualTo(20);
+    }
+
+    @Test
+    public void deletesAreThrottled() throws Exception {
+        Path bucket = createBucket("bucket", 30);
+        bucketReaper = new BucketReaper("/filestore/.trash", fileSystem, 4, 100);
+        bucketReaper.start();
+
+        final long start = System.nanoTime();
+        bucketReaper.trash(BucketId.from("bucket"), bucket);
+        Assertions.assertThat(bucketReaper.getPending()).isEqualTo(1);
+        Assertions.assertThat(bucketReaper.awaitEmpty(5000)).isTrue();
+
+        // 30 deletes at 100 per second take at least 290ms whatever the number of workers
+        Assertions.assertThat(System.nanoTime() - start).isGreaterThanOrEqualTo(290_000_000L);
+        Assertions.assertThat(bucketReaper.getDeletedFiles()).isEqualTo(30);
+    }
+
+    @Test
+    public void bucketsWithSameNameAreTrashedSeparately() throws Exception {
+        bucketReaper = new BucketReaper("/filestore/.trash", fileSystem, 1, 1);
+        bucketReaper.start();
+
+        bucketReaper.trash(BucketId.from("bucket"), createBucket("bucket", 3));
+        bucketReaper.trash(BucketId.from("bucket"), createBucket("bucket", 3));
+
+        Assertions.assertThat(bucketReaper.getPending()).isEqualTo(2);
+    }
+
+    private Path createBucket(String name, int files) throws Exception {
+        Path bucket = Files.createDirectories(fileSystem.getPath("/filestore").resolve(name));
+        for (int i = 0; i < files; i++) {
+            Files.write(bucket.resolve(String.format("f%04d", i)), "data".getBytes());
+        }
+        return bucket;
+    }
+
+    private void assertTrashIsEmpty() throws Exception {
+        try (Stream<Path> trashed = Files.list(fileSystem.getPath("/filestore/.trash"))) {
+            Assertions.assertThat(trashed).isEmpty();
+        }
+    }
+}
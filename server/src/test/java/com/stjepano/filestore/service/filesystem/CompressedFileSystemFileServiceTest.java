@@ -0,0 +1,176 @@
+package com.stjepano.filestore.service.filesystem;
+
+import com.stjepano.filestore.common.FileInfo;
+import com.stjepano.filestore.service.BucketId;
+import com.stjepano.filestore.service.CompressedResource;
+import com.stjepano.filestore.service.FileId;
+import com.stjepano.filestore.service.FileService;
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.springframework.core.io.PathResource;
+import org.springframework.core.io.Resource;
+import org.springframework.util.StreamUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Test for {@link FileSystemFileService} with {@link GzipCompression} of bucketA
+ */
+public class CompressedFileSystemFileServiceTest extends FileSystemFileServiceTest {
+
+    private static final String TEXT = "compressible text, compressible text, compressible text, compressible text";
+
+    private FileSystemFileService fileService;
+    private GzipCompression compression;
+
+    @Override
+    protected FileService createFileService() {
+        fileService = (FileSystemFileService) super.createFileService();
+        compression = new GzipCompression(fileSystem.getPath(CONTENT_DIR),
+                Collections.singletonList(BucketId.from("bucketA")),
+                Arrays.asList("text/*", "application/json"));
+        fileService.setCompression(compression);
+        return fileService;
+    }
+
+    private Path path(String bucket, String name) {
+        return fileSystem.getPath(CONTENT_DIR, bucket, name);
+    }
+
+    private void upload(String bucket, String name, String content) throws Exception {
+        fileService.upload(FileId.from(bucket, name), new ByteArrayInputStream(content.getBytes()));
+    }
+
+    private void serveFromFileSystem() {
+        Mockito.when(resourceLoader.getResource(Matchers.anyString()))
+                .thenAnswer(invocation -> new PathResource(fileSystem.getPath(invocation.getArgumentAt(0, String.class))));
+    }
+
+    private byte[] decoded(String bucket, String name) throws Exception {
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(path(bucket, name)))) {
+            return StreamUtils.copyToByteArray(in);
+        }
+    }
+
+    @Override
+    @Test
+    public void failedUploadLeavesNothingBehind() throws Exception {
+        createSomeBuckets("bucketA");
+        FileId fileId = FileId.from("bucketA", "file.txt");
+
+        Assertions.assertThatThrownBy(() -> fileService.upload(fileId, failingStream("partial")))
+                .isInstanceOf(RuntimeException.class);
+        try (Stream<Path> files = Files.list(fileSystem.getPath(CONTENT_DIR, "bucketA"))) {
+            Assertions.assertThat(files).isEmpty();
+        }
+
+        upload("bucketA", "file.txt", "complete");
+        Assertions.assertThat(decoded("bucketA", "file.txt")).isEqualTo("complete".getBytes());
+    }
+
+    @Test
+    public void compressibleFilesOfCompressedBucketsAreStoredCompressed() throws Exception {
+        createSomeBuckets("bucketA", "bucketB");
+        upload("bucketA", "a.txt", TEXT);
+        upload("bucketA", "b.png", TEXT);
+        upload("bucketB", "c.txt", TEXT);
+
+        Assertions.assertThat(decoded("bucketA", "a.txt")).isEqualTo(TEXT.getBytes());
+        Assertions.assertThat(Files.size(path("bucketA", "a.txt"))).isLessThan(TEXT.length());
+        Assertions.assertThat(compression.decodedSize(path("bucketA", "a.txt"))).isEqualTo(TEXT.length());
+        Assertions.assertThat(Files.readAllBytes(path("bucketA", "b.png"))).isEqualTo(TEXT.getBytes());
+        Assertions.assertThat(Files.readAllBytes(path("bucketB", "c.txt"))).isEqualTo(TEXT.getBytes());
+        Assertions.assertThat(compression.getCompressedFiles()).isEqualTo(1);
+        Assertions.assertThat(compression.getDecodedBytes()).isEqualTo(TEXT.length());
+        Assertions.assertThat(compression.getEncodedBytes()).isEqualTo(Files.size(path("bucketA", "a.txt")));
+    }
+
+    @Test
+    public void listingsShowOriginalSize() throws Exception {
+        createSomeBuckets("bucketA");
+        upload("bucketA", "a.txt", TEXT);
+
+        Assertions.assertThat(fileService.getFiles(BucketId.from("bucketA")))
+                .extracting(FileInfo::getSize)
+                .containsExactly((long) TEXT.length());
+        Assertions.assertThat(fileService.getFiles(BucketId.from("bucketA"), null, null, 10).getFiles())
+                .extracting(FileInfo::getSize)
+                .containsExactly((long) TEXT.length());
+
+        fileService.setFileInfoCache(new FileInfoCache(10));
+        Assertions.assertThat(fileService.getFiles(BucketId.from("bucketA")))
+                .extracting(FileInfo::getSize)
+                .containsExactly(Files.size(path("bucketA", "a.txt")));
+        final FileInfoCache fileInfoCache = new FileInfoCache(10);
+        fileInfoCache.setCompression(compression);
+        fileService.setFileInfoCache(fileInfoCache);
+        Assertions.assertThat(fileService.getFiles(BucketId.from("bucketA")))
+                .extracting(FileInfo::getSize)
+                .containsExactly((long) TEXT.length());
+    }
+
+    @Test
+    public void downloadOfCompressedFile() throws Exception {
+        createSomeBuckets("bucketA");
+        upload("bucketA", "a.txt", TEXT);
+        upload("bucketA", "b.png", TEXT);
+        serveFromFileSystem();
+
+        final Resource compressed = fileService.download(FileId.from("bucketA", "a.txt"));
+        Assertions.assertThat(compressed).isInstanceOf(CompressedResource.class);
+        Assertions.assertThat(compressed.contentLength()).isEqualTo(TEXT.length());
+        Assertions.assertThat(compressed.getFilename()).isEqualTo("a.txt");
+        try (InputStream in = compressed.getInputStream()) {
+            Assertions.assertThat(StreamUtils.copyToByteArray(in)).isEqualTo(TEXT.getBytes());
+        }
+        final Resource encoded = ((CompressedResource) compressed).getEncodedResource();
+        Assertions.assertThat(((CompressedResource) compressed).getContentEncoding()).isEqualTo("gzip");
+        try (InputStream in = encoded.getInputStream()) {
+            Assertions.assertThat(StreamUtils.copyToByteArray(in)).isEqualTo(Files.readAllBytes(path("bucketA", "a.txt")));
+        }
+
+        Assertions.assertThat(fileService.download(FileId.from("bucketA", "b.png"))).isNotInstanceOf(CompressedResource.class);
+    }
+
+    @Test
+    public void overwriteKeepsEncodingOfNewContent() throws Exception {
+        createSomeBuckets("bucketA");
+        createSomeFiles("bucketA", new String[][]{{"a.txt", "stored before compression"}});
+        Assertions.assertThat(compression.decodedSize(path("bucketA", "a.txt"))).isEqualTo(-1);
+
+        fileService.overwrite(FileId.from("bucketA", "a.txt"), new ByteArrayInputStream(TEXT.getBytes()));
+        Assertions.assertThat(compression.decodedSize(path("bucketA", "a.txt"))).isEqualTo(TEXT.length());
+
+        fileService.setCompression(new GzipCompression(fileSystem.getPath(CONTENT_DIR), Collections.emptyList(), Collections.emptyList()));
+        fileService.overwrite(FileId.from("bucketA", "a.txt"), new ByteArrayInputStream("plain".getBytes()));
+        Assertions.assertThat(Files.readAllBytes(path("bucketA", "a.txt"))).isEqualTo("plain".getBytes());
+        Assertions.assertThat(compression.decodedSize(path("bucketA", "a.txt"))).isEqualTo(-1);
+    }
+
+    @Test
+    public void compressedAndPlainFilesDoNotShareBlobs() throws Exception {
+        final ContentAddressedBlobStore blobStore = new ContentAddressedBlobStore("/blobs", fileSystem);
+        blobStore.load();
+        fileService.setBlobStore(blobStore);
+        createSomeBuckets("bucketA", "bucketB");
+
+        upload("bucketA", "a.txt", TEXT);
+        upload("bucketA", "b.txt", TEXT);
+        upload("bucketB", "c.txt", TEXT);
+
+        Assertions.assertThat(blobStore.getBlobs()).isEqualTo(2);
+        Assertions.assertThat(blobStore.getDeduplicated()).isEqualTo(1);
+        Assertions.assertThat(compression.decodedSize(path("bucketA", "b.txt"))).isEqualTo(TEXT.length());
+        Assertions.assertThat(compression.decodedSize(path("bucketB", "c.txt"))).isEqualTo(-1);
+        Assertions.assertThat(Files.readAllBytes(path("bucketB", "c.txt"))).isEqualTo(TEXT.getBytes());
+    }
+}
@@ -0,0 +1,49 @@
+package com.stjepano.filestore.service.filesystem;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Test for {@link Crc32c}
+ */
+public class Crc32cTest {
+
+    @Test
+    public void checkValue() {
+        Crc32c crc32c = new Crc32c();
+        crc32c.update("123456789".getBytes(StandardCharsets.US_ASCII), 0, 9);
+        assertThat(crc32c.getValue()).isEqualTo(0xe3069283L);
+
+        crc32c.reset();
+        assertThat(crc32c.getValue()).isEqualTo(0L);
+    }
+
+    @Test
+    public void sameValueForAnyChunking() {
+        byte[] data = new byte[100_003];
+        new Random(42).nextBytes(data);
+        Crc32c whole = new Crc32c();
+        whole.update(data, 0, data.length);
+
+        Crc32c bytes = new Crc32c();
+        for (byte b : data) {
+            bytes.update(b);
+        }
+        assertThat(bytes.getValue()).isEqualTo(whole.getValue());
+
+        Crc32c buffers = new Crc32c();
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data).flip();
+        for (int position = 0; position < data.length; position += 12_345) {
+            direct.limit(Math.min(data.length, position + 12_345)).position(position);
+            buffers.update(direct);
+            assertThat(direct.hasRemaining()).isFalse();
+        }
+        assertThat(buffers.getValue()).isEqualTo(whole.getValue());
+    }
+}
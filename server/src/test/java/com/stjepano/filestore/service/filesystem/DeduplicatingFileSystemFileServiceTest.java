@@ -0,0 +1,119 @@
+package com.stjepano.filestore.service.filesystem;
+
+import com.stjepano.filestore.common.FileInfo;
+import com.stjepano.filestore.service.BucketId;
+import com.stjepano.filestore.service.FileId;
+import com.stjepano.filestore.service.FileService;
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test for {@link FileSystemFileService} backed by a {@link ContentAddressedBlobStore}
+ */
+public class DeduplicatingFileSystemFileServiceTest extends FileSystemFileServiceTest {
+
+    private FileSystemFileService fileService;
+
+    private ContentAddressedBlobStore blobStore;
+
+    @Override
+    protected FileService createFileService() {
+        fileService = (FileSystemFileService) super.createFileService();
+        blobStore = new ContentAddressedBlobStore(CONTENT_DIR + "/.blobs", fileSystem);
+        blobStore.load();
+        fileService.setBlobStore(blobStore);
+        return fileService;
+    }
+
+    private Path file(String bucket, String name) {
+        return fileSystem.getPath(CONTENT_DIR, bucket, name);
+    }
+
+    private void upload(String bucket, String name, String content) throws Exception {
+        fileService.upload(FileId.from(bucket, name), new ByteArrayInputStream(content.getBytes()));
+    }
+
+    @Test
+    public void identicalFilesShareOneBlob() throws Exception {
+        createSomeBuckets("bucketA", "bucketB");
+
+        upload("bucketA", "a.txt", "same content");
+        upload("bucketB", "b.txt", "same content");
+        upload("bucketB", "c.txt", "other content");
+
+        Assertions.assertThat(blobStore.getBlobs()).isEqualTo(2);
+        Assertions.assertThat(blobStore.getDeduplicated()).isEqualTo(1);
+        Assertions.assertThat(blobStore.getDeduplicatedBytes()).isEqualTo("same content".length());
+        Assertions.assertThat(Files.isSameFile(file("bucketA", "a.txt"), file("bucketB", "b.txt"))).isTrue();
+        Assertions.assertThat(Files.readAllBytes(file("bucketB", "b.txt"))).isEqualTo("same content".getBytes());
+        Assertions.assertThat(fileService.getBuckets()).containsExactly("bucketA", "bucketB");
+    }
+
+    @Test
+    public void blobIsDeletedWithLastReference() throws Exception {
+        createSomeBuckets("bucketA", "bucketB");
+        upload("bucketA", "a.txt", "same content");
+        upload("bucketB", "b.txt", "same content");
+
+        fileService.deleteFile(FileId.from("bucketA", "a.txt"));
+        Assertions.assertThat(blobStore.getBlobs()).isEqualTo(1);
+        Assertions.assertThat(Files.readAllBytes(file("bucketB", "b.txt"))).isEqualTo("same content".getBytes());
+
+        fileService.deleteBucket(BucketId.from("bucketB"));
+        Assertions.assertThat(blobStore.getBlobs()).isEqualTo(0);
+        Assertions.assertThat(blobStore.getReclaimed()).isEqualTo(1);
+    }
+
+    @Test
+    public void overwriteReleasesOldBlob() throws Exception {
+        createSomeBuckets("bucketA");
+        upload("bucketA", "a.txt", "old content");
+        upload("bucketA", "b.txt", "new content");
+
+        fileService.overwrite(FileId.from("bucketA", "a.txt"), new ByteArrayInputStream("new content".getBytes()));
+        Assertions.assertThat(Files.readAllBytes(file("bucketA", "a.txt"))).isEqualTo("new content".getBytes());
+        Assertions.assertThat(blobStore.getBlobs()).isEqualTo(1);
+
+        // overwriting with the same content keeps the blob and leaves no temporary link behind
+        fileService.overwrite(FileId.from("bucketA", "a.txt"), new ByteArrayInputStream("new content".getBytes()));
+        Assertions.assertThat(blobStore.getBlobs()).isEqualTo(1);
+        Assertions.assertThat(fileService.sweepTempFiles()).isEqualTo(0);
+    }
+
+    @Test
+    public void uploadOfStoredContentReportsItsUploadTime() throws Exception {
+        fileService.setContentHashing(true);
+        createSomeBuckets("bucketA");
+        upload("bucketA", "a.txt", "same content");
+        final FileTime firstUpload = FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1));
+        ContentHash.touch(file("bucketA", "a.txt"), firstUpload);
+        final LocalDateTime beforeUpload = LocalDateTime.now().minusSeconds(1);
+
+        upload("bucketA", "b.txt", "same content");
+
+        final FileInfo fileInfo = fileService.getFileInfo(FileId.from("bucketA", "b.txt"));
+        Assertions.assertThat(fileInfo.getLastModified()).isAfter(beforeUpload);
+        Assertions.assertThat(fileInfo.getSha256()).isNotNull();
+        Assertions.assertThat(Files.getLastModifiedTime(file("bucketA", "a.txt"))).isGreaterThan(firstUpload);
+    }
+
+    @Test
+    public void loadDeletesUnreferencedBlobs() throws Exception {
+        createSomeBuckets("bucketA");
+        upload("bucketA", "a.txt", "content A");
+        upload("bucketA", "b.txt", "content B");
+        Files.delete(file("bucketA", "a.txt"));
+
+        ContentAddressedBlobStore reloaded = new ContentAddressedBlobStore(CONTENT_DIR + "/.blobs", fileSystem);
+        reloaded.load();
+
+        Assertions.assertThat(reloaded.getBlobs()).isEqualTo(1);
+    }
+}
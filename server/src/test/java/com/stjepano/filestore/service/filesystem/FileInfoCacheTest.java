@@ -0,0 +1,96 @@
+package com.stjepano.filestore.service.filesystem;
+
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import com.stjepano.filestore.common.FileInfo;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Test for {@link FileInfoCache}
+ */
+public class FileInfoCacheTest {
+
+    private FileSystem fileSystem;
+    private Path directory;
+    private FileInfoCache fileInfoCache;
+
+    @Before
+    public void setUp() throws Exception {
+        fileSystem = Jimfs.newFileSystem(Configuration.unix());
+        directory = fileSystem.getPath("/bucket");
+        Files.createDirectory(directory);
+        fileInfoCache = new FileInfoCache(2);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        fileSystem.close();
+    }
+
+    @Test
+    public void cachesAttributesUntilInvalidated() throws Exception {
+        Path file = directory.resolve("file.txt");
+        Files.write(file, "abc".getBytes());
+
+        FileInfo fileInfo = fileInfoCache.fileInfo(file);
+        assertThat(fileInfo.getName()).isEqualTo("file.txt");
+        assertThat(fileInfo.getSize()).isEqualTo(3);
+        assertThat(fileInfoCache.getAttributeMisses()).isEqualTo(1);
+
+        Files.write(file, "abcdef".getBytes());
+        assertThat(fileInfoCache.fileInfo(file).getSize()).isEqualTo(3);
+        assertThat(fileInfoCache.getAttributeHits()).isEqualTo(1);
+
+        fileInfoCache.invalidate(file);
+        assertThat(fileInfoCache.fileInfo(file).getSize()).isEqualTo(6);
+        assertThat(fileInfoCache.getAttributeMisses()).isEqualTo(2);
+    }
+
+    @Test
+    public void matchesFileInfoFrom() throws Exception {
+        Path file = directory.resolve("image.png");
+        Files.write(file, "abc".getBytes());
+
+        FileInfo expected = FileInfo.from(file);
+        FileInfo fileInfo = fileInfoCache.fileInfo(file);
+
+        assertThat(fileInfo.getName()).isEqualTo(expected.getName());
+        assertThat(fileInfo.getSize()).isEqualTo(expected.getSize());
+        assertThat(fileInfo.getMimeType()).isEqualTo(expected.getMimeType());
+        assertThat(fileInfo.getDateCreated()).isEqualTo(expected.getDateCreated());
+    }
+
+    @Test
+    public void cachesMimeTypes() throws Exception {
+        Path file = directory.resolve("file");
+        Files.write(file, "abc".getBytes());
+
+        fileInfoCache.fileInfo(file);
+        fileInfoCache.invalidate(file);
+        fileInfoCache.fileInfo(file);
+
+        assertThat(fileInfoCache.getMimeTypeMisses()).isEqualTo(1);
+        assertThat(fileInfoCache.getMimeTypeHits()).isEqualTo(1);
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedAndInvalidatesDirectory() throws Exception {
+        for (String name : new String[] {"a.txt", "b.txt", "c.txt"}) {
+            Path file = directory.resolve(name);
+            Files.write(file, name.getBytes());
+            fileInfoCache.fileInfo(file);
+        }
+        assertThat(fileInfoCache.getAttributeCacheSize()).isEqualTo(2);
+
+        fileInfoCache.invalidateAll(directory);
+        assertThat(fileInfoCache.getAttributeCacheSize()).isEqualTo(0);
+    }
+}
@@ -4,7 +4,17 @@ import com.google.common.jimfs.Configuration;
 import com.google.common.jimfs.Jimfs;
 import com.stjepano.filestore.service.FileService;
 import com.stjepano.filestore.service.FileServiceBaseTest;
+import com.stjepano.filestore.service.ObjectStoreException;
+import com.stjepano.filestore.common.FileInfo;
+import com.stjepano.filestore.service.BucketDoesNotExistException;
+import com.stjepano.filestore.service.BucketId;
+import com.stjepano.filestore.service.ContentDigestMismatchException;
+import com.stjepano.filestore.service.ExpectedDigests;
+import com.stjepano.filestore.service.FileAlreadyExistException;
+import com.stjepano.filestore.service.FileId;
+import org.assertj.core.api.Assertions;
 import org.junit.Rule;
+import org.junit.Test;
 import org.mockito.Matchers;
 import org.mockito.Mock;
 import org.mockito.Mockito;
@@ -18,11 +28,22 @@ import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
 import java.net.URI;
 import java.net.URL;
 import java.nio.file.FileSystem;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
 
 /**
  * Test for {@link FileSystemFileService}
@@ -30,14 +51,14 @@ import java.nio.file.Path;
 @SpringBootTest
 public class FileSystemFileServiceTest extends FileServiceBaseTest {
 
-    private static final String CONTENT_DIR = "/filestore";
+    protected static final String CONTENT_DIR = "/filestore";
 
     @Mock
-    private ResourceLoader resourceLoader;
+    protected ResourceLoader resourceLoader;
 
     private FileSystemFileService fileService;
 
-    private FileSystem fileSystem;
+    protected FileSystem fileSystem;
 
     @Rule
     public MockitoRule mockitoRule = MockitoJUnit.rule();
@@ -46,7 +67,11 @@ public class FileSystemFileServiceTest extends FileServiceBaseTest {
     protected FileService createFileService() {
         try {
             final String contentDir = CONTENT_DIR;
-            fileSystem = Jimfs.newFileSystem(Configuration.unix());
+            // unix attribute view provides link counts used by content addressed storage, user attribute view stores
+            // encoding of compressed files
+            fileSystem = Jimfs.newFileSystem(Configuration.unix().toBuilder()
+                    .setAttributeViews("basic", "owner", "posix", "unix", "user")
+                    .build());
             Path rootPath = fileSystem.getPath(contentDir);
             Files.createDirectory(rootPath);
 
@@ -93,8 +118,294 @@ public class FileSystemFileServiceTest extends FileServiceBaseTest {
         }
     }
 
+    @Test
+    public void failedUploadLeavesNothingBehind() throws Exception {
+        createSomeBuckets("bucketA");
+        FileId fileId = FileId.from("bucketA", "file.txt");
 
+        Assertions.assertThatThrownBy(() -> fileService.upload(fileId, failingStream("partial")))
+                .isInstanceOf(RuntimeException.class);
+        try (Stream<Path> files = Files.list(fileSystem.getPath(CONTENT_DIR, "bucketA"))) {
+            Assertions.assertThat(files).isEmpty();
+        }
+
+        fileService.upload(fileId, new ByteArrayInputStream("complete".getBytes()));
+        Assertions.assertThat(Files.readAllBytes(fileSystem.getPath(CONTENT_DIR, "bucketA", "file.txt")))
+                .isEqualTo("complete".getBytes());
+    }
+
+    @Test
+    public void failedOverwriteKeepsOldContent() throws Exception {
+        createSomeBuckets("bucketA");
+        createSomeFiles("bucketA", new String[][]{{"file.txt", "old content"}});
+        FileId fileId = FileId.from("bucketA", "file.txt");
+
+        Assertions.assertThatThrownBy(() -> fileService.overwrite(fileId, failingStream("new")))
+                .isInstanceOf(RuntimeException.class);
+
+        try (Stream<Path> files = Files.list(fileSystem.getPath(CONTENT_DIR, "bucketA"))) {
+            Assertions.assertThat(files).hasSize(1);
+        }
+        Assertions.assertThat(Files.readAllBytes(fileSystem.getPath(CONTENT_DIR, "bucketA", "file.txt")))
+                .isEqualTo("old content".getBytes());
+    }
+
+    @Test
+    public void contentHashOfUploadedFile() throws Exception {
+        fileService.setContentHashing(true);
+        createSomeBuckets("bucketA");
+        FileId fileId = FileId.from("bucketA", "file.txt");
+
+        fileService.upload(fileId, new ByteArrayInputStream("abcd".getBytes()));
+        Assertions.assertThat(fileService.getFileInfo(fileId).getSha256())
+                .isEqualTo(sha256("abcd"));
+        Assertions.assertThat(fileService.getFileInfo(fileId).getCrc32c())
+                .isEqualTo("92c80a31");
+
+        fileService.overwrite(fileId, new ByteArrayInputStream("abcdef".getBytes()));
+        Assertions.assertThat(fileService.getFileInfo(fileId).getSha256())
+                .isEqualTo(sha256("abcdef"));
+        Assertions.assertThat(fileService.getFiles(BucketId.from("bucketA")))
+                .extracting(FileInfo::getSha256)
+                .containsExactly(sha256("abcdef"));
+    }
+
+    @Test
+    public void contentHashOfModifiedFileIsIgnored() throws Exception {
+        Path filePath = Files.write(fileSystem.getPath(CONTENT_DIR, "file.txt"), "abcd".getBytes());
+        ContentHash.write(filePath, MessageDigest.getInstance("SHA-256").digest("abcd".getBytes()), 0x92c80a31L);
+        Assertions.assertThat(ContentHash.read(filePath).getSha256())
+                .isEqualTo(sha256("abcd"));
+
+        Files.write(filePath, "changed".getBytes());
+        Files.setLastModifiedTime(filePath, FileTime.fromMillis(Files.getLastModifiedTime(filePath).toMillis() + 1000));
+        Assertions.assertThat(ContentHash.read(filePath))
+                .isNull();
+    }
+
+    @Test
+    public void uploadWithExpectedDigests() throws Exception {
+        createSomeBuckets("bucketA");
+        FileId fileId = FileId.from("bucketA", "file.txt");
+        byte[] md5 = MessageDigest.getInstance("MD5").digest("abcd".getBytes());
+        byte[] sha256 = MessageDigest.getInstance("SHA-256").digest("abcd".getBytes());
 
+        fileService.upload(fileId, new ByteArrayInputStream("abcd".getBytes()), new ExpectedDigests(md5, sha256, 0x92c80a31));
+        Assertions.assertThat(fileService.getFileInfo(fileId).getSize())
+                .isEqualTo(4);
+    }
+
+    @Test
+    public void uploadWithMismatchedDigestLeavesNothingBehind() throws Exception {
+        createSomeBuckets("bucketA");
+        FileId fileId = FileId.from("bucketA", "file.txt");
+        byte[] sha256 = MessageDigest.getInstance("SHA-256").digest("abcd".getBytes());
+
+        Assertions.assertThatThrownBy(() -> fileService.upload(fileId, new ByteArrayInputStream("abce".getBytes()),
+                new ExpectedDigests(null, sha256, null)))
+                .isInstanceOf(ContentDigestMismatchException.class);
+        Assertions.assertThatThrownBy(() -> fileService.upload(fileId, new ByteArrayInputStream("abce".getBytes()),
+                new ExpectedDigests(null, null, 0x92c80a31)))
+                .isInstanceOf(ContentDigestMismatchException.class);
+        Assertions.assertThat(fileService.getFiles(BucketId.from("bucketA")))
+                .isEmpty();
+        try (Stream<Path> files = Files.list(fileSystem.getPath(CONTENT_DIR, "bucketA"))) {
+            Assertions.assertThat(files).isEmpty();
+        }
+    }
+
+    @Test
+    public void overwriteWithMismatchedDigestKeepsOldContent() throws Exception {
+        createSomeBuckets("bucketA");
+        FileId fileId = FileId.from("bucketA", "file.txt");
+        fileService.upload(fileId, new ByteArrayInputStream("old content".getBytes()));
+        byte[] md5 = MessageDigest.getInstance("MD5").digest("new".getBytes());
+
+        Assertions.assertThatThrownBy(() -> fileService.overwrite(fileId, new ByteArrayInputStream("wrong".getBytes()),
+                new ExpectedDigests(md5, null, null)))
+                .isInstanceOf(ContentDigestMismatchException.class);
+        Assertions.assertThat(fileService.getFileInfo(fileId).getSize())
+                .isEqualTo("old content".length());
+    }
+
+    private static String sha256(String content) throws Exception {
+        return ContentAddressedBlobStore.toHex(MessageDigest.getInstance("SHA-256").digest(content.getBytes()));
+    }
+
+    @Test
+    public void sweepTempFiles() throws Exception {
+        createSomeBuckets("bucketA");
+        createSomeFiles("bucketA", new String[][]{{"file.txt", "content"}});
+        Path orphan = Files.write(fileSystem.getPath(CONTENT_DIR, "bucketA", ".filestore-upload-orphan"), "abc".getBytes());
+
+        Assertions.assertThat(fileService.getFiles(BucketId.from("bucketA")))
+                .extracting(FileInfo::getName)
+                .containsExactly("file.txt");
+        Assertions.assertThat(fileService.sweepTempFiles()).isEqualTo(1);
+        Assertions.assertThat(Files.exists(orphan)).isFalse();
+        Assertions.assertThat(Files.exists(fileSystem.getPath(CONTENT_DIR, "bucketA", "file.txt"))).isTrue();
+    }
+
+    @Test
+    public void concurrentUploadsOfSameFile() throws Exception {
+        createSomeBuckets("bucketA");
+        FileId fileId = FileId.from("bucketA", "file.txt");
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < 32; i++) {
+                final String content = "content-" + i;
+                results.add(executor.submit(() -> {
+                    try {
+                        fileService.upload(fileId, new ByteArrayInputStream(content.getBytes()));
+                        return true;
+                    } catch (FileAlreadyExistException e) {
+                        return false;
+                    }
+                }));
+            }
+            int uploaded = 0;
+            for (Future<Boolean> result : results) {
+                uploaded += result.get() ? 1 : 0;
+            }
+            Assertions.assertThat(uploaded).isEqualTo(1);
+        } finally {
+            executor.shutdown();
+        }
+        try (Stream<Path> files = Files.list(fileSystem.getPath(CONTENT_DIR, "bucketA"))) {
+            Assertions.assertThat(files).hasSize(1);
+        }
+    }
+
+    @Test
+    public void concurrentMixedOperations() throws Exception {
+        createSomeBuckets("bucketA", "bucketB");
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int i = 0; i < 400; i++) {
+                final int n = i;
+                results.add(executor.submit(() -> {
+                    final String bucket = n % 2 == 0 ? "bucketA" : "bucketB";
+                    final FileId fileId = FileId.from(bucket, "file-" + (n % 5) + ".txt");
+                    try {
+                        switch (n % 7) {
+                            case 0:
+                                fileService.deleteBucket(fileId.getBucketId());
+                                break;
+                            case 1:
+                                fileService.createBucket(fileId.getBucketId());
+                                break;
+                            case 2:
+                                fileService.deleteFile(fileId);
+                                break;
+                            case 3:
+                                fileService.overwrite(fileId, new ByteArrayInputStream("overwritten".getBytes()));
+                                break;
+                            default:
+                                fileService.upload(fileId, new ByteArrayInputStream("uploaded".getBytes()));
+                        }
+                    } catch (ObjectStoreException e) {
+                        // expected outcome of racing with other operations
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        for (String bucket : fileService.getBuckets()) {
+            try (Stream<Path> files = ShardedLayout.list(fileSystem.getPath(CONTENT_DIR, bucket))) {
+                Assertions.assertThat(files.map(path -> path.getFileName().toString()))
+                        .allMatch(FileId::isValid);
+            }
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void bucketIsDeletedWhileUploadWritesData() throws Exception {
+        createSomeBuckets("bucketA");
+        FileId fileId = FileId.from("bucketA", "file.txt");
+        CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch deleted = new CountDownLatch(1);
+        InputStream slowStream = new SequenceInputStream(new ByteArrayInputStream("partial".getBytes()), new InputStream() {
+            @Override
+            public int read() throws IOException {
+                reading.countDown();
+                try {
+                    deleted.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return -1;
+            }
+        });
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> upload = executor.submit(() -> {
+                fileService.upload(fileId, slowStream);
+                return null;
+            });
+            reading.await();
+            // upload does not lock the bucket while its data is written
+            fileService.deleteBucket(BucketId.from("bucketA"));
+            deleted.countDown();
+
+            Assertions.assertThatThrownBy(upload::get).hasCauseInstanceOf(BucketDoesNotExistException.class);
+        } finally {
+            executor.shutdown();
+        }
+        Assertions.assertThat(fileService.getBuckets()).doesNotContain("bucketA");
+    }
+
+    @Test(timeout = 30000)
+    public void bucketIsDeletedUnderSteadyUploads() throws Exception {
+        BucketId bucketId = BucketId.from("bucketA");
+        AtomicBoolean running = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> uploads = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                final int uploader = i;
+                uploads.add(executor.submit(() -> {
+                    for (int n = 0; running.get(); n++) {
+                        try {
+                            fileService.upload(FileId.from("bucketA", "file-" + uploader + "-" + n + ".txt"),
+                                    new ByteArrayInputStream("uploaded".getBytes()));
+                        } catch (BucketDoesNotExistException e) {
+                            // bucket is deleted in the meantime
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (int i = 0; i < 200; i++) {
+                fileService.createBucket(bucketId);
+                // temporary files of uploads in flight must not make the delete fail
+                fileService.deleteBucket(bucketId);
+            }
+            running.set(false);
+            for (Future<?> upload : uploads) {
+                upload.get();
+            }
+        } finally {
+            running.set(false);
+            executor.shutdown();
+        }
+        Assertions.assertThat(fileService.getBuckets()).doesNotContain("bucketA");
+    }
+
+    protected static InputStream failingStream(String content) {
+        return new SequenceInputStream(new ByteArrayInputStream(content.getBytes()), new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("connection reset");
+            }
+        });
+    }
 
     private Resource createMockResource(String filename, String fileContent) {
         Resource mockResource = new Resource() {
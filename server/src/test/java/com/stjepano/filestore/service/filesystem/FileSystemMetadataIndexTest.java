@@ -0,0 +1,112 @@
+package com.stjepano.filestore.service.filesystem;
+
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import com.google.common.jimfs.WatchServiceConfiguration;
+import com.stjepano.filestore.common.FileInfo;
+import com.stjepano.filestore.service.BucketId;
+import com.stjepano.filestore.service.FileId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Test for {@link FileSystemMetadataIndex}
+ */
+public class FileSystemMetadataIndexTest {
+
+    private static final String CONTENT_DIR = "/filestore";
+
+    private FileSystem fileSystem;
+    private Path contentDir;
+    private FileSystemMetadataIndex metadataIndex;
+
+    @Before
+    public void setUp() throws Exception {
+        fileSystem = Jimfs.newFileSystem(Configuration.unix().toBuilder()
+                .setWatchServiceConfiguration(WatchServiceConfiguration.polling(10, TimeUnit.MILLISECONDS))
+                .build());
+        contentDir = fileSystem.getPath(CONTENT_DIR);
+        Files.createDirectory(contentDir);
+        Files.createDirectory(contentDir.resolve("bucket-b"));
+        Files.createDirectory(contentDir.resolve("bucket-a"));
+        Files.createDirectory(contentDir.resolve(".hidden"));
+        Files.write(contentDir.resolve("not-a-bucket"), "abc".getBytes());
+        Files.write(contentDir.resolve("bucket-a").resolve("file2.txt"), "12345".getBytes());
+        Files.write(contentDir.resolve("bucket-a").resolve("file1.txt"), "123".getBytes());
+        Files.write(contentDir.resolve("bucket-a").resolve(".temp"), "123".getBytes());
+        Files.createDirectory(contentDir.resolve("bucket-a").resolve("directory"));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (metadataIndex != null) {
+            metadataIndex.stop();
+        }
+        fileSystem.close();
+    }
+
+    @Test
+    public void loadsBucketsAndFiles() throws Exception {
+        metadataIndex = new FileSystemMetadataIndex(CONTENT_DIR, fileSystem, false);
+        metadataIndex.start();
+
+        assertThat(metadataIndex.getBuckets()).containsExactly("bucket-a", "bucket-b");
+        assertThat(metadataIndex.getFiles(BucketId.from("bucket-a")).stream().map(FileInfo::getName).collect(Collectors.toList()))
+                .containsExactly("file1.txt", "file2.txt");
+        assertThat(metadataIndex.getFiles(BucketId.from("bucket-b"))).isEmpty();
+        assertThat(metadataIndex.getFiles(BucketId.from("bucket-c"))).isNull();
+        assertThat(metadataIndex.getFile(FileId.from("bucket-a", "file2.txt")).getSize()).isEqualTo(5);
+    }
+
+    @Test
+    public void reloadPicksUpChanges() throws Exception {
+        metadataIndex = new FileSystemMetadataIndex(CONTENT_DIR, fileSystem, false);
+        metadataIndex.start();
+
+        Files.delete(contentDir.resolve("bucket-b"));
+        Files.createDirectory(contentDir.resolve("bucket-c"));
+        Files.write(contentDir.resolve("bucket-c").resolve("file.txt"), "1".getBytes());
+
+        assertThat(metadataIndex.bucketExists(BucketId.from("bucket-b"))).isTrue();
+
+        metadataIndex.load();
+
+        assertThat(metadataIndex.getBuckets()).containsExactly("bucket-a", "bucket-c");
+        assertThat(metadataIndex.fileExists(FileId.from("bucket-c", "file.txt"))).isTrue();
+    }
+
+    @Test
+    public void watcherReconcilesOutOfBandChanges() throws Exception {
+        metadataIndex = new FileSystemMetadataIndex(CONTENT_DIR, fileSystem, true);
+        metadataIndex.start();
+
+        Files.write(contentDir.resolve("bucket-b").resolve("new.txt"), "1234".getBytes());
+        Files.delete(contentDir.resolve("bucket-a").resolve("file1.txt"));
+        Files.createDirectory(contentDir.resolve("bucket-c"));
+
+        await(() -> metadataIndex.fileExists(FileId.from("bucket-b", "new.txt")));
+        await(() -> !metadataIndex.fileExists(FileId.from("bucket-a", "file1.txt")));
+        await(() -> metadataIndex.bucketExists(BucketId.from("bucket-c")));
+
+        Files.write(contentDir.resolve("bucket-c").resolve("other.txt"), "1".getBytes());
+        await(() -> metadataIndex.fileExists(FileId.from("bucket-c", "other.txt")));
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            assertThat(System.currentTimeMillis()).as("condition not met in time").isLessThan(deadline);
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.stjepano.filestore.service.filesystem;
+
+import com.stjepano.filestore.service.FileService;
+
+/**
+ * Test for {@link FileSystemFileService} backed by a {@link FileSystemMetadataIndex}, a {@link FileInfoCache} and
+ * a {@link ReadCache}
+ */
+public class IndexedFileSystemFileServiceTest extends FileSystemFileServiceTest {
+
+    private FileSystemMetadataIndex metadataIndex;
+
+    @Override
+    protected FileService createFileService() {
+        FileSystemFileService fileService = (FileSystemFileService) super.createFileService();
+        FileInfoCache fileInfoCache = new FileInfoCache(100);
+        metadataIndex = new FileSystemMetadataIndex(CONTENT_DIR, fileSystem, false);
+        metadataIndex.setFileInfoCache(fileInfoCache);
+        metadataIndex.start();
+        fileService.setMetadataIndex(metadataIndex);
+        fileService.setFileInfoCache(fileInfoCache);
+        fileService.setReadCache(new ReadCache(1024 * 1024, 1024));
+        return fileService;
+    }
+
+    @Override
+    protected void createSomeBuckets(String... buckets) {
+        super.createSomeBuckets(buckets);
+        metadataIndex.load();
+    }
+
+    @Override
+    protected void createSomeFiles(String bucket, String[][] data) {
+        super.createSomeFiles(bucket, data);
+        metadataIndex.load();
+    }
+}
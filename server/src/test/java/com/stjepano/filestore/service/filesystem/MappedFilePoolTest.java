@@ -0,0 +1,139 @@
+package com.stjepano.filestore.service.filesystem;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.core.io.Resource;
+import org.springframework.util.StreamUtils;
+
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Test for {@link MappedFilePool}, uses default file system because in memory file systems do not support mapping.
+ */
+public class MappedFilePoolTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = temporaryFolder.newFolder("bucket").toPath();
+    }
+
+    private Path file(String name, String content) throws Exception {
+        return Files.write(directory.resolve(name), content.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static String read(Resource resource) throws Exception {
+        return StreamUtils.copyToString(resource.getInputStream(), StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void servesMappedContent() throws Exception {
+        MappedFilePool pool = new MappedFilePool(10, 1000);
+        Path file = file("file.txt", "abcdef");
+
+        Resource resource = pool.get(file);
+        assertThat(read(resource)).isEqualTo("abcdef");
+        assertThat(resource.getFilename()).isEqualTo("file.txt");
+        assertThat(resource.contentLength()).isEqualTo(6);
+        ((Closeable) resource).close();
+
+        Resource again = pool.get(file);
+        assertThat(read(again)).isEqualTo("abcdef");
+        ((Closeable) again).close();
+
+        assertThat(pool.getMisses()).isEqualTo(1);
+        assertThat(pool.getHits()).isEqualTo(1);
+        assertThat(pool.getMappings()).isEqualTo(1);
+        assertThat(pool.getMappedBytes()).isEqualTo(6);
+    }
+
+    @Test
+    public void unmapsInvalidatedFileWhenLeasesAreClosed() throws Exception {
+        MappedFilePool pool = new MappedFilePool(10, 1000);
+        Path file = file("file.txt", "abcdef");
+
+        Resource first = pool.get(file);
+        Resource second = pool.get(file);
+        pool.invalidate(file);
+        assertThat(pool.getMappings()).isEqualTo(0);
+        assertThat(pool.getMappedBytes()).isEqualTo(0);
+
+        ((Closeable) first).close();
+        ((Closeable) first).close();
+        assertThat(pool.getUnmaps()).isEqualTo(0);
+        assertThat(read(second)).isEqualTo("abcdef");
+
+        ((Closeable) second).close();
+        assertThat(pool.getUnmaps()).isEqualTo(1);
+
+        file("file.txt", "changed");
+        Resource changed = pool.get(file);
+        assertThat(read(changed)).isEqualTo("changed");
+        ((Closeable) changed).close();
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedByCount() throws Exception {
+        MappedFilePool pool = new MappedFilePool(2, 1000);
+        Path a = file("a.txt", "a");
+        Path b = file("b.txt", "b");
+        Path c = file("c.txt", "c");
+
+        ((Closeable) pool.get(a)).close();
+        ((Closeable) pool.get(b)).close();
+        ((Closeable) pool.get(a)).close();
+        ((Closeable) pool.get(c)).close();
+
+        assertThat(pool.getMappings()).isEqualTo(2);
+        assertThat(pool.getUnmaps()).isEqualTo(1);
+        ((Closeable) pool.get(a)).close();
+        assertThat(pool.getHits()).isEqualTo(2);
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedBySize() throws Exception {
+        MappedFilePool pool = new MappedFilePool(10, 10);
+        Path a = file("a.txt", "aaaa");
+        Path b = file("b.txt", "bbbb");
+        Path c = file("c.txt", "cccc");
+
+        ((Closeable) pool.get(a)).close();
+        ((Closeable) pool.get(b)).close();
+        ((Closeable) pool.get(c)).close();
+
+        assertThat(pool.getMappings()).isEqualTo(2);
+        assertThat(pool.getMappedBytes()).isEqualTo(8);
+    }
+
+    @Test
+    public void doesNotMapFilesLargerThanPool() throws Exception {
+        MappedFilePool pool = new MappedFilePool(10, 4);
+        Path file = file("file.txt", "abcdef");
+
+        assertThat(pool.get(file)).isNull();
+        assertThat(pool.getMappings()).isEqualTo(0);
+    }
+
+    @Test
+    public void invalidatesWholeDirectory() throws Exception {
+        MappedFilePool pool = new MappedFilePool(10, 1000);
+        ((Closeable) pool.get(file("a.txt", "a"))).close();
+        ((Closeable) pool.get(file("b.txt", "b"))).close();
+
+        pool.invalidateAll(directory);
+
+        assertThat(pool.getMappings()).isEqualTo(0);
+        assertThat(pool.getUnmaps()).isEqualTo(2);
+    }
+}
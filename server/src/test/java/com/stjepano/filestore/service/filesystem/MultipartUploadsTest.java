@@ -0,0 +1,330 @@
+package com.stjepano.filestore.service.filesystem;
+
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import com.stjepano.filestore.common.MultipartUpload;
+import com.stjepano.filestore.service.BucketDoesNotExistException;
+import com.stjepano.filestore.service.BucketId;
+import com.stjepano.filestore.service.ContentDigestMismatchException;
+import com.stjepano.filestore.service.ExpectedDigests;
+import com.stjepano.filestore.service.FileAlreadyExistException;
+import com.stjepano.filestore.service.FileId;
+import com.stjepano.filestore.service.InvalidUploadException;
+import com.stjepano.filestore.service.UploadDoesNotExistException;
+import org.assertj.core.api.Assertions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.core.io.PathResource;
+import org.springframework.core.io.Resource;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * Test for {@link MultipartUploads}
+ */
+public class MultipartUploadsTest {
+
+    private static final FileId FILE = FileId.from("bucket", "large.bin");
+
+    private FileSystem fileSystem;
+    private FileSystemFileService fileService;
+    private MultipartUploads multipartUploads;
+
+    @Before
+    public void setUp() throws Exception {
+        fileSystem = Jimfs.newFileSystem(Configuration.unix());
+        Files.createDirectory(fileSystem.getPath("/filestore"));
+        fileService = new FileSystemFileService("/filestore", fileSystem, new DefaultResourceLoader() {
+            @Override
+            public Resource getResource(String location) {
+                return new PathResource(fileSystem.getPath(location));
+            }
+        });
+        fileService.createBucket(BucketId.from("bucket"));
+        multipartUploads = new MultipartUploads(fileService, 10, 100);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        multipartUploads.stop();
+        fileSystem.close();
+    }
+
+    @Test
+    public void partsAreUploadedInAnyOrder() throws Exception {
+        byte[] data = data(25);
+        MultipartUpload upload = multipartUploads.initiate(FILE, 25, 10L);
+        Assertions.assertThat(upload.getPartCount()).isEqualTo(3);
+
+        uploadPart(upload, 3, data);
+        uploadPart(upload, 1, data);
+        uploadPart(upload, 2, data);
+        Assertions.assertThat(multipartUploads.getUpload(FILE, upload.getUploadId()).getUploadedParts()).containsExactly(1, 2, 3);
+        // upload in progress is not listed
+        Assertions.assertThat(fileService.getFiles(BucketId.from("bucket"))).isEmpty();
+        multipartUploads.complete(FILE, upload.getUploadId(), ExpectedDigests.NONE);
+
+        Assertions.assertThat(Files.readAllBytes(fileSystem.getPath("/filestore/bucket/large.bin"))).isEqualTo(data);
+        Assertions.assertThat(fileService.getFiles(BucketId.from("bucket"))).extracting("name").containsExactly("large.bin");
+        try (Stream<Path> files = Files.list(fileSystem.getPath("/filestore/bucket"))) {
+            Assertions.assertThat(files).hasSize(1);
+        }
+        Assertions.assertThat(multipartUploads.getCompleted()).isEqualTo(1);
+        Assertions.assertThat(multipartUploads.getUploadedBytes()).isEqualTo(25);
+    }
+
+    @Test
+    public void partsAreUploadedConcurrently() throws Exception {
+        byte[] data = data(1000);
+        MultipartUpload upload = multipartUploads.initiate(FILE, 1000, null);
+        Assertions.assertThat(upload.getPartSize()).isEqualTo(10);
+        Assertions.assertThat(upload.getPartCount()).isEqualTo(100);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> parts = new ArrayList<>();
+            for (int part = upload.getPartCount(); part >= 1; part--) {
+                final int partNumber = part;
+                parts.add(executor.submit(() -> {
+                    uploadPart(upload, partNumber, data);
+                    return null;
+                }));
+            }
+            for (Future<?> part : parts) {
+                part.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        multipartUploads.complete(FILE, upload.getUploadId(), new ExpectedDigests(null, sha256(data), null));
+
+        Assertions.assertThat(Files.readAllBytes(fileSystem.getPath("/filestore/bucket/large.bin"))).isEqualTo(data);
+    }
+
+    @Test
+    public void incompleteUploadIsNotCompleted() throws Exception {
+        byte[] data = data(25);
+        MultipartUpload upload = multipartUploads.initiate(FILE, 25, 10L);
+        uploadPart(upload, 2, data);
+
+        try {
+            multipartUploads.complete(FILE, upload.getUploadId(), ExpectedDigests.NONE);
+            Assertions.fail("Incomplete upload was completed");
+        } catch (InvalidUploadException e) {
+            // expected
+        }
+
+        // resumed with the missing parts
+        Assertions.assertThat(multipartUploads.getUpload(FILE, upload.getUploadId()).getUploadedParts()).containsExactly(2);
+        uploadPart(upload, 1, data);
+        uploadPart(upload, 3, data);
+        multipartUploads.complete(FILE, upload.getUploadId(), ExpectedDigests.NONE);
+        Assertions.assertThat(fileService.fileExists(FILE)).isTrue();
+    }
+
+    @Test
+    public void partWithWrongSizeIsRejected() throws Exception {
+        MultipartUpload upload = multipartUploads.initiate(FILE, 25, 10L);
+
+        assertPartRejected(upload, 1, new byte[9]);
+        assertPartRejected(upload, 1, new byte[11]);
+        assertPartRejected(upload, 3, new byte[10]);
+        assertPartRejected(upload, 4, new byte[5]);
+
+        Assertions.assertThat(multipartUploads.getUpload(FILE, upload.getUploadId()).getUploadedParts()).isEmpty();
+    }
+
+    @Test
+    public void partWithWrongDigestIsNotRecorded() throws Exception {
+        MultipartUpload upload = multipartUploads.initiate(FILE, 25, 10L);
+
+        try {
+            multipartUploads.uploadPart(FILE, upload.getUploadId(), 1, new ByteArrayInputStream(data(10)),
+                    new ExpectedDigests(MessageDigest.getInstance("MD5").digest(new byte[10]), null, null));
+            Assertions.fail("Corrupted part was accepted");
+        } catch (ContentDigestMismatchException e) {
+            // expected
+        }
+
+        Assertions.assertThat(multipartUploads.getUpload(FILE, upload.getUploadId()).getUploadedParts()).isEmpty();
+    }
+
+    @Test(expected = ContentDigestMismatchException.class)
+    public void completedFileIsVerified() throws Exception {
+        byte[] data = data(10);
+        MultipartUpload upload = multipartUploads.initiate(FILE, 10, null);
+        uploadPart(upload, 1, data);
+
+        multipartUploads.complete(FILE, upload.getUploadId(), new ExpectedDigests(null, sha256(new byte[10]), null));
+    }
+
+    @Test
+    public void invalidPartSizes() throws Exception {
+        assertInitiateRejected(100, 5L);
+        assertInitiateRejected(100000, 10L);
+        // a single part can be smaller than the minimal part size
+        Assertions.assertThat(multipartUploads.initiate(FILE, 5, 5L).getPartCount()).isEqualTo(1);
+    }
+
+    @Test(expected = FileAlreadyExistException.class)
+    public void existingFileIsNotUploaded() throws Exception {
+        fileService.upload(FILE, new ByteArrayInputStream(data(5)));
+
+        multipartUploads.initiate(FILE, 5, null);
+    }
+
+    @Test
+    public void fileCreatedDuringUploadIsKept() throws Exception {
+        MultipartUpload upload = multipartUploads.initiate(FILE, 5, null);
+        uploadPart(upload, 1, data(5));
+        fileService.upload(FILE, new ByteArrayInputStream("other".getBytes()));
+
+        try {
+            multipartUploads.complete(FILE, upload.getUploadId(), ExpectedDigests.NONE);
+            Assertions.fail("Existing file was replaced");
+        } catch (FileAlreadyExistException e) {
+            // expected
+        }
+
+        Assertions.assertThat(Files.readAllBytes(fileSystem.getPath("/filestore/bucket/large.bin"))).isEqualTo("other".getBytes());
+    }
+
+    @Test(timeout = 10000)
+    public void bucketIsDeletedWhilePartIsWritten() throws Exception {
+        MultipartUpload upload = multipartUploads.initiate(FILE, 25, 10L);
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch deleted = new CountDownLatch(1);
+        InputStream slowPart = new SequenceInputStream(new ByteArrayInputStream(data(10)), new InputStream() {
+            @Override
+            public int read() throws IOException {
+                writing.countDown();
+                try {
+                    deleted.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return -1;
+            }
+        });
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> part = executor.submit(() -> {
+                multipartUploads.uploadPart(FILE, upload.getUploadId(), 1, slowPart, ExpectedDigests.NONE);
+                return null;
+            });
+            writing.await();
+            // part does not lock the bucket while its data is written
+            fileService.deleteBucket(BucketId.from("bucket"));
+            deleted.countDown();
+
+            Assertions.assertThatThrownBy(part::get).hasCauseInstanceOf(BucketDoesNotExistException.class);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void abortedUploadIsDeleted() throws Exception {
+        MultipartUpload upload = multipartUploads.initiate(FILE, 25, 10L);
+        uploadPart(upload, 1, data(25));
+
+        multipartUploads.abort(FILE, upload.getUploadId());
+
+        assertUploadDoesNotExist(FILE, upload.getUploadId());
+        assertBucketIsEmpty();
+        Assertions.assertThat(multipartUploads.getAborted()).isEqualTo(1);
+    }
+
+    @Test
+    public void uploadIsFoundOnlyWithItsFile() throws Exception {
+        MultipartUpload upload = multipartUploads.initiate(FILE, 25, 10L);
+
+        assertUploadDoesNotExist(FileId.from("bucket", "other.bin"), upload.getUploadId());
+        assertUploadDoesNotExist(FILE, "../../other");
+        assertUploadDoesNotExist(FILE, upload.getUploadId().replace(upload.getUploadId().charAt(0), 'x'));
+    }
+
+    @Test
+    public void staleUploadsAreDeleted() throws Exception {
+        MultipartUpload stale = multipartUploads.initiate(FILE, 25, 10L);
+        MultipartUpload fresh = multipartUploads.initiate(FILE, 25, 10L);
+        Path stalePath = fileSystem.getPath("/filestore/bucket", MultipartUploads.UPLOAD_DIR_PREFIX + stale.getUploadId());
+        FileTime dayAgo = FileTime.fromMillis(System.currentTimeMillis() - 86400000);
+        Files.setLastModifiedTime(stalePath.resolve("data"), dayAgo);
+        Files.setLastModifiedTime(stalePath, dayAgo);
+
+        Assertions.assertThat(multipartUploads.deleteStaleUploads(3600000)).isEqualTo(1);
+
+        assertUploadDoesNotExist(FILE, stale.getUploadId());
+        Assertions.assertThat(multipartUploads.getUpload(FILE, fresh.getUploadId())).isNotNull();
+        Assertions.assertThat(multipartUploads.getExpired()).isEqualTo(1);
+    }
+
+    private void uploadPart(MultipartUpload upload, int partNumber, byte[] data) throws Exception {
+        final int offset = (int) ((partNumber - 1) * upload.getPartSize());
+        final int length = (int) Math.min(upload.getPartSize(), data.length - offset);
+        multipartUploads.uploadPart(FILE, upload.getUploadId(), partNumber,
+                new ByteArrayInputStream(data, offset, length), ExpectedDigests.NONE);
+    }
+
+    private void assertPartRejected(MultipartUpload upload, int partNumber, byte[] data) throws Exception {
+        try {
+            multipartUploads.uploadPart(FILE, upload.getUploadId(), partNumber, new ByteArrayInputStream(data), ExpectedDigests.NONE);
+            Assertions.fail("Part %d of %d bytes was accepted", partNumber, data.length);
+        } catch (InvalidUploadException e) {
+            // expected
+        }
+    }
+
+    private void assertInitiateRejected(long size, Long partSize) throws Exception {
+        try {
+            multipartUploads.initiate(FILE, size, partSize);
+            Assertions.fail("Upload of %d bytes with parts of %d bytes was accepted", size, partSize);
+        } catch (InvalidUploadException e) {
+            // expected
+        }
+    }
+
+    private void assertUploadDoesNotExist(FileId fileId, String uploadId) throws Exception {
+        try {
+            multipartUploads.getUpload(fileId, uploadId);
+            Assertions.fail("Upload '%s' exists", uploadId);
+        } catch (UploadDoesNotExistException e) {
+            // expected
+        }
+    }
+
+    private void assertBucketIsEmpty() throws Exception {
+        try (Stream<Path> files = Files.list(fileSystem.getPath("/filestore/bucket"))) {
+            Assertions.assertThat(files).isEmpty();
+        }
+    }
+
+    private static byte[] data(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] sha256(byte[] data) throws Exception {
+        return MessageDigest.getInstance("SHA-256").digest(data);
+    }
+}
@@ -0,0 +1,358 @@
+package com.stjepano.filestore.service.filesystem;
+
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import com.stjepano.filestore.common.FileInfo;
+import com.stjepano.filestore.common.FilePage;
+import com.stjepano.filestore.service.BucketDoesNotExistException;
+import com.stjepano.filestore.service.BucketId;
+import com.stjepano.filestore.service.ContentDigestMismatchException;
+import com.stjepano.filestore.service.ExpectedDigests;
+import com.stjepano.filestore.service.FileDoesNotExistException;
+import com.stjepano.filestore.service.FileId;
+import com.stjepano.filestore.service.FileService;
+import com.stjepano.filestore.service.FileServiceBaseTest;
+import org.assertj.core.api.Assertions;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+import org.springframework.core.io.ResourceLoader;
+import org.springframework.util.StreamUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Test for {@link PackedFileService} and {@link SegmentLog}
+ */
+public class PackedFileServiceTest extends FileServiceBaseTest {
+
+    private static final String CONTENT_DIR = "/filestore";
+
+    private static final String SEGMENTS_DIR = CONTENT_DIR + "/.segments";
+
+    private static final int MAX_PACKED_SIZE = 16;
+
+    private static final int SEGMENT_SIZE = 256;
+
+    @Mock
+    private ResourceLoader resourceLoader;
+
+    @Rule
+    public MockitoRule mockitoRule = MockitoJUnit.rule();
+
+    private FileSystem fileSystem;
+
+    private SegmentLog segmentLog;
+
+    private PackedFileService fileService;
+
+    @Override
+    protected FileService createFileService() {
+        try {
+            fileSystem = Jimfs.newFileSystem(Configuration.unix());
+            Files.createDirectory(fileSystem.getPath(CONTENT_DIR));
+            return reopen();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        segmentLog.close();
+    }
+
+    /**
+     * Create services over current content as if the application was restarted.
+     */
+    private PackedFileService reopen() throws IOException {
+        if (segmentLog != null) {
+            segmentLog.close();
+        }
+        segmentLog = new SegmentLog(SEGMENTS_DIR, fileSystem, SEGMENT_SIZE);
+        segmentLog.open();
+        fileService = new PackedFileService(new FileSystemFileService(CONTENT_DIR, fileSystem, resourceLoader), segmentLog, MAX_PACKED_SIZE);
+        return fileService;
+    }
+
+    @Override
+    protected void createSomeBuckets(String... buckets) {
+        try {
+            for (String bucket : buckets) {
+                fileService.createBucket(BucketId.from(bucket));
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    protected void createSomeFiles(String bucket, String[][] data) {
+        try {
+            for (String[] fileData : data) {
+                upload(bucket, fileData[0], fileData[1]);
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void upload(String bucket, String name, String content) throws Exception {
+        fileService.upload(FileId.from(bucket, name), new ByteArrayInputStream(content.getBytes()));
+    }
+
+    private void overwrite(String bucket, String name, String content) throws Exception {
+        fileService.overwrite(FileId.from(bucket, name), new ByteArrayInputStream(content.getBytes()));
+    }
+
+    private String download(String bucket, String name) throws Exception {
+        if (plainFileExists(bucket, name)) {
+            // resource loader is a mock, plain files are read directly
+            return new String(Files.readAllBytes(fileSystem.getPath(CONTENT_DIR, bucket, name)));
+        }
+        return new String(StreamUtils.copyToByteArray(fileService.download(FileId.from(bucket, name)).getInputStream()));
+    }
+
+    private boolean plainFileExists(String bucket, String name) {
+        return Files.exists(fileSystem.getPath(CONTENT_DIR, bucket, name));
+    }
+
+    private static String large(String content) {
+        final char[] chars = new char[MAX_PACKED_SIZE * 2];
+        Arrays.fill(chars, '-');
+        return content + new String(chars);
+    }
+
+    private Path lastSegment() throws IOException {
+        try (Stream<Path> segments = Files.list(fileSystem.getPath(SEGMENTS_DIR))) {
+            return segments.sorted().reduce((a, b) -> b).orElseThrow(IllegalStateException::new);
+        }
+    }
+
+    @Test
+    public void smallFilesArePackedAndLargeFilesAreNot() throws Exception {
+        createSomeBuckets("bucket");
+        upload("bucket", "small.txt", "small");
+        upload("bucket", "large.txt", large("large"));
+
+        Assertions.assertThat(plainFileExists("bucket", "small.txt")).isFalse();
+        Assertions.assertThat(plainFileExists("bucket", "large.txt")).isTrue();
+        Assertions.assertThat(segmentLog.getFiles()).isEqualTo(1);
+        Assertions.assertThat(download("bucket", "small.txt")).isEqualTo("small");
+        Assertions.assertThat(download("bucket", "large.txt")).isEqualTo(large("large"));
+        Assertions.assertThat(fileService.getFiles(BucketId.from("bucket")))
+                .extracting(FileInfo::getName)
+                .containsExactly("large.txt", "small.txt");
+    }
+
+    @Test
+    public void mismatchedDigestIsNotPacked() throws Exception {
+        createSomeBuckets("bucket");
+        FileId fileId = FileId.from("bucket", "small.txt");
+        byte[] sha256 = MessageDigest.getInstance("SHA-256").digest("small".getBytes());
+
+        Assertions.assertThatThrownBy(() -> fileService.upload(fileId, new ByteArrayInputStream("smell".getBytes()),
+                new ExpectedDigests(null, sha256, null)))
+                .isInstanceOf(ContentDigestMismatchException.class);
+        Assertions.assertThat(segmentLog.getFiles()).isEqualTo(0);
+
+        fileService.upload(fileId, new ByteArrayInputStream("small".getBytes()), new ExpectedDigests(null, sha256, null));
+        Assertions.assertThat(download("bucket", "small.txt")).isEqualTo("small");
+    }
+
+    @Test
+    public void overwriteMovesFileBetweenLogAndBucket() throws Exception {
+        createSomeBuckets("bucket");
+        upload("bucket", "file.txt", "small");
+
+        overwrite("bucket", "file.txt", large("large"));
+        Assertions.assertThat(plainFileExists("bucket", "file.txt")).isTrue();
+        Assertions.assertThat(segmentLog.getFiles()).isEqualTo(0);
+        Assertions.assertThat(download("bucket", "file.txt")).isEqualTo(large("large"));
+
+        overwrite("bucket", "file.txt", "small again");
+        Assertions.assertThat(plainFileExists("bucket", "file.txt")).isFalse();
+        Assertions.assertThat(download("bucket", "file.txt")).isEqualTo("small again");
+        Assertions.assertThat(fileService.getFiles(BucketId.from("bucket"))).hasSize(1);
+    }
+
+    @Test
+    public void pagesMergePackedAndPlainFiles() throws Exception {
+        createSomeBuckets("bucket");
+        upload("bucket", "a.txt", "a");
+        upload("bucket", "b.txt", large("b"));
+        upload("bucket", "c.txt", "c");
+        upload("bucket", "d.txt", large("d"));
+        upload("bucket", "e.txt", "e");
+
+        FilePage first = fileService.getFiles(BucketId.from("bucket"), null, null, 2);
+        Assertions.assertThat(first.getFiles()).extracting(FileInfo::getName).containsExactly("a.txt", "b.txt");
+        Assertions.assertThat(first.getNextStartAfter()).isEqualTo("b.txt");
+
+        FilePage second = fileService.getFiles(BucketId.from("bucket"), null, "b.txt", 2);
+        Assertions.assertThat(second.getFiles()).extracting(FileInfo::getName).containsExactly("c.txt", "d.txt");
+        Assertions.assertThat(second.getNextStartAfter()).isEqualTo("d.txt");
+
+        FilePage third = fileService.getFiles(BucketId.from("bucket"), null, "d.txt", 2);
+        Assertions.assertThat(third.getFiles()).extracting(FileInfo::getName).containsExactly("e.txt");
+        Assertions.assertThat(third.getNextStartAfter()).isNull();
+
+        try (Stream<FileInfo> files = fileService.streamFiles(BucketId.from("bucket"))) {
+            Assertions.assertThat(files.map(FileInfo::getName).collect(Collectors.toList()))
+                    .containsExactlyInAnyOrder("a.txt", "b.txt", "c.txt", "d.txt", "e.txt");
+        }
+    }
+
+    @Test
+    public void indexIsRebuiltOnOpen() throws Exception {
+        createSomeBuckets("bucketA", "bucketB");
+        upload("bucketA", "kept.txt", "kept");
+        upload("bucketA", "deleted.txt", "deleted");
+        upload("bucketA", "changed.txt", "old");
+        upload("bucketB", "file.txt", "gone");
+        fileService.deleteFile(FileId.from("bucketA", "deleted.txt"));
+        overwrite("bucketA", "changed.txt", "new");
+        fileService.deleteBucket(BucketId.from("bucketB"));
+        fileService.createBucket(BucketId.from("bucketB"));
+
+        reopen();
+
+        Assertions.assertThat(fileService.getFiles(BucketId.from("bucketA")))
+                .extracting(FileInfo::getName)
+                .containsExactly("changed.txt", "kept.txt");
+        Assertions.assertThat(download("bucketA", "changed.txt")).isEqualTo("new");
+        Assertions.assertThat(fileService.getFiles(BucketId.from("bucketB"))).isEmpty();
+    }
+
+    @Test
+    public void filesOfBucketDeletedWithoutTombstoneDoNotComeBack() throws Exception {
+        createSomeBuckets("bucket");
+        upload("bucket", "file.txt", "gone");
+        // bucket directory is deleted, but the application stops before the tombstone is appended
+        try (Stream<Path> paths = Files.walk(fileSystem.getPath(CONTENT_DIR, "bucket"))) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(path);
+            }
+        }
+
+        reopen();
+        fileService.createBucket(BucketId.from("bucket"));
+        reopen();
+
+        Assertions.assertThat(fileService.getFiles(BucketId.from("bucket"))).isEmpty();
+    }
+
+    @Test(timeout = 10000)
+    public void bucketIsDeletedWhileSmallUploadIsRead() throws Exception {
+        createSomeBuckets("bucket");
+        CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch deleted = new CountDownLatch(1);
+        InputStream slowStream = new SequenceInputStream(new ByteArrayInputStream("small".getBytes()), new InputStream() {
+            @Override
+            public int read() throws IOException {
+                reading.countDown();
+                try {
+                    deleted.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return -1;
+            }
+        });
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> upload = executor.submit(() -> {
+                fileService.upload(FileId.from("bucket", "file.txt"), slowStream);
+                return null;
+            });
+            reading.await();
+            fileService.deleteBucket(BucketId.from("bucket"));
+            deleted.countDown();
+
+            Assertions.assertThatThrownBy(upload::get).hasCauseInstanceOf(BucketDoesNotExistException.class);
+        } finally {
+            executor.shutdown();
+        }
+        fileService.createBucket(BucketId.from("bucket"));
+        Assertions.assertThat(fileService.getFiles(BucketId.from("bucket"))).isEmpty();
+    }
+
+    @Test
+    public void tornRecordIsDroppedOnOpen() throws Exception {
+        createSomeBuckets("bucket");
+        upload("bucket", "complete.txt", "complete");
+        upload("bucket", "torn.txt", "torn");
+
+        final Path segment = lastSegment();
+        final long size = Files.size(segment);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(size - 2);
+        }
+
+        reopen();
+
+        Assertions.assertThat(fileService.getFiles(BucketId.from("bucket")))
+                .extracting(FileInfo::getName)
+                .containsExactly("complete.txt");
+        upload("bucket", "after.txt", "after");
+        reopen();
+        Assertions.assertThat(download("bucket", "after.txt")).isEqualTo("after");
+    }
+
+    @Test(expected = FileDoesNotExistException.class)
+    public void deletedPackedFileCanNotBeDownloaded() throws Exception {
+        createSomeBuckets("bucket");
+        upload("bucket", "file.txt", "content");
+        fileService.deleteFile(FileId.from("bucket", "file.txt"));
+
+        fileService.download(FileId.from("bucket", "file.txt"));
+    }
+
+    @Test
+    public void compactionRewritesLiveFilesAndDeletesSparseSegments() throws Exception {
+        createSomeBuckets("bucket");
+        for (int i = 0; i < 40; i++) {
+            upload("bucket", "file-" + i + ".txt", "content-" + i);
+        }
+        Assertions.assertThat(segmentLog.getSegments()).isGreaterThan(2);
+        for (int i = 0; i < 40; i++) {
+            if (i % 5 != 0) {
+                fileService.deleteFile(FileId.from("bucket", "file-" + i + ".txt"));
+            }
+        }
+        final long totalBytes = segmentLog.getTotalBytes();
+
+        Assertions.assertThat(segmentLog.compact(0.5)).isGreaterThan(0);
+
+        Assertions.assertThat(segmentLog.getTotalBytes()).isLessThan(totalBytes);
+        Assertions.assertThat(segmentLog.getReclaimedBytes()).isGreaterThan(0);
+        for (int round = 0; round < 2; round++) {
+            Assertions.assertThat(fileService.getFiles(BucketId.from("bucket"))).hasSize(8);
+            for (int i = 0; i < 40; i += 5) {
+                Assertions.assertThat(download("bucket", "file-" + i + ".txt")).isEqualTo("content-" + i);
+            }
+            // moved records and carried tombstones must give the same index after restart
+            reopen();
+        }
+    }
+}
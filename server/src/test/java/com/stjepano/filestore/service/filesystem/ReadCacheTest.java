@@ -0,0 +1,159 @@
+package com.stjepano.filestore.service.filesystem;
+
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.io.Resource;
+import org.springframework.util.StreamUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Test for {@link ReadCache}
+ */
+public class ReadCacheTest {
+
+    private FileSystem fileSystem;
+    private Path directory;
+
+    @Before
+    public void setUp() throws Exception {
+        fileSystem = Jimfs.newFileSystem(Configuration.unix());
+        directory = fileSystem.getPath("/bucket");
+        Files.createDirectory(directory);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        fileSystem.close();
+    }
+
+    private Path file(String name, int size) throws Exception {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) ('a' + i % 26);
+        }
+        return Files.write(directory.resolve(name), data);
+    }
+
+    @Test
+    public void servesCachedContentUntilInvalidated() throws Exception {
+        ReadCache readCache = new ReadCache(1000, 100);
+        Path file = file("file.txt", 10);
+
+        Resource resource = readCache.get(file);
+        assertThat(StreamUtils.copyToByteArray(resource.getInputStream())).isEqualTo(Files.readAllBytes(file));
+        assertThat(resource.getFilename()).isEqualTo("file.txt");
+        assertThat(resource.contentLength()).isEqualTo(10);
+        assertThat(readCache.getMisses()).isEqualTo(1);
+
+        Files.write(file, "changed".getBytes());
+        assertThat(StreamUtils.copyToString(readCache.get(file).getInputStream(), StandardCharsets.US_ASCII))
+                .isEqualTo("abcdefghij");
+        assertThat(readCache.getHits()).isEqualTo(1);
+
+        readCache.invalidate(file);
+        assertThat(StreamUtils.copyToString(readCache.get(file).getInputStream(), StandardCharsets.US_ASCII))
+                .isEqualTo("changed");
+        assertThat(readCache.getSize()).isEqualTo(7);
+    }
+
+    @Test
+    public void doesNotCacheLargeFiles() throws Exception {
+        ReadCache readCache = new ReadCache(1000, 100);
+        Path file = file("large.txt", 101);
+
+        assertThat(readCache.get(file)).isNull();
+        assertThat(readCache.getEntries()).isEqualTo(0);
+    }
+
+    @Test
+    public void admitsOnlyFilesMoreFrequentThanVictims() throws Exception {
+        ReadCache readCache = new ReadCache(100, 100);
+        Path hot = file("hot.txt", 60);
+        Path cold = file("cold.txt", 60);
+
+        for (int i = 0; i < 5; i++) {
+            readCache.get(hot);
+        }
+        assertThat(readCache.getEntries()).isEqualTo(1);
+
+        // one time read of another file does not evict hot file
+        assertThat(readCache.get(cold)).isNull();
+        assertThat(readCache.getRejections()).isEqualTo(1);
+        assertThat(readCache.getHits()).isEqualTo(4);
+
+        // once it becomes hotter it replaces the hot file
+        for (int i = 0; i < 10; i++) {
+            readCache.get(cold);
+        }
+        assertThat(readCache.getEvictions()).isEqualTo(1);
+        assertThat(readCache.getEntries()).isEqualTo(1);
+        assertThat(readCache.getSize()).isEqualTo(60);
+    }
+
+    @Test
+    public void invalidatesDirectory() throws Exception {
+        ReadCache readCache = new ReadCache(1000, 100);
+        readCache.get(file("a.txt", 10));
+        readCache.get(file("b.txt", 10));
+        assertThat(readCache.getEntries()).isEqualTo(2);
+
+        readCache.invalidateAll(directory);
+        assertThat(readCache.getEntries()).isEqualTo(0);
+        assertThat(readCache.getSize()).isEqualTo(0);
+    }
+
+    @Test
+    public void concurrentReadsKeepSizeOfCachedFiles() throws Exception {
+        ReadCache readCache = new ReadCache(1600, 100);
+        List<Path> files = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            files.add(file("file" + i + ".txt", 50 + i % 50));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> reads = new ArrayList<>();
+            for (int thread = 0; thread < 8; thread++) {
+                final int offset = thread;
+                reads.add(executor.submit(() -> {
+                    for (int i = 0; i < 2000; i++) {
+                        // skewed access, low numbered files are hot
+                        Path file = files.get((offset + i * i) % (1 + i % files.size()));
+                        Resource resource = readCache.get(file);
+                        if (resource != null) {
+                            assertThat(resource.contentLength()).isEqualTo(Files.size(file));
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> read : reads) {
+                read.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertThat(readCache.getSize()).isLessThanOrEqualTo(1600);
+        assertThat(readCache.getEntries()).isGreaterThan(0);
+        assertThat(readCache.getHits()).isGreaterThan(0);
+
+        // no space stays reserved by reads which did not cache their file
+        readCache.invalidateAll(directory);
+        assertThat(readCache.getSize()).isEqualTo(0);
+    }
+}
@@ -0,0 +1,148 @@
+package com.stjepano.filestore.service.filesystem;
+
+import com.stjepano.filestore.common.FileInfo;
+import com.stjepano.filestore.common.FilePage;
+import com.stjepano.filestore.service.BucketId;
+import com.stjepano.filestore.service.FileId;
+import com.stjepano.filestore.service.FileService;
+import org.assertj.core.api.Assertions;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Test for {@link FileSystemFileService} with sharded layout, files created by {@link #createSomeFiles(String, String[][])}
+ * are in flat layout as if they were stored before sharding was enabled.
+ */
+public class ShardedFileSystemFileServiceTest extends FileSystemFileServiceTest {
+
+    private FileSystemFileService fileService;
+
+    @Override
+    protected FileService createFileService() {
+        fileService = (FileSystemFileService) super.createFileService();
+        fileService.setSharded(true);
+        return fileService;
+    }
+
+    private Path flatPath(String bucket, String name) {
+        return fileSystem.getPath(CONTENT_DIR, bucket, name);
+    }
+
+    private Path shardedPath(String bucket, String name) {
+        return ShardedLayout.shardedPath(fileSystem.getPath(CONTENT_DIR, bucket), name);
+    }
+
+    private void upload(String bucket, String name, String content) throws Exception {
+        fileService.upload(FileId.from(bucket, name), new ByteArrayInputStream(content.getBytes()));
+    }
+
+    @Override
+    @Test
+    public void failedUploadLeavesNothingBehind() throws Exception {
+        createSomeBuckets("bucketA");
+        FileId fileId = FileId.from("bucketA", "file.txt");
+
+        Assertions.assertThatThrownBy(() -> fileService.upload(fileId, failingStream("partial")))
+                .isInstanceOf(RuntimeException.class);
+        Assertions.assertThat(fileService.getFiles(BucketId.from("bucketA"))).isEmpty();
+
+        upload("bucketA", "file.txt", "complete");
+        Assertions.assertThat(Files.readAllBytes(shardedPath("bucketA", "file.txt"))).isEqualTo("complete".getBytes());
+    }
+
+    @Test
+    public void newFilesAreStoredInShards() throws Exception {
+        createSomeBuckets("bucketA");
+        upload("bucketA", "a.txt", "content A");
+
+        final Path path = shardedPath("bucketA", "a.txt");
+        Assertions.assertThat(Files.readAllBytes(path)).isEqualTo("content A".getBytes());
+        Assertions.assertThat(path.getParent().getParent().getFileName().toString()).matches("\\.[0-9a-f]{2}");
+        Assertions.assertThat(path.getParent().getFileName().toString()).matches("[0-9a-f]{2}");
+        Assertions.assertThat(Files.exists(flatPath("bucketA", "a.txt"))).isFalse();
+    }
+
+    @Test
+    public void listingsIncludeFlatAndShardedFiles() throws Exception {
+        createSomeBuckets("bucketA");
+        createSomeFiles("bucketA", new String[][]{{"b.txt", "flat"}, {"d.txt", "flat"}});
+        upload("bucketA", "a.txt", "sharded");
+        upload("bucketA", "c.txt", "sharded");
+
+        Assertions.assertThat(fileService.getFiles(BucketId.from("bucketA")))
+                .extracting(FileInfo::getName)
+                .containsExactly("a.txt", "b.txt", "c.txt", "d.txt");
+        FilePage page = fileService.getFiles(BucketId.from("bucketA"), null, "a.txt", 2);
+        Assertions.assertThat(page.getFiles()).extracting(FileInfo::getName).containsExactly("b.txt", "c.txt");
+        Assertions.assertThat(page.getNextStartAfter()).isEqualTo("c.txt");
+        Assertions.assertThat(fileService.streamFiles(BucketId.from("bucketA")).map(FileInfo::getName))
+                .containsExactlyInAnyOrder("a.txt", "b.txt", "c.txt", "d.txt");
+    }
+
+    @Test
+    public void flatFilesAreChangedInPlace() throws Exception {
+        createSomeBuckets("bucketA");
+        createSomeFiles("bucketA", new String[][]{{"a.txt", "old"}, {"b.txt", "old"}});
+
+        fileService.overwrite(FileId.from("bucketA", "a.txt"), new ByteArrayInputStream("new".getBytes()));
+        Assertions.assertThat(Files.readAllBytes(flatPath("bucketA", "a.txt"))).isEqualTo("new".getBytes());
+
+        fileService.deleteFile(FileId.from("bucketA", "b.txt"));
+        Assertions.assertThat(Files.exists(flatPath("bucketA", "b.txt"))).isFalse();
+    }
+
+    @Test
+    public void migrateLayoutMovesFilesBothWays() throws Exception {
+        createSomeBuckets("bucketA");
+        createSomeFiles("bucketA", new String[][]{{"a.txt", "content A"}, {"b.txt", "content B"}});
+        upload("bucketA", "c.txt", "content C");
+
+        Assertions.assertThat(fileService.migrateLayout(BucketId.from("bucketA"))).isEqualTo(2);
+        Assertions.assertThat(Files.readAllBytes(shardedPath("bucketA", "a.txt"))).isEqualTo("content A".getBytes());
+        Assertions.assertThat(Files.exists(flatPath("bucketA", "a.txt"))).isFalse();
+        Assertions.assertThat(fileService.migrateLayout(BucketId.from("bucketA"))).isEqualTo(0);
+
+        fileService.setSharded(false);
+        Assertions.assertThat(fileService.migrateLayout(BucketId.from("bucketA"))).isEqualTo(3);
+        Assertions.assertThat(Files.readAllBytes(flatPath("bucketA", "c.txt"))).isEqualTo("content C".getBytes());
+        Assertions.assertThat(fileService.getFiles(BucketId.from("bucketA")))
+                .extracting(FileInfo::getName)
+                .containsExactly("a.txt", "b.txt", "c.txt");
+        Assertions.assertThat(fileService.getMigratedFiles()).isEqualTo(5);
+        Assertions.assertThat(bucketEntries("bucketA")).containsExactlyInAnyOrder("a.txt", "b.txt", "c.txt");
+    }
+
+    @Test
+    public void deleteFilePrunesEmptyShards() throws Exception {
+        createSomeBuckets("bucketA");
+        upload("bucketA", "a.txt", "content A");
+
+        fileService.deleteFile(FileId.from("bucketA", "a.txt"));
+        Assertions.assertThat(bucketEntries("bucketA")).isEmpty();
+
+        upload("bucketA", "a.txt", "content A");
+        Assertions.assertThat(Files.readAllBytes(shardedPath("bucketA", "a.txt"))).isEqualTo("content A".getBytes());
+    }
+
+    private List<String> bucketEntries(String bucket) throws IOException {
+        try (Stream<Path> entries = Files.list(fileSystem.getPath(CONTENT_DIR, bucket))) {
+            return entries.map(path -> path.getFileName().toString()).collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    public void deleteBucketDeletesShards() throws Exception {
+        createSomeBuckets("bucketA");
+        upload("bucketA", "a.txt", "content A");
+
+        fileService.deleteBucket(BucketId.from("bucketA"));
+        Assertions.assertThat(Files.exists(fileSystem.getPath(CONTENT_DIR, "bucketA"))).isFalse();
+    }
+}
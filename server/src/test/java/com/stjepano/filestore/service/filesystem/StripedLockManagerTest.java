@@ -0,0 +1,60 @@
+package com.stjepano.filestore.service.filesystem;
+
+import com.stjepano.filestore.service.BucketId;
+import com.stjepano.filestore.service.FileId;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Test for {@link StripedLockManager}
+ */
+public class StripedLockManagerTest {
+
+    @Test
+    public void roundsStripesToPowerOfTwo() {
+        assertThat(new StripedLockManager(1).getStripes()).isEqualTo(1);
+        assertThat(new StripedLockManager(64).getStripes()).isEqualTo(64);
+        assertThat(new StripedLockManager(65).getStripes()).isEqualTo(128);
+    }
+
+    @Test
+    public void sameIdsShareLocks() throws Exception {
+        StripedLockManager lockManager = new StripedLockManager(16);
+
+        assertThat(lockManager.bucketSharedLock(BucketId.from("bucketA")))
+                .isSameAs(lockManager.bucketSharedLock(BucketId.from("bucketA")));
+        assertThat(lockManager.fileLock(FileId.from("bucketA", "file.txt")))
+                .isSameAs(lockManager.fileLock(FileId.from("bucketA", "file.txt")));
+    }
+
+    @Test
+    public void exclusiveBucketLockWaitsForSharedLocks() throws Exception {
+        StripedLockManager lockManager = new StripedLockManager(16);
+        BucketId bucketId = BucketId.from("bucketA");
+
+        Lock shared = lockManager.bucketSharedLock(bucketId);
+        shared.lock();
+        try {
+            assertThat(tryLockInOtherThread(lockManager.bucketSharedLock(bucketId))).isTrue();
+            assertThat(tryLockInOtherThread(lockManager.bucketExclusiveLock(bucketId))).isFalse();
+        } finally {
+            shared.unlock();
+        }
+        assertThat(tryLockInOtherThread(lockManager.bucketExclusiveLock(bucketId))).isTrue();
+    }
+
+    private static boolean tryLockInOtherThread(Lock lock) throws Exception {
+        return CompletableFuture.supplyAsync(() -> {
+            if (lock.tryLock()) {
+                lock.unlock();
+                return true;
+            }
+            return false;
+        }).get(1, TimeUnit.SECONDS);
+    }
+}
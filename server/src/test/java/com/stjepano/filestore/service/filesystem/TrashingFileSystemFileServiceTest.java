@@ -0,0 +1,85 @@
+package com.stjepano.filestore.service.filesystem;
+
+import com.stjepano.filestore.service.BucketId;
+import com.stjepano.filestore.service.FileId;
+import com.stjepano.filestore.service.FileService;
+import org.assertj.core.api.Assertions;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+/**
+ * Test for {@link FileSystemFileService} which deletes files of deleted buckets with a {@link BucketReaper}
+ */
+public class TrashingFileSystemFileServiceTest extends FileSystemFileServiceTest {
+
+    private FileSystemFileService fileService;
+
+    private BucketReaper bucketReaper;
+
+    @Override
+    protected FileService createFileService() {
+        fileService = (FileSystemFileService) super.createFileService();
+        bucketReaper = new BucketReaper(CONTENT_DIR + "/.trash", fileSystem, 2, 0);
+        bucketReaper.start();
+        fileService.setBucketReaper(bucketReaper);
+        return fileService;
+    }
+
+    @After
+    public void stopReaper() {
+        bucketReaper.stop();
+    }
+
+    private void upload(String bucket, String name, String content) throws Exception {
+        fileService.upload(FileId.from(bucket, name), new ByteArrayInputStream(content.getBytes()));
+    }
+
+    @Test
+    public void deletedBucketIsMovedToTrash() throws Exception {
+        createSomeBuckets("bucketA");
+        upload("bucketA", "a.txt", "content A");
+        upload("bucketA", "b.txt", "content B");
+
+        fileService.deleteBucket(BucketId.from("bucketA"));
+        Assertions.assertThat(Files.exists(fileSystem.getPath(CONTENT_DIR, "bucketA"))).isFalse();
+        Assertions.assertThat(fileService.getBuckets()).doesNotContain("bucketA");
+
+        // bucket can be created again while its old files are deleted
+        fileService.createBucket(BucketId.from("bucketA"));
+        upload("bucketA", "a.txt", "new content");
+
+        Assertions.assertThat(bucketReaper.awaitEmpty(5000)).isTrue();
+        try (Stream<Path> trashed = Files.list(fileSystem.getPath(CONTENT_DIR, ".trash"))) {
+            Assertions.assertThat(trashed).isEmpty();
+        }
+        Assertions.assertThat(bucketReaper.getDeletedFiles()).isEqualTo(2);
+        Assertions.assertThat(bucketReaper.getDeletedBytes()).isEqualTo("content A".length() + "content B".length());
+        Assertions.assertThat(Files.readAllBytes(fileSystem.getPath(CONTENT_DIR, "bucketA", "a.txt")))
+                .isEqualTo("new content".getBytes());
+    }
+
+    @Test
+    public void blobsOfTrashedFilesAreReleased() throws Exception {
+        ContentAddressedBlobStore blobStore = new ContentAddressedBlobStore(CONTENT_DIR + "/.blobs", fileSystem);
+        blobStore.load();
+        fileService.setBlobStore(blobStore);
+        bucketReaper.setBlobStore(blobStore);
+        createSomeBuckets("bucketA", "bucketB");
+        upload("bucketA", "a.txt", "same content");
+        upload("bucketB", "b.txt", "same content");
+        upload("bucketB", "c.txt", "other content");
+
+        fileService.deleteBucket(BucketId.from("bucketB"));
+        Assertions.assertThat(bucketReaper.awaitEmpty(5000)).isTrue();
+
+        Assertions.assertThat(blobStore.getBlobs()).isEqualTo(1);
+        Assertions.assertThat(blobStore.getReclaimed()).isEqualTo(1);
+        Assertions.assertThat(Files.readAllBytes(fileSystem.getPath(CONTENT_DIR, "bucketA", "a.txt")))
+                .isEqualTo("same content".getBytes());
+    }
+}